@@ -52,6 +52,43 @@ public final class Configuration extends Persistent {
 	 * static final variables and also disallow compiler optimizations.) */
 	public final static transient boolean IS_UNIT_TEST = Boolean.getBoolean("is_WOT_unit_test");
 
+	/**
+	 * String config parameter: The name of the {@link IdentityFileQueueType} which WOT uses as
+	 * its {@link IdentityFileQueue}. Changes take effect at the next restart. */
+	public final static transient String IDENTITY_FILE_QUEUE_TYPE = "IdentityFileQueue.Type";
+
+	/**
+	 * Integer config parameter: The amount of bytes of identity files which the
+	 * {@link IdentityFileHybridQueue} keeps in memory before it writes them to disk. */
+	public final static transient String IDENTITY_FILE_QUEUE_MEMORY_BUDGET
+		= "IdentityFileQueue.MemoryBudget";
+
+	/** Valid values of {@link #IDENTITY_FILE_QUEUE_TYPE}. */
+	public static enum IdentityFileQueueType {
+		/** {@link IdentityFileDiskQueue}, the default. */
+		Disk,
+		/**
+		 * {@link IdentityFileMemoryQueue}: For debugging only, it doesn't deduplicate and has no
+		 * memory limit. */
+		Memory,
+		/** {@link IdentityFileHybridQueue}. */
+		Hybrid;
+	}
+
+	/**
+	 * String config parameter: The name of the {@link NotificationQueueType} which the
+	 * {@link SubscriptionManager} uses to queue its notifications. Changes take effect at the next
+	 * restart. */
+	public final static transient String NOTIFICATION_QUEUE_TYPE = "NotificationQueue.Type";
+
+	/** Valid values of {@link #NOTIFICATION_QUEUE_TYPE}. */
+	public static enum NotificationQueueType {
+		/** {@link NotificationFileQueue}, the default. */
+		File,
+		/** Objects of class {@link SubscriptionManager.Notification} in the database. */
+		Database;
+	}
+
 	/**
 	 * The database format version of this WoT-database.
 	 * Stored in a primitive integer field to ensure that db4o does not lose it - I've observed the HashMaps to be null suddenly sometimes :(
@@ -266,6 +303,19 @@ public final class Configuration extends Persistent {
 		return (Date)mLastVerificationOfScoresDate.clone(); // Clone it because date is mutable
 	}
 
+	/**
+	 * Schedules {@link WebOfTrust#verifyAndCorrectStoredScores()} at the next restart of WoT.
+	 * Used by operations which commit multiple transactions before the {@link Score}s are
+	 * correct again, to have them fixed if WoT is terminated in between. */
+	void scheduleVerificationOfScoresWithoutCommit() {
+		// Date is a db4o primitive type so activation depth of 1 is enough. We also don't need
+		// to delete because of that, db4o will do it automatically.
+		checkedActivate(1);
+		// checkedDelete(mLastVerificationOfScoresDate);
+		
+		mLastVerificationOfScoresDate = new Date(0);
+	}
+
 	public void updateLastVerificationOfScoresDate() {
 		// Date is a db4o primitive type so activation depth of 1 is enough. We also don't need
 		// to delete because of that, db4o will do it automatically.
@@ -402,7 +452,16 @@ public final class Configuration extends Persistent {
 	 * @param overwrite If true, overwrite already set values with the default value.
 	 */
 	public synchronized void setDefaultValues(boolean overwrite) {
-
+		if(overwrite || !containsString(IDENTITY_FILE_QUEUE_TYPE))
+			set(IDENTITY_FILE_QUEUE_TYPE, IdentityFileQueueType.Disk.toString());
+		
+		if(overwrite || !containsInt(IDENTITY_FILE_QUEUE_MEMORY_BUDGET)) {
+			set(IDENTITY_FILE_QUEUE_MEMORY_BUDGET,
+				IdentityFileHybridQueue.DEFAULT_MEMORY_BUDGET);
+		}
+		
+		if(overwrite || !containsString(NOTIFICATION_QUEUE_TYPE))
+			set(NOTIFICATION_QUEUE_TYPE, NotificationQueueType.File.toString());
 	}
 
 	@Override
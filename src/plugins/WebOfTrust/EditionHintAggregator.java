@@ -0,0 +1,269 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static plugins.WebOfTrust.Configuration.IS_UNIT_TEST;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
+import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
+import plugins.WebOfTrust.util.jobs.TickerDelayedBackgroundJob;
+import freenet.node.PrioRunnable;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.io.NativeThread.PriorityLevel;
+
+/**
+ * Collects the edition hints which the {@link XMLTransformer} receives from trust lists, and
+ * passes them to the {@link Identity}s and the {@link IdentityFetcher} in periodic batches.<br>
+ * <br>
+ *
+ * Popular identities are listed in thousands of trust lists, so the same identity receives a new
+ * hint very often. Without aggregation, each of those would cause an
+ * {@link Identity#storeWithoutCommit()} and an
+ * {@link IdentityFetcher#storeUpdateEditionHintCommandWithoutCommit(Identity)} during the import
+ * of the trust list. Instead, {@link #addHint(String, long)} only keeps the maximal hint of each
+ * identity in memory, and the flush stores each identity at most once per
+ * {@link #FLUSH_DELAY}.<br><br>
+ *
+ * Not persisted: Hints which were not flushed yet are lost upon an unclean shutdown. This is
+ * harmless, they are only hints, and the trust lists which contained them will be imported again
+ * when they change.<br>
+ * Hints are also not discarded if the transaction which added them is rolled back, as they do
+ * not need to be consistent with the database.<br><br>
+ *
+ * Locking order: The lock of this class is the innermost, it can be taken while holding any
+ * other lock. {@link #flush()} takes the locks of the {@link WebOfTrust}, the
+ * {@link IdentityFetcher} and the database in the usual order before taking the own lock. */
+public final class EditionHintAggregator {
+	/**
+	 * Delay between a hint being added and the flush of it and all other hints which are added
+	 * meanwhile. */
+	public static final long FLUSH_DELAY = IS_UNIT_TEST ? SECONDS.toMillis(1) : MINUTES.toMillis(1);
+
+	/**
+	 * If this amount of identities has pending hints, the flush is scheduled immediately instead
+	 * of after {@link #FLUSH_DELAY} to bound the memory usage. */
+	public static final int MAX_PENDING_HINTS = 16 * 1024;
+
+	/**
+	 * Amount of identities which are queried from the database with a single query by
+	 * {@link #flush()}. */
+	private static final int FLUSH_QUERY_BATCH_SIZE = 512;
+
+	private final WebOfTrust mWoT;
+
+	/** Runs {@link #flush()}. */
+	private final DelayedBackgroundJob mJob;
+
+	/** Key = {@link Identity#getID()}, value = the maximal hint which was added for it. */
+	private HashMap<String, Long> mPendingHints = new HashMap<String, Long>();
+
+	private final Statistics mStatistics = new Statistics();
+
+	public static final class Statistics implements Cloneable {
+		/** Number of calls to {@link EditionHintAggregator#addHint(String, long)}. */
+		public long mReceivedHints = 0;
+
+		/**
+		 * Number of {@link #mReceivedHints} which were higher than the pending hint of the same
+		 * identity, i.e. which raised the edition which the next flush will pass to it. */
+		public long mRaisingHints = 0;
+
+		/**
+		 * Number of hints which were passed to {@link Identity#setNewEditionHint(long)} by the
+		 * flush, i.e. the {@link #mReceivedHints} minus the ones which were aggregated with a
+		 * hint of the same identity. */
+		public long mFlushedHints = 0;
+
+		/**
+		 * Number of {@link Identity}s which were stored because the flushed hint was newer than
+		 * their existing one. */
+		public long mStoredIdentities = 0;
+
+		/** Number of executions of {@link EditionHintAggregator#flush()}. */
+		public int mFlushes = 0;
+
+		/**
+		 * @return The amount of {@link Identity#storeWithoutCommit()} and
+		 *     {@link IdentityFetcher#storeUpdateEditionHintCommandWithoutCommit(Identity)} calls
+		 *     which were avoided by aggregating the hints. Hints which are pending are counted
+		 *     as saved already.<br>
+		 *     Only the {@link #mRaisingHints} are considered: Without aggregation, a hint which
+		 *     is not higher than a previous hint of the same identity would not cause a store
+		 *     either. */
+		public long getSavedStores() {
+			return mRaisingHints - mStoredIdentities;
+		}
+
+		@Override public Statistics clone() {
+			try {
+				return (Statistics)super.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private static transient volatile boolean logMINOR = false;
+
+	static {
+		Logger.registerClass(EditionHintAggregator.class);
+	}
+
+
+	/** @param ticker If null, {@link #flush()} is never executed automatically. */
+	EditionHintAggregator(WebOfTrust wot, Ticker ticker) {
+		mWoT = wot;
+
+		if(ticker != null) {
+			mJob = new TickerDelayedBackgroundJob(
+				new Flusher(), "WOT EditionHintAggregator", FLUSH_DELAY, ticker);
+		} else {
+			// Don't log this as error since it is used for unit tests
+			Logger.warning(this, "No Ticker provided, flush will never execute automatically!",
+				new RuntimeException("For stack trace"));
+
+			mJob = MockDelayedBackgroundJob.DEFAULT;
+		}
+	}
+
+	/**
+	 * Must be called for every edition hint of a trustee in a trust list which should be passed
+	 * to the trustee, i.e. instead of calling {@link Identity#setNewEditionHint(long)} upon it.
+	 * <br>
+	 * The hint will become effective after at most {@link #FLUSH_DELAY}.<br><br>
+	 *
+	 * Does not access the database, may be called while holding any locks. */
+	public void addHint(String identityID, long editionHint) {
+		final boolean flushNow;
+
+		synchronized(this) {
+			++mStatistics.mReceivedHints;
+
+			final Long existing = mPendingHints.get(identityID);
+			if(existing == null || existing < editionHint) {
+				mPendingHints.put(identityID, editionHint);
+				++mStatistics.mRaisingHints;
+			}
+
+			flushNow = mPendingHints.size() >= MAX_PENDING_HINTS;
+		}
+
+		if(flushNow)
+			mJob.triggerExecution(0);
+		else
+			mJob.triggerExecution();
+	}
+
+	/**
+	 * Passes all pending hints to their {@link Identity}s, and stores an
+	 * {@link IdentityFetcher#storeUpdateEditionHintCommandWithoutCommit(Identity)} for the ones
+	 * whose hint is newer than the one they had.<br>
+	 * Hints of identities which do not exist anymore are dropped.<br><br>
+	 *
+	 * Executed automatically after {@link #FLUSH_DELAY}, only needs to be called manually if no
+	 * {@link Ticker} was passed to the constructor, e.g. in unit tests.
+	 * Must not be called while holding the lock of this class. */
+	public void flush() {
+		synchronized(mWoT) {
+		synchronized(mWoT.getIdentityFetcher()) {
+		synchronized(Persistent.transactionLock(mWoT.getDatabase())) {
+			final HashMap<String, Long> hints;
+			synchronized(this) {
+				hints = mPendingHints;
+				mPendingHints = new HashMap<String, Long>();
+			}
+
+			if(hints.isEmpty())
+				return;
+
+			int stored = 0;
+			try {
+				final ArrayList<String> ids = new ArrayList<String>(hints.keySet());
+				for(int i = 0; i < ids.size(); i += FLUSH_QUERY_BATCH_SIZE) {
+					final List<String> batch
+						= ids.subList(i, Math.min(i + FLUSH_QUERY_BATCH_SIZE, ids.size()));
+
+					for(Identity identity : mWoT.getIdentitiesByID(batch).values()) {
+						if(identity.setNewEditionHint(hints.get(identity.getID()))) {
+							identity.storeWithoutCommit();
+							mWoT.getIdentityFetcher()
+								.storeUpdateEditionHintCommandWithoutCommit(identity);
+							++stored;
+
+							// We don't notify clients about this: The edition hint is not very
+							// useful to them, see XMLTransformer.
+						}
+					}
+				}
+
+				Persistent.checkedCommit(mWoT.getDatabase(), this);
+			} catch(RuntimeException e) {
+				Persistent.checkedRollback(mWoT.getDatabase(), this, e);
+				// Try again with the next flush
+				synchronized(this) {
+					for(Map.Entry<String, Long> hint : hints.entrySet()) {
+						final Long newer = mPendingHints.get(hint.getKey());
+						if(newer == null || newer < hint.getValue())
+							mPendingHints.put(hint.getKey(), hint.getValue());
+					}
+				}
+				return;
+			}
+
+			synchronized(this) {
+				++mStatistics.mFlushes;
+				mStatistics.mFlushedHints += hints.size();
+				mStatistics.mStoredIdentities += stored;
+			}
+
+			if(logMINOR) {
+				Logger.minor(this, "Flushed " + hints.size() + " edition hints, stored "
+					+ stored + " identities.");
+			}
+		}
+		}
+		}
+	}
+
+	/** Runs {@link EditionHintAggregator#flush()} on the {@link #mJob} thread. */
+	private final class Flusher implements Runnable, PrioRunnable {
+		@Override public void run() {
+			flush();
+		}
+
+		@Override public int getPriority() {
+			// Same as the IdentityFileProcessor which adds the hints.
+			return PriorityLevel.LOW_PRIORITY.value;
+		}
+	}
+
+	/**
+	 * Must be called before the WOT plugin is terminated. Stops the automatic flushing and then
+	 * flushes the pending hints. */
+	void terminate() {
+		mJob.terminate();
+		try {
+			mJob.waitForTermination(Long.MAX_VALUE);
+		} catch(InterruptedException e) {
+			Logger.error(this, "terminate() should not be interrupted!", e);
+		}
+
+		flush();
+	}
+
+	/**
+	 * Gets a {@link Statistics} object suitable for displaying statistics in the UI.<br>
+	 * The object is a clone, you may interfere with the contents of the member variables. */
+	public synchronized Statistics getStatistics() {
+		return mStatistics.clone();
+	}
+}
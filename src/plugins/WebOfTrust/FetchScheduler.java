@@ -0,0 +1,443 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.TreeSet;
+
+import freenet.support.Logger;
+
+/**
+ * Decides for which {@link Identity}s the {@link IdentityFetcher} keeps a permanent USK
+ * subscription, and which ones it merely probes for new editions periodically.<br><br>
+ *
+ * Subscribing to the USKs of all Identitys which {@link WebOfTrust#shouldFetchIdentity(Identity)}
+ * does not scale: Each subscription consumes memory and polling bandwidth at the node, and all of
+ * them are polled at the same priority. But the new editions of Identitys which are far away from
+ * the {@link OwnIdentity}s in the trust graph are of much less importance than the ones of the
+ * close Identitys. Thus the Identitys are sorted into {@link Tier}s by their best capacity, which
+ * is determined by their rank, see {@link WebOfTrust#capacities}:<br>
+ * - {@link Tier#Permanent} Identitys keep a USK subscription for as long as they are fetched.<br>
+ * - {@link Tier#Frequent} and {@link Tier#Rare} Identitys are probed periodically: A probe is a
+ *   temporary subscription which is stopped once a new edition was found, or after
+ *   {@link #PROBE_TIMEOUT}. The next probe of the Identity is then due after the
+ *   {@link Tier#mProbeInterval} of its Tier. The due probes are started in rotating batches
+ *   which are limited by the {@link Tier#mMaxConcurrentProbes}, the Identitys which have waited
+ *   the longest are probed first.<br>
+ * An edition hint of a not subscribed Identity, see {@link #hintUpdate(String, long)}, makes its
+ * next probe due immediately.<br><br>
+ *
+ * This class only contains the scheduling logic, the actual subscriptions are started and
+ * stopped by a {@link Backend}. This allows testing and benchmarking the scheduling without a
+ * Freenet node, see class SimulatedUSKManager of the unit tests.<br>
+ * All functions consume the current time as a parameter for the same reason.<br><br>
+ *
+ * Not synchronized, the user must synchronize. {@link IdentityFetcher} does so by synchronizing
+ * upon itself.<br><br>
+ *
+ * The Tier of an Identity is updated by calling {@link #fetch(String, Tier, boolean, long)} again,
+ * which the {@link IdentityFetcher} does when the Score computation notifies it about a change of
+ * the capacity of the Identity. */
+final class FetchScheduler {
+
+	/**
+	 * Maximal duration of a probe. Must be large enough for the node to do the date hint lookup
+	 * and a few SSK fetches of the USK, see USKManager. */
+	static final long PROBE_TIMEOUT = MINUTES.toMillis(3);
+
+	enum Tier {
+		/** Capacity >= 16, i.e. rank <= 2, and the {@link OwnIdentity}s. */
+		Permanent(0, 0),
+		/** Capacity > 0, i.e. rank 3 to 5. */
+		Frequent(HOURS.toMillis(1), 64),
+		/** Capacity 0, i.e. Identitys with rank > 5 which are fetched due to a score >= 0. */
+		Rare(HOURS.toMillis(12), 16);
+
+		/**
+		 * Delay between the end of a probe and the start of the next one. Unused for Permanent.
+		 * <br>Together with {@link #PROBE_TIMEOUT} and {@link #mMaxConcurrentProbes} this limits
+		 * the number of Identitys which can be probed per interval to:<br>
+		 * mMaxConcurrentProbes * (mProbeInterval + PROBE_TIMEOUT) / PROBE_TIMEOUT<br>
+		 * If there are more Identitys in the Tier, their probes will happen less frequently. */
+		final long mProbeInterval;
+
+		/** Maximal amount of running probes of the Tier. Unused for Permanent. */
+		final int mMaxConcurrentProbes;
+
+		private Tier(long probeInterval, int maxConcurrentProbes) {
+			mProbeInterval = probeInterval;
+			mMaxConcurrentProbes = maxConcurrentProbes;
+		}
+
+		/**
+		 * @param capacity The result of {@link WebOfTrust#getBestCapacity(Identity)}, 0 if it
+		 *     throws NotInTrustTreeException. For {@link OwnIdentity}s pass 100. */
+		static Tier fromCapacity(int capacity) {
+			if(capacity >= 16)
+				return Permanent;
+			else if(capacity > 0)
+				return Frequent;
+			else
+				return Rare;
+		}
+	}
+
+	/** Starts and stops the actual subscriptions, typically at the USKManager of the node. */
+	interface Backend {
+		/**
+		 * Must start a subscription for the given Identity which stays active until
+		 * {@link #stopFetch(String)}.<br>
+		 * If it throws, the subscription is considered as not running. */
+		void startFetch(String identityID) throws Exception;
+
+		/** Must stop the subscription which {@link #startFetch(String)} started. */
+		void stopFetch(String identityID);
+	}
+
+	private static final class Entry implements Comparable<Entry> {
+		final String mID;
+
+		Tier mTier;
+
+		/** For probing Tiers: The time at which the next probe is due. */
+		long mNextProbeTime;
+
+		/** For probing Tiers: The time at which the running probe was started, -1 if none runs. */
+		long mProbeStartTime = -1;
+
+		Entry(String id, Tier tier) {
+			mID = id;
+			mTier = tier;
+		}
+
+		/** Orders by {@link #mNextProbeTime}, the ID breaks ties to allow usage in a TreeSet. */
+		@Override public int compareTo(Entry o) {
+			if(mNextProbeTime != o.mNextProbeTime)
+				return mNextProbeTime < o.mNextProbeTime ? -1 : 1;
+			return mID.compareTo(o.mID);
+		}
+	}
+
+	private final Backend mBackend;
+
+	/** All Identitys which shall be fetched, by ID. */
+	private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+	/**
+	 * Per probing Tier the Entrys which are not being probed currently, sorted by
+	 * {@link Entry#mNextProbeTime}.<br>
+	 * ATTENTION: An Entry must be removed before its mNextProbeTime is changed. */
+	private final EnumMap<Tier, TreeSet<Entry>> mWaiting = new EnumMap<Tier, TreeSet<Entry>>(Tier.class);
+
+	/** Per probing Tier the Entrys which are being probed currently. */
+	private final EnumMap<Tier, LinkedHashSet<Entry>> mProbing
+		= new EnumMap<Tier, LinkedHashSet<Entry>>(Tier.class);
+
+	/** Amount of probes which were started since construction. */
+	private long mProbeCount = 0;
+
+	/** Amount of probes which were stopped due to {@link #PROBE_TIMEOUT}. */
+	private long mProbeTimeoutCount = 0;
+
+
+	FetchScheduler(Backend backend) {
+		mBackend = backend;
+
+		for(Tier tier : Tier.values()) {
+			if(tier == Tier.Permanent)
+				continue;
+
+			mWaiting.put(tier, new TreeSet<Entry>());
+			mProbing.put(tier, new LinkedHashSet<Entry>());
+		}
+	}
+
+	/**
+	 * Starts fetching the given Identity with the given Tier. If it is already being fetched,
+	 * changes its Tier if necessary.<br>
+	 * For a Permanent Tier, the subscription is started immediately. For the other Tiers, the first
+	 * probe is due immediately and will be started by the next {@link #tick(long)}.
+	 *
+	 * @param restart If true and the Identity is already subscribed, the subscription is
+	 *     restarted. If it is waiting for a probe, the probe is made due immediately. Use this if
+	 *     the edition to fetch has decreased, see {@link Identity#markForRefetch()}.
+	 * @throws Exception If {@link Backend#startFetch(String)} failed. The Identity is not added
+	 *     then. */
+	void fetch(String identityID, Tier tier, boolean restart, long now) throws Exception {
+		Entry entry = mEntries.get(identityID);
+
+		if(entry == null) {
+			entry = new Entry(identityID, tier);
+			if(tier == Tier.Permanent)
+				mBackend.startFetch(identityID);
+			else {
+				entry.mNextProbeTime = now;
+				mWaiting.get(tier).add(entry);
+			}
+			mEntries.put(identityID, entry);
+			return;
+		}
+
+		if(entry.mTier != tier)
+			changeTier(entry, tier, now);
+
+		if(!restart)
+			return;
+
+		if(isSubscribed(entry)) {
+			mBackend.stopFetch(identityID);
+			try {
+				mBackend.startFetch(identityID);
+			} catch(Exception e) {
+				endProbeOrRemove(entry, now);
+				throw e;
+			}
+		} else
+			reschedule(entry, now);
+	}
+
+	private void changeTier(Entry entry, Tier newTier, long now) throws Exception {
+		final Tier oldTier = entry.mTier;
+
+		if(newTier == Tier.Permanent) {
+			if(oldTier != Tier.Permanent && entry.mProbeStartTime != -1) {
+				// Keep the running probe's subscription as the permanent one.
+				mProbing.get(oldTier).remove(entry);
+				entry.mProbeStartTime = -1;
+				entry.mTier = newTier;
+				return;
+			}
+
+			mWaiting.get(oldTier).remove(entry);
+			entry.mTier = newTier;
+			try {
+				mBackend.startFetch(entry.mID);
+			} catch(Exception e) {
+				mEntries.remove(entry.mID);
+				throw e;
+			}
+			return;
+		}
+
+		if(oldTier == Tier.Permanent) {
+			mBackend.stopFetch(entry.mID);
+			entry.mTier = newTier;
+			// The subscription was running until now so there is no need to probe immediately.
+			entry.mNextProbeTime = now + newTier.mProbeInterval;
+			mWaiting.get(newTier).add(entry);
+			return;
+		}
+
+		// Change between probing Tiers
+		if(entry.mProbeStartTime != -1) {
+			mProbing.get(oldTier).remove(entry);
+			entry.mTier = newTier;
+			mProbing.get(newTier).add(entry);
+		} else {
+			mWaiting.get(oldTier).remove(entry);
+			entry.mTier = newTier;
+			entry.mNextProbeTime = Math.min(entry.mNextProbeTime, now + newTier.mProbeInterval);
+			mWaiting.get(newTier).add(entry);
+		}
+	}
+
+	/** Stops fetching the given Identity. Returns false if it was not being fetched. */
+	boolean abortFetch(String identityID) {
+		final Entry entry = mEntries.remove(identityID);
+
+		if(entry == null)
+			return false;
+
+		if(entry.mTier == Tier.Permanent)
+			mBackend.stopFetch(identityID);
+		else if(entry.mProbeStartTime != -1) {
+			mProbing.get(entry.mTier).remove(entry);
+			mBackend.stopFetch(identityID);
+		} else
+			mWaiting.get(entry.mTier).remove(entry);
+
+		return true;
+	}
+
+	/**
+	 * Must be called when a new edition hint for the given Identity was received.
+	 *
+	 * @return True if the Identity currently has a subscription, the caller must then pass the
+	 *     hint to it. False if it has none, its next probe has been made due immediately then. The
+	 *     probe will use the hint. */
+	boolean hintUpdate(String identityID, long now) {
+		final Entry entry = mEntries.get(identityID);
+
+		if(entry == null)
+			return false;
+
+		if(isSubscribed(entry))
+			return true;
+
+		if(entry.mNextProbeTime > now) {
+			mWaiting.get(entry.mTier).remove(entry);
+			entry.mNextProbeTime = now;
+			mWaiting.get(entry.mTier).add(entry);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Must be called when a subscription of the given Identity found a new edition. Stops the
+	 * subscription if it was a probe.
+	 *
+	 * @return True if a probe was stopped, i.e. if {@link #tick(long)} may start another one. */
+	boolean onFound(String identityID, long now) {
+		final Entry entry = mEntries.get(identityID);
+
+		if(entry == null || entry.mTier == Tier.Permanent || entry.mProbeStartTime == -1)
+			return false;
+
+		mProbing.get(entry.mTier).remove(entry);
+		mBackend.stopFetch(identityID);
+		reschedule(entry, now + entry.mTier.mProbeInterval);
+		return true;
+	}
+
+	/**
+	 * Stops the probes which exceeded {@link #PROBE_TIMEOUT} and starts as many due probes as
+	 * the {@link Tier#mMaxConcurrentProbes} allow. Must be called periodically, see
+	 * {@link #getNextTickTime(long)}. */
+	void tick(long now) {
+		for(Tier tier : mProbing.keySet()) {
+			final LinkedHashSet<Entry> probing = mProbing.get(tier);
+			final TreeSet<Entry> waiting = mWaiting.get(tier);
+
+			// Not using the start time ordering for breaking early since changeTier() can violate
+			// it. The amount of probes is small anyway.
+			for(Iterator<Entry> i = probing.iterator(); i.hasNext(); ) {
+				final Entry entry = i.next();
+				if(now - entry.mProbeStartTime < PROBE_TIMEOUT)
+					continue;
+
+				i.remove();
+				mBackend.stopFetch(entry.mID);
+				++mProbeTimeoutCount;
+				reschedule(entry, now + tier.mProbeInterval);
+			}
+
+			while(probing.size() < tier.mMaxConcurrentProbes && !waiting.isEmpty()
+					&& waiting.first().mNextProbeTime <= now) {
+
+				final Entry entry = waiting.pollFirst();
+				try {
+					mBackend.startFetch(entry.mID);
+				} catch(Exception e) {
+					Logger.error(this, "Starting probe failed for " + entry.mID, e);
+					entry.mNextProbeTime = now + tier.mProbeInterval;
+					waiting.add(entry);
+					continue;
+				}
+				entry.mProbeStartTime = now;
+				probing.add(entry);
+				++mProbeCount;
+			}
+		}
+	}
+
+	/**
+	 * @return The time at which {@link #tick(long)} will have something to do next, or
+	 *     {@link Long#MAX_VALUE} if there are no probing Identitys. May be <= now. */
+	long getNextTickTime(long now) {
+		long next = Long.MAX_VALUE;
+
+		for(Tier tier : mProbing.keySet()) {
+			final LinkedHashSet<Entry> probing = mProbing.get(tier);
+			final TreeSet<Entry> waiting = mWaiting.get(tier);
+
+			for(Entry entry : probing)
+				next = Math.min(next, entry.mProbeStartTime + PROBE_TIMEOUT);
+
+			if(probing.size() < tier.mMaxConcurrentProbes && !waiting.isEmpty())
+				next = Math.min(next, waiting.first().mNextProbeTime);
+		}
+
+		return next;
+	}
+
+	/** Stops all subscriptions and forgets all Identitys. */
+	void abortAll() {
+		for(Entry entry : mEntries.values()) {
+			if(isSubscribed(entry))
+				mBackend.stopFetch(entry.mID);
+		}
+
+		mEntries.clear();
+		for(TreeSet<Entry> waiting : mWaiting.values())
+			waiting.clear();
+		for(LinkedHashSet<Entry> probing : mProbing.values())
+			probing.clear();
+	}
+
+	/** @return True if the given Identity is being fetched, no matter whether it is subscribed. */
+	boolean contains(String identityID) {
+		return mEntries.containsKey(identityID);
+	}
+
+	/** @return The Tier of the Identity, or null if it is not being fetched. */
+	Tier getTier(String identityID) {
+		final Entry entry = mEntries.get(identityID);
+		return entry != null ? entry.mTier : null;
+	}
+
+	/** @return True if the Identity currently has a subscription, permanent or for a probe. */
+	boolean isSubscribed(String identityID) {
+		final Entry entry = mEntries.get(identityID);
+		return entry != null && isSubscribed(entry);
+	}
+
+	private static boolean isSubscribed(Entry entry) {
+		return entry.mTier == Tier.Permanent || entry.mProbeStartTime != -1;
+	}
+
+	/** @return The amount of Identitys in the given Tier. */
+	int getCount(Tier tier) {
+		if(tier != Tier.Permanent)
+			return mWaiting.get(tier).size() + mProbing.get(tier).size();
+
+		return mEntries.size() - getCount(Tier.Frequent) - getCount(Tier.Rare);
+	}
+
+	/** @return The amount of running probes of the given probing Tier. */
+	int getProbingCount(Tier tier) {
+		return mProbing.get(tier).size();
+	}
+
+	long getProbeCount() {
+		return mProbeCount;
+	}
+
+	long getProbeTimeoutCount() {
+		return mProbeTimeoutCount;
+	}
+
+	private void reschedule(Entry entry, long nextProbeTime) {
+		mWaiting.get(entry.mTier).remove(entry);
+		entry.mProbeStartTime = -1;
+		entry.mNextProbeTime = nextProbeTime;
+		mWaiting.get(entry.mTier).add(entry);
+	}
+
+	/** For recovering from a failed restart in {@link #fetch(String, Tier, boolean, long)}. */
+	private void endProbeOrRemove(Entry entry, long now) {
+		if(entry.mTier == Tier.Permanent)
+			mEntries.remove(entry.mID);
+		else {
+			mProbing.get(entry.mTier).remove(entry);
+			reschedule(entry, now + entry.mTier.mProbeInterval);
+		}
+	}
+}
@@ -125,7 +125,38 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 	 *  Stored as String to reduce db4o maintenance overhead. */
 	private String mVersionID = null;
 
-	
+	/**
+	 * Fingerprint of the normalized contents of the {@link IdentityFile} which was imported by the
+	 * last full run of {@link XMLTransformer#importIdentity(FreenetURI, java.io.InputStream)}:
+	 * Nickname, contexts, properties and the trust list without the edition hints.<br>
+	 * If a newer edition has an equal fingerprint, the import can skip the expensive processing of
+	 * the trust list since the {@link Trust} objects in the database already match it.<br><br>
+	 *
+	 * Null if unknown, for example for Identitys stored by older versions of WOT, or if the
+	 * {@link Trust}s given by this Identity were modified by something else than the import.
+	 *
+	 * @see #getTrustListEdition() */
+	private String mIdentityFileFingerprint = null;
+
+	/**
+	 * The edition of the {@link IdentityFile} whose trust list was last fully imported, which is
+	 * also the {@link Trust#getTrusterEdition()} of the Trusts this Identity has given.<br>
+	 * Not reset by {@link #clearIdentityFileFingerprint()}: Removing some of the Trusts does not
+	 * change the truster edition of the remaining ones.<br>
+	 * Only valid if {@link #mTrustListEditionKnown} is true.
+	 *
+	 * @see #getTrustListEdition() */
+	private long mTrustListEdition = 0;
+
+	/**
+	 * False for Identitys whose trust list was not imported since {@link #mTrustListEdition} was
+	 * introduced, for example if they were stored by older versions of WOT. Their
+	 * {@link #getTrustListEdition()} is the {@link #getEdition()} then, as it was before.
+	 *
+	 * @see #getTrustListEdition() */
+	private boolean mTrustListEditionKnown = false;
+
+
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
 	private static transient volatile boolean logDEBUG = false;
@@ -546,6 +577,57 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 		}
 	}
 	
+	/**
+	 * @see #mIdentityFileFingerprint
+	 * @return Null if the fingerprint is unknown. */
+	final String getIdentityFileFingerprint() {
+		checkedActivate(1); // String is a db4o primitive type so 1 is enough
+		return mIdentityFileFingerprint;
+	}
+
+	/**
+	 * Must be called by {@link XMLTransformer#importIdentity(FreenetURI, java.io.InputStream)}
+	 * and anything else which replaces the trust list, after it has fully imported the trust list
+	 * of the current {@link #getEdition()}.
+	 * Must not be called before {@link #setEdition(long)}!
+	 *
+	 * Does not store the Identity, you must call {@link #storeWithoutCommit()} afterwards.
+	 *
+	 * @param fingerprint May be null to mark the fingerprint as unknown.
+	 * @see #mIdentityFileFingerprint */
+	final void setIdentityFileFingerprint(String fingerprint) {
+		checkedActivate(1); // String, long and boolean are db4o primitive types so 1 is enough
+		mIdentityFileFingerprint = fingerprint;
+		mTrustListEdition = getEdition();
+		mTrustListEditionKnown = true;
+	}
+
+	/**
+	 * Must be called when some of the {@link Trust}s given by this Identity were removed by
+	 * something else than {@link XMLTransformer#importIdentity(FreenetURI, java.io.InputStream)}:
+	 * The next import then must not be skipped even if the {@link IdentityFile} did not change.
+	 * <br>The {@link #getTrustListEdition()} is kept since the remaining Trusts were not modified.
+	 *
+	 * Does not store the Identity, you must call {@link #storeWithoutCommit()} afterwards. */
+	final void clearIdentityFileFingerprint() {
+		checkedActivate(1); // String is a db4o primitive type so 1 is enough
+		mIdentityFileFingerprint = null;
+	}
+
+	/**
+	 * Gets the edition of the trust list which the {@link Trust}s given by this Identity stem from,
+	 * i.e. the value which their {@link Trust#getTrusterEdition()} must have if
+	 * {@link #getCurrentEditionFetchState()} is {@link FetchState#Fetched}.<br>
+	 * This can be lower than {@link #getEdition()} if newer editions were imported without
+	 * modifying the trust list because their {@link #getIdentityFileFingerprint()} was unchanged.
+	 * It stays so if the fingerprint is cleared afterwards, see
+	 * {@link #clearIdentityFileFingerprint()}.
+	 */
+	final long getTrustListEdition() {
+		checkedActivate(1); // long and boolean are db4o primitive types so 1 is enough
+		return mTrustListEditionKnown ? mTrustListEdition : getEdition();
+	}
+
 	/**
 	 * @return The date when this identity was first seen in a trust list of someone.
 	 */
@@ -12,11 +12,14 @@ import static plugins.WebOfTrust.Configuration.IS_UNIT_TEST;
 
 import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 
+import plugins.WebOfTrust.FetchScheduler.Tier;
 import plugins.WebOfTrust.Identity.FetchState;
+import plugins.WebOfTrust.Identity.IdentityID;
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
-import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
 import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
 import plugins.WebOfTrust.util.jobs.TickerDelayedBackgroundJob;
@@ -38,6 +41,7 @@ import freenet.node.PrioRunnable;
 import freenet.node.RequestClient;
 import freenet.node.RequestStarter;
 import freenet.pluginmanager.PluginRespirator;
+import freenet.support.CurrentTimeUTC;
 import freenet.support.Logger;
 import freenet.support.PooledExecutor;
 import freenet.support.PrioritizedTicker;
@@ -48,7 +52,10 @@ import freenet.support.io.NativeThread;
 
 /**
  * Fetches Identities from Freenet.
- * Contains an ArrayList of all current requests.
+ * Which Identities have a running request at the node is decided by a {@link FetchScheduler}:
+ * Identities close to the own ones in the trust graph are subscribed permanently, the others are
+ * only probed periodically. Each request is polled with the {@link PollingPriority} of the
+ * capacity of its Identity.
  * 
  * <b>Synchronization:</b>
  * The locking order must be:
@@ -63,11 +70,11 @@ import freenet.support.io.NativeThread;
  * 
  * @author xor (xor@freenetproject.org), Julien Cornuwel (batosai@freenetproject.org)
  */
-public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable {
+public final class IdentityFetcher implements PrioRunnable {
 	
     /**
      * Will be used as delay for the {@link DelayedBackgroundJob} which schedules processing of
-     * {@link IdentityFetcherCommand}s. */
+     * {@link FetchCommand}s. */
 	private static final long PROCESS_COMMANDS_DELAY =
 		IS_UNIT_TEST ? SECONDS.toMillis(1) : MINUTES.toMillis(1);
 
@@ -97,11 +104,45 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 	private final ClientContext mClientContext;
 	private final RequestClient mRequestClient;
 
-	/** All current requests */
-	/* TODO: We use those HashSets for checking whether we have already have a request for the given identity if someone calls fetch().
-	 * This sucks: We always request ALL identities to allow ULPRs so we must assume that those HashSets will not fit into memory
-	 * if the WoT becomes large. We should instead ask the node whether we already have a request for the given SSK URI. So how to do that??? */
-	private final HashMap<String, USKRetriever> mRequests = new HashMap<String, USKRetriever>(128); /* TODO: profile & tweak */
+	/**
+	 * Decides which of the Identities to fetch have a request in {@link #mRequests}.<br>
+	 * Must be synchronized upon this IdentityFetcher. */
+	private final FetchScheduler mScheduler = new FetchScheduler(new NodeFetchBackend());
+
+	/**
+	 * All current requests at the {@link USKManager}, i.e. the permanent subscriptions and the
+	 * running probes of the {@link #mScheduler}. */
+	private final HashMap<String, Request> mRequests = new HashMap<String, Request>(128); /* TODO: profile & tweak */
+	
+	/**
+	 * Lock for {@link #mCommands} and {@link #mUncommittedCommands}.<br>
+	 * Comes after Persistent.transactionLock() in the locking order since the
+	 * {@link CommandTransactionListener} is called while the transaction lock is held. Nothing
+	 * else may be locked while holding it. */
+	private final Object mCommandsLock = new Object();
+	
+	/**
+	 * The pending commands of committed transactions, to be processed by {@link #run()}. There is
+	 * at most one command per Identity, see
+	 * {@link #storeCommandWithoutCommit(FetchCommandType, String, Identity, int)}.<br>
+	 * Not persisted: {@link #start()} computes the Identities to fetch from the database anyway. */
+	private final LinkedHashMap<String, FetchCommand> mCommands
+		= new LinkedHashMap<String, FetchCommand>();
+	
+	/**
+	 * Commands which were stored during the current transaction. They are moved to
+	 * {@link #mCommands} when it is committed, and discarded when it is rolled back, see
+	 * {@link CommandTransactionListener}. */
+	private final LinkedHashMap<String, FetchCommand> mUncommittedCommands
+		= new LinkedHashMap<String, FetchCommand>();
+	
+	/** Registered at {@link Persistent#addTransactionListener} from {@link #start()} to {@link #stop()}. */
+	private final CommandTransactionListener mTransactionListener = new CommandTransactionListener();
+	
+	/**
+	 * The command which {@link #processCommand(FetchCommand)} is processing, for
+	 * {@link NodeFetchBackend#startFetch(String)}. Guarded by synchronized(this). */
+	private FetchCommand mProcessedCommand = null;
 	
     /**
      * The IdentityFetcher schedules execution of its command processing thread on this
@@ -174,6 +215,13 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 		}
 	}
 	
+	/**
+	 * Commands of the IdentityFetcher used to be stored in the database as objects of this class
+	 * and its child classes. They are now kept in memory as {@link FetchCommand}s, this class only
+	 * remains so {@link #deleteAllCommands()} can delete them from old databases.
+	 * 
+	 * TODO: Code quality: Remove together with db4o schema evolution.
+	 */
 	@SuppressWarnings("serial")
 	public static class IdentityFetcherCommand extends Persistent {
 		
@@ -209,34 +257,29 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 
 	}
 	
+	/** @see IdentityFetcherCommand */
 	@SuppressWarnings("serial")
 	protected static final class StartFetchCommand extends IdentityFetcherCommand {
 
-		protected StartFetchCommand(Identity identity) {
-			super(identity.getID());
-		}
-		
 		protected StartFetchCommand(String identityID) {
 			super(identityID);
 		}
 		
 	}
 	
+	/** @see IdentityFetcherCommand */
 	@SuppressWarnings("serial")
 	protected static final class AbortFetchCommand extends IdentityFetcherCommand {
 
-		protected AbortFetchCommand(Identity identity) {
-			super(identity.getID());
+		protected AbortFetchCommand(String identityID) {
+			super(identityID);
 		}
 		
 	}
 	
+	/** @see IdentityFetcherCommand */
 	@SuppressWarnings("serial")
 	protected static final class UpdateEditionHintCommand extends IdentityFetcherCommand {
-
-		protected UpdateEditionHintCommand(Identity identity) {
-			super(identity.getID());
-		}
 		
 		protected UpdateEditionHintCommand(String identityID) {
 			super(identityID);
@@ -244,88 +287,157 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 		
 	}
 	
-	private static final class NoSuchCommandException extends Exception {
-		private static final long serialVersionUID = 1L;
+	private ObjectSet<IdentityFetcherCommand> getCommands(final Class<? extends IdentityFetcherCommand> commandType) {
+		final Query q = mDB.query();
+		q.constrain(commandType);
+		return new Persistent.InitializingObjectSet<IdentityFetcher.IdentityFetcherCommand>(mWoT, q);
 	}
 	
-	private static final class DuplicateCommandException extends RuntimeException {
-		private static final long serialVersionUID = 1L;
+	private static enum FetchCommandType {
+		StartFetch,
+		AbortFetch,
+		UpdateEditionHint,
+		/** The capacity of an Identity which is being fetched has changed. */
+		UpdatePriority
 	}
 	
-	private IdentityFetcherCommand getCommand(Class<? extends IdentityFetcherCommand> commandType, Identity identity)
-		throws NoSuchCommandException {
+	/**
+	 * The priority classes of {@link RequestStarter} with which the {@link USKManager} polls for
+	 * new editions of an Identity, and with which found editions are downloaded.<br>
+	 * Derived from the best capacity of the Identity so the fetch bandwidth of the node is
+	 * spent on the trust lists which have the most influence on the Scores: The capacity of the
+	 * truster limits how much a {@link Trust} can contribute to a Score.
+	 */
+	static enum PollingPriority {
+		/** Capacity 100 and 40: The own Identitys and their direct trustees. */
+		High(RequestStarter.IMMEDIATE_SPLITFILE_PRIORITY_CLASS,
+			RequestStarter.INTERACTIVE_PRIORITY_CLASS),
+		/** Capacity 16 and 6. */
+		Normal(RequestStarter.UPDATE_PRIORITY_CLASS,
+			RequestStarter.IMMEDIATE_SPLITFILE_PRIORITY_CLASS),
+		/** Capacity 2 and 1. */
+		Low(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS,
+			RequestStarter.UPDATE_PRIORITY_CLASS),
+		/** Capacity 0: Their trust lists are only used for their Trust values, not for Scores. */
+		Lowest(RequestStarter.PREFETCH_PRIORITY_CLASS,
+			RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
 		
-		return getCommand(commandType, identity.getID());
-	}
-	
-	private IdentityFetcherCommand getCommand(final Class<? extends IdentityFetcherCommand> commandType, final String identityID)
-		throws NoSuchCommandException {
+		/** See {@link USKRetrieverCallback#getPollingPriorityNormal()}. */
+		final short mNormal;
 		
-		final Query q = mDB.query();
-		q.constrain(commandType);
-		q.descend("mIdentityID").constrain(identityID);
-		final ObjectSet<IdentityFetcherCommand> result = new Persistent.InitializingObjectSet<IdentityFetcher.IdentityFetcherCommand>(mWoT, q);
+		/** See {@link USKRetrieverCallback#getPollingPriorityProgress()}. */
+		final short mProgress;
 		
-		switch(result.size()) {
-			case 1: return result.next();
-			case 0: throw new NoSuchCommandException();
-			default: throw new DuplicateCommandException();
+		PollingPriority(short normal, short progress) {
+			mNormal = normal;
+			mProgress = progress;
+		}
+		
+		static PollingPriority fromCapacity(int capacity) {
+			if(capacity >= 40)
+				return High;
+			else if(capacity >= 6)
+				return Normal;
+			else if(capacity > 0)
+				return Low;
+			else
+				return Lowest;
 		}
 	}
 	
-	private ObjectSet<IdentityFetcherCommand> getCommands(final Class<? extends IdentityFetcherCommand> commandType) {
-		final Query q = mDB.query();
-		q.constrain(commandType);
-		return new Persistent.InitializingObjectSet<IdentityFetcher.IdentityFetcherCommand>(mWoT, q);
+	/**
+	 * The pending command for an {@link Identity}, see {@link #mCommands}.<br>
+	 * Multiple commands for the same Identity are coalesced into one by
+	 * {@link IdentityFetcher#storeCommandWithoutCommit(FetchCommandType, String, Identity, int)}.
+	 * <br><br>
+	 * 
+	 * Contains a snapshot of the data of the Identity which is needed for processing the command,
+	 * so {@link IdentityFetcher#run()} doesn't need to access the database.
+	 */
+	private static final class FetchCommand implements Cloneable {
+		final String mIdentityID;
+		
+		/**
+		 * null if the coalesced commands cancelled each other out, i.e. if the Identity shall be
+		 * fetched as it was before the commands were stored. */
+		FetchCommandType mType = null;
+		
+		/** True if the Identity was being fetched before the first of the coalesced commands. */
+		final boolean mWasFetching;
+		
+		/**
+		 * For {@link FetchCommandType#StartFetch} and {@link FetchCommandType#UpdateEditionHint}:
+		 * The result of {@link IdentityFetcher#getUSK(Identity)}. */
+		USK mUSK;
+		
+		/** See {@link #mUSK}. The value of {@link Identity#getLatestEditionHint()}. */
+		long mEditionHint;
+		
+		/**
+		 * For {@link FetchCommandType#StartFetch}: True if a running fetch must be restarted because
+		 * the current edition of the Identity is marked as not fetched. */
+		boolean mRefetch;
+		
+		/**
+		 * The result of {@link IdentityFetcher#getCapacity(Identity)}, which determines the
+		 * {@link Tier} and the {@link PollingPriority}. Always valid for
+		 * {@link FetchCommandType#StartFetch} and {@link FetchCommandType#UpdatePriority}, -1 for
+		 * a {@link FetchCommandType#UpdateEditionHint} which did not absorb a priority update. */
+		int mCapacity = -1;
+		
+		FetchCommand(String identityID, boolean wasFetching) {
+			mIdentityID = identityID;
+			mWasFetching = wasFetching;
+		}
+		
+		@Override public FetchCommand clone() {
+			try {
+				return (FetchCommand)super.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new RuntimeException(e);
+			}
+		}
 	}
 
 	/**
 	 * Returns the effective state of whether the fetcher will fetch an identity.
 	 * This considers both queued commands as well as already processed commands.
-	 * It will also check for contradictory commands (= both start and stop command at once).
 	 * 
 	 * For debugging purposes only.
 	 * 
 	 * You must synchronize upon this IdentityFetcher while calling this function. */
 	final boolean getShouldFetchState(final String identityID) {
-		boolean abortFetchScheduled = false;
-		try {
-			getCommand(AbortFetchCommand.class, identityID);
-			abortFetchScheduled = true;
-		} catch(NoSuchCommandException e) {}
-		
-		boolean startFetchScheduled = false;
-		try {
-			getCommand(StartFetchCommand.class, identityID);
-			startFetchScheduled = true;
-		} catch(NoSuchCommandException e) {}
-		
-		if(abortFetchScheduled && startFetchScheduled) {
-			assert(false);
-			throw new IllegalStateException("Contradictory commands stored");
-		}
-		
-		if(abortFetchScheduled) {
-			// This assert() would currently fail since storeAbortFetchCommandWithoutCommit()
-			// will currently store a command even if mRequests.containsKey(identityID) == false.
-			// See the TODO there.
+		synchronized(mCommandsLock) {
+			FetchCommand command = mUncommittedCommands.get(identityID);
+			if(command == null)
+				command = mCommands.get(identityID);
 			
-			/* assert(mRequests.containsKey(identityID)) : "Command is useless"; */
-			return false;
-		}
-		
-		if(startFetchScheduled) {
-			// Similar to the above: Current implementation of storeStartFetchCommandWithoutCommit()
-			// would cause this to fail
+			if(command != null && command.mType == FetchCommandType.StartFetch)
+				return true;
 			
-			/* assert(!mRequests.containsKey(identityID)) : "Command is useless"; */
-			return true;
+			if(command != null && command.mType == FetchCommandType.AbortFetch)
+				return false;
 		}
 		
-		return mRequests.containsKey(identityID);
+		return mScheduler.contains(identityID);
+	}
+
+	/**
+	 * @return The {@link PollingPriority} of the running request for the Identity, or null if
+	 *     there is none.
+	 * 
+	 * For debugging purposes only.
+	 * 
+	 * You must synchronize upon this IdentityFetcher while calling this function. */
+	final PollingPriority getPollingPriority(final String identityID) {
+		final Request request = mRequests.get(identityID);
+		return request != null ? request.mPriority : null;
 	}
 
 	/**
+	 * Deletes all pending commands. Also deletes the IdentityFetcherCommand objects which old
+	 * versions stored in the database.
+	 * 
 	 * ATTENTION: Outside classes should only use this for debugging purposes such as {@link WebOfTrust#checkForDatabaseLeaks()}.
 	 */
 	synchronized void deleteAllCommands() {
@@ -340,6 +452,12 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 					++amount;
 				}
 				
+				synchronized(mCommandsLock) {
+					amount += mCommands.size() + mUncommittedCommands.size();
+					mCommands.clear();
+					mUncommittedCommands.clear();
+				}
+				
 				if(logDEBUG) Logger.debug(this, "Deleted " + amount + " commands.");
 				
 				Persistent.checkedCommit(mDB, this);
@@ -361,136 +479,197 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
      *     catch(RuntimeException e) { Persistent.checkedRollbackAndThrow(mDB, this, e); }
      * }}}
      * </code>
+     * The command only becomes effective once the transaction is committed.
      */
 	public void storeStartFetchCommandWithoutCommit(Identity identity) {
-		storeStartFetchCommandWithoutCommit(identity.getID());
+		if(logDEBUG) Logger.debug(this, "Start fetch command received for " + identity);
+		
+		storeCommandWithoutCommit(FetchCommandType.StartFetch, identity.getID(), identity,
+			getCapacity(identity));
 	}
 
     /**
      * Synchronization:<br>
      * This function does neither lock the database nor commit the transaction. You have to surround
      * it with:<br><code>
+     * synchronized(instance of WebOfTrust) {
      * synchronized(instance of IdentityFetcher) {
      * synchronized(Persistent.transactionLock(mDB)) {
-     *     try { ... storeStartFetchCommandWithoutCommit(id); Persistent.checkedCommit(mDB, this); }
+     *     try { ... storeAbortFetchCommandWithoutCommit(id); Persistent.checkedCommit(mDB, this); }
      *     catch(RuntimeException e) { Persistent.checkedRollbackAndThrow(mDB, this, e); }
-     * }}
+     * }}}
      * </code>
+     * The command only becomes effective once the transaction is committed.
      */
-	public void storeStartFetchCommandWithoutCommit(String identityID) {
-		if(logDEBUG) Logger.debug(this, "Start fetch command received for " + identityID);
-		
-		try {
-			getCommand(AbortFetchCommand.class, identityID).deleteWithoutCommit();
-			if(logDEBUG) Logger.debug(this, "Deleting abort fetch command for " + identityID);
-		}
-		catch(NoSuchCommandException e) { }
+	public void storeAbortFetchCommandWithoutCommit(Identity identity) {
+		if(logDEBUG) Logger.debug(this, "Abort fetch command received for " + identity);
 		
-		try {
-			getCommand(StartFetchCommand.class, identityID);
-			if(logDEBUG) Logger.debug(this, "Start fetch command already in queue!");
-		}
-		catch(NoSuchCommandException e) {
-			final StartFetchCommand cmd = new StartFetchCommand(identityID);
-			cmd.initializeTransient(mWoT);
-			cmd.storeWithoutCommit();
-			scheduleCommandProcessing();
-		}
+		storeCommandWithoutCommit(FetchCommandType.AbortFetch, identity.getID(), null, 0);
 	}
-
+	
     /**
      * Synchronization:<br>
      * This function does neither lock the database nor commit the transaction. You have to surround
      * it with:<br><code>
-     * synchronized(instance of WebOfTrust) {
      * synchronized(instance of IdentityFetcher) {
      * synchronized(Persistent.transactionLock(mDB)) {
-     *     try { ... storeAbortFetchCommandWithoutCommit(id); Persistent.checkedCommit(mDB, this); }
+     *     try { ... storeUpdateEditionHintCommandWithoutCommit(identity); ... 
+     *               Persistent.checkedCommit(mDB, this); }
      *     catch(RuntimeException e) { Persistent.checkedRollbackAndThrow(mDB, this, e); }
-     * }}}
+     * }}
      * </code>
-     * 
-     * <br><br>TODO: Performance: The backend database query doesn't require the identity, it merely
-     * needs its ID. Thus, make this function only consume the ID & adapt the callers.
+     * The command only becomes effective once the transaction is committed.
      */
-	public void storeAbortFetchCommandWithoutCommit(Identity identity) {
-		if(logDEBUG) Logger.debug(this, "Abort fetch command received for " + identity);
-		
-		try {
-			getCommand(StartFetchCommand.class, identity).deleteWithoutCommit();
-			if(logDEBUG) Logger.debug(this, "Deleting start fetch command for " + identity);
-			
-			// TODO: Performance: The following assert failed randomly, especially when using
-			// WebOfTrust.deleteOwnIdentity() via the web interface. I currently cannot reproduce
-			// it and need to get the release done. As a workaround, we proceed to do store an
-			// AbortFetchCommand here instead of doing nothing and returning. This will make sure
-			// that a possibly currently running fetch for the identity always gets terminated as
-			// desired; at the cost of maybe storing useless AbortFetchCommands because there
-			// actually is no fetch running. The code which processes the commands will not break
-			// in that case, it will log an error.
-			// A possible explanation for the failure is the following sequence of events:
-			// 1. The identity has a fetch running
-			// 2. storeAbortFetchCommandWithoutCommit() is called and stores an AbortFetchCommand
-			// 3. storeStartFetchCommandWithoutCommit() is called which deletes the
-			//    AbortFetchCommand AND stores a StartFetchCommand. As a result, a StartFetchCommand
-			//    is pending even though we are already fetching the identity. Thus the assert here
-			//    fails.
-			// Notice: This is also documented at https://bugs.freenetproject.org/view.php?id=6468
-			// Notice: When fixing this to return here, also enable the commented out assert()
-			// in getShouldFetchState(). Also deal with the other assert() in that function and
-			// the cause of it being commented out in storeStartFetchCommandWithoutCommit().
-			/*
-			assert(mRequests.get(identity.getID()) == null)
-			    : "We have not yet processed the StartFetchCommand for the identity, so there "
-			    + "should not be a request for it. ID: " + identity.getID();
-			
-			// There shouldn't be a request to abort so we don't store an AbortFetchCommand.
-			return;
-			*/
-		}
-		catch(NoSuchCommandException e) { }
+	public void storeUpdateEditionHintCommandWithoutCommit(Identity identity) {
+		if(logDEBUG) Logger.debug(this, "Update edition hint command received for " + identity);
 		
-		try {
-			getCommand(AbortFetchCommand.class, identity);
-			if(logDEBUG) Logger.debug(this, "Abort fetch command already in queue!");
-		}
-		catch(NoSuchCommandException e) {
-			final AbortFetchCommand cmd = new AbortFetchCommand(identity);
-			cmd.initializeTransient(mWoT);
-			cmd.storeWithoutCommit();
-			scheduleCommandProcessing();
-		}
+		storeCommandWithoutCommit(FetchCommandType.UpdateEditionHint, identity.getID(), identity,
+			0);
 	}
 	
     /**
+     * Must be called by the Score computation when the capacity of an Identity has changed in one
+     * of the trust trees, so the {@link Tier} and {@link PollingPriority} of its fetch can be
+     * updated. Does nothing if the Identity is not being fetched.<br><br>
+     * 
      * Synchronization:<br>
      * This function does neither lock the database nor commit the transaction. You have to surround
      * it with:<br><code>
+     * synchronized(instance of WebOfTrust) {
      * synchronized(instance of IdentityFetcher) {
      * synchronized(Persistent.transactionLock(mDB)) {
-     *     try { ... storeUpdateEditionHintCommandWithoutCommit(id); ... 
+     *     try { ... storeUpdatePriorityCommandWithoutCommit(identity); ... 
      *               Persistent.checkedCommit(mDB, this); }
      *     catch(RuntimeException e) { Persistent.checkedRollbackAndThrow(mDB, this, e); }
-     * }}
+     * }}}
      * </code>
+     * The command only becomes effective once the transaction is committed.
      */
-	public void storeUpdateEditionHintCommandWithoutCommit(String identityID) {
-		if(logDEBUG) Logger.debug(this, "Update edition hint command received for " + identityID);
+	public void storeUpdatePriorityCommandWithoutCommit(Identity identity) {
+		if(logDEBUG) Logger.debug(this, "Update priority command received for " + identity);
 		
+		storeCommandWithoutCommit(FetchCommandType.UpdatePriority, identity.getID(), identity,
+			getCapacity(identity));
+	}
+	
+	/**
+	 * Coalesces the given command with the pending command of the Identity, if there is one, and
+	 * stores the result in {@link #mUncommittedCommands}. The rules are:<br>
+	 * - A start followed by an abort cancels out if the Identity was not being fetched before the
+	 *   start. Otherwise the abort wins.<br>
+	 * - An abort followed by a start results in a start, which will restart the fetch if necessary.
+	 *   <br>
+	 * - Edition hints and priority updates are merged into any other pending command except an
+	 *   abort, and dropped if an abort is pending or the Identity is not being fetched.<br>
+	 * In all cases the snapshot of the Identity's data is taken from the latest command.<br><br>
+	 * 
+	 * Requires the same synchronization as the store*CommandWithoutCommit() functions.
+	 * 
+	 * @param identity Null for {@link FetchCommandType#AbortFetch}.
+	 * @param capacity Only for {@link FetchCommandType#StartFetch} and
+	 *     {@link FetchCommandType#UpdatePriority}, ignored otherwise.
+	 */
+	private void storeCommandWithoutCommit(FetchCommandType type, String identityID,
+			Identity identity, int capacity) {
+		
+		final USK usk;
 		try {
-			getCommand(AbortFetchCommand.class, identityID);
-			Logger.error(this, "Update edition hint command is useless, an abort fetch command is queued!");
+			usk = identity != null ? getUSK(identity) : null;
+		} catch(MalformedURLException e) {
+			// Identity validates its request URI so this should not happen
+			throw new RuntimeException(e);
 		}
-		catch(NoSuchCommandException e1) {
-			try {
-				getCommand(UpdateEditionHintCommand.class, identityID);
-				if(logDEBUG) Logger.debug(this, "Update edition hint command already in queue!");
+		
+		synchronized(mCommandsLock) {
+			FetchCommand command = mUncommittedCommands.get(identityID);
+			if(command == null) {
+				final FetchCommand committed = mCommands.get(identityID);
+				command = committed != null ? committed.clone()
+					: new FetchCommand(identityID, mScheduler.contains(identityID));
+			}
+			
+			switch(type) {
+				case StartFetch:
+					command.mRefetch = 
+						(command.mType == FetchCommandType.StartFetch && command.mRefetch)
+						|| identity.getCurrentEditionFetchState() == FetchState.NotFetched;
+					command.mType = FetchCommandType.StartFetch;
+					command.mCapacity = capacity;
+					break;
+				case AbortFetch:
+					command.mType = command.mWasFetching ? FetchCommandType.AbortFetch : null;
+					command.mUSK = null;
+					command.mCapacity = -1;
+					if(logDEBUG && command.mType == null)
+						Logger.debug(this, "Abort fetch command cancelled out: " + identityID);
+					break;
+				case UpdateEditionHint:
+					if(command.mType == FetchCommandType.AbortFetch) {
+						Logger.error(this, "Update edition hint command is useless, an abort fetch command is queued!");
+						return;
+					}
+					if(command.mType == null) {
+						if(!command.mWasFetching) {
+							if(logDEBUG) Logger.debug(this, "Not fetching, ignoring edition hint for " + identityID);
+							return;
+						}
+						command.mType = FetchCommandType.UpdateEditionHint;
+					} else if(command.mType == FetchCommandType.UpdatePriority)
+						command.mType = FetchCommandType.UpdateEditionHint; // Keeps mCapacity
+					break;
+				case UpdatePriority:
+					if(command.mType == FetchCommandType.AbortFetch)
+						return;
+					if(command.mType == null) {
+						if(!command.mWasFetching) {
+							if(logDEBUG) Logger.debug(this, "Not fetching, ignoring priority update for " + identityID);
+							return;
+						}
+						command.mType = FetchCommandType.UpdatePriority;
+					}
+					command.mCapacity = capacity;
+					break;
+				default:
+					throw new UnsupportedOperationException("Unknown FetchCommandType: " + type);
+			}
+			
+			if(identity != null) {
+				command.mUSK = usk;
+				command.mEditionHint = identity.getLatestEditionHint();
 			}
-			catch(NoSuchCommandException e2) {
-				final UpdateEditionHintCommand cmd = new UpdateEditionHintCommand(identityID);
-				cmd.initializeTransient(mWoT);
-				cmd.storeWithoutCommit();
-				scheduleCommandProcessing();
+			
+			mUncommittedCommands.put(identityID, command);
+		}
+		
+		scheduleCommandProcessing();
+	}
+	
+	/**
+	 * Moves the {@link #mUncommittedCommands} to the {@link #mCommands} upon commit, and discards
+	 * them upon rollback.
+	 */
+	private final class CommandTransactionListener implements Persistent.TransactionListener {
+		@Override public void onPrepareCommit() {}
+
+		@Override public void onCommit() {
+			synchronized(mCommandsLock) {
+				for(FetchCommand command : mUncommittedCommands.values()) {
+					if(command.mType != null)
+						mCommands.put(command.mIdentityID, command);
+					else
+						mCommands.remove(command.mIdentityID);
+				}
+				mUncommittedCommands.clear();
+			}
+		}
+
+		@Override public void onRollback() {
+			synchronized(mCommandsLock) {
+				if(logDEBUG && !mUncommittedCommands.isEmpty()) {
+					Logger.debug(IdentityFetcher.this, "Rollback: Discarding "
+						+ mUncommittedCommands.size() + " commands");
+				}
+				mUncommittedCommands.clear();
 			}
 		}
 	}
@@ -520,165 +699,297 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 		return NativeThread.LOW_PRIORITY;
 	}
 
+	/**
+	 * Processes the committed commands and then starts and stops the probes of the
+	 * {@link #mScheduler}.<br>
+	 * The commands are processed without the WebOfTrust lock and without database access, the
+	 * WebOfTrust lock is only taken if probes are due: Their Identitys need to be queried from
+	 * the database.
+	 */
 	@Override
 	public void run() {
 	    final Thread thread = Thread.currentThread();
-
-		synchronized(mWoT) { // Lock needed because we do getIdentityByID() in fetch()
+	    boolean tickNeeded;
+	    
 		synchronized(this) {
-		synchronized(Persistent.transactionLock(mDB)) {
-			try  {
-				if(logDEBUG) Logger.debug(this, "Processing identity fetcher commands ...");
+			final ArrayList<FetchCommand> commands;
+			synchronized(mCommandsLock) {
+				commands = new ArrayList<FetchCommand>(mCommands.values());
+				mCommands.clear();
+			}
+			
+			if(logDEBUG) Logger.debug(this, "Processing " + commands.size() + " identity fetcher commands ...");
+			
+			for(FetchCommand command : commands) {
+				try {
+					processCommand(command);
+				} catch(Exception e) {
+					Logger.error(this, "Processing command failed: " + command.mType + " for "
+						+ command.mIdentityID, e);
+				}
 				
-				for(IdentityFetcherCommand command : getCommands(AbortFetchCommand.class)) {
-					try {
-						abortFetch(command.getIdentityID());
-						command.deleteWithoutCommit();
-					} catch(Exception e) {
-						Logger.error(this, "Aborting fetch failed", e);
-					}
-					
-					if(thread.isInterrupted())
-					    break;
+				// Dropping the remaining commands is fine: Interruption means that stop() is
+				// running, which will abort all fetches.
+				if(thread.isInterrupted()) {
+					Logger.normal(this, "Shutdown requested, aborting command processing...");
+					return;
 				}
+			}
+			
+			if(logDEBUG) Logger.debug(this, "Processing finished.");
+			
+			final long now = CurrentTimeUTC.getInMillis();
+			tickNeeded = mScheduler.getNextTickTime(now) <= now;
+			if(!tickNeeded)
+				scheduleSchedulerTick(now);
+		}
+		
+		if(tickNeeded) {
+			synchronized(mWoT) { // Lock needed because NodeFetchBackend does getIdentityByID()
+			synchronized(this) {
+				final long now = CurrentTimeUTC.getInMillis();
+				mScheduler.tick(now);
+				scheduleSchedulerTick(now);
+			}
+			}
+		}
+	}
+	
+	/**
+	 * You have to synchronize on this IdentityFetcher before calling this function.
+	 */
+	private void processCommand(FetchCommand command) throws Exception {
+		final String id = command.mIdentityID;
+		final long now = CurrentTimeUTC.getInMillis();
+		
+		switch(command.mType) {
+			case AbortFetch:
+				if(!mScheduler.abortFetch(id))
+					Logger.error(this, "Aborting fetch failed (no fetch found) for identity " + id);
+				else if(logDEBUG)
+					Logger.debug(this, "Aborted fetch for identity " + id);
+				break;
+			case StartFetch:
+				final boolean alreadyFetching = mScheduler.contains(id);
 				
-				for(IdentityFetcherCommand command : getCommands(StartFetchCommand.class)) {
-					try {
-						fetch(command.getIdentityID());
-						command.deleteWithoutCommit();
-					} catch (Exception e) {
-						Logger.error(this, "Fetching identity failed", e);
-					}
-					
-                    if(thread.isInterrupted())
-                        break;
+				// If the identity has a new "mandatory" edition number stored which we must fetch,
+				// we restart the request because the edition number might be lower than the last
+				// one which the USKRetriever has fetched.
+				// This has to be done so that trust lists of identities can be re-fetched as soon
+				// as their score changes from negative to positive - that is necessary because we
+				// do not import identities from trust lists for which the owner has a negative
+				// score.
+				if(alreadyFetching && command.mRefetch && logMINOR)
+					Logger.minor(this, "The current edition of the given identity is marked as not fetched, restarting the fetch of " + id);
+				
+				scheduleFetch(command, command.mRefetch, now);
+				
+				// Freshly started requests already got the hint by NodeFetchBackend.startFetch()
+				if(alreadyFetching && !command.mRefetch && mScheduler.isSubscribed(id))
+					hintUpdate(command.mUSK, command.mEditionHint);
+				break;
+			case UpdateEditionHint:
+			case UpdatePriority:
+				if(!mScheduler.contains(id)) {
+					Logger.normal(this, "Updating " + command.mType + " failed, identity is not being fetched anymore: " + id);
+					break;
 				}
 				
-				for(IdentityFetcherCommand command : getCommands(UpdateEditionHintCommand.class)) {
-					try {
-						editionHintUpdated(command.getIdentityID());
-						command.deleteWithoutCommit();
-					} catch (Exception e) { 
-						Logger.error(this, "Updating edition hint failed", e);
-					}
+				if(command.mCapacity != -1) {
+					if(logDEBUG) Logger.debug(this, "Updating capacity to " + command.mCapacity + " for " + id);
 					
-                    if(thread.isInterrupted())
-                        break;
+					scheduleFetch(command, false, now);
 				}
 				
-				// isInterrupted() does not clear the interruption flag, so we do the logging here
-				// instead of duplicating it at each of the above "if(thread.isInterrupted())"
-				if(thread.isInterrupted())
-				    Logger.normal(this, "Shutdown requested, aborting command processing...");
-				
-				if(logDEBUG) Logger.debug(this, "Processing finished.");
-				
-				Persistent.checkedCommit(mDB, this);
-			} catch(RuntimeException e) {
-				Persistent.checkedRollback(mDB, this, e);
-			}
-		}
-		}
+				if(command.mType == FetchCommandType.UpdateEditionHint) {
+					if(logDEBUG) Logger.debug(this, "Updating edition hint to " + command.mEditionHint + " for " + id);
+					
+					if(mScheduler.hintUpdate(id, now))
+						hintUpdate(command.mUSK, command.mEditionHint);
+				}
+				break;
+			default:
+				throw new UnsupportedOperationException("Unknown FetchCommandType: " + command.mType);
 		}
 	}
 	
-	private void fetch(String identityID) throws Exception {
+	/**
+	 * Passes the command's Identity to the {@link #mScheduler} with the {@link Tier} of its
+	 * {@link FetchCommand#mCapacity}. If its running request has a different
+	 * {@link PollingPriority} than the capacity demands, the request is re-subscribed: The
+	 * {@link USKManager} only queries the polling priority from the callback when the request is
+	 * subscribed.
+	 * 
+	 * You have to synchronize on this IdentityFetcher before calling this function.
+	 * 
+	 * @param restart See {@link FetchScheduler#fetch(String, Tier, boolean, long)}.
+	 */
+	private void scheduleFetch(FetchCommand command, boolean restart, long now) throws Exception {
+		final String id = command.mIdentityID;
+		final Tier tier = Tier.fromCapacity(command.mCapacity);
+		final PollingPriority priority = PollingPriority.fromCapacity(command.mCapacity);
+		
+		// For NodeFetchBackend.startFetch()
+		mProcessedCommand = command;
 		try {
-			synchronized(mWoT) {
-				Identity identity = mWoT.getIdentityByID(identityID);
-				fetch(identity);
+			mScheduler.fetch(id, tier, restart, now);
+			
+			final Request request = mRequests.get(id);
+			if(request != null && request.mPriority != priority) {
+				if(logMINOR) {
+					Logger.minor(this, "Changing priority from " + request.mPriority + " to "
+						+ priority + " for " + id);
+				}
+				mScheduler.fetch(id, tier, true, now);
 			}
-		} catch (UnknownIdentityException e) {
-			Logger.normal(this, "Fetching identity failed, it was deleted already.", e);
+		} finally {
+			mProcessedCommand = null;
 		}
 	}
-
+	
+	/** @return A new {@link FetchCommandType#StartFetch} command for the given Identity. */
+	private FetchCommand createStartFetchCommand(Identity identity) throws MalformedURLException {
+		final FetchCommand command = new FetchCommand(identity.getID(), false);
+		command.mType = FetchCommandType.StartFetch;
+		command.mUSK = getUSK(identity);
+		command.mEditionHint = identity.getLatestEditionHint();
+		command.mRefetch = identity.getCurrentEditionFetchState() == FetchState.NotFetched;
+		command.mCapacity = getCapacity(identity);
+		return command;
+	}
+	
 	/**
-	 * DO ONLY USE THIS METHOD AT STARTUP OF WOT. Use {@link #storeStartFetchCommandWithoutCommit(String)} everywhere else.
-	 * 
-	 * Fetches an identity from Freenet, using the current edition number and edition hint stored in the identity.
-	 * If the identity is already being fetched, passes the current edition hint stored in the identity to the USKManager.
-	 * 
-	 * If there is already a request for a newer USK, the request is cancelled and a fetch for the given older USK is started.
-	 * This has to be done so that trust lists of identities can be re-fetched as soon as their score changes from negative to positive - that is necessary
-	 * because we do not import identities from trust lists for which the owner has a negative score.
+	 * Passes the edition hint to the USKManager. Must only be called if the identity has a request
+	 * in {@link #mRequests}.
+	 */
+	private void hintUpdate(USK usk, long editionHint) {
+		if(DEBUG__NETWORK_DUMP_MODE || mUSKManager == null)
+			return;
+		
+		mUSKManager.hintUpdate(usk, editionHint, mClientContext);
+	}
+	
+	/** @return The USK to fetch for the identity, with the edition it is expected to have next. */
+	private static USK getUSK(Identity identity) throws MalformedURLException {
+		if(identity.getCurrentEditionFetchState() != FetchState.NotFetched) // Do not refetch if parsing failed!
+			return USK.create(identity.getRequestURI().setSuggestedEdition(identity.getEdition() + 1));
+		else
+			return USK.create(identity.getRequestURI());
+	}
+	
+	/**
+	 * Gets the best capacity of the identity, from which its {@link Tier} and
+	 * {@link PollingPriority} are determined. {@link OwnIdentity}s have the maximal capacity.
+	 * Identities whose files repeatedly failed to parse are treated as having capacity 0, see
+	 * {@link IdentityFileNegativeCache#isChronicOffender(String)}.
 	 * 
-	 * @param identity the Identity to fetch
+	 * You have to synchronize on the WebOfTrust before calling this function.
 	 */
-	private synchronized void fetch(Identity identity) throws Exception {
-			USKRetriever retriever = mRequests.get(identity.getID());
-
-			USK usk;
-
-			if(identity.getCurrentEditionFetchState() != FetchState.NotFetched) // Do not refetch if parsing failed!
-				usk = USK.create(identity.getRequestURI().setSuggestedEdition(identity.getEdition() + 1));
-			else {
-				usk = USK.create(identity.getRequestURI());
-
-				if(retriever != null) {
-					// The identity has a new "mandatory" edition number stored which we must fetch, so we restart the request because the edition number might
-					// be lower than the last one which the USKRetriever has fetched.
-					if(logMINOR) Logger.minor(this, "The current edition of the given identity is marked as not fetched, re-creating the USKRetriever for " + usk);
-					abortFetch(identity.getID());
-					retriever = null;
-				}
-			}
-
-			if(retriever == null)
-				mRequests.put(identity.getID(), fetch(usk));
-
-			if(!DEBUG__NETWORK_DUMP_MODE)
-				mUSKManager.hintUpdate(usk, identity.getLatestEditionHint(), mClientContext);
+	private int getCapacity(Identity identity) {
+		if(identity instanceof OwnIdentity)
+			return WebOfTrust.capacities[0];
+		
+		if(mWoT.getIdentityFileNegativeCache().isChronicOffender(identity.getID()))
+			return 0;
+		
+		return mWoT.getBestCapacityOrZero(identity);
 	}
 	
 	/**
-	 * Has to be called when the edition hint of the given identity was updated. Tells the USKManager about the new hint.
+	 * Runs the {@link #mJob} again when the {@link #mScheduler} has something to do next.
 	 * 
-	 * You have to synchronize on the WebOfTrust and then on this IdentityFetcher before calling this function!
+	 * You have to synchronize on this IdentityFetcher before calling this function.
+	 */
+	private void scheduleSchedulerTick(long now) {
+		final long next = mScheduler.getNextTickTime(now);
+		if(next != Long.MAX_VALUE) {
+			// Don't run more often than for processing commands to not hog the WebOfTrust lock.
+			mJob.triggerExecution(Math.max(next - now, PROCESS_COMMANDS_DELAY));
+		}
+	}
+	
+	/**
+	 * Implements the requests of the {@link #mScheduler} using {@link #fetch(USK, Request)} at the
+	 * {@link USKManager} of the node.
 	 * 
-	 * @throws Exception 
+	 * Must be called while synchronized on this IdentityFetcher. If startFetch() is not called
+	 * for the {@link #mProcessedCommand}, it queries the Identity from the database and thus
+	 * additionally requires synchronization on the WebOfTrust before this IdentityFetcher.
 	 */
-	private void editionHintUpdated(String identityID) throws Exception {
-		try {
-			Identity identity = mWoT.getIdentityByID(identityID);
-			if(mRequests.get(identity.getID()) == null)
-				throw new UnknownIdentityException("updateEdtitionHint() called for an identity which is not being fetched: " + identityID);
-
-			USK usk;
-
-			if(identity.getCurrentEditionFetchState() != FetchState.NotFetched) // Do not refetch if parsing failed!
-				usk = USK.create(identity.getRequestURI().setSuggestedEdition(identity.getEdition() + 1));
-			else
-				usk = USK.create(identity.getRequestURI());
-
-			long editionHint = identity.getLatestEditionHint();
-
-			if(logDEBUG) Logger.debug(this, "Updating edition hint to " + editionHint + " for " + identityID);
+	private final class NodeFetchBackend implements FetchScheduler.Backend {
+		@Override public void startFetch(String identityID) throws Exception {
+			assert(!mRequests.containsKey(identityID));
+			
+			final USK usk;
+			final long editionHint;
+			final int capacity;
+			if(mProcessedCommand != null && mProcessedCommand.mIdentityID.equals(identityID)) {
+				usk = mProcessedCommand.mUSK;
+				editionHint = mProcessedCommand.mEditionHint;
+				capacity = mProcessedCommand.mCapacity;
+			} else {
+				assert(Thread.holdsLock(mWoT));
+				final Identity identity = mWoT.getIdentityByID(identityID);
+				usk = getUSK(identity);
+				editionHint = identity.getLatestEditionHint();
+				capacity = getCapacity(identity);
+			}
+			
+			final Request request = new Request(PollingPriority.fromCapacity(capacity));
+			request.mRetriever = fetch(usk, request);
+			mRequests.put(identityID, request);
+			hintUpdate(usk, editionHint);
+		}
 
-			if(!DEBUG__NETWORK_DUMP_MODE)
-				mUSKManager.hintUpdate(usk, identity.getLatestEditionHint(), mClientContext);
-		} catch (UnknownIdentityException e) {
-			Logger.normal(this, "Updating edition hint failed, the identity was deleted already.", e);
+		@Override public void stopFetch(String identityID) {
+			if(!mRequests.containsKey(identityID)) {
+				Logger.error(IdentityFetcher.this, "stopFetch() called for unknown request: " + identityID);
+				return;
+			}
+			
+			final USKRetriever retriever = mRequests.remove(identityID).mRetriever;
+			if(retriever == null) // fetch() returns null in tests.
+				return;
+			
+			if(logDEBUG) Logger.debug(IdentityFetcher.this, "Stopping request for identity " + identityID);
+			retriever.cancel(mClientContext);
+			mUSKManager.unsubscribeContent(retriever.getOriginalUSK(), retriever, true);
 		}
 	}
 	
-	private synchronized void abortFetch(String identityID) {
-		USKRetriever retriever = mRequests.remove(identityID);
-
-		if(retriever == null) {
-			Logger.error(this, "Aborting fetch failed (no fetch found) for identity " + identityID);
-			return;
+	/**
+	 * A request at the {@link USKManager}. It is its own {@link USKRetrieverCallback} because
+	 * the USKManager takes the polling priority from the callback, and it differs between
+	 * requests. */
+	private final class Request implements USKRetrieverCallback {
+		final PollingPriority mPriority;
+		
+		/** Null in unit tests, see {@link IdentityFetcher#fetch(USK, Request)}. */
+		USKRetriever mRetriever = null;
+		
+		Request(PollingPriority priority) {
+			mPriority = priority;
+		}
+		
+		@Override public void onFound(USK origUSK, long edition, FetchResult result) {
+			IdentityFetcher.this.onFound(origUSK, edition, result);
+		}
+		
+		@Override public short getPollingPriorityNormal() {
+			return mPriority.mNormal;
+		}
+		
+		@Override public short getPollingPriorityProgress() {
+			return mPriority.mProgress;
 		}
-			
-		if(logDEBUG) Logger.debug(this, "Aborting fetch for identity " + identityID);
-		retriever.cancel(mClientContext);
-		mUSKManager.unsubscribeContent(retriever.getOriginalUSK(), retriever, true);
 	}
 	
 	/**
 	 * Fetches the given USK and returns the new USKRetriever. Does not check whether there is already a fetch for that USK.
+	 * 
+	 * @param request Is used as callback, and its priority is used for downloading found editions.
 	 */
-	private USKRetriever fetch(USK usk) throws MalformedURLException {
+	private USKRetriever fetch(USK usk, Request request) throws MalformedURLException {
 		if(mUSKManager == null) {
 			Logger.warning(this, "mUSKManager==null, not fetching anything! Only valid in tests!");
 			return null;
@@ -695,32 +1006,25 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 		if(logDEBUG) Logger.debug(this, "Trying to start fetching uri " + usk); 
 		
 		if(fetchLatestOnly)
-			return mUSKManager.subscribeContent(usk, this, true, fetchContext, RequestStarter.UPDATE_PRIORITY_CLASS, mRequestClient);
+			return mUSKManager.subscribeContent(usk, request, true, fetchContext, request.mPriority.mNormal, mRequestClient);
 		else {
 			// There is no version of subscribeContent() which supports disabling using a
 			// USKSparseProxyCallback, so we manually do what suscribeContent() does except for
 			// using a sparse proxy.
 			// FIXME: Code quality: File a fred pull request which adds such a subscribeContent()
 			USKRetriever ret = new USKRetriever(
-				fetchContext, RequestStarter.UPDATE_PRIORITY_CLASS, mRequestClient, this, usk);
+				fetchContext, request.mPriority.mNormal, mRequestClient, request, usk);
 			mUSKManager.subscribe(usk, ret, true, fetchContext.ignoreUSKDatehints, mRequestClient);
 			return ret;
 		}
 	}
 	
-	@Override
-	public short getPollingPriorityNormal() {
-		return RequestStarter.UPDATE_PRIORITY_CLASS;
-	}
-
-	@Override
-	public short getPollingPriorityProgress() {
-		return RequestStarter.IMMEDIATE_SPLITFILE_PRIORITY_CLASS;
-	}
-
 	
 	/**
-	 * Deletes all existing commands using {@link #deleteAllCommands()}. Enables usage of {@link #scheduleCommandProcessing()}.
+	 * Deletes all existing commands using {@link #deleteAllCommands()} and starts fetching all
+	 * Identities which {@link WebOfTrust#shouldFetchIdentity(Identity)}, which recreates the state
+	 * which the in-memory commands had before the restart. Enables usage of
+	 * {@link #scheduleCommandProcessing()}.
 	 */
 	protected void start() {
         Logger.normal(this, "start()...");
@@ -733,9 +1037,12 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
          if(mJob != MockDelayedBackgroundJob.DEFAULT)
              throw new IllegalStateException("start() was already called!");
 
+         // Commands must only become effective once their transaction is committed.
+         Persistent.addTransactionListener(mDB, mTransactionListener);
+
          // This must be called while synchronized on this IdentityFetcher, and the lock must be
          // held until mJob is set:
-         // Holding the lock prevents IdentityFetcherCommands from being created before
+         // Holding the lock prevents FetchCommands from being created before
          // scheduleCommandProcessing() is made functioning by setting mJob.
          // It is critically necessary for scheduleCommandProcessing() to be working before
          // any commands can be created: Commands will only be processed if
@@ -746,7 +1053,7 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
         for(Identity identity : mWoT.getAllIdentities()) {
             if(mWoT.shouldFetchIdentity(identity)) {
                 try {
-                    fetch(identity);
+                    processCommand(createStartFetchCommand(identity));
                 }
                 catch(Exception e) {
                     Logger.error(this, "Fetching identity failed!", e);
@@ -786,6 +1093,9 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
         mJob = new TickerDelayedBackgroundJob(
             jobRunnable, "WoT IdentityFetcher", PROCESS_COMMANDS_DELAY, ticker);
         
+        // The first probes of the non-permanent Tiers of mScheduler are due now
+        mJob.triggerExecution();
+        
         } // synchronized(this)
         } // synchronized(mWoT)
 
@@ -849,35 +1159,29 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
         // - start() is not possible anymore
         // - run() can only be executed by mJob, and it will not do so after waitForTermination().
         // 
-        // Nevertheless, all access to mRequests needs to be guarded by synchronized(this):
+        // Nevertheless, all access to mScheduler and mRequests needs to be guarded by
+        // synchronized(this):
         // - It is also accessed by our Freenet callback handlers which might be called by fred at
         //   arbitrary points in time.
         // - stop() can be called multiple times in parallel.
 		synchronized(this) {
-		USKRetriever[] retrievers = mRequests.values().toArray(new USKRetriever[mRequests.size()]);		
-		int counter = 0;		 
-		for(USKRetriever r : retrievers) {
-			if(r == null) {
-				// fetch(USK) returns null in tests.
-				continue;
-			}
-			r.cancel(mClientContext);
-			mUSKManager.unsubscribeContent(r.getOriginalUSK(), r, true);
-			 ++counter;
-		}
-		mRequests.clear();
+		final int counter = mRequests.size();
+		// Cancels the USKRetrievers using NodeFetchBackend.stopFetch()
+		mScheduler.abortAll();
+		assert(mRequests.isEmpty());
 		
 		if(logDEBUG) Logger.debug(this, "Stopped " + counter + " current requests");
 		}
 		
+		Persistent.removeTransactionListener(mDB, mTransactionListener);
+		
         Logger.normal(this, "stop() finished.");
 	}
 
 	/**
-	 * Called when an identity is successfully fetched.
+	 * Called by the {@link Request}s when an identity is successfully fetched.
 	 */
-	@Override
-	public void onFound(USK origUSK, long edition, FetchResult result) {
+	private void onFound(USK origUSK, long edition, FetchResult result) {
 		final FreenetURI realURI = origUSK.getURI().setSuggestedEdition(edition);
 		
 		if(logDEBUG) Logger.debug(this, "Fetched identity: " + realURI);
@@ -898,5 +1202,20 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 			Closer.close(inputStream);
 			Closer.close(bucket);
 		}
+		
+		// If the request was a probe of the FetchScheduler, it has done its job now.
+		try {
+			final String identityID
+				= IdentityID.constructAndValidateFromURI(origUSK.getURI()).toString();
+			
+			synchronized(this) {
+				if(mScheduler.onFound(identityID, CurrentTimeUTC.getInMillis())) {
+					// Start the next probe using the free slot
+					scheduleCommandProcessing();
+				}
+			}
+		} catch(RuntimeException e) {
+			Logger.error(this, "Notifying the FetchScheduler failed: " + realURI, e);
+		}
 	}
 }
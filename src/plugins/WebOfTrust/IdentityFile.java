@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.util.zip.CRC32;
 
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
+import plugins.WebOfTrust.ui.terminal.WOTUtil;
 import freenet.clients.fcp.FCPConnectionInputHandler;
 import freenet.keys.FreenetURI;
 import freenet.node.FSParseException;
@@ -67,8 +68,11 @@ import freenet.support.io.LineReadingInputStream;
  * It's a bit complex decision, but overall it keeps the {@link IdentityFileDiskQueue} separate from
  * the main WoT database and thus allows it to be very fast.
  * Remember: Speed is critical because Freenet can deliver files very quickly which can cause us to
- * run out of memory if we don't dump them to disk soon enough. */
-final class IdentityFile {
+ * run out of memory if we don't dump them to disk soon enough.
+ * 
+ * The class is public so {@link WOTUtil} can replay the files which {@link IdentityFileDiskQueue}
+ * archived for debugging purposes. */
+public final class IdentityFile {
 	public static transient final String FILE_EXTENSION = ".wot-identity";
 	
 	public static transient final int FILE_FORMAT_VERSION = 6;
@@ -188,9 +192,16 @@ final class IdentityFile {
 	}
 
 	public long crc32() {
+		return crc32(mURI, mXML);
+	}
+
+	/**
+	 * Same as {@link #crc32()} for the given URI and XML, for users which do not have an
+	 * IdentityFile object. */
+	static long crc32(FreenetURI uri, byte[] xml) {
 		CRC32 crc = new CRC32();
-		crc.update(mURI.toString().getBytes(XMLTransformer.XML_CHARSET));
-		crc.update(mXML);
+		crc.update(uri.toString().getBytes(XMLTransformer.XML_CHARSET));
+		crc.update(xml);
 		return crc.getValue();
 	}
 
@@ -44,6 +44,9 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 	/** @see IdentityFetcher#DEBUG__NETWORK_DUMP_MODE */
 	private final boolean mDeduplicationEnabled;
 
+	/** {@link #add(IdentityFileStream)} rejects the files which this cache contains. */
+	private final IdentityFileNegativeCache mNegativeCache;
+
 	/**
 	 * Amount of old files in {@link #mFinishedDir}, i.e. files from a previous session.<br>
 	 * We use this to ensure that filename index prefixes of new files do not collide.<br><br>
@@ -79,6 +82,11 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 
 
 	public IdentityFileDiskQueue(File parentDirectory) {
+		this(parentDirectory, new IdentityFileNegativeCache());
+	}
+
+	public IdentityFileDiskQueue(File parentDirectory, IdentityFileNegativeCache negativeCache) {
+		mNegativeCache = negativeCache;
 		mDataDir = new File(parentDirectory, "IdentityFileQueue");
 		mQueueDir = new File(mDataDir, "Queued");
 		mProcessingDir = new File(mDataDir, "Processing");
@@ -198,6 +206,20 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 			// in the UI.
 			++mStatistics.mTotalQueuedFiles;
 			
+			// Check before writing to disk to not waste disk IO upon malicious files.
+			final IdentityFile file = IdentityFile.read(identityFileStream);
+			if(mNegativeCache.contains(file)) {
+				if(logMINOR) {
+					Logger.minor(this, "Rejecting file which failed parsing already: "
+						+ identityFileStream.mURI);
+				}
+				
+				++mStatistics.mRejectedFiles;
+				assert(mStatistics.checkConsistency());
+				assert(checkDiskConsistency());
+				return;
+			}
+			
 			File filename = getQueueFilename(identityFileStream.mURI);
 			// Delete for deduplication
 			if(filename.exists()) {
@@ -251,7 +273,7 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 			
 			// FIXME: Measure how long this takes. The IdentityFileProcessor contains code which
 			// could be recycled for that.
-			IdentityFile.read(identityFileStream).write(filename);
+			file.write(filename);
 			
 			++mStatistics.mQueuedFiles;
 			assert(mStatistics.checkConsistency());
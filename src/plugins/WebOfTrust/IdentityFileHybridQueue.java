@@ -0,0 +1,289 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import plugins.WebOfTrust.Identity.IdentityID;
+import plugins.WebOfTrust.util.jobs.BackgroundJob;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * {@link IdentityFileQueue} implementation which keeps the files in memory as long as their total
+ * size is below a configurable budget, and only writes files to disk if the budget is exceeded.
+ * <br>
+ * This avoids the disk IO of the {@link IdentityFileDiskQueue} for the usual case of the
+ * {@link IdentityFileProcessor} keeping up with the {@link IdentityFetcher}, while still not
+ * causing OOM when a fast Freenet node delivers files faster than they can be processed.
+ * <br><br>
+ *
+ * Deduplicating queue: Only the latest edition of each file is returned; see
+ * {@link IdentityFileQueue} for details.<br>
+ * The files in memory are kept in FIFO order. When the budget is exceeded, the oldest files in
+ * memory are "spilled" to an {@link IdentityFileDiskQueue}, which {@link #poll()} empties
+ * before the memory as its files are older. Files of identities which have a spilled file are
+ * also added to the {@link IdentityFileDiskQueue} for it to deduplicate them.<br><br>
+ *
+ * The {@link IdentityFileDiskQueue} uses the same directory as if it was used directly, so
+ * spilled files are preserved across restarts - and switching between both implementations using
+ * {@link Configuration#IDENTITY_FILE_QUEUE_TYPE} does not lose files. The files in memory are lost
+ * at shutdown, the {@link IdentityFetcher} will download them again as the editions of their
+ * {@link Identity}s are only updated in the database when the files are imported.<br>
+ * Spilled files from a previous session are not deduplicated against files of the same identity
+ * in memory. This is harmless because the {@link XMLTransformer} ignores outdated editions.
+ * <br><br>
+ *
+ * Locking order: This queue's lock is taken before the lock of the {@link IdentityFileDiskQueue}.
+ */
+final class IdentityFileHybridQueue implements IdentityFileQueue {
+	/** Default of {@link Configuration#IDENTITY_FILE_QUEUE_MEMORY_BUDGET}. */
+	static final int DEFAULT_MEMORY_BUDGET = 16 * 1024 * 1024;
+
+	/** Maximal total byte size of the {@link IdentityFile#mXML} of {@link #mMemoryQueue}. */
+	private final long mMemoryBudget;
+
+	/**
+	 * The files which are kept in memory, in order of insertion.<br>
+	 * Key = result of {@link #getKey(FreenetURI)}. */
+	private final LinkedHashMap<String, IdentityFile> mMemoryQueue
+		= new LinkedHashMap<String, IdentityFile>();
+
+	/** Receives the files which do not fit into {@link #mMemoryQueue}. */
+	private final IdentityFileDiskQueue mSpillQueue;
+
+	/**
+	 * {@link #getKey(FreenetURI)} of the files which were passed to {@link #mSpillQueue} and not
+	 * returned by its {@link IdentityFileDiskQueue#poll()} yet. */
+	private final HashSet<String> mSpilledKeys = new HashSet<String>();
+
+	/**
+	 * Amount of files which were passed to {@link IdentityFileDiskQueue#add(IdentityFileStream)}
+	 * of {@link #mSpillQueue}. They are contained in the {@link IdentityFileQueueStatistics} of
+	 * both queues, {@link #getStatistics()} uses this to count them only once. */
+	private int mFilesPassedToSpillQueue = 0;
+
+	/** @see IdentityFetcher#DEBUG__NETWORK_DUMP_MODE */
+	private final boolean mDeduplicationEnabled;
+
+	/** {@link #add(IdentityFileStream)} rejects the files which this cache contains. */
+	private final IdentityFileNegativeCache mNegativeCache;
+
+	/**
+	 * Only contains the statistics of {@link #mMemoryQueue}, {@link #getStatistics()} merges them
+	 * with the ones of {@link #mSpillQueue}. */
+	private final IdentityFileQueueStatistics mStatistics = new IdentityFileQueueStatistics();
+
+	/** @see #registerEventHandler(BackgroundJob) */
+	private BackgroundJob mEventHandler;
+
+
+	/**
+	 * Automatically set to true by {@link Logger} if the log level is set to
+	 * {@link LogLevel#MINOR} for this class. Used as performance optimization to prevent
+	 * construction of the log strings if it is not necessary. */
+	private static transient volatile boolean logMINOR = false;
+
+	static {
+		// Necessary for automatic setting of logMINOR
+		Logger.registerClass(IdentityFileHybridQueue.class);
+	}
+
+
+	public IdentityFileHybridQueue(File parentDirectory, long memoryBudget) {
+		this(parentDirectory, memoryBudget, new IdentityFileNegativeCache());
+	}
+
+	public IdentityFileHybridQueue(File parentDirectory, long memoryBudget,
+			IdentityFileNegativeCache negativeCache) {
+
+		if(memoryBudget < 0)
+			throw new IllegalArgumentException("Invalid memory budget: " + memoryBudget);
+
+		mMemoryBudget = memoryBudget;
+		mNegativeCache = negativeCache;
+		mSpillQueue = new IdentityFileDiskQueue(parentDirectory, negativeCache);
+		mDeduplicationEnabled = !IdentityFetcher.DEBUG__NETWORK_DUMP_MODE;
+	}
+
+	/**
+	 * @return The key of the file in {@link #mMemoryQueue}: The ID of the {@link Identity} so
+	 *     files of the same identity collide for deduplication - unless it is disabled. */
+	private String getKey(FreenetURI identityFileURI) {
+		final String id = IdentityID.constructAndValidateFromURI(identityFileURI).toString();
+		return mDeduplicationEnabled ? id : id + "@" + identityFileURI.getEdition();
+	}
+
+	@Override public synchronized void add(IdentityFileStream identityFileStream) {
+		try {
+			// Incremented before errors could occur so dropped files show up in the statistics,
+			// see IdentityFileDiskQueue.add().
+			++mStatistics.mTotalQueuedFiles;
+
+			final IdentityFile file = IdentityFile.read(identityFileStream);
+			if(mNegativeCache.contains(file)) {
+				if(logMINOR) {
+					Logger.minor(this, "Rejecting file which failed parsing already: "
+						+ identityFileStream.mURI);
+				}
+
+				++mStatistics.mRejectedFiles;
+				return;
+			}
+
+			final String key = getKey(file.getURI());
+
+			if(mSpilledKeys.contains(key)) {
+				// Let the disk queue deduplicate it against the spilled file.
+				addToSpillQueue(file);
+				return;
+			}
+
+			final IdentityFile existing = mMemoryQueue.get(key);
+			if(existing != null) {
+				// Same rules as in IdentityFileDiskQueue.add(), see the comments there.
+				long existingEdition = existing.getURI().getEdition();
+				long givenEdition = file.getURI().getEdition();
+
+				if(existingEdition > givenEdition) {
+					if(logMINOR) {
+						Logger.minor(this, "Fetched edition which is older than queued file, "
+										 + "dropping: " + givenEdition);
+					}
+
+					++mStatistics.mDeduplicatedFiles;
+					return;
+				}
+
+				if(logMINOR) {
+					Logger.minor(this, "Deduplicating edition " + existingEdition
+					                 + " with edition " + givenEdition
+					                 + " for: " + identityFileStream.mURI);
+				}
+
+				removeFromMemory(key);
+				++mStatistics.mDeduplicatedFiles;
+			}
+
+			mMemoryQueue.put(key, file);
+			++mStatistics.mQueuedFiles;
+			++mStatistics.mMemoryFiles;
+			mStatistics.mMemoryBytes += file.mXML.length;
+
+			spillIfOverBudget();
+
+			// Having no event handler yet is not an error, see IdentityFileDiskQueue.add().
+			if(mEventHandler != null)
+				mEventHandler.triggerExecution();
+		} catch(RuntimeException e) {
+			++mStatistics.mFailedFiles;
+			throw e;
+		} catch(Error e) { // TODO: Java 7: Merge with above to catch(RuntimeException | Error e)
+			++mStatistics.mFailedFiles;
+			throw e;
+		} finally {
+			assert(getStatistics().checkConsistency());
+		}
+	}
+
+	/** Moves the oldest files from {@link #mMemoryQueue} to disk until it fits the budget. */
+	private void spillIfOverBudget() {
+		if(mStatistics.mMemoryBytes <= mMemoryBudget)
+			return;
+
+		final Iterator<String> keys = mMemoryQueue.keySet().iterator();
+		while(mStatistics.mMemoryBytes > mMemoryBudget && keys.hasNext()) {
+			final String key = keys.next();
+			final IdentityFile file = mMemoryQueue.get(key);
+			keys.remove();
+			--mStatistics.mQueuedFiles;
+			--mStatistics.mMemoryFiles;
+			mStatistics.mMemoryBytes -= file.mXML.length;
+
+			++mStatistics.mSpilledFiles;
+			mStatistics.mSpilledBytes += file.mXML.length;
+			mSpilledKeys.add(key);
+			addToSpillQueue(file);
+		}
+
+		if(logMINOR) {
+			Logger.minor(this, "Memory budget exceeded, spilled files so far: "
+				+ mStatistics.mSpilledFiles);
+		}
+	}
+
+	private void addToSpillQueue(IdentityFile file) {
+		++mFilesPassedToSpillQueue;
+		mSpillQueue.add(new IdentityFileStream(file.getURI(),
+			new ByteArrayInputStream(file.mXML)));
+	}
+
+	private void removeFromMemory(String key) {
+		final IdentityFile file = mMemoryQueue.remove(key);
+		--mStatistics.mQueuedFiles;
+		--mStatistics.mMemoryFiles;
+		mStatistics.mMemoryBytes -= file.mXML.length;
+	}
+
+	@Override public synchronized IdentityFileStream poll() {
+		try {
+			// The spilled files are older than the ones in memory, so process them first.
+			if(mSpillQueue.getStatistics().mQueuedFiles != 0) {
+				final IdentityFileStream result = mSpillQueue.poll();
+				if(result != null) {
+					mSpilledKeys.remove(getKey(result.mURI));
+					return result;
+				}
+			}
+
+			final Iterator<String> keys = mMemoryQueue.keySet().iterator();
+			if(!keys.hasNext())
+				return null; // Queue is empty
+
+			final String key = keys.next();
+			final IdentityFile file = mMemoryQueue.get(key);
+			removeFromMemory(key);
+			++mStatistics.mFinishedFiles;
+			return new IdentityFileStream(file.getURI(), new ByteArrayInputStream(file.mXML));
+		} finally {
+			assert(getStatistics().checkConsistency());
+		}
+	}
+
+	@Override public synchronized void registerEventHandler(BackgroundJob handler) {
+		if(mEventHandler != null) {
+			throw new UnsupportedOperationException(
+				"Support for more than one event handler is not implemented yet.");
+		}
+
+		mEventHandler = handler;
+		// Triggers the handler if spilled files of the previous session are queued.
+		mSpillQueue.registerEventHandler(handler);
+
+		if(mMemoryQueue.size() != 0)
+			mEventHandler.triggerExecution();
+	}
+
+	@Override public synchronized IdentityFileQueueStatistics getStatistics() {
+		final IdentityFileQueueStatistics result = mStatistics.clone();
+		final IdentityFileQueueStatistics spilled = mSpillQueue.getStatistics();
+
+		result.mTotalQueuedFiles
+			+= spilled.mTotalQueuedFiles - mFilesPassedToSpillQueue;
+		result.mQueuedFiles += spilled.mQueuedFiles;
+		result.mProcessingFiles += spilled.mProcessingFiles;
+		result.mFinishedFiles += spilled.mFinishedFiles;
+		result.mDeduplicatedFiles += spilled.mDeduplicatedFiles;
+		result.mRejectedFiles += spilled.mRejectedFiles;
+		result.mFailedFiles += spilled.mFailedFiles;
+
+		assert(result.mMemoryFiles == mMemoryQueue.size());
+		return result;
+	}
+}
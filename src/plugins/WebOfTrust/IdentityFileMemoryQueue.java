@@ -19,9 +19,9 @@ import plugins.WebOfTrust.util.jobs.BackgroundJob;
  * - It doesn't watch its memory usage and thus on fast Freenet nodes might cause OOM.<br>
  * - It doesn't use the {@link Logger}, you need to instead enable assert() in your JVM.<br><br>
  * 
- * TODO: Performance: Add configuration option to allow users to make their WOT use this instead
- * of the default {@link IdentityFileDiskQueue}. Be sure to resolve the above disadvantages before,
- * and to warn users that they only should use it if they have lots of memory. */
+ * Users who want to avoid the disk IO of the {@link IdentityFileDiskQueue} should use the
+ * {@link IdentityFileHybridQueue} instead, which does not have these disadvantages. Both can be
+ * selected with {@link Configuration#IDENTITY_FILE_QUEUE_TYPE}. */
 final class IdentityFileMemoryQueue implements IdentityFileQueue {
 
 	private final LinkedList<IdentityFile> mQueue = new LinkedList<IdentityFile>();
@@ -30,11 +30,30 @@ final class IdentityFileMemoryQueue implements IdentityFileQueue {
 
 	private BackgroundJob mEventHandler;
 
+	/** {@link #add(IdentityFileStream)} rejects the files which this cache contains. */
+	private final IdentityFileNegativeCache mNegativeCache;
+
+
+	public IdentityFileMemoryQueue() {
+		this(new IdentityFileNegativeCache());
+	}
+
+	public IdentityFileMemoryQueue(IdentityFileNegativeCache negativeCache) {
+		mNegativeCache = negativeCache;
+	}
 
 	@Override public synchronized void add(IdentityFileStream file) {
 		try {
-			mQueue.addLast(IdentityFile.read(file));
+			final IdentityFile identityFile = IdentityFile.read(file);
+			if(mNegativeCache.contains(identityFile)) {
+				++mStatistics.mRejectedFiles;
+				return;
+			}
+			
+			mQueue.addLast(identityFile);
 			++mStatistics.mQueuedFiles;
+			++mStatistics.mMemoryFiles;
+			mStatistics.mMemoryBytes += identityFile.mXML.length;
 			
 			if(mEventHandler != null)
 				mEventHandler.triggerExecution();
@@ -99,6 +118,8 @@ final class IdentityFileMemoryQueue implements IdentityFileQueue {
 					continue;
 				} finally {
 					--mStatistics.mQueuedFiles;
+					--mStatistics.mMemoryFiles;
+					mStatistics.mMemoryBytes -= file.mXML.length;
 				}
 			}
 				
@@ -130,6 +151,7 @@ final class IdentityFileMemoryQueue implements IdentityFileQueue {
 			   mStatistics.checkConsistency()
 			&& mStatistics.mDeduplicatedFiles == 0
 			&& mStatistics.mProcessingFiles == 0
-			&& mStatistics.mQueuedFiles == mQueue.size();
+			&& mStatistics.mQueuedFiles == mQueue.size()
+			&& mStatistics.mMemoryFiles == mQueue.size();
 	}
 }
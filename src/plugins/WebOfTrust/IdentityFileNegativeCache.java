@@ -0,0 +1,127 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import plugins.WebOfTrust.Identity.IdentityID;
+import freenet.keys.FreenetURI;
+
+/**
+ * Remembers the {@link IdentityFile}s which the {@link XMLTransformer} failed to parse, so the
+ * {@link IdentityFileQueue} can reject them in {@link IdentityFileQueue#add(IdentityFileStream)}
+ * if they are fetched again: Without this, a malicious identity could make us write a stream of
+ * large invalid files to disk and parse them again and again, see
+ * {@link Identity.FetchState#ParsingFailed}.<br>
+ * A file is identified by the ID of its {@link Identity}, its edition and its
+ * {@link IdentityFile#crc32()}. The edition alone is not sufficient: Files can fail to parse due
+ * to transfer errors or bugs, and the same edition must be accepted again if its content differs.
+ * <br><br>
+ *
+ * Also counts the consecutive parsing failures of each identity. {@link IdentityFetcher} fetches
+ * identities which have failed at least {@link #CHRONIC_FAILURE_COUNT} times in a row with the
+ * lowest priority, see {@link #isChronicOffender(String)}.<br><br>
+ *
+ * Not persisted: The cache is only an optimization, the {@link Identity.FetchState} is what is
+ * stored in the database.<br>
+ * Both maps are bounded LRU maps so an attacker cannot exhaust our memory.<br><br>
+ *
+ * Thread-safe. Must not call out to other objects while holding its lock, it is the innermost
+ * lock of the locking order. */
+final class IdentityFileNegativeCache {
+	/** Maximal amount of remembered {@link IdentityFile}s. */
+	static final int MAX_FILES = 1024;
+
+	/** Maximal amount of identities for which the failure count is tracked. */
+	static final int MAX_IDENTITIES = 4096;
+
+	/** @see #isChronicOffender(String) */
+	static final int CHRONIC_FAILURE_COUNT = 3;
+
+	/** Key = result of {@link #getKey(FreenetURI, long)}, value is unused. */
+	private final LinkedHashMap<String, Boolean> mFiles = new LinkedHashMap<String, Boolean>(
+			MAX_FILES * 2, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_FILES;
+		}
+	};
+
+	/** Key = {@link Identity#getID()}, value = amount of consecutive parsing failures. */
+	private final LinkedHashMap<String, Integer> mFailureCounts
+			= new LinkedHashMap<String, Integer>(MAX_IDENTITIES * 2, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+			return size() > MAX_IDENTITIES;
+		}
+	};
+
+	private static String getKey(FreenetURI uri, long crc32) {
+		return IdentityID.constructAndValidateFromURI(uri) + "@" + uri.getEdition() + "@"
+			+ Long.toHexString(crc32);
+	}
+
+	/** @return True if parsing the given file has failed before. */
+	synchronized boolean contains(IdentityFile file) {
+		return mFiles.get(getKey(file.getURI(), file.crc32())) != null;
+	}
+
+	/**
+	 * Must be called when the file with the given URI and {@link IdentityFile#crc32()} has been
+	 * marked as {@link Identity.FetchState#ParsingFailed}, after the transaction was committed.
+	 *
+	 * @return True if the identity just became a chronic offender, i.e. if the
+	 *     {@link FetchScheduler.Tier} and {@link IdentityFetcher.PollingPriority} of its fetch
+	 *     need to be updated. */
+	synchronized boolean onParsingFailed(FreenetURI uri, long crc32) {
+		mFiles.put(getKey(uri, crc32), true);
+
+		final String id = IdentityID.constructAndValidateFromURI(uri).toString();
+		final Integer oldCount = mFailureCounts.get(id);
+		final int newCount = oldCount != null ? oldCount + 1 : 1;
+		mFailureCounts.put(id, newCount);
+		return newCount == CHRONIC_FAILURE_COUNT;
+	}
+
+	/**
+	 * For storing the fetch priority update in the transaction which marks a file as
+	 * {@link Identity.FetchState#ParsingFailed}, before {@link #onParsingFailed(FreenetURI, long)}
+	 * can be called.
+	 *
+	 * @return The return value which {@link #onParsingFailed(FreenetURI, long)} will have for the
+	 *     next failure of the given identity. */
+	synchronized boolean isChronicOffenderAfterFailure(String identityID) {
+		return getFailureCount(identityID) + 1 == CHRONIC_FAILURE_COUNT;
+	}
+
+	/**
+	 * Must be called when a file of the given identity has been imported successfully. Resets its
+	 * failure count.
+	 *
+	 * @return True if the identity was a chronic offender, i.e. if the
+	 *     {@link FetchScheduler.Tier} and {@link IdentityFetcher.PollingPriority} of its fetch
+	 *     need to be updated. */
+	synchronized boolean onImported(String identityID) {
+		final Integer count = mFailureCounts.remove(identityID);
+		return count != null && count >= CHRONIC_FAILURE_COUNT;
+	}
+
+	/**
+	 * @return True if the last {@link #CHRONIC_FAILURE_COUNT} or more files of the identity could
+	 *     not be parsed. */
+	synchronized boolean isChronicOffender(String identityID) {
+		final Integer count = mFailureCounts.get(identityID);
+		return count != null && count >= CHRONIC_FAILURE_COUNT;
+	}
+
+	synchronized int getFailureCount(String identityID) {
+		final Integer count = mFailureCounts.get(identityID);
+		return count != null ? count : 0;
+	}
+}
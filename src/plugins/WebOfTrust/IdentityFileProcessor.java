@@ -7,7 +7,14 @@ import static freenet.support.TimeUtil.formatTime;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static plugins.WebOfTrust.Configuration.IS_UNIT_TEST;
+
+import java.util.EnumMap;
+import java.util.Map.Entry;
+
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
+import plugins.WebOfTrust.XMLTransformer.ImportStage;
+import plugins.WebOfTrust.XMLTransformer.ImportTimings;
+import plugins.WebOfTrust.util.TimeHistogram;
 import plugins.WebOfTrust.util.jobs.BackgroundJob;
 import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
 import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
@@ -74,16 +81,53 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 		 * inserted bogus data, which they might do as they please. */
 		public int mFailedFiles = 0;
 
+		/**
+		 * Number of files whose import was skipped because they did not differ from the previously
+		 * imported edition apart from edition hints. Those files are also counted in
+		 * {@link #mProcessedFiles}.<br>
+		 * See {@link Identity#getIdentityFileFingerprint()}. */
+		public int mUnchangedFiles = 0;
+
+		/**
+		 * Number of files which were not imported because their identity had been deleted after
+		 * they were fetched, for example because it became distrusted. They are not counted in
+		 * {@link #mProcessedFiles} or {@link #mFailedFiles}.<br>
+		 * See {@link ImportTimings#wasIdentityUnknown()}. */
+		public int mUnknownIdentityFiles = 0;
+
 		/** Total time it took to process all {@link #mProcessedFiles}. */
 		public long mProcessingTimeNanoseconds = 0;
 
+		/**
+		 * Distribution of the durations of each {@link ImportStage} of the processed files.<br>
+		 * Unlike {@link #mProcessingTimeNanoseconds} this allows to see how much of the time is
+		 * spent waiting for locks, parsing, in Score computation, etc.<br>
+		 * Contains a histogram for each {@link ImportStage}. A file only contributes to the
+		 * histogram of a stage if the stage happened for it, e.g. not every file causes a full
+		 * Score computation. */
+		public EnumMap<ImportStage, TimeHistogram> mImportStageTimes
+			= new EnumMap<ImportStage, TimeHistogram>(ImportStage.class);
+		
+		{
+			for(ImportStage stage : ImportStage.values())
+				mImportStageTimes.put(stage, new TimeHistogram());
+		}
+		
+		void addImportTimings(ImportTimings timings) {
+			for(ImportStage stage : ImportStage.values()) {
+				final long nanos = timings.getNanos(stage);
+				if(nanos >= 0)
+					mImportStageTimes.get(stage).add(nanos);
+			}
+		}
+
 		/**
 		 * Gets the average time it took for processing a file, in seconds. This is rather crude as
 		 * it includes all of those:<br>
 		 * - The time to acquire all locks, which could be a lot if WOT is busy.<br>
 		 * - The time to parse the XML.<br>
 		 * - The time to do Score recomputations.<br>
-		 * (There is a FIXME in {@link IdentityFileProcessor.Processor#run()} to improve this).<br>
+		 * See {@link #mImportStageTimes} for separate measurements of those.<br>
 		 * <br>
 		 * 
 		 * ATTENTION: Not synchronized - only use this if you are sure that the Statistics object is
@@ -99,7 +143,12 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 
 		@Override public Statistics clone() {
 			try {
-				return (Statistics)super.clone();
+				final Statistics clone = (Statistics)super.clone();
+				clone.mImportStageTimes
+					= new EnumMap<ImportStage, TimeHistogram>(ImportStage.class);
+				for(Entry<ImportStage, TimeHistogram> entry : mImportStageTimes.entrySet())
+					clone.mImportStageTimes.put(entry.getKey(), entry.getValue().clone());
+				return clone;
 			} catch (CloneNotSupportedException e) {
 				throw new RuntimeException(e);
 			}
@@ -188,19 +237,25 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 					Logger.normal(this, "run(): Processing: " + stream.mURI);
 
 
-					// FIXME: Improve accuracy: importIdentity() first takes a lot of locks, which
-					// might take some time if other daemons (CAPTCHAs, UI, SubscriptionManager)
-					// are running. Thus, it should do the measurement itself to exclude that, and
-					// return the measured value.
-					// When implementing that, also do separate measurement of XML processing time
-					// so we get an idea how slow it is (I suspect it to be rather slow).
+					// The total time includes waiting for the locks which importIdentity() takes,
+					// which might take some time if other daemons (CAPTCHAs, UI,
+					// SubscriptionManager) are running. The ImportTimings tell how much.
+					final ImportTimings timings = new ImportTimings();
 					final long startTime = System.nanoTime();
-					mXMLTransformer.importIdentity(stream.mURI, stream.mXMLInputStream);
+					final boolean unchanged = mXMLTransformer.importIdentity(
+						stream.mURI, stream.mXMLInputStream, timings);
 					final long endTime = System.nanoTime();
 
 					synchronized(IdentityFileProcessor.this) {
-						++mStatistics.mProcessedFiles;
-						mStatistics.mProcessingTimeNanoseconds +=  endTime - startTime;
+						if(timings.wasIdentityUnknown()) {
+							++mStatistics.mUnknownIdentityFiles;
+						} else {
+							++mStatistics.mProcessedFiles;
+							if(unchanged)
+								++mStatistics.mUnchangedFiles;
+							mStatistics.mProcessingTimeNanoseconds +=  endTime - startTime;
+							mStatistics.addImportTimings(timings);
+						}
 					}
 				} catch(RuntimeException e) {
 					if(stream != null && stream.mURI != null) {
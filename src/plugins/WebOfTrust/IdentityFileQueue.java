@@ -66,6 +66,10 @@ public interface IdentityFileQueue {
 		}
 	}
 
+	/**
+	 * Enqueues the file. Files which the {@link IdentityFileNegativeCache} of the queue knows to
+	 * be unparseable are dropped without being enqueued, see
+	 * {@link IdentityFileQueueStatistics#mRejectedFiles}. */
 	public void add(IdentityFileStream file);
 
 	/**
@@ -105,6 +109,8 @@ public interface IdentityFileQueue {
 		 * - are not queued anymore (see {@link #mFinishedFiles}).<br>
 		 * - are still queued (see {@link #mQueuedFiles}).<br>
 		 * - were deleted due to deduplication (see {@link #mDeduplicatedFiles}).<br>
+		 * - were rejected because they are known to be unparseable (see {@link #mRejectedFiles}).
+		 *   <br>
 		 * - failed en-/dequeuing due to errors (see {@link #mFailedFiles}).<br><br>
 		 * 
 		 * The lost files are included to ensure that errors can be noticed by the user from
@@ -147,13 +153,35 @@ public interface IdentityFileQueue {
 		/**
 		 * See {@link IdentityFileQueue}.<br>
 		 * Equal to <code>{@link #mTotalQueuedFiles} - {@link #mQueuedFiles}
-		 * - {@link #mProcessingFiles} - {@link #mFinishedFiles}</code>.
+		 * - {@link #mProcessingFiles} - {@link #mFinishedFiles} - {@link #mRejectedFiles}</code>.
 		 */
 		public int mDeduplicatedFiles = 0;
 
+		/**
+		 * Count of files which were not enqueued because the {@link IdentityFileNegativeCache}
+		 * knows that they cannot be parsed. */
+		public int mRejectedFiles = 0;
+
 		/** Number of files which the queue has dropped due to internal errors. These are bugs. */
 		public int mFailedFiles = 0;
 
+		/**
+		 * Count of the {@link #mQueuedFiles} which are kept in memory instead of on disk.<br>
+		 * Always 0 for {@link IdentityFileDiskQueue}, equal to {@link #mQueuedFiles} for
+		 * {@link IdentityFileMemoryQueue}. */
+		public int mMemoryFiles = 0;
+
+		/** Total size of the XML of the {@link #mMemoryFiles}. */
+		public long mMemoryBytes = 0;
+
+		/**
+		 * Count of files which {@link IdentityFileHybridQueue} has moved from memory to disk
+		 * because its memory budget was exceeded. Always 0 for the other implementations. */
+		public int mSpilledFiles = 0;
+
+		/** Total size of the XML of the {@link #mSpilledFiles}. */
+		public long mSpilledBytes = 0;
+
 
 		/** Value of {@link CurrentTimeUTC#getInMillis()} when this object was created. */
 		public final long mStartupTimeMilliseconds = CurrentTimeUTC.getInMillis();
@@ -194,7 +222,21 @@ public interface IdentityFileQueue {
 				 
 				 && (mDeduplicatedFiles >= 0)
 				 
+				 && (mRejectedFiles >= 0)
+				 
 				 && (mFailedFiles == 0)
+				 
+				 && (mMemoryFiles >= 0)
+				 
+				 && (mMemoryBytes >= 0)
+				 
+				 && (mSpilledFiles >= 0)
+				 
+				 && (mSpilledBytes >= 0)
+				 
+				 && (mMemoryFiles <= mQueuedFiles)
+				 
+				 && (mSpilledFiles <= mTotalQueuedFiles)
 				
 				 && (mQueuedFiles <= mTotalQueuedFiles)
 				 
@@ -204,10 +246,13 @@ public interface IdentityFileQueue {
 				 
 				 && (mDeduplicatedFiles <= mTotalQueuedFiles)
 				 
+				 && (mRejectedFiles <= mTotalQueuedFiles)
+				 
 				 && (mProcessingFiles <= 1)
 					
 				 && (mDeduplicatedFiles ==
-						mTotalQueuedFiles - mQueuedFiles - mProcessingFiles - mFinishedFiles)
+						mTotalQueuedFiles - mQueuedFiles - mProcessingFiles - mFinishedFiles
+						- mRejectedFiles)
 			 );
 		}
 	}
@@ -9,8 +9,12 @@ import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
 import java.util.Random;
 
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.util.TransferThread;
 
 import com.db4o.ext.ExtObjectContainer;
@@ -37,7 +41,17 @@ import freenet.support.io.NativeThread;
 import freenet.support.io.ResumeFailedException;
 
 /**
- * Inserts OwnIdentities to Freenet when they need it.
+ * Inserts OwnIdentities to Freenet when they need it.<br><br>
+ * 
+ * Event-driven: {@link OwnIdentity#storeWithoutCommit()} calls
+ * {@link #scheduleInsert(OwnIdentity)} when an OwnIdentity changes, which registers it with the
+ * time at which its insert is due. The {@link TransferThread} is then scheduled to run exactly at
+ * the earliest due time, and {@link #iterate()} only looks at the identities which are due -
+ * instead of periodically scanning all OwnIdentitys while holding the {@link WebOfTrust} lock.
+ * The lock is only taken for re-checking the due identities and exporting their XML.<br>
+ * The due time of an identity is computed by {@link #getInsertDueTime(OwnIdentity)}. All
+ * OwnIdentitys are scanned only once at startup to schedule the inserts which were pending
+ * during the previous session.
  * 
  * @author xor (xor@freenetproject.org)
  * @author Julien Cornuwel (batosai@freenetproject.org)
@@ -56,7 +70,8 @@ public final class IdentityInserter extends TransferThread {
 	 */
     private static final int MAX_DELAY_BEFORE_INSERT = 3 /* hours */ * 60 * 60 * 1000;
 
-    private static final int THREAD_PERIOD = MAX_DELAY_BEFORE_INSERT / 2;
+    /** Delay after which a failed insert is retried. */
+    private static final int RETRY_DELAY = 1 /* hours */ * 60 * 60 * 1000;
 	
 	/**
 	 * The amount of time after which we insert a new edition of an identity even though it did not change.
@@ -73,6 +88,29 @@ public final class IdentityInserter extends TransferThread {
 	/** Random number generator */
 	private Random mRandom;
 	
+	/**
+	 * The OwnIdentitys which are scheduled for insert.<br>
+	 * Key = {@link OwnIdentity#getID()}, value = {@link #getInsertDueTime(OwnIdentity)} when
+	 * the entry was added. The due time is checked again before inserting, so outdated entries
+	 * are harmless.<br>
+	 * Synchronized on itself, must not call out to other objects while holding its lock. */
+	private final HashMap<String, Long> mScheduledInserts = new HashMap<String, Long>();
+	
+	/**
+	 * True once {@link #iterate()} has scheduled the inserts of all OwnIdentitys which existed at
+	 * startup. Only written by {@link #iterate()}.<br>
+	 * Until then {@link #scheduleInsert(OwnIdentity)} does not schedule an execution: The first
+	 * one must happen after the {@link #getStartupDelay()}, for which {@link #start()} has
+	 * scheduled it already. */
+	private volatile boolean mStartupScanDone = false;
+	
+	/**
+	 * The running inserts, key = {@link OwnIdentity#getID()}. Used for aborting the previous
+	 * insert of an identity if it is inserted again before the insert finished.<br>
+	 * Synchronized on itself. */
+	private final HashMap<String, ClientPutter> mRunningInserts
+		= new HashMap<String, ClientPutter>();
+	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
 	private static transient volatile boolean logDEBUG = false;
@@ -125,75 +163,181 @@ public final class IdentityInserter extends TransferThread {
 		return STARTUP_DELAY/2 + mRandom.nextInt(STARTUP_DELAY);
 	}
 	
+	/**
+	 * @return The delay until the earliest {@link #mScheduledInserts}. If there are none, a
+	 *     long delay: Any change of an OwnIdentity will schedule an earlier execution by
+	 *     {@link #scheduleInsert(OwnIdentity)}. */
 	@Override
 	protected long getSleepTime() {
-		return THREAD_PERIOD/2 + mRandom.nextInt(THREAD_PERIOD);
+		long earliest = CurrentTimeUTC.getInMillis() + MAX_UNCHANGED_TINE_BEFORE_REINSERT;
+		synchronized(mScheduledInserts) {
+			for(Long dueTime : mScheduledInserts.values())
+				earliest = Math.min(earliest, dueTime);
+		}
+		return Math.max(0, earliest - CurrentTimeUTC.getInMillis());
+	}
+	
+	/**
+	 * @return The time at which the given OwnIdentity should be inserted:<br>
+	 * - If it changed since the last insert: {@link #MIN_DELAY_BEFORE_INSERT} after the last
+	 *   change, to accumulate further changes. But at most {@link #MAX_DELAY_BEFORE_INSERT}
+	 *   after the last insert, so continuous changes cannot delay the insert forever.<br>
+	 * - Otherwise {@link #MAX_UNCHANGED_TINE_BEFORE_REINSERT} after the last insert.<br>
+	 * Same rules as {@link OwnIdentity#needsInsert()}, which was used before event-driven
+	 * scheduling: It returns true from the due time on. */
+	static long getInsertDueTime(OwnIdentity identity) {
+		final long lastChange = identity.getLastChangeDate().getTime();
+		final long lastInsert = identity.getLastInsertDate().getTime();
+		
+		if(lastChange > lastInsert) {
+			return Math.min(lastChange + MIN_DELAY_BEFORE_INSERT,
+			                lastInsert + MAX_DELAY_BEFORE_INSERT);
+		}
+		
+		return lastInsert + MAX_UNCHANGED_TINE_BEFORE_REINSERT;
+	}
+	
+	/**
+	 * Schedules the insert of the given OwnIdentity at {@link #getInsertDueTime(OwnIdentity)}.
+	 * Replaces a previously scheduled insert of it.<br>
+	 * Called by {@link OwnIdentity#storeWithoutCommit()}, so it is usually called before the
+	 * change is committed. This is fine as the due time is checked again before inserting, and
+	 * updated when the identity is stored again.<br><br>
+	 * 
+	 * You have to synchronize on the {@link WebOfTrust} when calling this function, or
+	 * otherwise ensure that the identity is not modified concurrently.<br>
+	 * Does not take any other locks than {@link #mScheduledInserts} and the one of the
+	 * {@link TransferThread}'s job, so it is safe to call while holding database locks. */
+	public void scheduleInsert(OwnIdentity identity) {
+		final long dueTime = getInsertDueTime(identity);
+		synchronized(mScheduledInserts) {
+			mScheduledInserts.put(identity.getID(), dueTime);
+		}
+		// Inserts which are due during the startup delay are done by the first iteration.
+		if(mStartupScanDone)
+			nextIteration(Math.max(0, dueTime - CurrentTimeUTC.getInMillis()));
 	}
 
 	@Override
 	protected void iterate() {
-		abortInserts();
+		if(!mStartupScanDone) {
+			synchronized(mWoT) {
+				for(OwnIdentity identity : mWoT.getAllOwnIdentities())
+					scheduleInsert(identity);
+			}
+			mStartupScanDone = true;
+		}
 		
-		synchronized(mWoT) {
-			for(OwnIdentity identity : mWoT.getAllOwnIdentities()) {
-				if(identity.needsInsert()) {
-					try {
-						long minDelayedInsertTime = identity.getLastChangeDate().getTime() + MIN_DELAY_BEFORE_INSERT;
-						long maxDelayedInsertTime = identity.getLastInsertDate().getTime() + MAX_DELAY_BEFORE_INSERT; 
-						
-						if(CurrentTimeUTC.getInMillis() > Math.min(minDelayedInsertTime, maxDelayedInsertTime)) {
-							insert(identity);
-						} else {
-							long lastChangeBefore = (CurrentTimeUTC.getInMillis() - identity.getLastChangeDate().getTime()) / (60*1000);
-							long lastInsertBefore = (CurrentTimeUTC.getInMillis() - identity.getLastInsertDate().getTime()) / (60*1000); 
-							
-							if(logDEBUG) Logger.debug(this, "Delaying insert of identity '" + identity.getNickname() + "', " +
-									"last change: " + lastChangeBefore + "min ago, last insert: " + lastInsertBefore + "min ago");
-						}
-					} catch (Exception e) {
-						Logger.error(this, "Identity insert failed: " + e.getMessage(), e);
-					}
+		final long now = CurrentTimeUTC.getInMillis();
+		final ArrayList<String> due = new ArrayList<String>();
+		synchronized(mScheduledInserts) {
+			final Iterator<Entry<String, Long>> entries = mScheduledInserts.entrySet().iterator();
+			while(entries.hasNext()) {
+				final Entry<String, Long> entry = entries.next();
+				if(entry.getValue() <= now) {
+					due.add(entry.getKey());
+					entries.remove();
 				}
 			}
 		}
+		
+		for(String id : due) {
+			try {
+				insert(id);
+			} catch (Exception e) {
+				Logger.error(this, "Identity insert failed: " + e.getMessage(), e);
+			}
+		}
 	}
 
 	/**
-	 * Inserts an OwnIdentity.
-	 * 
-	 * You have to synchronize on the WebOfTrust when calling this function.
+	 * Inserts the OwnIdentity with the given ID if it needs to be inserted now. Otherwise
+	 * schedules it again if necessary.<br>
+	 * Only holds the {@link WebOfTrust} lock while checking the identity and exporting its XML.
 	 * 
 	 * @throws IOException 
 	 */
-	private void insert(OwnIdentity identity) throws IOException {
+	private void insert(String id) throws IOException {
+		final byte[] xml;
+		final FreenetURI insertURI;
+		final String nickname;
+		
+		synchronized(mWoT) {
+			final OwnIdentity identity;
+			try {
+				identity = mWoT.getOwnIdentityByID(id);
+			} catch(UnknownIdentityException e) {
+				if(logDEBUG) Logger.debug(this, "Not inserting deleted identity: " + id);
+				return;
+			}
+			
+			// Not due anymore if it was inserted successfully meanwhile.
+			// If a restore is in progress, finishing it will store the identity and schedule it.
+			final long now = CurrentTimeUTC.getInMillis();
+			if(!identity.needsInsert(now))
+				return;
+			
+			final long dueTime = getInsertDueTime(identity);
+			if(dueTime > now) {
+				if(logDEBUG) {
+					long lastChangeBefore = (CurrentTimeUTC.getInMillis() - identity.getLastChangeDate().getTime()) / (60*1000);
+					long lastInsertBefore = (CurrentTimeUTC.getInMillis() - identity.getLastInsertDate().getTime()) / (60*1000);
+					
+					Logger.debug(this, "Delaying insert of identity '" + identity.getNickname() + "', " +
+							"last change: " + lastChangeBefore + "min ago, last insert: " + lastInsertBefore + "min ago");
+				}
+				
+				scheduleInsert(identity);
+				return;
+			}
+			
+			// Re-inserts of unchanged identities reuse the XML of the previous insert.
+			xml = mWoT.getOwnIdentityXMLCache().getXML(identity);
+			
+			long edition = identity.getEdition();
+			if(identity.getLastInsertDate().after(new Date(0)))
+				++edition;
+			
+			insertURI = identity.getInsertURI().setSuggestedEdition(edition);
+			nickname = identity.getNickname();
+		}
+		
+		// Abort the previous insert of the identity: It is outdated.
+		final ClientPutter previous;
+		synchronized(mRunningInserts) {
+			previous = mRunningInserts.remove(id);
+		}
+		if(previous != null)
+			previous.cancel(mClientContext);
+		
 		RandomAccessBucket tempB = mTBF.makeBucket(XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE + 1);  
 		OutputStream os = null;
 
 		try {
 			os = tempB.getOutputStream();
-			mWoT.getXMLTransformer().exportOwnIdentity(identity, os);
+			os.write(xml);
 			os.close(); os = null;
 			tempB.setReadOnly();
-		
-			long edition = identity.getEdition();
-			if(identity.getLastInsertDate().after(new Date(0)))
-				++edition;
 			
-			InsertBlock ib = new InsertBlock(tempB, null, identity.getInsertURI().setSuggestedEdition(edition));
+			InsertBlock ib = new InsertBlock(tempB, null, insertURI);
 			InsertContext ictx = mClient.getInsertContext(true);
 			
 			ClientPutter pu = mClient.insert(
 			    ib, null, false, ictx, this, RequestStarter.IMMEDIATE_SPLITFILE_PRIORITY_CLASS);
 			addInsert(pu);
+			synchronized(mRunningInserts) {
+				mRunningInserts.put(id, pu);
+			}
 			tempB = null;
 			
 			if(logDEBUG) {
-				Logger.debug(this, "Started insert of identity '" + identity.getNickname() + "' to "
+				Logger.debug(this, "Started insert of identity '" + nickname + "' to "
 					+ ib.desiredURI.deriveRequestURIFromInsertURI());
 			}
 		}
 		catch(Exception e) {
-			Logger.error(this, "Error during insert of identity '" + identity.getNickname() + "'", e);
+			Logger.error(this, "Error during insert of identity '" + nickname + "'", e);
+			scheduleRetry(id);
 		}
 		finally {
 			Closer.close(os);
@@ -201,6 +345,37 @@ public final class IdentityInserter extends TransferThread {
 		}
 	}
 	
+	/**
+	 * Removes the given insert from {@link #mRunningInserts} and the {@link TransferThread}.
+	 * 
+	 * @return The ID of the inserted {@link OwnIdentity}, or null if the insert was not in
+	 *     {@link #mRunningInserts}, e.g. because it was replaced by a newer insert. */
+	private String removeRunningInsert(BaseClientPutter state) {
+		String id = null;
+		synchronized(mRunningInserts) {
+			for(Entry<String, ClientPutter> entry : mRunningInserts.entrySet()) {
+				if(entry.getValue() == state) {
+					id = entry.getKey();
+					break;
+				}
+			}
+			if(id != null)
+				mRunningInserts.remove(id);
+		}
+		removeInsert(state);
+		return id;
+	}
+	
+	/**
+	 * Schedules a retry of the insert of the OwnIdentity with the given ID after
+	 * {@link #RETRY_DELAY}. Does not take the {@link WebOfTrust} lock. */
+	private void scheduleRetry(String id) {
+		synchronized(mScheduledInserts) {
+			mScheduledInserts.put(id, CurrentTimeUTC.getInMillis() + RETRY_DELAY);
+		}
+		nextIteration(RETRY_DELAY);
+	}
+	
 	@Override
     public void onSuccess(BaseClientPutter state)
 	{
@@ -240,7 +415,7 @@ public final class IdentityInserter extends TransferThread {
 			Logger.error(this, "Error", e);
 		}
 		finally {
-			removeInsert(state);
+			removeRunningInsert(state);
 			Closer.close(((ClientPutter)state).getData());
 		}
 	}
@@ -248,6 +423,7 @@ public final class IdentityInserter extends TransferThread {
 	@Override
     public void onFailure(InsertException e, BaseClientPutter state) 
 	{
+		final String id = removeRunningInsert(state);
 		try {
 			if(e.getMode() == InsertExceptionMode.CANCELLED) {
 				if(logDEBUG) Logger.debug(this, "Insert cancelled: " + state.getURI());
@@ -259,10 +435,11 @@ public final class IdentityInserter extends TransferThread {
 					Logger.warning(this, "Error during insert of identity, isFatal()==false: " + state.getURI(), e);
 				/* We do not increase the edition of the identity if there is a collision because the fetcher will fetch the new edition
 				 * and the Inserter will insert it with that edition in the next run. */
+				if(id != null)
+					scheduleRetry(id);
 			}
 		}
 		finally {
-			removeInsert(state);
 			Closer.close(((ClientPutter)state).getData());
 		}
 	}
@@ -0,0 +1,588 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import plugins.WebOfTrust.SubscriptionManager.Client;
+import plugins.WebOfTrust.SubscriptionManager.ObjectChangedNotification;
+import plugins.WebOfTrust.SubscriptionManager.Subscription;
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+
+/**
+ * Stores the {@link ObjectChangedNotification}s of each {@link Client} in an append-only file instead of as objects
+ * in the db4o database, if selected by {@link Configuration#NOTIFICATION_QUEUE_TYPE}: Notifications are created and
+ * deleted at a high rate, which fragments the database and slows down all other queries.<br><br>
+ *
+ * Each queued Notification is an {@link Entry}. Only its header is kept in memory, the serialized objects are
+ * written to the file of the Client. An Entry is deleted by removing its header, and the file is truncated once all
+ * of its Entries were deleted. Thus the offset of the first remaining Entry is the pointer up to which the file was
+ * consumed. A Client which never catches up with its queue would never have its file truncated, so the file is
+ * compacted once the consumed part is large enough and at least half of it, see {@link #COMPACTION_MIN_CONSUMED}.
+ * <br>
+ * The clientID parameters are the {@link SubscriptionManager.Subscription#getDeliveryQueueID()}: Out-of-order
+ * Subscriptions have a file of their own.<br><br>
+ *
+ * The queues follow the transactions of the database, see {@link Persistent.TransactionListener}, in two phases:
+ * {@link #onPrepareCommit()} appends the Entries of the transaction to the files before the database is committed, so
+ * failing to write them rolls back the transaction. {@link #onCommit()} then moves the committed length of the files,
+ * which marks the appended data as valid, while {@link #onRollback()} truncates the files back to it and undoes the
+ * changes of the headers.<br>
+ * Not persisted across restarts: {@link SubscriptionManager#start()} deletes all Clients anyway, so the constructor
+ * deletes all files of the previous run.<br><br>
+ *
+ * The {@link SubscriptionManager.BeginSynchronizationNotification}s and other rare Notifications are still stored in
+ * the database, the SubscriptionManager merges both queues by {@link SubscriptionManager.Notification#getIndex()}.
+ * <br><br>
+ *
+ * Locking order: The lock of this class is the innermost, it is taken while holding the {@link SubscriptionManager}
+ * and {@link Persistent#transactionLock(com.db4o.ext.ExtObjectContainer)}.
+ */
+final class NotificationFileQueue implements Persistent.TransactionListener {
+	/** Name of the directory which contains the files, in the directory of the database. */
+	static final String DIRECTORY_NAME = "NotificationQueues";
+
+	private static final String FILE_EXTENSION = ".queue";
+
+	/**
+	 * {@link #onCommit()} rewrites the remaining Entries of a file into a new file once the consumed part at its
+	 * beginning is at least this large and at least half of the file. Thus the file is at most twice as large as its
+	 * remaining Entries, and each byte is copied at most once on average.
+	 */
+	static final long COMPACTION_MIN_CONSUMED = 64 * 1024;
+
+	/** Suffix of the name of the file into which {@link #compact(ClientQueue)} writes, before it is renamed. */
+	private static final String COMPACTION_SUFFIX = ".compacting";
+
+	/** A queued {@link ObjectChangedNotification}. */
+	static final class Entry {
+		/** @see SubscriptionManager.Notification#getIndex() */
+		final long mIndex;
+
+		/** @see SubscriptionManager.Notification#getCreationTime() */
+		final long mCreationTime;
+
+		/** The {@link Subscription#getID()} of the Notification. */
+		final String mSubscriptionID;
+
+		/** @see ObjectChangedNotification#getObjectID() */
+		final String mObjectID;
+
+		/** @see ObjectChangedNotification#getRetentionLogIndex() */
+		final long mRetentionLogIndex;
+
+		/** Length of the serialized object before the change, -1 if it was created. */
+		private final int mOldLength;
+
+		/** Length of the serialized object after the change, -1 if it was deleted. */
+		private final int mNewLength;
+
+		/** The serialized objects until {@link #onPrepareCommit()} writes them to the file, then null. */
+		private byte[] mOldObject;
+
+		/** @see #mOldObject */
+		private byte[] mNewObject;
+
+		/** Position of the serialized objects in the file, -1 until they were written. */
+		private long mDataOffset = -1;
+
+		/** True while the transaction which added this Entry was not committed. */
+		private boolean mUncommitted = true;
+
+		/**
+		 * @param oldObject {@link Persistent#serialize()} of the object before the change, null if it was created.
+		 * @param newObject {@link Persistent#serialize()} of the object after the change, null if it was deleted.
+		 */
+		Entry(long index, long creationTime, String subscriptionID, String objectID, long retentionLogIndex,
+				byte[] oldObject, byte[] newObject) {
+
+			assert(oldObject != null || newObject != null);
+
+			mIndex = index;
+			mCreationTime = creationTime;
+			mSubscriptionID = subscriptionID;
+			mObjectID = objectID;
+			mRetentionLogIndex = retentionLogIndex;
+			mOldLength = oldObject != null ? oldObject.length : -1;
+			mNewLength = newObject != null ? newObject.length : -1;
+			mOldObject = oldObject;
+			mNewObject = newObject;
+		}
+
+		/** @return The key of this Entry in {@link ClientQueue#mEntriesByObject}. */
+		private String getObjectKey() {
+			return mSubscriptionID + "/" + mObjectID;
+		}
+
+		@Override public String toString() {
+			return "[Entry: mIndex: " + mIndex + "; mSubscriptionID: " + mSubscriptionID
+			     + "; mObjectID: " + mObjectID + "; mDataOffset: " + mDataOffset + "]";
+		}
+	}
+
+	/** The queue of a single {@link Client}. */
+	private static final class ClientQueue {
+		/** Only changed by {@link NotificationFileQueue#compact(ClientQueue)} if renaming the new file fails. */
+		File mFile;
+
+		/** Opened on demand by {@link #getFile()}. */
+		private RandomAccessFile mRandomAccessFile = null;
+
+		/** The Entries which were not deleted, by {@link Entry#mIndex}. */
+		final TreeMap<Long, Entry> mEntries = new TreeMap<Long, Entry>();
+
+		/**
+		 * Key = {@link Entry#getObjectKey()}, value = the Entries of the object by index, for
+		 * {@link NotificationFileQueue#getNewestEntry(UUID, String, String)}.
+		 */
+		final HashMap<String, TreeMap<Long, Entry>> mEntriesByObject = new HashMap<String, TreeMap<Long, Entry>>();
+
+		/**
+		 * The length of the file as of the last commit. Data after it was written by {@link #onPrepareCommit()} for
+		 * a transaction which was not committed yet.
+		 */
+		long mCommittedLength = 0;
+
+		/** The Entries which the current transaction has added, to be undone by {@link #onRollback()}. */
+		final ArrayList<Entry> mAdded = new ArrayList<Entry>();
+
+		/** The Entries which the current transaction has deleted, to be undone by {@link #onRollback()}. */
+		final ArrayList<Entry> mRemoved = new ArrayList<Entry>();
+
+		/** True if the current transaction has deleted the {@link Client}. */
+		boolean mClientRemoved = false;
+
+		ClientQueue(File file) {
+			mFile = file;
+		}
+
+		RandomAccessFile getFile() throws IOException {
+			if(mRandomAccessFile == null)
+				mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+			return mRandomAccessFile;
+		}
+
+		void put(Entry entry) {
+			mEntries.put(entry.mIndex, entry);
+			TreeMap<Long, Entry> entries = mEntriesByObject.get(entry.getObjectKey());
+			if(entries == null) {
+				entries = new TreeMap<Long, Entry>();
+				mEntriesByObject.put(entry.getObjectKey(), entries);
+			}
+			entries.put(entry.mIndex, entry);
+		}
+
+		/** @return False if the Entry was not queued. */
+		boolean remove(Entry entry) {
+			if(mEntries.remove(entry.mIndex) == null)
+				return false;
+			final TreeMap<Long, Entry> entries = mEntriesByObject.get(entry.getObjectKey());
+			entries.remove(entry.mIndex);
+			if(entries.isEmpty())
+				mEntriesByObject.remove(entry.getObjectKey());
+			return true;
+		}
+
+		void close() {
+			Closer.close(mRandomAccessFile);
+			mRandomAccessFile = null;
+		}
+	}
+
+	private final File mDirectory;
+
+	private final HashMap<UUID, ClientQueue> mQueues = new HashMap<UUID, ClientQueue>();
+
+	/** The queues which the current transaction has modified. */
+	private final HashSet<ClientQueue> mModified = new HashSet<ClientQueue>();
+
+
+	/**
+	 * Deletes the files of the previous run in the given directory.
+	 *
+	 * @throws IOException If the directory cannot be created.
+	 */
+	NotificationFileQueue(File directory) throws IOException {
+		mDirectory = directory;
+
+		if(!mDirectory.exists() && !mDirectory.mkdir())
+			throw new IOException("Cannot create " + mDirectory);
+
+		for(File file : mDirectory.listFiles()) {
+			if(!file.getName().endsWith(FILE_EXTENSION)) {
+				Logger.warning(this, "Unexpected file: " + file);
+				continue;
+			}
+
+			if(!file.delete())
+				Logger.error(this, "Cannot delete file of previous run: " + file);
+		}
+	}
+
+	private ClientQueue getQueue(UUID clientID) {
+		ClientQueue queue = mQueues.get(clientID);
+		if(queue == null) {
+			queue = new ClientQueue(new File(mDirectory, clientID + FILE_EXTENSION));
+			mQueues.put(clientID, queue);
+		}
+		return queue;
+	}
+
+	/**
+	 * Queues the given Entry. It is written to the file of the Client when the transaction is committed, but is
+	 * visible to the other functions immediately, as objects in the database would be.
+	 */
+	synchronized void addWithoutCommit(UUID clientID, Entry entry) {
+		final ClientQueue queue = getQueue(clientID);
+		assert(queue.mEntries.isEmpty() || queue.mEntries.lastKey() < entry.mIndex);
+
+		queue.put(entry);
+		queue.mAdded.add(entry);
+		mModified.add(queue);
+	}
+
+	/**
+	 * Deletes the Entry with the given index, for example because the Notification was deployed. Does nothing if it
+	 * does not exist anymore.
+	 */
+	synchronized void removeWithoutCommit(UUID clientID, long index) {
+		final ClientQueue queue = mQueues.get(clientID);
+		if(queue == null)
+			return;
+
+		final Entry entry = queue.mEntries.get(index);
+		if(entry != null)
+			removeWithoutCommit(queue, entry);
+	}
+
+	private void removeWithoutCommit(ClientQueue queue, Entry entry) {
+		if(queue.remove(entry)) {
+			queue.mRemoved.add(entry);
+			mModified.add(queue);
+		}
+	}
+
+	/** Deletes all Entries of the given {@link Subscription}. */
+	synchronized void removeSubscriptionWithoutCommit(UUID clientID, String subscriptionID) {
+		final ClientQueue queue = mQueues.get(clientID);
+		if(queue == null)
+			return;
+
+		for(Entry entry : new ArrayList<Entry>(queue.mEntries.values())) {
+			if(entry.mSubscriptionID.equals(subscriptionID))
+				removeWithoutCommit(queue, entry);
+		}
+	}
+
+	/** Deletes all Entries of the given {@link Client}, and its file once the transaction is committed. */
+	synchronized void removeClientWithoutCommit(UUID clientID) {
+		final ClientQueue queue = mQueues.get(clientID);
+		if(queue == null)
+			return;
+
+		for(Entry entry : new ArrayList<Entry>(queue.mEntries.values()))
+			removeWithoutCommit(queue, entry);
+
+		queue.mClientRemoved = true;
+		mModified.add(queue);
+	}
+
+	/** Same as {@link #removeClientWithoutCommit(UUID)} for all Clients. */
+	synchronized void removeAllWithoutCommit() {
+		for(UUID clientID : new ArrayList<UUID>(mQueues.keySet()))
+			removeClientWithoutCommit(clientID);
+	}
+
+	/** @return True if the Entry with the given index is queued. */
+	synchronized boolean contains(UUID clientID, long index) {
+		final ClientQueue queue = mQueues.get(clientID);
+		return queue != null && queue.mEntries.containsKey(index);
+	}
+
+	/** @return The amount of queued Entries of the given Client. */
+	synchronized int size(UUID clientID) {
+		final ClientQueue queue = mQueues.get(clientID);
+		return queue != null ? queue.mEntries.size() : 0;
+	}
+
+	/** @return The amount of queued Entries of all Clients. */
+	synchronized int size() {
+		int size = 0;
+		for(ClientQueue queue : mQueues.values())
+			size += queue.mEntries.size();
+		return size;
+	}
+
+	/**
+	 * @return The first Entries of the given Client, ascending by index.
+	 * @param limit The maximal amount of Entries to return.
+	 */
+	synchronized List<Entry> getEntries(UUID clientID, int limit) {
+		final ClientQueue queue = mQueues.get(clientID);
+		if(queue == null)
+			return Collections.emptyList();
+
+		final ArrayList<Entry> result = new ArrayList<Entry>(Math.min(limit, queue.mEntries.size()));
+		for(Entry entry : queue.mEntries.values()) {
+			if(result.size() >= limit)
+				break;
+			result.add(entry);
+		}
+		return result;
+	}
+
+	/**
+	 * @return The newest Entry of the given Subscription about the given object, or null. Includes Entries which were
+	 *     not committed yet.
+	 */
+	synchronized Entry getNewestEntry(UUID clientID, String subscriptionID, String objectID) {
+		final ClientQueue queue = mQueues.get(clientID);
+		if(queue == null)
+			return null;
+
+		final TreeMap<Long, Entry> entries = queue.mEntriesByObject.get(subscriptionID + "/" + objectID);
+		return entries != null ? entries.lastEntry().getValue() : null;
+	}
+
+	/**
+	 * @return The serialized objects of the given Entry: [0] = before the change, [1] = after the change. Null if the
+	 *     object was created / deleted, see {@link Persistent#deserialize(WebOfTrustInterface, byte[])}.
+	 */
+	synchronized byte[][] readObjects(UUID clientID, Entry entry) throws IOException {
+		if(entry.mDataOffset == -1)
+			return new byte[][] { entry.mOldObject, entry.mNewObject };
+
+		// Not getQueue(): It would create the file of a Client which was deleted meanwhile.
+		final ClientQueue queue = mQueues.get(clientID);
+		if(queue == null)
+			throw new IOException("Queue of Client was deleted: " + clientID);
+
+		final RandomAccessFile file = queue.getFile();
+		file.seek(entry.mDataOffset);
+
+		final byte[] oldObject = entry.mOldLength >= 0 ? new byte[entry.mOldLength] : null;
+		if(oldObject != null)
+			file.readFully(oldObject);
+
+		final byte[] newObject = entry.mNewLength >= 0 ? new byte[entry.mNewLength] : null;
+		if(newObject != null)
+			file.readFully(newObject);
+
+		return new byte[][] { oldObject, newObject };
+	}
+
+	/**
+	 * Appends the Entries which the current transaction has added to the files. Each record consists of the header
+	 * of the Entry and its serialized objects, so the files can be inspected for debugging.
+	 *
+	 * @throws RuntimeException If writing fails. The caller then rolls back the transaction.
+	 */
+	@Override public synchronized void onPrepareCommit() {
+		for(ClientQueue queue : mModified) {
+			final ArrayList<Entry> added = new ArrayList<Entry>(queue.mAdded.size());
+			for(Entry entry : queue.mAdded) {
+				// Entries which the transaction has deleted again, e.g. by coalescing, are not written.
+				if(queue.mEntries.get(entry.mIndex) == entry)
+					added.add(entry);
+			}
+
+			if(added.isEmpty())
+				continue;
+
+			try {
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				final DataOutputStream out = new DataOutputStream(bytes);
+				final long[] dataOffsets = new long[added.size()];
+				for(int i = 0; i < added.size(); ++i) {
+					final Entry entry = added.get(i);
+					writeHeader(out, entry);
+					out.flush();
+					dataOffsets[i] = queue.mCommittedLength + bytes.size();
+					if(entry.mOldObject != null)
+						out.write(entry.mOldObject);
+					if(entry.mNewObject != null)
+						out.write(entry.mNewObject);
+				}
+				out.flush();
+
+				final RandomAccessFile file = queue.getFile();
+				file.seek(queue.mCommittedLength);
+				file.write(bytes.toByteArray());
+
+				for(int i = 0; i < added.size(); ++i) {
+					final Entry entry = added.get(i);
+					entry.mDataOffset = dataOffsets[i];
+					entry.mOldObject = null;
+					entry.mNewObject = null;
+				}
+			} catch(IOException e) {
+				throw new RuntimeException("Cannot write " + queue.mFile, e);
+			}
+		}
+	}
+
+	private static void writeHeader(DataOutputStream out, Entry entry) throws IOException {
+		out.writeLong(entry.mIndex);
+		out.writeLong(entry.mCreationTime);
+		out.writeUTF(entry.mSubscriptionID);
+		out.writeUTF(entry.mObjectID);
+		out.writeLong(entry.mRetentionLogIndex);
+		out.writeInt(entry.mOldLength);
+		out.writeInt(entry.mNewLength);
+	}
+
+	/**
+	 * Marks the data which {@link #onPrepareCommit()} has appended as committed, and truncates or compacts the files
+	 * whose Entries were consumed.
+	 */
+	@Override public synchronized void onCommit() {
+		for(ClientQueue queue : mModified) {
+			for(Entry entry : queue.mAdded) {
+				entry.mUncommitted = false;
+				if(entry.mDataOffset != -1) {
+					queue.mCommittedLength = Math.max(queue.mCommittedLength,
+						entry.mDataOffset + Math.max(0, entry.mOldLength) + Math.max(0, entry.mNewLength));
+				}
+			}
+			queue.mAdded.clear();
+			queue.mRemoved.clear();
+
+			if(queue.mClientRemoved) {
+				queue.close();
+				if(queue.mFile.exists() && !queue.mFile.delete())
+					Logger.error(this, "Cannot delete " + queue.mFile);
+				mQueues.values().remove(queue);
+			} else if(queue.mEntries.isEmpty() && queue.mCommittedLength > 0) {
+				// All Entries were consumed, start at the beginning of the file again.
+				try {
+					queue.getFile().setLength(0);
+					queue.mCommittedLength = 0;
+				} catch(IOException e) {
+					// Not critical, the file is truncated upon the next attempt.
+					Logger.error(this, "Cannot truncate " + queue.mFile, e);
+				}
+			} else if(!queue.mEntries.isEmpty()) {
+				// Entries are appended ascending by index, so the first one has the lowest offset.
+				final long consumed = queue.mEntries.firstEntry().getValue().mDataOffset;
+				if(consumed >= COMPACTION_MIN_CONSUMED && consumed >= queue.mCommittedLength / 2) {
+					try {
+						compact(queue);
+					} catch(IOException e) {
+						// Not critical, the old file is still valid and compaction is retried upon the next commit.
+						Logger.error(this, "Cannot compact " + queue.mFile, e);
+					}
+				}
+			}
+		}
+		mModified.clear();
+	}
+
+	/**
+	 * Writes the committed Entries of the given queue into a new file, replaces the old file with it and moves the
+	 * {@link Entry#mDataOffset} to the new file. Must only be called by {@link #onCommit()}, when there is no
+	 * uncommitted data.
+	 *
+	 * @throws IOException If writing the new file fails. The queue then still uses the old file.
+	 */
+	private void compact(ClientQueue queue) throws IOException {
+		final File compactedFile = new File(mDirectory, queue.mFile.getName() + COMPACTION_SUFFIX + FILE_EXTENSION);
+		final RandomAccessFile oldFile = queue.getFile();
+		final long[] dataOffsets = new long[queue.mEntries.size()];
+		long length = 0;
+
+		RandomAccessFile compacted = null;
+		try {
+			compacted = new RandomAccessFile(compactedFile, "rw");
+			compacted.setLength(0);
+
+			int i = 0;
+			for(Entry entry : queue.mEntries.values()) {
+				assert(!entry.mUncommitted && entry.mDataOffset != -1);
+
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				final DataOutputStream out = new DataOutputStream(bytes);
+				writeHeader(out, entry);
+				out.flush();
+
+				final byte[] data = new byte[Math.max(0, entry.mOldLength) + Math.max(0, entry.mNewLength)];
+				oldFile.seek(entry.mDataOffset);
+				oldFile.readFully(data);
+
+				compacted.write(bytes.toByteArray());
+				length += bytes.size();
+				dataOffsets[i++] = length;
+				compacted.write(data);
+				length += data.length;
+			}
+			// Renaming open files fails on some platforms, getFile() opens it again.
+			compacted.close();
+		} catch(IOException e) {
+			Closer.close(compacted);
+			if(compactedFile.exists() && !compactedFile.delete())
+				Logger.error(this, "Cannot delete " + compactedFile);
+			throw e;
+		}
+
+		queue.close();
+		// renameTo() does not replace existing files on all platforms.
+		if(!compactedFile.renameTo(queue.mFile)
+				&& !(queue.mFile.delete() && compactedFile.renameTo(queue.mFile))) {
+			// The old file may still exist, it is deleted when the next run starts.
+			Logger.error(this, "Cannot rename " + compactedFile + " to " + queue.mFile + ", using it instead");
+			queue.mFile = compactedFile;
+		}
+
+		int i = 0;
+		for(Entry entry : queue.mEntries.values())
+			entry.mDataOffset = dataOffsets[i++];
+		queue.mCommittedLength = length;
+	}
+
+	/** Undoes the changes of the current transaction and truncates the files to their committed length. */
+	@Override public synchronized void onRollback() {
+		for(ClientQueue queue : mModified) {
+			for(Entry entry : queue.mAdded)
+				queue.remove(entry);
+			for(Entry entry : queue.mRemoved) {
+				if(!entry.mUncommitted)
+					queue.put(entry);
+			}
+			queue.mAdded.clear();
+			queue.mRemoved.clear();
+			queue.mClientRemoved = false;
+
+			try {
+				if(queue.mRandomAccessFile != null && queue.mRandomAccessFile.length() > queue.mCommittedLength)
+					queue.mRandomAccessFile.setLength(queue.mCommittedLength);
+			} catch(IOException e) {
+				// Not critical: Appending continues at mCommittedLength anyway.
+				Logger.error(this, "Cannot truncate " + queue.mFile, e);
+			}
+
+			if(queue.mEntries.isEmpty() && queue.mCommittedLength == 0) {
+				queue.close();
+				mQueues.values().remove(queue);
+			}
+		}
+		mModified.clear();
+	}
+
+	/** Closes all files. Must be called when the {@link SubscriptionManager} is stopped. */
+	synchronized void close() {
+		for(ClientQueue queue : mQueues.values())
+			queue.close();
+	}
+}
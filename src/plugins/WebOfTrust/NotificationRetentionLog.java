@@ -0,0 +1,221 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static plugins.WebOfTrust.Configuration.IS_UNIT_TEST;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+import plugins.WebOfTrust.SubscriptionManager.ChangePayloads;
+import plugins.WebOfTrust.SubscriptionManager.ResumePosition;
+import plugins.WebOfTrust.SubscriptionManager.Subscription;
+import freenet.support.CurrentTimeUTC;
+
+/**
+ * Keeps the most recent changes of each type of {@link Subscription} so a client which has lost
+ * its connection can resume its subscriptions with the changes which it missed, instead of
+ * receiving a full synchronization again, see {@link ResumePosition}.<br><br>
+ *
+ * Each change receives an index which is incremented per type. A client which has processed all
+ * changes up to an index can resume from it if the log still contains all changes after it: At
+ * most {@link #WINDOW} changes per type are kept. Changes are only recorded while there is a
+ * Subscription of the type, or for {@link #RETENTION_TIME} after one was deleted. If a change
+ * is not recorded, resuming from any index before it is impossible.<br><br>
+ *
+ * Not persisted: {@link SubscriptionManager#start()} deletes all clients anyway. Each instance has
+ * a random {@link #getID()} so a position of a previous run is not mistaken as valid.<br>
+ * Changes of a transaction are only added to the log when it is committed, see
+ * {@link Persistent.TransactionListener}. At most {@link #WINDOW} of them are kept in memory
+ * until then, the older ones would be dropped by the commit anyway.<br><br>
+ *
+ * Locking order: The lock of this class is the innermost, it is taken while holding the
+ * {@link SubscriptionManager} and {@link Persistent#transactionLock(com.db4o.ext.ExtObjectContainer)}.
+ */
+final class NotificationRetentionLog implements Persistent.TransactionListener {
+	/** Maximal amount of changes which are kept per type of {@link Subscription}. */
+	static final int WINDOW = IS_UNIT_TEST ? 1024 : 4096;
+
+	/**
+	 * Changes are recorded for this amount of milliseconds after a {@link Subscription} of the
+	 * type was deleted, so its client can resume it after reconnecting. */
+	static final long RETENTION_TIME = IS_UNIT_TEST ? MINUTES.toMillis(1) : HOURS.toMillis(1);
+
+	/** A recorded change. */
+	static final class Entry {
+		final long mIndex;
+
+		/** {@link Persistent#serialize()} of the object before the change, null if it was created. */
+		private final byte[] mOldObject;
+
+		/** {@link Persistent#serialize()} of the object after the change, null if it was deleted. */
+		private final byte[] mNewObject;
+
+		/**
+		 * @param oldObject See {@link #mOldObject}. Is not copied, must not be modified.
+		 * @param newObject See {@link #mNewObject}. Is not copied, must not be modified.
+		 */
+		Entry(long index, byte[] oldObject, byte[] newObject) {
+			mIndex = index;
+			mOldObject = oldObject;
+			mNewObject = newObject;
+		}
+
+		Persistent getOldObject(WebOfTrustInterface wot) {
+			return mOldObject != null ? Persistent.deserialize(wot, mOldObject) : null;
+		}
+
+		Persistent getNewObject(WebOfTrustInterface wot) {
+			return mNewObject != null ? Persistent.deserialize(wot, mNewObject) : null;
+		}
+	}
+
+	/** The log of a single type of {@link Subscription}. */
+	private static final class TypeLog {
+		/** The committed changes, ascending by {@link Entry#mIndex}. */
+		final ArrayDeque<Entry> mEntries = new ArrayDeque<Entry>();
+
+		/**
+		 * The most recent changes of the current transaction, at most {@link #WINDOW}, ascending by
+		 * {@link Entry#mIndex}. */
+		final ArrayDeque<Entry> mUncommitted = new ArrayDeque<Entry>();
+
+		/** The index of the most recent change, whether it was recorded or not. */
+		long mLastIndex = 0;
+
+		/**
+		 * Resuming is only possible from this index or later: The changes up to it were not
+		 * recorded or were dropped from the log. */
+		long mResumableFrom = 0;
+
+		/** {@link CurrentTimeUTC#getInMillis()} until which changes are recorded. */
+		long mRetainUntil = 0;
+	}
+
+	private final String mID = UUID.randomUUID().toString();
+
+	private final HashMap<Class<?>, TypeLog> mLogs = new HashMap<Class<?>, TypeLog>();
+
+
+	/** @see ResumePosition#mLogID */
+	String getID() {
+		return mID;
+	}
+
+	private TypeLog getLog(Class<?> subscriptionType) {
+		TypeLog log = mLogs.get(subscriptionType);
+		if(log == null) {
+			log = new TypeLog();
+			mLogs.put(subscriptionType, log);
+		}
+		return log;
+	}
+
+	/**
+	 * Must be called for every change which is passed to the {@link Subscription}s of the given
+	 * type, before passing it to them.
+	 *
+	 * @param payloads The change. The serialized objects are shared with the
+	 *     {@link SubscriptionManager.NotificationPayload}s of it, they are not serialized again.
+	 *     If the change is not recorded, they are not serialized at all.
+	 * @param subscribed True if at least one Subscription of the type exists.
+	 * @return The index of the change, to be sent to the clients along with it. 0 if it was not
+	 *     recorded.
+	 */
+	synchronized long add(Class<?> subscriptionType, ChangePayloads payloads, boolean subscribed) {
+
+		final TypeLog log = getLog(subscriptionType);
+		final long index = ++log.mLastIndex;
+
+		if(!subscribed && CurrentTimeUTC.getInMillis() >= log.mRetainUntil) {
+			// Clients which missed this change cannot resume.
+			log.mResumableFrom = index;
+			log.mEntries.clear();
+			return 0;
+		}
+
+		log.mUncommitted.addLast(new Entry(index, payloads.getOldSerializedObject(),
+			payloads.getNewSerializedObject()));
+		if(log.mUncommitted.size() > WINDOW) {
+			// onCommit() would drop it anyway. Large transactions such as a full Score
+			// recomputation would hold all their changes in memory otherwise.
+			// If the transaction is rolled back, this prevents resuming from before it, which is
+			// harmless: The client then receives a synchronization instead.
+			log.mResumableFrom = log.mUncommitted.removeFirst().mIndex;
+		}
+		return index;
+	}
+
+	/**
+	 * Must be called when a {@link Subscription} is deleted, so its client can resume it within
+	 * {@link #RETENTION_TIME}.
+	 */
+	synchronized void retain(Class<?> subscriptionType) {
+		getLog(subscriptionType).mRetainUntil = CurrentTimeUTC.getInMillis() + RETENTION_TIME;
+	}
+
+	/**
+	 * @return The position of a client which has received all changes of the given type up to now,
+	 *     for example by a synchronization.
+	 */
+	synchronized ResumePosition getCurrentPosition(Class<?> subscriptionType) {
+		return new ResumePosition(mID, getLog(subscriptionType).mLastIndex);
+	}
+
+	/**
+	 * @return The changes of the given type after the given position, ascending by index. Null if
+	 *     not all of them are in the log anymore, or if the position is not of this log.
+	 */
+	synchronized List<Entry> getEntriesAfter(Class<?> subscriptionType, ResumePosition position) {
+		final TypeLog log = getLog(subscriptionType);
+
+		if(!mID.equals(position.mLogID) || position.mIndex < log.mResumableFrom
+				|| position.mIndex > log.mLastIndex || !log.mUncommitted.isEmpty()) {
+
+			return null;
+		}
+
+		final ArrayList<Entry> result = new ArrayList<Entry>();
+		for(Entry entry : log.mEntries) {
+			if(entry.mIndex > position.mIndex)
+				result.add(entry);
+		}
+		return result;
+	}
+
+	@Override public void onPrepareCommit() {}
+
+	@Override public synchronized void onCommit() {
+		for(TypeLog log : mLogs.values()) {
+			// Entries which are not after mResumableFrom are useless, it may have been advanced by
+			// add() without removing them. Must be done first so the removal below cannot lower it.
+			while(!log.mEntries.isEmpty() && log.mEntries.peekFirst().mIndex <= log.mResumableFrom)
+				log.mEntries.removeFirst();
+
+			for(Entry entry : log.mUncommitted) {
+				// Entries which were recorded before a change which was not recorded are useless.
+				if(entry.mIndex <= log.mResumableFrom)
+					continue;
+
+				log.mEntries.addLast(entry);
+				if(log.mEntries.size() > WINDOW)
+					log.mResumableFrom = log.mEntries.removeFirst().mIndex;
+			}
+			log.mUncommitted.clear();
+		}
+	}
+
+	@Override public synchronized void onRollback() {
+		for(TypeLog log : mLogs.values()) {
+			// The indexes of the discarded entries are never used by a committed change, so a client
+			// cannot have received them and they do not prevent resuming.
+			log.mUncommitted.clear();
+		}
+	}
+}
@@ -141,6 +141,15 @@ public final class OwnIdentity extends Identity implements Cloneable, Serializab
 	 * @return Whether this OwnIdentity needs to be inserted or not
 	 */
 	public final boolean needsInsert() {
+		return needsInsert(CurrentTimeUTC.getInMillis());
+	}
+	
+	/**
+	 * Same as {@link #needsInsert()} at the given time in UTC milliseconds.<br>
+	 * Returns true from the {@link IdentityInserter}'s due time on, inclusive, so an insert job
+	 * which runs exactly at the due time does not drop the re-insert.
+	 */
+	final boolean needsInsert(long time) {
 		if(isRestoreInProgress())
 			return false;
 		
@@ -150,7 +159,7 @@ public final class OwnIdentity extends Identity implements Cloneable, Serializab
 		// delays for unimportant reasons.
 		
 		return (getLastChangeDate().after(getLastInsertDate()) ||
-				(CurrentTimeUTC.getInMillis() - getLastInsertDate().getTime()) > IdentityInserter.MAX_UNCHANGED_TINE_BEFORE_REINSERT); 
+				(time - getLastInsertDate().getTime()) >= IdentityInserter.MAX_UNCHANGED_TINE_BEFORE_REINSERT); 
 	}
 
 	/**
@@ -379,6 +388,15 @@ public final class OwnIdentity extends Identity implements Cloneable, Serializab
 		}
 		
 		super.storeWithoutCommit(); // Not in the try{} so we don't do checkedRollbackAndThrow twice
+		
+		// Changes are always stored, so this is where we schedule the resulting insert.
+		// The inserter is null in unit tests and during startup, it schedules all existing
+		// OwnIdentitys when it starts.
+		if(mWebOfTrust instanceof WebOfTrust) {
+			final IdentityInserter inserter = ((WebOfTrust)mWebOfTrust).getIdentityInserter();
+			if(inserter != null)
+				inserter.scheduleInsert(this);
+		}
 	}
 
     /** @see WebOfTrust#upgradeDatabaseFormatVersion5 */
@@ -0,0 +1,91 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.HashMap;
+
+import freenet.support.CurrentTimeUTC;
+
+/**
+ * Caches the identity XML of {@link OwnIdentity}s as rendered by
+ * {@link XMLTransformer#exportOwnIdentityStreaming(OwnIdentity, OutputStream)}, so the
+ * {@link IdentityInserter} can re-insert unchanged identities without querying their trust list
+ * and rendering it again. This happens for example when an insert is aborted by
+ * {@link IdentityInserter} restarting its inserts, or fails.<br><br>
+ *
+ * An entry is invalid if:<br>
+ * - {@link Identity#getLastChangeDate()} of the identity changed. This covers its nickname,
+ *   contexts, properties and new or changed trust values.<br>
+ * - {@link #invalidate(String)} was called. {@link WebOfTrust} does so for changes which don't
+ *   call {@link Identity#updated()} on the truster, such as removal of trusts.<br>
+ * - It is older than {@link #MAX_AGE}: The XML contains the editions of the trustees, which we
+ *   should not publish in outdated form for too long.<br><br>
+ *
+ * Not persisted, entries are rendered again after restart.<br>
+ * Not thread-safe: All functions must be called while synchronized on the {@link WebOfTrust}.
+ * This also ensures that the identity cannot change while it is rendered. */
+final class OwnIdentityXMLCache {
+	/** Maximal age of an entry in milliseconds. */
+	static final long MAX_AGE = 3 /* hours */ * 60 * 60 * 1000;
+
+	private static final class Entry {
+		/** {@link Identity#getLastChangeDate()} of the identity when {@link #mXML} was rendered. */
+		final Date mLastChangeDate;
+
+		/** {@link CurrentTimeUTC#getInMillis()} when {@link #mXML} was rendered. */
+		final long mRenderTime;
+
+		final byte[] mXML;
+
+		Entry(Date lastChangeDate, long renderTime, byte[] xml) {
+			mLastChangeDate = lastChangeDate;
+			mRenderTime = renderTime;
+			mXML = xml;
+		}
+	}
+
+	private final WebOfTrust mWoT;
+
+	/** Key = {@link OwnIdentity#getID()} */
+	private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+
+	OwnIdentityXMLCache(WebOfTrust wot) {
+		mWoT = wot;
+	}
+
+	/**
+	 * @return The identity XML of the given {@link OwnIdentity}, from the cache if it is still
+	 *     valid. ATTENTION: The returned array is shared with the cache and must not be modified.
+	 */
+	byte[] getXML(OwnIdentity identity) throws IOException {
+		assert(Thread.holdsLock(mWoT));
+
+		final String id = identity.getID();
+		final Date lastChangeDate = identity.getLastChangeDate();
+		final long now = CurrentTimeUTC.getInMillis();
+
+		final Entry cached = mEntries.get(id);
+		if(cached != null && cached.mLastChangeDate.equals(lastChangeDate)
+				&& now >= cached.mRenderTime && now - cached.mRenderTime < MAX_AGE) {
+
+			return cached.mXML;
+		}
+
+		final ByteArrayOutputStream os = new ByteArrayOutputStream(4096);
+		mWoT.getXMLTransformer().exportOwnIdentityStreaming(identity, os);
+		final byte[] xml = os.toByteArray();
+		mEntries.put(id, new Entry(lastChangeDate, now, xml));
+		return xml;
+	}
+
+	/** Must be called when the identity XML of the given {@link OwnIdentity} changes. */
+	void invalidate(String ownIdentityID) {
+		mEntries.remove(ownIdentityID);
+	}
+}
@@ -15,8 +15,10 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
@@ -81,6 +83,24 @@ public abstract class Persistent implements Serializable {
 	 */
 	private static transient final Object mTransactionLock = new Object();
 	
+	/**
+	 * Number of calls to {@link #checkedCommit(ExtObjectContainer, Object)}, for statistics.<br>
+	 * Protected by {@link #mTransactionLock}. */
+	private static transient long mCommitCount = 0;
+	
+	/** Total time spent in db4o's commit() by {@link #mCommitCount} commits, in nanoseconds. */
+	private static transient long mCommitNanos = 0;
+	
+	/** Longest time a single one of the {@link #mCommitCount} commits took, in nanoseconds. */
+	private static transient long mMaxCommitNanos = 0;
+	
+	/**
+	 * The {@link TransactionListener}s of each database.<br>
+	 * Protected by {@link #mTransactionLock}. */
+	private static transient final IdentityHashMap<ExtObjectContainer, ArrayList<TransactionListener>>
+		mTransactionListeners
+			= new IdentityHashMap<ExtObjectContainer, ArrayList<TransactionListener>>();
+	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
 	private static transient volatile boolean logDEBUG = false;
@@ -365,7 +385,15 @@ public abstract class Persistent implements Serializable {
 		// As of db4o 7.4 it seems necessary to call gc(); to cause rollback() to work.
 		testDatabaseIntegrity(null, db);
 		System.gc();
-		db.rollback();
+		synchronized(mTransactionLock) {
+			db.rollback();
+			
+			final ArrayList<TransactionListener> listeners = mTransactionListeners.get(db);
+			if(listeners != null) {
+				for(TransactionListener listener : listeners)
+					listener.onRollback();
+			}
+		}
 		System.gc(); 
 		Logger.logStatic(loggingObject, "ROLLED BACK!", error, logLevel);
 		testDatabaseIntegrity(null, db);
@@ -485,11 +513,103 @@ public abstract class Persistent implements Serializable {
 	 */
 	public static final void checkedCommit(final ExtObjectContainer db, final Object loggingObject) {
 		testDatabaseIntegrity(null, db);
-		db.commit();
+		synchronized(mTransactionLock) {
+			final ArrayList<TransactionListener> listeners = mTransactionListeners.get(db);
+			if(listeners != null) {
+				for(TransactionListener listener : listeners)
+					listener.onPrepareCommit();
+			}
+			
+			final long startTime = System.nanoTime();
+			db.commit();
+			final long commitNanos = System.nanoTime() - startTime;
+			++mCommitCount;
+			mCommitNanos += commitNanos;
+			mMaxCommitNanos = Math.max(mMaxCommitNanos, commitNanos);
+			
+			if(listeners != null) {
+				for(TransactionListener listener : listeners)
+					listener.onCommit();
+			}
+		}
 		if(logDEBUG) Logger.debug(loggingObject, "COMMITED.");
 		testDatabaseIntegrity(null, db);
 	}
 	
+	/** @return The number of commits which were done by {@link #checkedCommit(ExtObjectContainer, Object)}. */
+	public static final long getCommitCount() {
+		synchronized(mTransactionLock) {
+			return mCommitCount;
+		}
+	}
+	
+	/** @return The total time which the {@link #getCommitCount()} commits took, in nanoseconds. */
+	public static final long getTotalCommitTimeNanos() {
+		synchronized(mTransactionLock) {
+			return mCommitNanos;
+		}
+	}
+	
+	/** @return The time which the slowest of the {@link #getCommitCount()} commits took, in nanoseconds. */
+	public static final long getMaxCommitTimeNanos() {
+		synchronized(mTransactionLock) {
+			return mMaxCommitNanos;
+		}
+	}
+	
+	/**
+	 * Is notified about the outcome of the transactions of a database, see
+	 * {@link Persistent#addTransactionListener(ExtObjectContainer, TransactionListener)}.<br>
+	 * This allows keeping in-memory state which must only become effective if the transaction
+	 * during which it was created is committed.<br><br>
+	 * 
+	 * The functions are called while the {@link #transactionLock(ExtObjectContainer)} is held, so
+	 * they must not acquire any locks which come before it in the locking order. They should be
+	 * fast since they delay every transaction. */
+	public interface TransactionListener {
+		/**
+		 * Called by {@link Persistent#checkedCommit(ExtObjectContainer, Object)} before the
+		 * database is committed, to write state which must be persisted along with it.<br>
+		 * May throw a {@link RuntimeException} to prevent the commit: The caller then rolls back
+		 * the transaction, which calls {@link #onRollback()}. */
+		void onPrepareCommit();
+		
+		/** Called by {@link Persistent#checkedCommit(ExtObjectContainer, Object)}. */
+		void onCommit();
+		
+		/** Called by {@link Persistent#checkedRollback(ExtObjectContainer, Object, Throwable)}. */
+		void onRollback();
+	}
+	
+	public static final void addTransactionListener(ExtObjectContainer db,
+			TransactionListener listener) {
+		
+		synchronized(mTransactionLock) {
+			ArrayList<TransactionListener> listeners = mTransactionListeners.get(db);
+			if(listeners == null) {
+				listeners = new ArrayList<TransactionListener>(2);
+				mTransactionListeners.put(db, listeners);
+			}
+			listeners.add(listener);
+		}
+	}
+	
+	/** @return False if the listener was not registered. */
+	public static final boolean removeTransactionListener(ExtObjectContainer db,
+			TransactionListener listener) {
+		
+		synchronized(mTransactionLock) {
+			final ArrayList<TransactionListener> listeners = mTransactionListeners.get(db);
+			if(listeners == null || !listeners.remove(listener))
+				return false;
+			
+			if(listeners.isEmpty())
+				mTransactionListeners.remove(db);
+			
+			return true;
+		}
+	}
+	
 	/**
 	 * This is one of the only functions which outside classes should use. It is used for committing the transaction.
 	 * The call to this function must be embedded in a transaction, that is a block of:<br />
@@ -660,10 +780,14 @@ public abstract class Persistent implements Serializable {
 			return mObjectSet.containsAll(c);
 		}
 
+		/**
+		 * May return null if the object was deleted after the query was executed, i.e. if the
+		 * caller did not hold the lock in between. */
 		@Override
 		public Type get(final int index) {
 			Type object = mObjectSet.get(index);
-			object.initializeTransient(mWebOfTrust, DEFAULT_ACTIVATION_DEPTH);
+			if(object != null)
+				object.initializeTransient(mWebOfTrust, DEFAULT_ACTIVATION_DEPTH);
 			return object;
 		}
 
@@ -3,13 +3,30 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.WebOfTrust;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static plugins.WebOfTrust.Configuration.IS_UNIT_TEST;
+
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
+import plugins.WebOfTrust.Configuration.NotificationQueueType;
+import plugins.WebOfTrust.Identity.IdentityID;
 import plugins.WebOfTrust.exceptions.DuplicateObjectException;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.ui.fcp.FCPInterface.FCPCallFailedException;
+import plugins.WebOfTrust.util.TimeHistogram;
 import plugins.WebOfTrust.util.jobs.BackgroundJob;
 import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
 import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
@@ -20,8 +37,9 @@ import com.db4o.ext.ExtObjectContainer;
 import com.db4o.query.Query;
 
 import freenet.node.PrioRunnable;
-import freenet.pluginmanager.FredPluginFCPMessageHandler;
 import freenet.pluginmanager.PluginRespirator;
+import freenet.support.CurrentTimeUTC;
+import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.PooledExecutor;
@@ -34,8 +52,9 @@ import freenet.support.io.NativeThread;
  * The subscription manager allows client application to subscribe to certain data sets of WoT and get notified on change.
  * For example, if you subscribe to the list of identities, you will get a notification when an identity is added or removed.
  * 
- * The architecture of this class supports implementing different types of subscriptions: Currently, only FCP is implemented, but it is also technically possible to have subscriptions
- * which do a callback within the WoT plugin or maybe even via OSGI.
+ * The architecture of this class supports implementing different types of subscriptions: Currently, FCP is implemented, and
+ * callbacks to a {@link SubscriptionListener} for plugins which run in the same JVM, see {@link Client.Type}. It is also
+ * technically possible to have subscriptions via OSGI.
  * 
  * The class/object model is as following:
  * - There is exactly one SubscriptionManager object running in the WOT plugin. It is the interface for {@link Client}s.
@@ -44,6 +63,9 @@ import freenet.support.io.NativeThread;
  * - After a delay, the SubscriptionManager deploys the notifications to the clients.
  * 
  * The {@link Notification}s are deployed strictly sequential per {@link Client}.
+ * The queues of different Clients are deployed in parallel by up to {@link #MAX_PARALLEL_DELIVERIES} threads, so a single slow
+ * Client does not delay the others. The FCP calls happen without holding the lock of the SubscriptionManager, so the core of
+ * WOT can store new Notifications while they are being deployed.
  * If a single Notification cannot be deployed, the processing of the Notifications for that Client is halted until the failed Notification can
  * be deployed successfully. There will be {@link #DISCONNECT_CLIENT_AFTER_FAILURE_COUNT} retries, then the Client is disconnected.
  * 
@@ -70,9 +92,12 @@ import freenet.support.io.NativeThread;
  * Its just the general order of locks which is used all over Web Of Trust to prevent deadlocks.
  * Any functions which require synchronization upon some of the locks will mention it.
  * 
- * TODO: Allow out-of-order notifications if the client desires them
- * TODO: Optimization: Allow coalescing of notifications: If a single object changes twice, only send one notification
- * TODO: Optimization: Allow the client to specify filters to reduce traffic: - Context of identities, etc. 
+ * <b>Out-of-order Subscriptions:</b>
+ * Clients which do not need the above order across the types of {@link Subscription}, for example because they only
+ * cache scores, can choose {@link Subscription#isOutOfOrder()} when subscribing. The Notifications of such a
+ * Subscription are deployed in a queue of their own, in parallel to the queue of the Client, with a failure counter of
+ * their own: A failure to deploy them does not block the other Subscriptions of the Client, and vice versa. Within
+ * each queue, the order is still guaranteed.
  * 
  * 
  * TODO: This should be used for powering the IntroductionClient/IntroductionServer.
@@ -89,7 +114,11 @@ public final class SubscriptionManager implements PrioRunnable {
 		 */
 		public static enum Type {
 			FCP,
-			Callback /** Not implemented yet. */
+			/**
+			 * Notifications are passed as {@link SubscriptionEvent}s to a {@link SubscriptionListener} within the same
+			 * JVM, see {@link SubscriptionManager#registerListener(SubscriptionListener)}.
+			 */
+			Callback
 		};
 		
 		/**
@@ -100,13 +129,15 @@ public final class SubscriptionManager implements PrioRunnable {
 		private final Type mType;
 		
 		/**
-		 * An ID which associates this client with a FCP connection if the type is FCP.<br><br>
+		 * An ID which associates this client with a FCP connection if the type is FCP, or with a
+		 * {@link SubscriptionListener} if the type is Callback.<br><br>
 		 * 
 		 * Must be a valid {@link UUID}, see {@link PluginRespirator#getPluginConnectionByID(UUID)}.
 		 * <br> (Stored as String so it is a db4o native type and doesn't require explicit
 		 * management). 
 		 * 
 		 * @see #getFCP_ID()
+		 * @see #getClientID()
 		 */
 		@IndexedField
 		private final String mFCP_ID;
@@ -119,7 +150,9 @@ public final class SubscriptionManager implements PrioRunnable {
 		 * sense to deploy such a notification if the identity which created the trust value does not exist yet.
 		 * It must be guaranteed that the {@link IdentityChangedNotification} which creates the identity is deployed first.
 		 * Events are issued by the core of WOT in proper order, so as long as we keep a queue per Client which preserves
-		 * this order everything will be fine.
+		 * this order everything will be fine.<br>
+		 * Subscriptions which are {@link Subscription#isOutOfOrder()} have a queue of their own, but still take their
+		 * indexes from here: The order within each queue stays the same.
 		 */
 		private long mNextNotificationIndex = 0;
 		
@@ -129,6 +162,16 @@ public final class SubscriptionManager implements PrioRunnable {
 		 */
 		private byte mSendNotificationsFailureCount = 0;
 		
+		/**
+		 * Maximal amount of {@link Notification}s which are deployed in a single FCP message, as negotiated by the
+		 * client when subscribing. If it is 1, each Notification is sent as a message of its own, as
+		 * {@link Subscription#notifySubscriberByFCP(Notification)} does. If it is larger, they are sent with
+		 * {@link plugins.WebOfTrust.ui.fcp.FCPInterface#sendNotifications(UUID, List)}, limited further by
+		 * {@link SubscriptionManager#MAX_FCP_BATCH_BYTES}.<br>
+		 * 0 for Clients which were stored by older versions, which is treated as 1.
+		 */
+		private int mFCPBatchSize = 1;
+		
 		/** @param myFCP_ID See {@link #mFCP_ID} */
 		public Client(final UUID myFCP_ID) {
             assert(myFCP_ID != null);
@@ -137,6 +180,17 @@ public final class SubscriptionManager implements PrioRunnable {
 			mFCP_ID = myFCP_ID.toString();
 		}
 		
+		/**
+		 * @param myID See {@link #mFCP_ID}. For {@link Type#Callback}, the ID returned by
+		 *     {@link SubscriptionManager#registerListener(SubscriptionListener)}.
+		 */
+		Client(final UUID myID, final Type myType) {
+			assert(myID != null && myType != null);
+			
+			mType = myType;
+			mFCP_ID = myID.toString();
+		}
+		
 		/** {@inheritDoc} */
 		@Override
 		public void startupDatabaseIntegrityTest() throws Exception {
@@ -144,16 +198,18 @@ public final class SubscriptionManager implements PrioRunnable {
 			
 			IfNull.thenThrow(mType, "mType");
 			
-			if(mType == Type.FCP) {
-				IfNull.thenThrow(mFCP_ID, "mFCP_ID");
-				UUID.fromString(mFCP_ID); // Throws if invalid.
-			}
+			// Used as ID by both types.
+			IfNull.thenThrow(mFCP_ID, "mFCP_ID");
+			UUID.fromString(mFCP_ID); // Throws if invalid.
 			
 			if(mNextNotificationIndex < 0)
 				throw new IllegalStateException("mNextNotificationIndex==" + mNextNotificationIndex);
 			
 			if(mSendNotificationsFailureCount < 0 || mSendNotificationsFailureCount > SubscriptionManager.DISCONNECT_CLIENT_AFTER_FAILURE_COUNT)
 				throw new IllegalStateException("mSendNotificationsFailureCount==" + mSendNotificationsFailureCount);
+			
+			if(mFCPBatchSize < 0 || mFCPBatchSize > SubscriptionManager.MAX_FCP_BATCH_SIZE)
+				throw new IllegalStateException("mFCPBatchSize==" + mFCPBatchSize);
 		}
 		
 		/**
@@ -192,20 +248,57 @@ public final class SubscriptionManager implements PrioRunnable {
 			return UUID.fromString(mFCP_ID);
 		}
 		
+		/**
+		 * @return The ID of this Client, for any {@link Type}: The {@link #getFCP_ID()} of FCP Clients, the ID of the
+		 *     {@link SubscriptionListener} of Callback Clients.
+		 * @see #mFCP_ID
+		 */
+		public final UUID getClientID() {
+			checkedActivate(1);
+			return UUID.fromString(mFCP_ID);
+		}
+		
 		/**
 		 * Returns the next free index for a {@link Notification} in the queue of this Client.
 		 * 
 		 * Stores this Client object without committing the transaction.
-		 * Schedules processing of the Notifications of the SubscriptionManger via {@link SubscriptionManager#scheduleNotificationProcessing()}.
+		 * Schedules processing of the Notifications of the SubscriptionManger via {@link SubscriptionManager#scheduleNotificationProcessing(Client)}.
 		 */
 		protected final long takeFreeNotificationIndexWithoutCommit() {
 			checkedActivate(1);
 			final long index = mNextNotificationIndex++;
 			storeWithoutCommit();
-			getSubscriptionManager().scheduleNotificationProcessing();
+			getSubscriptionManager().scheduleNotificationProcessing(this);
 			return index;
 		}
 		
+		/** @see #mFCPBatchSize */
+		public final int getFCPBatchSize() {
+			checkedActivate(1);
+			return Math.max(1, mFCPBatchSize);
+		}
+		
+		/**
+		 * @return The maximal amount of {@link Notification}s which are deployed at once: The {@link #getFCPBatchSize()}
+		 *     of FCP Clients, {@link SubscriptionManager#NOTIFICATION_BATCH_SIZE} for Callback Clients.
+		 */
+		final int getBatchSize() {
+			return getType() == Type.Callback ? NOTIFICATION_BATCH_SIZE : getFCPBatchSize();
+		}
+		
+		/**
+		 * Sets {@link #mFCPBatchSize} and stores this Client without committing the transaction.
+		 * @param batchSize Must be between 1 and {@link SubscriptionManager#MAX_FCP_BATCH_SIZE}.
+		 */
+		final void setFCPBatchSizeWithoutCommit(final int batchSize) {
+			if(batchSize < 1 || batchSize > MAX_FCP_BATCH_SIZE)
+				throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+			
+			checkedActivate(1);
+			mFCPBatchSize = batchSize;
+			storeWithoutCommit();
+		}
+		
 		/**
 		 * @see #mSendNotificationsFailureCount
 		 */
@@ -216,7 +309,7 @@ public final class SubscriptionManager implements PrioRunnable {
 		
 		/**
 		 * Increments {@link #mSendNotificationsFailureCount} and returns the new value.
-		 * Use this for disconnecting a client if {@link #sendNotifications(SubscriptionManager)} has failed too many times.
+		 * Use this for disconnecting a client if {@link #sendNotifications(SubscriptionManager, Subscription)} has failed too many times.
 		 * 
 		 * @return The value of {@link #mSendNotificationsFailureCount} after incrementing it.
 		 */
@@ -227,21 +320,65 @@ public final class SubscriptionManager implements PrioRunnable {
 			return mSendNotificationsFailureCount;
 		}
 
+		/** Return value of {@link Client#sendNotifications(SubscriptionManager, Subscription)}. */
+		static enum SendNotificationsResult {
+			/** The queue was deployed completely, or the Client or Subscription was deleted meanwhile. */
+			Deployed,
+			/**
+			 * Deploying failed and is retried after {@link SubscriptionManager#PROCESS_NOTIFICATIONS_DELAY}. The
+			 * {@link ClientDelivery} must exit without deploying Notifications which were queued meanwhile, the retry must
+			 * not happen sooner.
+			 */
+			RetryLater,
+			/**
+			 * The out-of-order Subscription whose queue was deployed failed too often and was deleted. The
+			 * {@link ClientDelivery} must notify the client about it after releasing the locks, see
+			 * {@link Client#notifyClientAboutDeletion(Subscription)}, and delete the Client if it has no Subscriptions
+			 * anymore.
+			 */
+			SubscriptionDeleted,
+			/** The Client shall be deleted. */
+			DeleteClient
+		};
+
 		/**
 		 * Sends out the notification queue for this Client, in sequence.
 		 * 
 		 * If a notification is sent successfully, it is deleted and the transaction is committed.
 		 * 
 		 * If sending a single notification fails, the failure counter {@link #mSendNotificationsFailureCount} is incremented
-		 * and {@link SubscriptionManager#scheduleNotificationProcessing()} is executed to retry sending the notification after some time.
-		 * If the failure counter exceeds the limit {@link SubscriptionManager#DISCONNECT_CLIENT_AFTER_FAILURE_COUNT}, false is returned
-		 * to indicate that the SubscriptionManager should delete this Client.
+		 * and {@link SubscriptionManager#scheduleNotificationProcessing()} is executed to retry sending the notification after some time,
+		 * and {@link SendNotificationsResult#RetryLater} is returned.
+		 * If the failure counter exceeds the limit {@link SubscriptionManager#DISCONNECT_CLIENT_AFTER_FAILURE_COUNT},
+		 * {@link SendNotificationsResult#DeleteClient} is returned to indicate that the SubscriptionManager should delete this Client.
 		 * 
-		 * You have to synchronize on the SubscriptionManager and the database lock before calling this function!
+		 * The Notifications are loaded in batches of {@link SubscriptionManager#NOTIFICATION_BATCH_SIZE} while synchronized on the
+		 * SubscriptionManager, and then sent WITHOUT holding any locks: Sending them can take a long time if the client is slow,
+		 * and the core of WOT must be able to store new Notifications meanwhile. The locks of the SubscriptionManager and the database
+		 * are only taken again for deleting each sent Notification, or for handling the failure.
+		 * If this Client or a Notification of it was deleted meanwhile because the client unsubscribed, that is honored then.
+		 * 
+		 * The queue of the Client contains the Notifications of all its Subscriptions except the ones which are
+		 * {@link Subscription#isOutOfOrder()}: Each of those has a queue of its own which is deployed by a separate call,
+		 * possibly concurrently, and uses the failure counter of the Subscription instead, see
+		 * {@link Subscription#getDeliveryQueueID()}.
+		 * 
+		 * The objects of the synchronization of a {@link Subscription} are not stored as Notifications, they are loaded in
+		 * pages when its {@link SynchronizationStreamNotification} is reached, see
+		 * {@link #sendSynchronizationStream(SubscriptionManager, Subscription, SynchronizationStreamNotification, int)}.
+		 * 
+		 * If the client negotiated a {@link #getFCPBatchSize()} larger than 1, multiple Notifications are sent per FCP message.
+		 * The failure counter then is incremented once per failed message, and the Notifications which the client acknowledged
+		 * as processed before the failure are deleted, see {@link FCPCallFailedException#processedAmount}.
+		 * 
+		 * You must NOT synchronize on the SubscriptionManager or the database lock when calling this function. It must only be
+		 * executed by a single thread per Client at once, see {@link SubscriptionManager.ClientDelivery}.
 		 * You don't have to commit the transaction after calling this function.
 		 * 
 		 * @param manager The {@link SubscriptionManager} from which to query the {@link Notification}s of this Client.
-		 * @return False if this Client should be deleted.
+		 * @param queue Null to deploy the queue of this Client, or an out-of-order Subscription of it to deploy its
+		 *     queue.
+		 * @return See {@link SendNotificationsResult}.
          * @throws InterruptedException
          *             If an external thread requested the current thread to terminate via
          *             {@link Thread#interrupt()} while the data was being transfered to the client.
@@ -250,9 +387,11 @@ public final class SubscriptionManager implements PrioRunnable {
          *             terminating the thread so WOT can shutdown quickly.<br>
          *             You do not have to rollback the transaction if this happens.
 		 */
-		protected boolean sendNotifications(SubscriptionManager manager)
-		        throws InterruptedException {
+		protected SendNotificationsResult sendNotifications(SubscriptionManager manager,
+		        Subscription<? extends EventSource> queue) throws InterruptedException {
 		    
+			assert(!Thread.holdsLock(manager));
+			
 			if(SubscriptionManager.logMINOR) Logger.minor(manager, "sendNotifications() for " + this);
 			
 			// ATTENTION: When adding another type, make sure that you check the
@@ -261,73 +400,351 @@ public final class SubscriptionManager implements PrioRunnable {
 			// This is necessary for SubscriptionManager.stop() to be fast.
 			switch(getType()) {
 				case FCP:
-					for(final Notification notification : manager.getNotifications(this)) {
-						if(SubscriptionManager.logDEBUG) Logger.debug(manager, "Sending notification via FCP: " + notification);
-						try {
+				case Callback:
+					final int batchSize = getBatchSize();
+					
+					while(true) {
+						final List<Notification> loaded;
+						synchronized(manager) {
+							if(!mDB.isStored(this) || (queue != null && !mDB.isStored(queue)))
+								return SendNotificationsResult.Deployed; // Deleted by unsubscribe() meanwhile
+							
+							loaded = manager.getNextNotifications(this, queue,
+								Math.max(NOTIFICATION_BATCH_SIZE, batchSize));
+						}
+						
+						if(loaded.isEmpty())
+							break;
+						
+						for(int offset = 0; offset < loaded.size(); ) {
+							if(loaded.get(offset) instanceof SynchronizationStreamNotification) {
+								final SendNotificationsResult result = sendSynchronizationStream(manager, queue,
+									(SynchronizationStreamNotification)loaded.get(offset), batchSize);
+								if(result != null)
+									return result;
+								
+								// Reload the following Notifications, the stream may have taken a long time.
+								break;
+							}
+							
+							final List<Notification> batch = getFCPBatch(loaded, offset, batchSize);
+							offset += batch.size();
+							
+							if(SubscriptionManager.logDEBUG) Logger.debug(manager, "Sending notifications: " + batch);
+							
+							Throwable failure = null;
+							int deployed = 0;
 							try {
-								notification.getSubscription().notifySubscriberByFCP(notification);
-								notification.deleteWithoutCommit();
+								deploy(manager, batch, batchSize);
+								deployed = batch.size();
 							} catch(InterruptedException e) {
-                                // Shutdown of WOT was requested. This is normal mode of operation,
-                                // and not the fault of the client, so we do not increment its
-                                // failure counter.
-                                Persistent.checkedRollback(mDB, this, e, LogLevel.NORMAL);
-                                throw e;
-                            } catch(Throwable e) {
-					            // FIXME: Code quality: This used to be 
-							    // catch(FCPCallFailedException | IOException | RuntimeException e)
-							    // but was changed to catch(Throwable) because we need to be Java 6
-							    // compatible until the next build. Change it back to the
-							    // Java7-style catch(). 
-							    
-								Persistent.checkedRollback(mDB, this, e, LogLevel.WARNING);
-								
-								final byte failureCount = incrementSendNotificationsFailureCountWithoutCommit();
-								Persistent.checkedCommit(mDB, this);
+								// Shutdown of WOT was requested. This is normal mode of operation,
+								// and not the fault of the client, so we do not increment its
+								// failure counter.
+								// There is nothing to roll back: The database is only modified
+								// after the Notification was deployed.
+								throw e;
+							} catch(Throwable e) {
+								// FIXME: Code quality: This used to be 
+								// catch(FCPCallFailedException | IOException | RuntimeException e)
+								// but was changed to catch(Throwable) because we need to be Java 6
+								// compatible until the next build. Change it back to the
+								// Java7-style catch(). 
+								failure = e;
+								deployed = getProcessedAmount(e);
+							}
+							
+							synchronized(manager) {
+							synchronized(Persistent.transactionLock(mDB)) {
+								if(!mDB.isStored(this) || (queue != null && !mDB.isStored(queue)))
+									return SendNotificationsResult.Deployed; // Deleted by unsubscribe() meanwhile
 								
-								boolean doNotDeleteClient = true;
+								manager.onFCPMessageSent(this);
 								
-								// Check whether the client has disconnected. If so, we must delete
-								// it immediately. If not, we must only delete it after the failure
-								// counter has passed the limit.
-                                if(e instanceof IOException) {
-									Logger.warning(manager, "sendNotifications() failed, client has disconnected, failure count: " + failureCount, e);
-									doNotDeleteClient = false;
-								} else {
-								    if(e instanceof FCPCallFailedException) {
-								        Logger.warning(manager, "sendNotifications() failed because"
-								            + " the client indicated failure at its side."
-								            + " Failure count: " + failureCount, e);
-								    } else {
-								        assert(e instanceof RuntimeException);
-                                        Logger.error(manager, "Bug in sendNotifications()!", e);
-								    }
-									if(failureCount >= DISCONNECT_CLIENT_AFTER_FAILURE_COUNT) 
-										doNotDeleteClient = false;
+								// If processing of a single message fails, we do not want the previous notifications
+								// to be sent again when the failed one is retried. Therefore, we commit after
+								// each processed message.
+								try {
+									for(int i = 0; i < deployed; ++i) {
+										final Notification notification = batch.get(i);
+										// Not stored anymore if its Subscription was deleted meanwhile.
+										if(manager.isQueued(notification)) {
+											manager.onNotificationDeployed(this, notification);
+											manager.deleteQueuedNotificationWithoutCommit(notification);
+										}
+									}
+									
+									// Commits the deletion of the acknowledged Notifications as well.
+									if(failure != null)
+										return handleSendNotificationsFailure(manager, queue, failure);
+									
+									Persistent.checkedCommit(mDB, this);
+								} catch(RuntimeException e) {
+									Persistent.checkedRollbackAndThrow(mDB, this, e);
 								}
-								
-								if(doNotDeleteClient)
-									manager.scheduleNotificationProcessing();
-								
-								return doNotDeleteClient;
+							}
 							}
 							
-							// If processing of a single notification fails, we do not want the previous notifications
-							// to be sent again when the failed notification is retried. Therefore, we commit after
-							// each processed notification but do not catch RuntimeExceptions here
+							if(SubscriptionManager.logDEBUG) Logger.debug(manager, "Sending notifications finished: " + batch);
 							
-							Persistent.checkedCommit(mDB, this);
-						} catch(RuntimeException e) {
-							Persistent.checkedRollbackAndThrow(mDB, this, e);
+							if(Thread.interrupted())
+								throw new InterruptedException();
 						}
-						if(SubscriptionManager.logDEBUG) Logger.debug(manager, "Sending notification via FCP finished: " + notification);
 					}
 					break;
 				default:
 					throw new UnsupportedOperationException("Unknown Type: " + getType());
 			}
 			
-			return true;
+			return SendNotificationsResult.Deployed;
+		}
+		
+		/**
+		 * Used by {@link #sendNotifications(SubscriptionManager, Subscription)} to split the loaded {@link Notification}s into the
+		 * ones which are sent with a single FCP message: At most batchSize, and only as many as fit into
+		 * {@link SubscriptionManager#MAX_FCP_BATCH_BYTES} according to {@link Notification#getSerializedSize()}, but at
+		 * least one. Stops before a {@link SynchronizationStreamNotification}, those are not sent themselves.
+		 */
+		private static List<Notification> getFCPBatch(final List<Notification> loaded, final int offset,
+		        final int batchSize) {
+		    
+			final int max = Math.min(loaded.size(), offset + batchSize);
+			int end = offset + 1;
+			long bytes = loaded.get(offset).getSerializedSize();
+			while(end < max) {
+				if(loaded.get(end) instanceof SynchronizationStreamNotification)
+					break;
+				
+				bytes += loaded.get(end).getSerializedSize();
+				if(bytes > MAX_FCP_BATCH_BYTES)
+					break;
+				++end;
+			}
+			return loaded.subList(offset, end);
+		}
+		
+		/**
+		 * Used by {@link #sendNotifications(SubscriptionManager, Subscription)} to deploy a batch of {@link Notification}s according to
+		 * the {@link Type} of this Client: Via FCP, as a single message per Notification if the batch size is 1. Or by
+		 * passing them as {@link SubscriptionEvent}s to the {@link SubscriptionListener}, which skips the FCP encoding.
+		 * <br><br>
+		 * 
+		 * Must be called WITHOUT holding any locks, see {@link Subscription#notifySubscriberByFCP(Notification)}.
+		 * 
+		 * @throws IOException If the FCP client has disconnected, or if the SubscriptionListener was unregistered.
+		 * @throws FCPCallFailedException If the FCP client indicated failure.
+		 * @throws ListenerFailedException If the SubscriptionListener indicated failure.
+		 * @throws InterruptedException See {@link #sendNotifications(SubscriptionManager, Subscription)}.
+		 */
+		private void deploy(final SubscriptionManager manager, final List<Notification> batch, final int batchSize)
+		        throws FCPCallFailedException, ListenerFailedException, IOException, InterruptedException {
+		    
+			switch(getType()) {
+				case FCP:
+					if(batchSize == 1) {
+						final Notification notification = batch.get(0);
+						notification.getSubscription().notifySubscriberByFCP(notification);
+					} else
+						mWebOfTrust.getFCPInterface().sendNotifications(getFCP_ID(), batch);
+					break;
+				case Callback:
+					final SubscriptionListener listener = manager.mListeners.get(getClientID());
+					if(listener == null)
+						throw new IOException("SubscriptionListener was unregistered: " + this);
+					
+					final ArrayList<SubscriptionEvent> events = new ArrayList<SubscriptionEvent>(batch.size());
+					for(Notification notification : batch)
+						events.add(new SubscriptionEvent(notification));
+					
+					listener.handleEvents(Collections.unmodifiableList(events));
+					break;
+				default:
+					throw new UnsupportedOperationException("Unknown Type: " + getType());
+			}
+		}
+		
+		/**
+		 * @return The amount of {@link Notification}s which the client processed before the given failure of
+		 *     {@link #deploy(SubscriptionManager, List, int)}.
+		 */
+		private static int getProcessedAmount(final Throwable failure) {
+			if(failure instanceof FCPCallFailedException)
+				return ((FCPCallFailedException)failure).processedAmount;
+			if(failure instanceof ListenerFailedException)
+				return ((ListenerFailedException)failure).processedAmount;
+			return 0;
+		}
+		
+		/**
+		 * Used by {@link #sendNotifications(SubscriptionManager, Subscription)} when the given {@link SynchronizationStreamNotification}
+		 * is the next Notification in the queue: Deploys the objects of the synchronization of its {@link Subscription}.
+		 * <br><br>
+		 * 
+		 * Each page of objects is loaded with {@link Subscription#loadSynchronizationPage(SynchronizationStreamNotification,
+		 * SynchronizationPage)} while holding the locks of the {@link WebOfTrust}, the SubscriptionManager and the
+		 * database, and then sent WITHOUT holding any locks. Thus the WebOfTrust is only locked for the duration of loading
+		 * a single page, not for the whole synchronization. The database is only queried for the first page, the
+		 * following pages continue in its result.<br>
+		 * After each sent FCP message, the position of the stream is advanced and committed with
+		 * {@link Subscription#setSynchronizationCursorWithoutCommit(SubscriptionManager, String)}, so a retry after a
+		 * failure continues after the objects which the client has processed. Once all objects were deployed, the
+		 * SynchronizationStreamNotification is deleted.
+		 * 
+		 * @param queue See {@link #sendNotifications(SubscriptionManager, Subscription)}.
+		 * @return Null if the stream was deployed completely and the following Notifications shall be sent. Otherwise the
+		 *     value which sendNotifications() shall return.
+		 * @throws InterruptedException See {@link #sendNotifications(SubscriptionManager, Subscription)}.
+		 */
+		private SendNotificationsResult sendSynchronizationStream(final SubscriptionManager manager,
+		        final Subscription<? extends EventSource> queue, final SynchronizationStreamNotification stream,
+		        final int batchSize) throws InterruptedException {
+		    
+			final Subscription<? extends EventSource> subscription = stream.getSubscription();
+			SynchronizationPage page = null;
+			
+			while(true) {
+				synchronized(mWebOfTrust) {
+				synchronized(manager) {
+				synchronized(Persistent.transactionLock(mDB)) {
+					if(!mDB.isStored(stream))
+						return SendNotificationsResult.Deployed; // Deleted by unsubscribe() meanwhile
+					
+					page = subscription.loadSynchronizationPage(stream, page);
+				}
+				}
+				}
+				
+				final List<Notification> notifications = page.mNotifications;
+				int offset = 0;
+				
+				// Also executed once if the page is empty to advance the stream.
+				do {
+					final List<Notification> batch = notifications.isEmpty() ? notifications
+						: getFCPBatch(notifications, offset, batchSize);
+					offset += batch.size();
+					
+					Throwable failure = null;
+					int deployed = 0;
+					if(!batch.isEmpty()) {
+						if(SubscriptionManager.logDEBUG) Logger.debug(manager, "Sending synchronization: " + batch);
+						
+						try {
+							deploy(manager, batch, batchSize);
+							deployed = batch.size();
+						} catch(InterruptedException e) {
+							// Not the fault of the client, see sendNotifications().
+							throw e;
+						} catch(Throwable e) {
+							// FIXME: Code quality: Java 7 multi-catch, see sendNotifications().
+							failure = e;
+							deployed = getProcessedAmount(e);
+						}
+					}
+					
+					synchronized(manager) {
+					synchronized(Persistent.transactionLock(mDB)) {
+						if(!mDB.isStored(stream))
+							return SendNotificationsResult.Deployed; // Deleted by unsubscribe() meanwhile
+						
+						try {
+							if(!batch.isEmpty())
+								manager.onFCPMessageSent(this);
+							
+							for(int i = 0; i < deployed; ++i)
+								manager.onNotificationDeployed(this, batch.get(i));
+							
+							if(failure != null) {
+								if(deployed > 0) {
+									subscription.setSynchronizationCursorWithoutCommit(manager,
+										((ObjectChangedNotification)batch.get(deployed - 1)).getObjectID());
+								}
+								// Commits the cursor as well.
+								return handleSendNotificationsFailure(manager, queue, failure);
+							}
+							
+							if(offset < notifications.size()) {
+								subscription.setSynchronizationCursorWithoutCommit(manager,
+									((ObjectChangedNotification)batch.get(batch.size() - 1)).getObjectID());
+							} else if(page.mEndID != null)
+								subscription.setSynchronizationCursorWithoutCommit(manager, page.mEndID);
+							else {
+								subscription.setSynchronizationCursorWithoutCommit(manager, null);
+								stream.deleteWithoutCommit();
+							}
+							
+							Persistent.checkedCommit(mDB, this);
+						} catch(RuntimeException e) {
+							Persistent.checkedRollbackAndThrow(mDB, this, e);
+						}
+					}
+					}
+					
+					if(Thread.interrupted())
+						throw new InterruptedException();
+				} while(offset < notifications.size());
+				
+				if(page.mEndID == null)
+					return null;
+			}
+		}
+		
+		/**
+		 * Used by {@link #sendNotifications(SubscriptionManager, Subscription)} if deploying a {@link Notification} failed:
+		 * Increments {@link #mSendNotificationsFailureCount}, commits it, and decides whether this Client shall be deleted.
+		 * <br>
+		 * For the queue of an out-of-order {@link Subscription}, its own failure counter is incremented instead, and only
+		 * the Subscription is deleted once it exceeds the limit. The Client is deleted along with its last Subscription,
+		 * or if it has disconnected.
+		 * 
+		 * You have to synchronize on the SubscriptionManager and the database lock before calling this function!
+		 * You have to rollback the transaction if it throws a RuntimeException.
+		 * 
+		 * @param queue See {@link #sendNotifications(SubscriptionManager, Subscription)}.
+		 * @return {@link SendNotificationsResult#DeleteClient} if this Client should be deleted,
+		 *     {@link SendNotificationsResult#SubscriptionDeleted} if the out-of-order Subscription was deleted,
+		 *     {@link SendNotificationsResult#RetryLater} otherwise.
+		 */
+		private SendNotificationsResult handleSendNotificationsFailure(SubscriptionManager manager,
+		        Subscription<? extends EventSource> queue, Throwable e) {
+		    
+			final byte failureCount = queue != null
+				? queue.incrementSendNotificationsFailureCountWithoutCommit()
+				: incrementSendNotificationsFailureCountWithoutCommit();
+			Persistent.checkedCommit(mDB, this);
+			
+			boolean doNotDeleteClient = true;
+			
+			// Check whether the client has disconnected. If so, we must delete
+			// it immediately. If not, we must only delete it after the failure
+			// counter has passed the limit.
+			if(e instanceof IOException) {
+				Logger.warning(manager, "sendNotifications() failed, client has disconnected, failure count: " + failureCount, e);
+				doNotDeleteClient = false;
+			} else {
+				if(e instanceof FCPCallFailedException || e instanceof ListenerFailedException) {
+					Logger.warning(manager, "sendNotifications() failed because"
+						+ " the client indicated failure at its side."
+						+ " Failure count: " + failureCount, e);
+				} else {
+					Logger.error(manager, "Bug in sendNotifications()!", e);
+				}
+				if(failureCount >= DISCONNECT_CLIENT_AFTER_FAILURE_COUNT) {
+					if(queue == null)
+						doNotDeleteClient = false;
+					else {
+						Logger.warning(manager, "Out-of-order Subscription failed too often, deleting it: " + queue);
+						queue.deleteWithoutCommit(manager);
+						Persistent.checkedCommit(mDB, this);
+						return SendNotificationsResult.SubscriptionDeleted;
+					}
+				}
+			}
+			
+			if(!doNotDeleteClient)
+				return SendNotificationsResult.DeleteClient;
+			
+			manager.scheduleDeliveryRetry(queue != null ? queue.getDeliveryQueueID() : getClientID());
+			return SendNotificationsResult.RetryLater;
 		}
 		
 		/**
@@ -336,11 +753,16 @@ public final class SubscriptionManager implements PrioRunnable {
 		 * to process a {@link Notification}.
 		 * 
 		 * Exceptions which happen if sending the message fails are swallowed.
+		 * 
+		 * You must NOT synchronize on the SubscriptionManager or the database lock when calling this function: The
+		 * {@link SubscriptionListener} may subscribe again, which locks the {@link WebOfTrust}.
 		 */
 		@SuppressWarnings("unchecked")
 		private void notifyClientAboutDeletion(
 		        final Subscription<? extends EventSource> deletedSubscriptoin) {
 		    
+			assert(!Thread.holdsLock(getSubscriptionManager()));
+			
 			try {
 				Logger.warning(getSubscriptionManager(), "notifyClientAboutDeletion() for " + deletedSubscriptoin);
 				
@@ -351,6 +773,12 @@ public final class SubscriptionManager implements PrioRunnable {
 								    .getClass(),
 								deletedSubscriptoin.getID());
 						break;
+					case Callback:
+						final SubscriptionListener listener
+							= getSubscriptionManager().mListeners.get(getClientID());
+						if(listener != null)
+							listener.handleUnsubscribed(deletedSubscriptoin.getID());
+						break;
 					default:
 						throw new UnsupportedOperationException("Unknown Type: " + getType());
 				}
@@ -366,21 +794,26 @@ public final class SubscriptionManager implements PrioRunnable {
 		
 		/**
 		 * Deletes this Client and also deletes all {@link Subscription} and {@link Notification} objects belonging to it.
-		 * Attempts to notify the {@link Client} about the deletion of each subscription so it can re-subscribe.
 		 * 
 		 * Typically used to forcefully disconnect a client if it exceeds {@link SubscriptionManager#DISCONNECT_CLIENT_AFTER_FAILURE_COUNT}
-		 * failures when processing a {@link Notification}.
+		 * failures when processing a {@link Notification}. The caller then should notify the client about the deletion
+		 * of each subscription with {@link #notifyClientAboutDeletion(Subscription)} so it can re-subscribe, after
+		 * committing the transaction and releasing the locks.
 		 * 
 		 * @param subscriptionManager The {@link SubscriptionManager} to which this Client belongs.
+		 * @return The deleted Subscriptions.
 		 */
-		protected void deleteWithoutCommit(final SubscriptionManager subscriptionManager) {
-			for(final Subscription<? extends EventSource> subscription
-			        : subscriptionManager.getSubscriptions(this)) {
-			    
+		protected List<Subscription<? extends EventSource>> deleteWithoutCommit(
+		        final SubscriptionManager subscriptionManager) {
+		    
+			final List<Subscription<? extends EventSource>> subscriptions
+				= new ArrayList<Subscription<? extends EventSource>>(subscriptionManager.getSubscriptions(this));
+			for(final Subscription<? extends EventSource> subscription : subscriptions)
 				subscription.deleteWithoutCommit(subscriptionManager);
-				notifyClientAboutDeletion(subscription);
-			}
+			if(subscriptionManager.mFileQueue != null)
+				subscriptionManager.mFileQueue.removeClientWithoutCommit(getClientID());
 			super.deleteWithoutCommit();
+			return subscriptions;
 		}
 
 		/** {@inheritDoc} */
@@ -392,7 +825,249 @@ public final class SubscriptionManager implements PrioRunnable {
 		public String toString() {
 			return "[" + super.toString()
 			     + "; Type: " + getType()
-			     + "; FCP ID: " + getFCP_ID() + "]"; 
+			     + "; ID: " + getClientID() + "]"; 
+		}
+	}
+	
+	/**
+	 * Restricts the {@link ObjectChangedNotification}s of a {@link Subscription} to the objects and changes which the
+	 * {@link Client} is interested in. Objects which do not match are neither serialized into a {@link Notification}
+	 * nor deployed, neither as part of the synchronization nor afterwards.<br>
+	 * Chosen by the client when subscribing. Each type of Subscription only supports some of the predicates, see
+	 * {@link #validate(String, boolean, boolean, boolean, String[])}.<br><br>
+	 * 
+	 * If a change causes an object to stop matching the filter, it is deployed as a deletion of the object. If it causes
+	 * it to start matching, it is deployed as a creation. Thereby the dataset of the client always equals the filtered
+	 * dataset of WOT.<br>
+	 * ATTENTION: The ordering guarantee of the SubscriptionManager thus only holds for the objects which the client
+	 * receives: If it filters its {@link IdentitiesSubscription}, it may receive {@link Trust}s and {@link Score}s which
+	 * reference {@link Identity}s it did not receive.
+	 */
+	public static final class Filter {
+		/** Filter which lets everything pass. */
+		public static final Filter NONE = new Filter(null, null, null, null);
+		
+		/** If non-null, only {@link Identity}s for which {@link Identity#hasContext(String)} is true match. */
+		public final String mContext;
+		
+		/** If non-null, only {@link Trust}s and {@link Score}s whose truster has this {@link Identity#getID()} match. */
+		public final String mTrusterID;
+		
+		/** If non-null, only {@link Score}s whose {@link Score#getValue()} is at least this value match. */
+		public final Integer mMinimumScore;
+		
+		/**
+		 * If non-empty, a modification of an object which matches the filter before and after the change is only
+		 * deployed if it changes at least one of the named fields. The names are specific to the type of
+		 * Subscription, see the FILTER_FIELDS of its class.<br>
+		 * ATTENTION: The before-image of the next Notification about the object then may differ from the version which
+		 * the client has in the other fields.
+		 */
+		public final Set<String> mFields;
+		
+		/** @param fields May be null, which is the same as an empty set. */
+		public Filter(String context, String trusterID, Integer minimumScore, Set<String> fields) {
+			mContext = context;
+			mTrusterID = trusterID;
+			mMinimumScore = minimumScore;
+			mFields = fields != null ? Collections.unmodifiableSet(new HashSet<String>(fields))
+			                         : Collections.<String>emptySet();
+		}
+		
+		/**
+		 * @param subscriptionType Name of the type of {@link Subscription} for the error message.
+		 * @param supportsContext Whether the Subscription supports {@link #mContext}.
+		 * @param supportsTruster Whether the Subscription supports {@link #mTrusterID}.
+		 * @param supportsMinimumScore Whether the Subscription supports {@link #mMinimumScore}.
+		 * @param fields The names which are allowed in {@link #mFields}.
+		 * @throws InvalidParameterException If the filter uses a predicate which the Subscription does not support, or
+		 *     if {@link #mTrusterID} is not a valid {@link Identity#getID()}.
+		 */
+		void validate(String subscriptionType, boolean supportsContext, boolean supportsTruster,
+		        boolean supportsMinimumScore, String[] fields) throws InvalidParameterException {
+		    
+			if(mContext != null && !supportsContext)
+				throw new InvalidParameterException("Subscriptions to " + subscriptionType + " cannot be filtered by context");
+			
+			if(mTrusterID != null && !supportsTruster)
+				throw new InvalidParameterException("Subscriptions to " + subscriptionType + " cannot be filtered by truster");
+			
+			if(mTrusterID != null) {
+				try {
+					IdentityID.constructAndValidateFromString(mTrusterID);
+				} catch(RuntimeException e) { // Thrown for wrong length and invalid Base64
+					throw new InvalidParameterException("Invalid truster ID: " + mTrusterID);
+				}
+			}
+			
+			if(mMinimumScore != null && !supportsMinimumScore)
+				throw new InvalidParameterException("Subscriptions to " + subscriptionType + " cannot be filtered by score");
+			
+			final List<String> allowedFields = Arrays.asList(fields);
+			for(String field : mFields) {
+				if(!allowedFields.contains(field))
+					throw new InvalidParameterException("Invalid field for " + subscriptionType + ": " + field);
+			}
+		}
+		
+		/**
+		 * @return The bitmask of {@link #mFields}: Bit i is set if fields[i] is contained. Zero if {@link #mFields} is
+		 *     empty.
+		 */
+		int getFieldMask(String[] fields) {
+			int mask = 0;
+			for(int i = 0; i < fields.length; ++i) {
+				if(mFields.contains(fields[i]))
+					mask |= 1 << i;
+			}
+			return mask;
+		}
+	}
+	
+	/**
+	 * The position of a client in the {@link NotificationRetentionLog} of a type of {@link Subscription}: It has
+	 * processed all changes of the type up to {@link #mIndex}.<br>
+	 * If the client loses its connection, it can pass the position when subscribing again to only receive the changes
+	 * after it instead of a full synchronization. This is only possible with the same {@link Filter}, without
+	 * {@link Subscription#getCoalesceNotifications()}, and as long as the log still contains all changes after the
+	 * position, see {@link NotificationRetentionLog#WINDOW} and {@link NotificationRetentionLog#RETENTION_TIME}.
+	 */
+	public static final class ResumePosition {
+		/** Identifies the log. Changes upon each restart of WOT, which makes all previous positions invalid. */
+		public final String mLogID;
+		
+		/**
+		 * The highest {@link ObjectChangedNotification#getRetentionLogIndex()} which the client has processed. Or the
+		 * index returned by {@link SubscriptionManager#subscribeToIdentities(UUID, boolean, boolean, Filter, int,
+		 * ResumePosition)} if there was none yet: It tells which changes the synchronization of the Subscription
+		 * contains.
+		 */
+		public final long mIndex;
+		
+		public ResumePosition(String logID, long index) {
+			mLogID = logID;
+			mIndex = index;
+		}
+	}
+	
+	/** Returned by the subscribeTo*() functions such as {@link #subscribeToIdentities(UUID, boolean, boolean,
+	 *  Filter, int, ResumePosition)}. */
+	public static final class SubscribeResult {
+		/** The return value of {@link Subscription#getID()} of the created subscription. */
+		public final String mSubscriptionID;
+		
+		/**
+		 * True if the requested {@link ResumePosition} was honored: The client only receives the changes after it, no
+		 * {@link BeginSynchronizationNotification}, synchronization and {@link EndSynchronizationNotification}.
+		 */
+		public final boolean mResumed;
+		
+		/**
+		 * The position of the client after the synchronization, or the requested one if {@link #mResumed}.<br>
+		 * Null if the Subscription cannot be resumed because it coalesces Notifications.
+		 */
+		public final ResumePosition mPosition;
+		
+		SubscribeResult(String subscriptionID, boolean resumed, ResumePosition position) {
+			mSubscriptionID = subscriptionID;
+			mResumed = resumed;
+			mPosition = position;
+		}
+	}
+	
+	/**
+	 * Receives the {@link Notification}s of {@link Client}s of {@link Client.Type#Callback}, for plugins which run in
+	 * the same JVM as WOT and thus do not need the FCP encoding.<br>
+	 * Register it with {@link SubscriptionManager#registerListener(SubscriptionListener)}, and pass the returned ID
+	 * to the subscribeTo*() functions such as {@link SubscriptionManager#subscribeToIdentities(UUID, boolean, boolean,
+	 * Filter, int, ResumePosition)}.<br><br>
+	 * 
+	 * The guarantees are the same as with FCP: The events are passed in the order in which they happened, from a
+	 * single thread per listener at once. If {@link #handleEvents(List)} throws, the events which were not processed
+	 * are passed again later. After {@link SubscriptionManager#DISCONNECT_CLIENT_AFTER_FAILURE_COUNT} failures the
+	 * Subscriptions are terminated, see {@link #handleUnsubscribed(String)}.<br>
+	 * The functions are called without holding any locks of WOT, so they may call it, for example to subscribe again.
+	 */
+	public static interface SubscriptionListener {
+		/**
+		 * @param events The events in the order in which they shall be processed. The list must not be modified.
+		 * @throws ListenerFailedException If processing the events failed. Its
+		 *     {@link ListenerFailedException#processedAmount} tells how many of the events were processed; the others
+		 *     will be passed again.
+		 */
+		void handleEvents(List<SubscriptionEvent> events) throws ListenerFailedException;
+		
+		/**
+		 * Called when the {@link Subscription} with the given {@link Subscription#getID()} was terminated by WOT, for
+		 * example because {@link #handleEvents(List)} failed too often. The listener may subscribe again.<br>
+		 * NOT called for {@link SubscriptionManager#unsubscribe(String)} and
+		 * {@link SubscriptionManager#unregisterListener(UUID)}.
+		 */
+		void handleUnsubscribed(String subscriptionID);
+	}
+	
+	/**
+	 * Immutable representation of a {@link Notification} for a {@link SubscriptionListener}. The event sources are
+	 * deserialized copies which are not connected to the database of WOT.
+	 */
+	public static final class SubscriptionEvent {
+		public static enum Type {
+			/** See {@link BeginSynchronizationNotification}. */
+			BeginSynchronization,
+			/** See {@link ObjectChangedNotification}. */
+			ObjectChanged,
+			/** See {@link EndSynchronizationNotification}. */
+			EndSynchronization
+		}
+		
+		public final Type mType;
+		
+		/** See {@link Subscription#getID()}. */
+		public final String mSubscriptionID;
+		
+		/** The class of {@link #mOldObject} and {@link #mNewObject}: {@link Identity}, {@link Trust} or {@link Score}. */
+		public final Class<? extends EventSource> mEventSourceClass;
+		
+		/**
+		 * Only for {@link Type#BeginSynchronization} and {@link Type#EndSynchronization}, null otherwise: The
+		 * {@link BeginSynchronizationNotification#getID()} of the synchronization.
+		 */
+		public final UUID mVersionID;
+		
+		/** Only for {@link Type#ObjectChanged}: See {@link ObjectChangedNotification#getOldObject()}. */
+		public final EventSource mOldObject;
+		
+		/** Only for {@link Type#ObjectChanged}: See {@link ObjectChangedNotification#getNewObject()}. */
+		public final EventSource mNewObject;
+		
+		SubscriptionEvent(final Notification notification) {
+			final Subscription<? extends EventSource> subscription = notification.getSubscription();
+			mSubscriptionID = subscription.getID();
+			mEventSourceClass = subscription.getEventSourceClass();
+			
+			if(notification instanceof ObjectChangedNotification) {
+				final ObjectChangedNotification change = (ObjectChangedNotification)notification;
+				mType = Type.ObjectChanged;
+				mVersionID = null;
+				mOldObject = (EventSource)change.getOldObject();
+				mNewObject = (EventSource)change.getNewObject();
+			} else {
+				// EndSynchronizationNotification is a subclass of BeginSynchronizationNotification, so check it first.
+				mType = notification instanceof EndSynchronizationNotification
+				      ? Type.EndSynchronization : Type.BeginSynchronization;
+				mVersionID = UUID.fromString(((BeginSynchronizationNotification<?>)notification).getID());
+				mOldObject = null;
+				mNewObject = null;
+			}
+		}
+		
+		@Override public String toString() {
+			return "[SubscriptionEvent: " + mType
+			     + "; mSubscriptionID: " + mSubscriptionID
+			     + "; mEventSourceClass: " + mEventSourceClass.getSimpleName()
+			     + "; mVersionID: " + mVersionID
+			     + "; mOldObject: " + mOldObject
+			     + "; mNewObject: " + mNewObject + "]";
 		}
 	}
 	
@@ -427,13 +1102,81 @@ public final class SubscriptionManager implements PrioRunnable {
 		@IndexedField
 		private final String mID;
 		
+		/**
+		 * If true, a new {@link ObjectChangedNotification} is merged with a pending one about the same object,
+		 * if the pending one was not loaded for deployment yet: Only a single Notification with the oldest
+		 * before-image and the newest after-image is deployed then.<br>
+		 * Chosen by the client when subscribing, see {@link #storeNotificationWithoutCommit(EventSource, EventSource)}.
+		 */
+		private final boolean mCoalesceNotifications;
+		
+		/**
+		 * If true, the {@link Notification}s of this Subscription are deployed in a delivery queue of their own instead
+		 * of the one of the {@link Client}, see {@link #getDeliveryQueueID()}: They are not ordered relative to the
+		 * Notifications of the other Subscriptions of the Client, and a failure to deploy them does not block the
+		 * others, nor vice versa. Chosen by the client when subscribing.
+		 */
+		private final boolean mOutOfOrder;
+		
+		/**
+		 * Same as {@link Client#mSendNotificationsFailureCount}, for the delivery queue of this Subscription if
+		 * {@link #mOutOfOrder} is true. After {@link SubscriptionManager#DISCONNECT_CLIENT_AFTER_FAILURE_COUNT} failures,
+		 * only this Subscription is deleted.
+		 */
+		private byte mSendNotificationsFailureCount = 0;
+		
+		/** {@link Filter#mContext} of the {@link Filter} which the client chose when subscribing. */
+		private final String mFilterContext;
+		
+		/** {@link Filter#mTrusterID} of the {@link Filter} which the client chose when subscribing. */
+		private final String mFilterTrusterID;
+		
+		/** True if the {@link Filter#mMinimumScore} of the {@link Filter} was non-null. */
+		private final boolean mFilterByMinimumScore;
+		
+		/** {@link Filter#mMinimumScore} of the {@link Filter}, only valid if {@link #mFilterByMinimumScore} is true. */
+		private final int mFilterMinimumScore;
+		
+		/**
+		 * {@link Filter#getFieldMask(String[])} of the {@link Filter} which the client chose when subscribing, with the
+		 * FILTER_FIELDS of the child class. Zero if all changes shall be deployed.
+		 * @see #getChangedFields(EventSource, EventSource)
+		 */
+		private final int mFilterFields;
+		
+		/**
+		 * True while the {@link SynchronizationStreamNotification} of this Subscription has not deployed all objects of
+		 * the synchronization yet, see {@link #storeSynchronizationWithoutCommit()}.
+		 */
+		private boolean mStreamingSynchronization = false;
+		
+		/**
+		 * The {@link Persistent#getID()} of the last object which the {@link SynchronizationStreamNotification} has
+		 * deployed. Null if it has not deployed any yet. The stream deploys the objects in ascending order of their ID.
+		 */
+		private String mSynchronizationCursor = null;
+		
 		/**
 		 * Constructor for being used by child classes.
 		 * @param myClient The {@link Client} to which this Subscription belongs.
+		 * @param coalesceNotifications See {@link #mCoalesceNotifications}.
+		 * @param outOfOrder See {@link #mOutOfOrder}.
+		 * @param filter Must have been validated with {@link Filter#validate(String, boolean, boolean, boolean,
+		 *     String[])} by the child class.
+		 * @param filterFields The FILTER_FIELDS of the child class.
 		 */
-		protected Subscription(final Client myClient) {
+		protected Subscription(final Client myClient, final boolean coalesceNotifications, final boolean outOfOrder,
+		        final Filter filter, final String[] filterFields) {
+		    
 			mClient = myClient;
 			mID = UUID.randomUUID().toString();
+			mCoalesceNotifications = coalesceNotifications;
+			mOutOfOrder = outOfOrder;
+			mFilterContext = filter.mContext;
+			mFilterTrusterID = filter.mTrusterID;
+			mFilterByMinimumScore = filter.mMinimumScore != null;
+			mFilterMinimumScore = mFilterByMinimumScore ? filter.mMinimumScore : 0;
+			mFilterFields = filter.getFieldMask(filterFields);
 			
 			assert(mClient != null);
 		}
@@ -447,6 +1190,17 @@ public final class SubscriptionManager implements PrioRunnable {
 			
 			IfNull.thenThrow(mID, "mID");
 			UUID.fromString(mID); // Throws if invalid
+			
+			if(mFilterTrusterID != null)
+				IdentityID.constructAndValidateFromString(mFilterTrusterID); // Throws if invalid
+			
+			if(!mStreamingSynchronization && mSynchronizationCursor != null)
+				throw new IllegalStateException("mSynchronizationCursor==" + mSynchronizationCursor);
+			
+			if(mSendNotificationsFailureCount < 0
+					|| mSendNotificationsFailureCount > SubscriptionManager.DISCONNECT_CLIENT_AFTER_FAILURE_COUNT
+					|| (!mOutOfOrder && mSendNotificationsFailureCount != 0))
+				throw new IllegalStateException("mSendNotificationsFailureCount==" + mSendNotificationsFailureCount);
 		}
 
 		/**
@@ -468,9 +1222,93 @@ public final class SubscriptionManager implements PrioRunnable {
 			checkedActivate(1);
 			return mID;
 		}
-
-		/**
-		 * ATTENTION: This does NOT delete the {@link Notification} objects associated with this Subscription!
+		
+		/** @see #mCoalesceNotifications */
+		public final boolean getCoalesceNotifications() {
+			checkedActivate(1);
+			return mCoalesceNotifications;
+		}
+		
+		/** @see #mOutOfOrder */
+		public final boolean isOutOfOrder() {
+			checkedActivate(1);
+			return mOutOfOrder;
+		}
+		
+		/**
+		 * @return The ID of the delivery queue in which the {@link Notification}s of this Subscription are deployed by a
+		 *     {@link ClientDelivery}: The {@link Client#getClientID()} if the Notifications are ordered relative to the
+		 *     ones of the other Subscriptions of the Client, or the {@link #getID()} if {@link #isOutOfOrder()}.<br>
+		 *     Both are random UUIDs, so they are unique among all queues.
+		 */
+		final UUID getDeliveryQueueID() {
+			return isOutOfOrder() ? UUID.fromString(getID()) : getClient().getClientID();
+		}
+		
+		/** @see #mSendNotificationsFailureCount */
+		public final byte getSendNotificationsFailureCount() {
+			checkedActivate(1);
+			return mSendNotificationsFailureCount;
+		}
+		
+		/**
+		 * Increments {@link #mSendNotificationsFailureCount} and returns the new value. Stores this Subscription without
+		 * committing the transaction.
+		 */
+		private final byte incrementSendNotificationsFailureCountWithoutCommit() {
+			assert(isOutOfOrder());
+			checkedActivate(1);
+			++mSendNotificationsFailureCount;
+			storeWithoutCommit();
+			return mSendNotificationsFailureCount;
+		}
+		
+		/** @return {@link Filter#mContext} of the {@link Filter} of this Subscription. */
+		protected final String getFilterContext() {
+			checkedActivate(1); // String is a db4o primitive type so 1 is enough
+			return mFilterContext;
+		}
+		
+		/** @return {@link Filter#mTrusterID} of the {@link Filter} of this Subscription. */
+		protected final String getFilterTrusterID() {
+			checkedActivate(1); // String is a db4o primitive type so 1 is enough
+			return mFilterTrusterID;
+		}
+		
+		/** @return {@link Filter#mMinimumScore} of the {@link Filter} of this Subscription. */
+		protected final Integer getFilterMinimumScore() {
+			checkedActivate(1);
+			return mFilterByMinimumScore ? mFilterMinimumScore : null;
+		}
+		
+		/**
+		 * Must return true if the given version of an object matches the {@link Filter} of this Subscription, i.e. if
+		 * the {@link Client} is interested in it.<br>
+		 * Must only look at the given object, not at the database: It can be a clone of an object which does not exist
+		 * anymore.
+		 */
+		abstract boolean matchesFilter(EventType eventSource);
+		
+		/**
+		 * Must return the bitmask of the FILTER_FIELDS of the child class which differ between the given two versions of
+		 * an object, see {@link #mFilterFields}.
+		 */
+		abstract int getChangedFields(EventType oldEventSource, EventType newEventSource);
+		
+		/**
+		 * If false, a pending {@link ObjectChangedNotification} about the creation of an object is not coalesced
+		 * with a later change of the object.<br>
+		 * Coalescing stores the merged Notification at the position of the later change in the queue of the
+		 * {@link Client}, which moves the creation behind the Notifications which were stored meanwhile. This must not
+		 * happen for objects which are referenced by other types of {@link EventSource}, as the client would receive the
+		 * references before the object then.
+		 */
+		boolean mayCoalesceCreation() {
+			return true;
+		}
+
+		/**
+		 * ATTENTION: This does NOT delete the {@link Notification} objects associated with this Subscription!
 		 * Only use it if you delete them manually before!
 		 * 
 		 * - Deletes this {@link Subscription} from the database. Does not commit the transaction and does not take care of synchronization.
@@ -490,6 +1328,17 @@ public final class SubscriptionManager implements PrioRunnable {
 			for(final Notification notification : manager.getNotifications(this)) {
 				notification.deleteWithoutCommit();
 			}
+			if(isOutOfOrder()) {
+				if(manager.mFileQueue != null)
+					manager.mFileQueue.removeClientWithoutCommit(getDeliveryQueueID());
+				manager.mLoadedNotificationIndexes.remove(getDeliveryQueueID());
+			} else if(manager.mFileQueue != null)
+				manager.mFileQueue.removeSubscriptionWithoutCommit(getDeliveryQueueID(), getID());
+			for(final SnapshotImage image : manager.getSnapshotImages(this)) {
+				image.deleteWithoutCommit();
+			}
+			// The client may reconnect and resume this Subscription.
+			manager.mRetentionLog.retain(getClass());
 			super.deleteWithoutCommit();
 		}
 
@@ -505,22 +1354,27 @@ public final class SubscriptionManager implements PrioRunnable {
          * As new identities appear afterwards, the client can be kept up to date by sending each single new identity as it appears.
          * <br><br>
          * 
-		 * The job of this function is to store the initial state of the WOT database in this
-		 * Subscription, as a clone of all relevant objects, serialized into a series of
-		 * {@link ObjectChangedNotification}s.<br>
-		 * The actual deployment of the data to the client will happen in the future, as part of
-		 * regular {@link Notification} deployment: The synchronization can be large in size, and
-		 * thus sending it over the network can take a long time. Therefore, it would be bad if we
-		 * sent it directly from the main {@link WebOfTrust} database since that would require us
-		 * to take the main {@link WebOfTrust} lock during the whole time.<br>
-		 * By separating the part of copying the data from the {@link WebOfTrust} into a local
-		 * operation, we can keep the time we have to take the main lock as short as possible.<br>
-		 * <br>
+		 * The job of this function is to mark the initial state of the WOT database in the
+		 * {@link Notification} queue of this Subscription: It stores a
+		 * {@link BeginSynchronizationNotification}, a {@link SynchronizationStreamNotification} and an
+		 * {@link EndSynchronizationNotification}.<br>
+		 * The objects of the synchronization are NOT copied here: That used to require cloning,
+		 * serializing and storing each object of the type in a single transaction, while holding the
+		 * main {@link WebOfTrust} lock the whole time. Instead, the SynchronizationStreamNotification
+		 * loads them from the database in pages when it is deployed, see
+		 * {@link Client#sendSynchronizationStream(SubscriptionManager, SynchronizationStreamNotification,
+		 * int)}. The main lock is then only held for loading a single page.<br>
+		 * To nevertheless deploy the state of the database as of this function call, an object which
+		 * is changed before the stream has deployed it is copied into a {@link SnapshotImage} of its
+		 * version before the change, see {@link #storeNotificationWithoutCommit(EventSource,
+		 * EventSource)}. The stream deploys the image instead of the current version. The change
+		 * itself is stored as a regular {@link ObjectChangedNotification}, and thus is deployed after
+		 * the EndSynchronizationNotification.<br><br>
 		 * 
          * <b>Thread safety:</b><br>
 		 * This must be called while locking upon the {@link WebOfTrust}, the SubscriptionManager
 		 * and the {@link Persistent#transactionLock(ExtObjectContainer)}.<br>
-		 * Therefore it may perform database queries on the WebOfTrust to obtain the dataset.
+		 * The caller must store this Subscription afterwards.
 		 */
 		protected final void storeSynchronizationWithoutCommit() {
             final BeginSynchronizationNotification<EventType> beginMarker
@@ -529,25 +1383,15 @@ public final class SubscriptionManager implements PrioRunnable {
             beginMarker.initializeTransient(mWebOfTrust);
             beginMarker.storeWithoutCommit();
             
-            // All objects part of a synchronization need to receive a call to
-            // EventSource.setVersionID() with the version ID of the
-            // BeginSynchronizationNotification beginMarker. See JavaDoc of
-            // EventSource.setVersionID() and BeginSynchronizationNotification.
-            final UUID synchronizationID
-                = UUID.fromString(beginMarker.getID());
+            final SynchronizationStreamNotification stream
+                = new SynchronizationStreamNotification(beginMarker);
             
-            // We require thread locking upon the WebOfTrust per JavaDoc, so we may now call
-            // getSynchronization().
-            for(EventType eventSource : getSynchronization()) {
-                // We need to call setVersionID() on the EventSource, but we must not modify the
-                // main EventSource object stored in the mWebOfTrust. Thus, we clone() the
-                // EventSource and call the setter upon the temporary clone.
-                @SuppressWarnings("unchecked")
-                EventType eventSourceWithProperVersionID = (EventType) eventSource.clone();
-                eventSourceWithProperVersionID.setVersionID(synchronizationID);
-                
-                storeNotificationWithoutCommit(null, eventSourceWithProperVersionID);
-            }
+            stream.initializeTransient(mWebOfTrust);
+            stream.storeWithoutCommit();
+            
+            checkedActivate(1);
+            mStreamingSynchronization = true;
+            mSynchronizationCursor = null;
             
             final EndSynchronizationNotification<EventType> endMarker
                 = new EndSynchronizationNotification<EventType>(beginMarker);
@@ -557,34 +1401,319 @@ public final class SubscriptionManager implements PrioRunnable {
         }
 		
 		/**
-		 * Must return all objects of a given EventType which form a valid synchronization.<br>
-		 * This is all objects of the EventType stored in the {@link WebOfTrust}.<br><br>
+		 * @return True if the {@link SynchronizationStreamNotification} of this Subscription has deployed the object with
+		 *     the given {@link Persistent#getID()} already, or if there is no synchronization pending.
+		 */
+		final boolean isSynchronized(final String objectID) {
+			checkedActivate(1); // String is a db4o primitive type so 1 is enough
+			return !mStreamingSynchronization
+			    || (mSynchronizationCursor != null && objectID.compareTo(mSynchronizationCursor) <= 0);
+		}
+		
+		/**
+		 * Loads the next page of the synchronization which the given {@link SynchronizationStreamNotification} deploys:
+		 * The objects whose ID is greater than {@link #mSynchronizationCursor}, in ascending order of the ID, and at most
+		 * {@link SubscriptionManager#SYNCHRONIZATION_PAGE_SIZE} of them as returned by
+		 * {@link #getSynchronization(String)}.<br>
+		 * To not query the database for each page, which would need time quadratic in the amount of objects, the query
+		 * is only done for the first page. The following pages continue at the position of the previous page in its
+		 * result, which must thus have been deployed up to its {@link SynchronizationPage#mEndID}. Objects which were
+		 * deleted since the query are skipped, and objects which were created since then are not contained in it. Both
+		 * are correct since only the version of the time of the synchronization is deployed, see below.<br>
+		 * The objects are returned in the version of the time of {@link #storeSynchronizationWithoutCommit()}: Objects
+		 * with a {@link SnapshotImage} are replaced by it, which includes those which were deleted meanwhile and excludes
+		 * those which were created meanwhile. Objects which do not match the {@link Filter} are skipped.<br><br>
+		 * 
+		 * The returned {@link ObjectChangedNotification}s are not stored in the database, they are deployed at the
+		 * position of the stream in the queue of the {@link Client}.<br><br>
+		 * 
+		 * You must synchronize on the {@link WebOfTrust}, the SubscriptionManager and the
+		 * {@link Persistent#transactionLock(ExtObjectContainer)} when calling this function.
+		 */
+		final SynchronizationPage loadSynchronizationPage(final SynchronizationStreamNotification stream,
+		        final SynchronizationPage previousPage) {
+		    
+			checkedActivate(1);
+			final String cursor = mSynchronizationCursor;
+			
+			final List<EventType> query;
+			int index;
+			if(previousPage == null) {
+				query = getSynchronization(cursor);
+				index = 0;
+			} else {
+				@SuppressWarnings("unchecked")
+				final List<EventType> previousQuery = (List<EventType>)previousPage.mQuery;
+				query = previousQuery;
+				index = previousPage.mQueryEndIndex;
+			}
+			
+			final int size = query.size();
+			final TreeMap<String, EventType> objects = new TreeMap<String, EventType>();
+			for(; index < size && objects.size() < SYNCHRONIZATION_PAGE_SIZE; ++index) {
+				final EventType eventSource = query.get(index);
+				// Deleted since the query, its SnapshotImage is added below.
+				if(eventSource == null || !mDB.isStored(eventSource))
+					continue;
+				
+				objects.put(eventSource.getID(), eventSource);
+			}
+			
+			// If more objects follow in the query, the page only covers the IDs up to its last one.
+			final String endID = index < size ? objects.lastKey() : null;
+			
+			for(SnapshotImage image : mWebOfTrust.getSubscriptionManager().getSnapshotImages(this)) {
+				final String id = image.getObjectID();
+				if((cursor != null && id.compareTo(cursor) <= 0) || (endID != null && id.compareTo(endID) > 0))
+					continue;
+				
+				@SuppressWarnings("unchecked")
+				final EventType snapshotVersion = (EventType)image.getObject();
+				if(snapshotVersion != null)
+					objects.put(id, snapshotVersion);
+				else
+					objects.remove(id);
+			}
+			
+			final UUID versionID = UUID.fromString(stream.getID());
+			final ArrayList<Notification> notifications = new ArrayList<Notification>(objects.size());
+			for(EventType eventSource : objects.values()) {
+				if(!matchesFilter(eventSource))
+					continue;
+				
+                // All objects part of a synchronization need to receive a call to
+                // EventSource.setVersionID() with the version ID of the
+                // BeginSynchronizationNotification. See JavaDoc of EventSource.setVersionID() and
+                // BeginSynchronizationNotification.
+                // We must not modify the main EventSource object stored in the mWebOfTrust. Thus,
+                // we clone() the EventSource and call the setter upon the temporary clone.
+                @SuppressWarnings("unchecked")
+                final EventType eventSourceWithProperVersionID = (EventType) eventSource.clone();
+                eventSourceWithProperVersionID.setVersionID(versionID);
+                
+                final ObjectChangedNotification notification
+                    = constructSynchronizationNotification(stream, eventSourceWithProperVersionID);
+                notification.initializeTransient(mWebOfTrust);
+                notifications.add(notification);
+			}
+			
+			return new SynchronizationPage(notifications, endID, query, index);
+		}
+		
+		/**
+		 * Stores the position of the {@link SynchronizationStreamNotification} after it has deployed the objects up to
+		 * the given ID, and deletes the {@link SnapshotImage}s which it does not need anymore.<br>
+		 * Stores this Subscription without committing the transaction.
+		 * 
+		 * You must synchronize on the SubscriptionManager and the {@link Persistent#transactionLock(ExtObjectContainer)}
+		 * when calling this function.
+		 * 
+		 * @param deployedUpToID The new value of {@link #mSynchronizationCursor}. Null if the stream has deployed all
+		 *     objects, which ends the synchronization.
+		 */
+		final void setSynchronizationCursorWithoutCommit(final SubscriptionManager manager,
+		        final String deployedUpToID) {
+		    
+			checkedActivate(1);
+			assert(mStreamingSynchronization);
+			
+			for(SnapshotImage image : manager.getSnapshotImages(this)) {
+				if(deployedUpToID == null || image.getObjectID().compareTo(deployedUpToID) <= 0)
+					image.deleteWithoutCommit();
+			}
+			
+			mStreamingSynchronization = deployedUpToID != null;
+			mSynchronizationCursor = deployedUpToID;
+			storeWithoutCommit();
+		}
+		
+		/**
+		 * Must return all objects of a given EventType which form a valid synchronization, whose
+		 * {@link Persistent#getID()} is greater than the given ID, in ascending order of the ID.<br>
+		 * This is all objects of the EventType stored in the {@link WebOfTrust}. The caller applies the {@link Filter}
+		 * to them, but the implementation may exclude objects which do not match it from the query already.<br><br>
 		 * 
          * <b>Thread safety:</b><br>
          * This must be called while locking upon the {@link WebOfTrust}.<br>
          * Therefore it may perform database queries on the WebOfTrust to obtain the dataset.<br>
          * 
-         * @see #storeSynchronizationWithoutCommit()
-         *         storeSynchronizationWithoutCommit() will use this function to obtain the dataset
-         *         of this function. Its JavaDoc also explains what a "synchronization" is in more
-         *         detail.
+         * @param afterID Null to start with the first object.
+         * @see #loadSynchronizationPage(SynchronizationStreamNotification, SynchronizationPage)
+         *         loadSynchronizationPage() will use this function to obtain the dataset of this
+         *         function. The JavaDoc of {@link #storeSynchronizationWithoutCommit()} explains
+         *         what a "synchronization" is in more detail.
 		 */
-		abstract List<EventType> getSynchronization();
+		abstract List<EventType> getSynchronization(String afterID);
+		
+		/** @return The class of the {@link EventSource}s of this Subscription, see {@link SubscriptionEvent}. */
+		abstract Class<EventType> getEventSourceClass();
 
         /**
-         * Shall store a {@link ObjectChangedNotification} constructed via
-         * {@link ObjectChangedNotification#ObjectChangedNotification(Subscription, Persistent,
-         * Persistent)} with parameters oldObject = oldEventSource, newObject = newEventSource.<br>
+         * Shall construct a {@link ObjectChangedNotification} via
+         * {@link ObjectChangedNotification#ObjectChangedNotification(Subscription, NotificationPayload,
+         * NotificationPayload)} with the given parameters.<br>
          * <br> 
          * 
          * The type parameter of the {@link ObjectChangedNotification} shall match the type
-         * parameter EventType extends EventSource of this {@link Subscription}.
-         * <br><br>
+         * parameter EventType extends EventSource of this {@link Subscription}, and so shall the type of the objects
+         * of the payloads.
+         */
+        abstract ObjectChangedNotification constructNotification(
+            final NotificationPayload oldPayload, final NotificationPayload newPayload);
+        
+        /**
+         * Shall construct a {@link ObjectChangedNotification} via
+         * {@link ObjectChangedNotification#ObjectChangedNotification(Subscription, NotificationFileQueue.Entry,
+         * NotificationPayload, NotificationPayload)}, see {@link #constructNotification(NotificationPayload,
+         * NotificationPayload)}.
+         */
+        abstract ObjectChangedNotification constructQueuedNotification(final NotificationFileQueue.Entry entry,
+            final NotificationPayload oldPayload, final NotificationPayload newPayload);
+        
+        /**
+         * Shall construct a {@link ObjectChangedNotification} via
+         * {@link ObjectChangedNotification#ObjectChangedNotification(SynchronizationStreamNotification,
+         * Persistent)}, see {@link #constructNotification(EventSource, EventSource)}.
+         */
+        abstract ObjectChangedNotification constructSynchronizationNotification(
+            final SynchronizationStreamNotification stream, final EventType eventSource);
+        
+        /**
+         * Stores a {@link ObjectChangedNotification} about the given change to the {@link Notification} queue
+         * of the {@link Client}.<br><br>
+         * 
+         * If the {@link SynchronizationStreamNotification} of this Subscription has not deployed the object yet, its
+         * version before the change is stored as a {@link SnapshotImage} first, unless there is one already: The
+         * synchronization must deploy the object as it was when subscribing, see
+         * {@link #storeSynchronizationWithoutCommit()}.<br><br>
+         * 
+         * The change is then reduced to what the client sees through the {@link Filter} of this Subscription: Nothing
+         * is stored if neither version of the object matches it, or if the change does not modify any of the fields
+         * which the client is interested in. If only one version matches, the change is stored as a creation or
+         * deletion of the object.<br><br>
+         * 
+         * If {@link #mCoalesceNotifications} is true and the queue contains a pending Notification about the same
+         * object which may be merged with it, see {@link SubscriptionManager#getCoalescableNotification(Subscription,
+         * String)}, that Notification is deleted and its before-image is used instead of the given oldEventSource.
+         * Nothing is stored if the merged change does not change anything, for example if the object was created and
+         * deleted before the Notification about the creation was deployed.<br><br>
+         * 
+         * The stored Notification references the {@link NotificationPayload}s of the given {@link ChangePayloads}
+         * instead of serializing the objects again, so the Notifications of all Subscriptions share them.<br><br>
+         * 
+         * You must synchronize on the SubscriptionManager and the
+         * {@link Persistent#transactionLock(ExtObjectContainer)} when calling this function.
+         * 
+         * @param oldEventSource The version of the object before the change. Null if it was newly created.
+         * @param newEventSource The version of the object after the change. Null if it was deleted.
+         * @param payloads The {@link ChangePayloads} of the given objects, shared among all Subscriptions.
+         * @param retentionLogIndex See {@link ObjectChangedNotification#getRetentionLogIndex()}.
+         */
+        final void storeNotificationWithoutCommit(EventType oldEventSource, EventType newEventSource,
+                final ChangePayloads payloads, final long retentionLogIndex) {
+            
+            checkedActivate(1);
+            
+            final String objectID = (newEventSource != null ? newEventSource : oldEventSource).getID();
+            
+            if(!isSynchronized(objectID)) {
+                mWebOfTrust.getSubscriptionManager()
+                    .storeSnapshotImageWithoutCommit(this, objectID, (Persistent)oldEventSource);
+            }
+            
+            final boolean oldMatches = oldEventSource != null && matchesFilter(oldEventSource);
+            final boolean newMatches = newEventSource != null && matchesFilter(newEventSource);
+            
+            if(!oldMatches && !newMatches)
+                return;
+            else if(!oldMatches)
+                oldEventSource = null;
+            else if(!newMatches)
+                newEventSource = null;
+            else if(mFilterFields != 0 && (getChangedFields(oldEventSource, newEventSource) & mFilterFields) == 0)
+                return;
+            
+            NotificationPayload oldPayload = oldEventSource != null ? payloads.getOldPayload() : null;
+            final NotificationPayload newPayload = newEventSource != null ? payloads.getNewPayload() : null;
+            
+            ObjectChangedNotification pending = null;
+            if(getCoalesceNotifications()) {
+                pending = mWebOfTrust.getSubscriptionManager().getCoalescableNotification(this, objectID);
+                
+                if(pending != null) {
+                    @SuppressWarnings("unchecked")
+                    final EventType pendingOldEventSource = (EventType)pending.getOldObject();
+                    oldEventSource = pendingOldEventSource;
+                    oldPayload = pending.getOldPayload();
+                    
+                    if(oldEventSource == null ? newEventSource == null
+                                              : oldEventSource.equals(newEventSource)) {
+                        mWebOfTrust.getSubscriptionManager().deleteQueuedNotificationWithoutCommit(pending);
+                        return;
+                    }
+                }
+            }
+            
+            // A coalesced Notification contains changes of lower indexes, so the client could not resume from its index.
+            storeObjectChangedNotificationWithoutCommit(oldPayload, newPayload,
+                getCoalesceNotifications() ? 0 : retentionLogIndex);
+            
+            // Deleted after the new Notification has taken over its old payload, so the payload is not deleted along
+            // with it.
+            if(pending != null)
+                mWebOfTrust.getSubscriptionManager().deleteQueuedNotificationWithoutCommit(pending);
+        }
+        
+        /**
+         * Same as {@link #storeNotificationWithoutCommit(EventSource, EventSource, ChangePayloads, long)} without
+         * filtering and coalescing.<br>
+         * Appends the Notification to the {@link NotificationFileQueue} instead of storing it in the database if the
+         * {@link SubscriptionManager} uses one.
+         */
+        private void storeObjectChangedNotificationWithoutCommit(final NotificationPayload oldPayload,
+                final NotificationPayload newPayload, final long retentionLogIndex) {
+            
+            if(oldPayload != null)
+                oldPayload.initializeTransient(mWebOfTrust);
+            if(newPayload != null)
+                newPayload.initializeTransient(mWebOfTrust);
+            
+            final SubscriptionManager manager = mWebOfTrust.getSubscriptionManager();
+            if(manager.mFileQueue != null) {
+                manager.storeQueuedNotificationWithoutCommit(this, oldPayload, newPayload, retentionLogIndex);
+                return;
+            }
+            
+            if(oldPayload != null)
+                oldPayload.acquireWithoutCommit();
+            if(newPayload != null)
+                newPayload.acquireWithoutCommit();
+            
+            final ObjectChangedNotification notification = constructNotification(oldPayload, newPayload);
+            notification.setRetentionLogIndex(retentionLogIndex);
+            notification.initializeTransient(mWebOfTrust);
+            notification.storeWithoutCommit();
+        }
+        
+        /**
+         * Used instead of {@link #storeSynchronizationWithoutCommit()} if the client resumes a previous Subscription:
+         * Passes the changes which it missed to
+         * {@link #storeNotificationWithoutCommit(EventSource, EventSource, ChangePayloads, long)}.
          * 
-         * TODO: Code quality: Rename to storeObjectChangedNotificationWithoutCommit
+         * You must synchronize on the {@link WebOfTrust}, the {@link SubscriptionManager} and the
+         * {@link Persistent#transactionLock(ExtObjectContainer)} when calling this function.
+         * 
+         * @param changes The return value of {@link NotificationRetentionLog#getEntriesAfter(Class, ResumePosition)}.
          */
-        abstract void storeNotificationWithoutCommit(
-            final EventType oldEventSource, final EventType newEventSource);
+        @SuppressWarnings("unchecked")
+        final void storeRetainedNotificationsWithoutCommit(final List<NotificationRetentionLog.Entry> changes) {
+            for(NotificationRetentionLog.Entry change : changes) {
+                final EventType oldEventSource = (EventType)change.getOldObject(mWebOfTrust);
+                final EventType newEventSource = (EventType)change.getNewObject(mWebOfTrust);
+                storeNotificationWithoutCommit(oldEventSource, newEventSource,
+                    new ChangePayloads((Persistent)oldEventSource, (Persistent)newEventSource), change.mIndex);
+            }
+        }
 
 		/**
 		 * Called by this Subscription when the type of it is FCP and a {@link Notification} shall be sent via FCP. 
@@ -605,7 +1734,9 @@ public final class SubscriptionManager implements PrioRunnable {
          * the various thrown exceptions for details.<br><br>
 		 * 
          * <b>Thread safety:</b><br>
-         * This must be called while locking upon the SubscriptionManager.<br>
+         * This must be called WITHOUT locking upon the SubscriptionManager, so the core of WOT can
+         * store new {@link Notification}s while a slow client is processing this one. The
+         * Notification must have been activated fully while holding the lock.<br>
 		 * The {@link WebOfTrust} object shall NOT be locked:
 		 * The {@link Notification} objects which this function receives contain serialized clones of the objects from WebOfTrust.
 		 * Therefore, the notifications are self-contained and this function should and must NOT call any database query functions of the WebOfTrust. 
@@ -649,6 +1780,13 @@ public final class SubscriptionManager implements PrioRunnable {
 		public String toString() {
 			return "[" + super.toString()
 			     + "; ID: " + getID()
+			     + "; CoalesceNotifications: " + getCoalesceNotifications()
+			     + "; FilterContext: " + getFilterContext()
+			     + "; FilterTrusterID: " + getFilterTrusterID()
+			     + "; FilterMinimumScore: " + getFilterMinimumScore()
+			     + "; FilterFields: " + mFilterFields
+			     + "; StreamingSynchronization: " + mStreamingSynchronization
+			     + "; SynchronizationCursor: " + mSynchronizationCursor
 			     + "; Client: " + getClient() + "]";
 		}
 	}
@@ -678,6 +1816,12 @@ public final class SubscriptionManager implements PrioRunnable {
 		 */
 		@IndexedField
 		private final long mIndex;
+		
+		/**
+		 * {@link CurrentTimeUTC#getInMillis()} when this Notification was created.
+		 * Used for the delivery latency of the {@link ClientStatistics}.
+		 */
+		private final long mCreationTime;
 	
         /**
          * Constructs a Notification in the queue of the given Client.<br>
@@ -690,6 +1834,34 @@ public final class SubscriptionManager implements PrioRunnable {
             mSubscription = mySubscription;
             mClient = mSubscription.getClient();
             mIndex = mClient.takeFreeNotificationIndexWithoutCommit();
+            mCreationTime = CurrentTimeUTC.getInMillis();
+        }
+        
+        /**
+         * Constructs a Notification which was queued in the {@link NotificationFileQueue} with the given index.
+         * Does not take a free Notification index: Such Notifications are not stored in the database.
+         */
+        Notification(final Subscription<? extends EventSource> mySubscription, final long index,
+                final long creationTime) {
+            mSubscription = mySubscription;
+            mClient = mSubscription.getClient();
+            mIndex = index;
+            mCreationTime = creationTime;
+        }
+        
+        /**
+         * Constructs a Notification which is deployed at the position of the given
+         * {@link SynchronizationStreamNotification} in the queue of its Client, see
+         * {@link Subscription#loadSynchronizationPage(SynchronizationStreamNotification,
+         * SynchronizationPage)}.<br>
+         * Does not take a free Notification index: Such Notifications are not stored in the
+         * database.
+         */
+        Notification(final SynchronizationStreamNotification stream) {
+            mSubscription = stream.getSubscription();
+            mClient = stream.getClient();
+            mIndex = stream.getIndex();
+            mCreationTime = stream.getCreationTime();
         }
         
         /** {@inheritDoc} */
@@ -724,6 +1896,33 @@ public final class SubscriptionManager implements PrioRunnable {
             return mSubscription;
         }
         
+        /** @see #mClient */
+        final Client getClient() {
+            checkedActivate(1);
+            mClient.initializeTransient(mWebOfTrust);
+            return mClient;
+        }
+        
+        /** @see #mIndex */
+        final long getIndex() {
+            checkedActivate(1);
+            return mIndex;
+        }
+        
+        /** @see #mCreationTime */
+        final long getCreationTime() {
+            checkedActivate(1);
+            return mCreationTime;
+        }
+        
+        /**
+         * @return The size of the serialized objects which this Notification contains. Used as an estimate of the
+         *     size of the FCP message, see {@link SubscriptionManager#MAX_FCP_BATCH_BYTES}.
+         */
+        int getSerializedSize() {
+            return 0;
+        }
+        
         /** {@inheritDoc} */
         @Override protected void activateFully() {
             checkedActivate(1);
@@ -753,7 +1952,7 @@ public final class SubscriptionManager implements PrioRunnable {
 		
 		/**
 		 * A serialized copy of the changed {@link Persistent} object before the change.
-		 * Null if the change was the creation of the object.
+		 * Null if the change was the creation of the object, or if it is stored in {@link #mOldPayload} instead.
 		 * If non-null its {@link Persistent#getID()} must be equal to the one of {@link #mNewObject} if that member is non-null as well.
 		 * 
 		 * @see Persistent#serialize()
@@ -763,7 +1962,7 @@ public final class SubscriptionManager implements PrioRunnable {
 		
 		/**
 		 * A serialized copy of the changed {@link Persistent} object after the change.
-		 * Null if the change was the deletion of the object.
+		 * Null if the change was the deletion of the object, or if it is stored in {@link #mNewPayload} instead.
 		 * If non-null its {@link Persistent#getID()} must be equal to the one of {@link #mOldObject} if that member is non-null as well.
 		 * 
 		 * @see Persistent#serialize()
@@ -772,28 +1971,96 @@ public final class SubscriptionManager implements PrioRunnable {
 		private final byte[] mNewObject;
 		
 		/**
-		 * Only one of oldObject or newObject may be null.
-		 * If both are non-null, their {@link Persistent#getID()} must be equal.
-		 * 
-		 * TODO: Code quality: oldObject and newObject should be EventSource, not Persistent.
+		 * The shared {@link NotificationPayload} of the object before the change. Null if the change was the creation
+		 * of the object, or for Notifications which contain the object in {@link #mOldObject}: The ones which are
+		 * deployed as part of a synchronization, and the ones which were stored before the field was added.
+		 */
+		private final NotificationPayload mOldPayload;
+		
+		/** Same as {@link #mOldPayload} for the object after the change, see {@link #mNewObject}. */
+		private final NotificationPayload mNewPayload;
+		
+		/**
+		 * The {@link Persistent#getID()} of {@link #mOldObject} and {@link #mNewObject}.
+		 * Allows {@link SubscriptionManager#getCoalescableNotification(Subscription, String)} to query the
+		 * Notifications about an object without deserializing them.
+		 */
+		@IndexedField
+		private final String mObjectID;
+		
+		/**
+		 * The index of the change in the {@link NotificationRetentionLog}, see {@link #getRetentionLogIndex()}.
+		 * 0 if it was not recorded, or for Notifications which were stored before the field was added.
+		 */
+		private long mRetentionLogIndex = 0;
+		
+		/** True if this Notification was loaded from the {@link NotificationFileQueue}, see {@link #isQueuedInFile()}. */
+		private transient boolean mQueuedInFile = false;
+		
+		/**
+		 * Only one of oldPayload or newPayload may be null.
+		 * If both are non-null, their {@link NotificationPayload#getObjectID()} must be equal.<br>
+		 * The caller must {@link NotificationPayload#acquireWithoutCommit()} them.
 		 * 
 		 * @param mySubscription The {@link Subscription} which requested this type of Notification.
-		 * @param oldObject The version of the changed {@link Persistent} object before the change.
-		 * @param newObject The version of the changed {@link Persistent} object after the change.
+		 * @param oldPayload The version of the changed {@link Persistent} object before the change.
+		 * @param newPayload The version of the changed {@link Persistent} object after the change.
 		 * @see Notification#Notification(Subscription) This parent constructor is also called.
 		 */
 		ObjectChangedNotification(final Subscription<? extends EventSource> mySubscription,
-		        final Persistent oldObject, final Persistent newObject) {
+		        final NotificationPayload oldPayload, final NotificationPayload newPayload) {
 		    
 			super(mySubscription);
 			
 			assert	(
-						(oldObject == null ^ newObject == null) ||
-						(oldObject != null && newObject != null && oldObject.getID().equals(newObject.getID()))
+						(oldPayload == null ^ newPayload == null) ||
+						(oldPayload != null && newPayload != null
+							&& oldPayload.getObjectID().equals(newPayload.getObjectID()))
 					);
 			
-			mOldObject = (oldObject != null ? oldObject.serialize() : null);
-			mNewObject = (newObject != null ? newObject.serialize() : null);
+			mOldObject = null;
+			mNewObject = null;
+			mOldPayload = oldPayload;
+			mNewPayload = newPayload;
+			mObjectID = (newPayload != null ? newPayload : oldPayload).getObjectID();
+		}
+		
+		/**
+		 * Constructs a Notification about an object which is deployed as part of a synchronization, i.e. without an
+		 * old version of it.
+		 * 
+		 * @param stream The {@link SynchronizationStreamNotification} at whose position this Notification is deployed.
+		 * @param newObject The version of the object which is part of the synchronization.
+		 * @see Notification#Notification(SynchronizationStreamNotification) This parent constructor is also called.
+		 */
+		ObjectChangedNotification(final SynchronizationStreamNotification stream, final Persistent newObject) {
+			super(stream);
+			mOldObject = null;
+			mNewObject = newObject.serialize();
+			mOldPayload = null;
+			mNewPayload = null;
+			mObjectID = newObject.getID();
+		}
+		
+		/**
+		 * Constructs a Notification from an {@link NotificationFileQueue.Entry}.
+		 * 
+		 * @param oldPayload The version of the changed object before the change. Not stored in the database.
+		 * @param newPayload The version of the changed object after the change. Not stored in the database.
+		 * @see Notification#Notification(Subscription, long, long) This parent constructor is also called.
+		 */
+		ObjectChangedNotification(final Subscription<? extends EventSource> mySubscription,
+		        final NotificationFileQueue.Entry entry, final NotificationPayload oldPayload,
+		        final NotificationPayload newPayload) {
+		    
+			super(mySubscription, entry.mIndex, entry.mCreationTime);
+			mOldObject = null;
+			mNewObject = null;
+			mOldPayload = oldPayload;
+			mNewPayload = newPayload;
+			mObjectID = entry.mObjectID;
+			mRetentionLogIndex = entry.mRetentionLogIndex;
+			mQueuedInFile = true;
 		}
 		
 		/** {@inheritDoc} */
@@ -803,20 +2070,30 @@ public final class SubscriptionManager implements PrioRunnable {
 			
 			activateFully();
 			
-			if(mOldObject == null && mNewObject == null)
-				throw new NullPointerException("Only one of mOldObject and mNewObject may be null!");
+			if((mOldObject != null && mOldPayload != null) || (mNewObject != null && mNewPayload != null))
+				throw new IllegalStateException("An object must not be stored both serialized and as payload!");
+			
+			final Persistent oldObject = getOldObject();
+			final Persistent newObject = getNewObject();
+			
+			if(oldObject == null && newObject == null)
+				throw new NullPointerException("Only one of the old and new object may be null!");
 
-			// mOldObject / mNewObject are serialized copies of Persistent objects.
+			// The objects are serialized copies of Persistent objects.
 			// Because they are serialized, the startupDatabaseIntegrityTest() won't be called automatically on them by WOT
 			// - we have to do it manually.
-			if(mOldObject != null)
-				getOldObject().startupDatabaseIntegrityTest();
+			if(oldObject != null)
+				oldObject.startupDatabaseIntegrityTest();
 			
-			if(mNewObject != null)
-				getNewObject().startupDatabaseIntegrityTest();
+			if(newObject != null)
+				newObject.startupDatabaseIntegrityTest();
 
-			if(mOldObject != null && mNewObject != null && !getOldObject().getID().equals(getNewObject().getID()))
-				throw new IllegalStateException("The ID of mOldObject and mNewObject must match!");
+			if(oldObject != null && newObject != null && !oldObject.getID().equals(newObject.getID()))
+				throw new IllegalStateException("The ID of the old and new object must match!");
+			
+			// Null for Notifications which were stored before the field was added.
+			if(mObjectID != null && !mObjectID.equals((newObject != null ? newObject : oldObject).getID()))
+				throw new IllegalStateException("mObjectID does not match the ID of the object: " + mObjectID);
 		}
 
 		/**
@@ -833,6 +2110,10 @@ public final class SubscriptionManager implements PrioRunnable {
 		 */
 		public final Persistent getOldObject() throws NoSuchElementException {
 			checkedActivate(1); // byte[] is a db4o primitive type so 1 is enough
+			if(mOldPayload != null) {
+				mOldPayload.initializeTransient(mWebOfTrust);
+				return mOldPayload.getObject();
+			}
 			return mOldObject != null ? Persistent.deserialize(mWebOfTrust, mOldObject) : null;
 		}
 		
@@ -842,8 +2123,91 @@ public final class SubscriptionManager implements PrioRunnable {
 		 */
 		public final Persistent getNewObject() throws NoSuchElementException {
 			checkedActivate(1); // byte[] is a db4o primitive type so 1 is enough
+			if(mNewPayload != null) {
+				mNewPayload.initializeTransient(mWebOfTrust);
+				return mNewPayload.getObject();
+			}
 			return mNewObject != null ? Persistent.deserialize(mWebOfTrust, mNewObject) : null;
 		}
+		
+		/**
+		 * @return The {@link NotificationPayload} of {@link #getOldObject()}, to be taken over by a Notification which
+		 *     replaces this one. A new one which is not stored yet if this Notification contains the object in
+		 *     {@link #mOldObject}. Null if there is no old object.
+		 */
+		final NotificationPayload getOldPayload() {
+			checkedActivate(1);
+			if(mOldPayload != null)
+				return mOldPayload;
+			return mOldObject != null ? new NotificationPayload(mOldObject, getObjectID()) : null;
+		}
+		
+		/**
+		 * @return True if this Notification is queued in the {@link NotificationFileQueue} instead of being stored in
+		 *     the database. It must then not be stored or deleted, see
+		 *     {@link SubscriptionManager#deleteQueuedNotificationWithoutCommit(Notification)}.
+		 */
+		final boolean isQueuedInFile() {
+			return mQueuedInFile;
+		}
+		
+		/**
+		 * @return The index of the change in the {@link NotificationRetentionLog}. Sent to the client so it can resume
+		 *     its Subscription after this change, see {@link ResumePosition}. 0 if the change cannot be resumed from.
+		 */
+		public final long getRetentionLogIndex() {
+			checkedActivate(1);
+			return mRetentionLogIndex;
+		}
+		
+		/** @see #mRetentionLogIndex */
+		final void setRetentionLogIndex(final long retentionLogIndex) {
+			checkedActivate(1);
+			mRetentionLogIndex = retentionLogIndex;
+		}
+		
+		/** @see #mObjectID */
+		final String getObjectID() {
+			checkedActivate(1); // String is a db4o primitive type so 1 is enough
+			
+			// Null for Notifications which were stored before the field was added.
+			if(mObjectID == null)
+				return (mNewObject != null ? getNewObject() : getOldObject()).getID();
+			
+			return mObjectID;
+		}
+		
+		/** {@inheritDoc} */
+		@Override int getSerializedSize() {
+			checkedActivate(1); // byte[] is a db4o primitive type so 1 is enough
+			int size = (mOldObject != null ? mOldObject.length : 0) + (mNewObject != null ? mNewObject.length : 0);
+			if(mOldPayload != null) {
+				mOldPayload.initializeTransient(mWebOfTrust);
+				size += mOldPayload.getSize();
+			}
+			if(mNewPayload != null) {
+				mNewPayload.initializeTransient(mWebOfTrust);
+				size += mNewPayload.getSize();
+			}
+			return size;
+		}
+		
+		/**
+		 * Deletes this Notification and {@link NotificationPayload#releaseWithoutCommit()}s its payloads, which
+		 * deletes them if no other Notification references them.
+		 */
+		@Override protected void deleteWithoutCommit() {
+			checkedActivate(1);
+			if(mOldPayload != null) {
+				mOldPayload.initializeTransient(mWebOfTrust);
+				mOldPayload.releaseWithoutCommit();
+			}
+			if(mNewPayload != null) {
+				mNewPayload.initializeTransient(mWebOfTrust);
+				mNewPayload.releaseWithoutCommit();
+			}
+			super.deleteWithoutCommit();
+		}
 
 		/** {@inheritDoc} */
 		@Override protected void activateFully() {
@@ -851,6 +2215,17 @@ public final class SubscriptionManager implements PrioRunnable {
 		    // super.activateFully() will probably always activate to at least level 1, as
 		    // activating to level 0 does not make any sense. So we don't have to do this twice.
 			/* checkedActivate(1); */
+		    
+		    // The payloads are read by getOldObject() / getNewObject() when deploying the Notification without
+		    // holding the database lock.
+		    if(mOldPayload != null) {
+		        mOldPayload.initializeTransient(mWebOfTrust);
+		        mOldPayload.activateFully();
+		    }
+		    if(mNewPayload != null) {
+		        mNewPayload.initializeTransient(mWebOfTrust);
+		        mNewPayload.activateFully();
+		    }
 		}
 
 		@Override
@@ -946,34 +2321,358 @@ public final class SubscriptionManager implements PrioRunnable {
         }
     }
 	
-	/**
-	 * This notification is issued when an {@link Identity} is added/deleted or its attributes change.
-	 * 
-	 * It provides a {@link Identity#clone()} of the identity:
-	 * - before the change via {@link Notification#getOldObject()}
-	 * - and and after the change via ({@link Notification#getNewObject()}
-	 * 
-	 * If one of the before/after getters returns null, this is because the identity was added/deleted.
-	 * If both return an identity, the identity was modified.
-	 * NOTICE: Modification can also mean that its class changed from {@link OwnIdentity} to {@link Identity} or vice versa!
-	 * 
-	 * NOTICE: Both Identity objects are not stored in the database and must not be stored there to prevent duplicates!
-	 * 
-	 * @see IdentitiesSubscription The type of {@link Subscription} which deploys this notification.
-	 */
-	@SuppressWarnings("serial")
-	public static class IdentityChangedNotification extends ObjectChangedNotification {
-		/**
-		 * Only one of oldIentity and newIdentity may be null. If both are non-null, their {@link Identity#getID()} must match.
-		 * 
-		 * @param mySubscription The {@link Subscription} to whose {@link Notification} queue this {@link Notification} belongs.
-		 * @param oldIdentity The version of the {@link Identity} before the change.
-		 * @param newIdentity The version of the {@link Identity} after the change.
-		 */
-		protected IdentityChangedNotification(final Subscription<Identity> mySubscription, 
-				final Identity oldIdentity, final Identity newIdentity) {
-			super(mySubscription, oldIdentity, newIdentity);
-		}
+    /**
+     * Placeholder for the {@link ObjectChangedNotification}s of a synchronization in the queue of
+     * a {@link Client}, between the {@link BeginSynchronizationNotification} and the
+     * {@link EndSynchronizationNotification}.<br>
+     * When it is deployed, the objects of the synchronization are loaded from the database in
+     * pages by {@link Subscription#loadSynchronizationPage(SynchronizationStreamNotification,
+     * SynchronizationPage)}, see {@link Subscription#storeSynchronizationWithoutCommit()}.
+     * It is deleted once all pages have been deployed.<br>
+     * It is never sent to the client itself.
+     */
+    @SuppressWarnings("serial")
+    public static final class SynchronizationStreamNotification extends Notification {
+        /** @see BeginSynchronizationNotification#mVersionID */
+        private final String mVersionID;
+        
+        
+        SynchronizationStreamNotification(BeginSynchronizationNotification<?> begin) {
+            super(begin.getSubscription());
+            mVersionID = begin.getID();
+        }
+        
+        /** @see #mVersionID */
+        @Override public String getID() {
+            checkedActivate(1);
+            return mVersionID;
+        }
+        
+        @Override
+        public void startupDatabaseIntegrityTest() throws Exception {
+            super.startupDatabaseIntegrityTest();
+            
+            UUID.fromString(getID()); // Will throw if ID is no valid UUID.
+        }
+        
+        @Override
+        public String toString() {
+            return "[" + super.toString()
+                 + "; mVersionID: " + getID() + "]";
+        }
+    }
+    
+    /**
+     * The version of an {@link EventSource} object at the time a {@link Subscription} was
+     * synchronized, stored when the object changes before the
+     * {@link SynchronizationStreamNotification} of the Subscription has deployed it.<br>
+     * The stream deploys the image instead of the current version of the object, see
+     * {@link Subscription#storeSynchronizationWithoutCommit()}.
+     */
+    @SuppressWarnings("serial")
+    public static final class SnapshotImage extends Persistent {
+        /** The {@link Subscription} whose synchronization this image belongs to. */
+        @IndexedField
+        private final Subscription<? extends EventSource> mSubscription;
+        
+        /** The {@link Persistent#getID()} of the object. */
+        @IndexedField
+        private final String mObjectID;
+        
+        /**
+         * A serialized copy of the object at the time of the synchronization.<br>
+         * Null if the object did not exist then, i.e. was created afterwards.
+         * 
+         * @see Persistent#serialize()
+         */
+        private final byte[] mObject;
+        
+        
+        SnapshotImage(final Subscription<? extends EventSource> subscription, final String objectID,
+                final Persistent object) {
+            
+            assert(object == null || object.getID().equals(objectID));
+            
+            mSubscription = subscription;
+            mObjectID = objectID;
+            mObject = (object != null ? object.serialize() : null);
+        }
+        
+        /** {@inheritDoc} */
+        @Override public void startupDatabaseIntegrityTest() throws Exception {
+            activateFully();
+            
+            IfNull.thenThrow(mSubscription, "mSubscription");
+            IfNull.thenThrow(mObjectID, "mObjectID");
+            
+            if(mObject != null) {
+                getObject().startupDatabaseIntegrityTest();
+                
+                if(!mObjectID.equals(getObject().getID()))
+                    throw new IllegalStateException("mObjectID does not match: " + mObjectID);
+            }
+        }
+        
+        /**
+         * @deprecated Not implemented because we don't need it.
+         */
+        @Override
+        @Deprecated()
+        public String getID() {
+            throw new UnsupportedOperationException();
+        }
+        
+        /** @see #mObjectID */
+        String getObjectID() {
+            checkedActivate(1); // String is a db4o primitive type so 1 is enough
+            return mObjectID;
+        }
+        
+        /** @return The object at the time of the synchronization, null if it did not exist. */
+        Persistent getObject() {
+            checkedActivate(1); // byte[] is a db4o primitive type so 1 is enough
+            return mObject != null ? Persistent.deserialize(mWebOfTrust, mObject) : null;
+        }
+        
+        /** {@inheritDoc} */
+        @Override protected void activateFully() {
+            checkedActivate(1);
+        }
+        
+        @Override
+        public String toString() {
+            return "[" + super.toString()
+                 + "; mObjectID: " + getObjectID() + "]";
+        }
+    }
+    
+    /**
+     * A serialized copy of a version of a changed object which the {@link ObjectChangedNotification}s of all
+     * {@link Subscription}s about the change share: The object is serialized only once per change instead of once
+     * per Subscription, and stored only once in the database.<br>
+     * Counts the Notifications which reference it, and is deleted along with the last of them, see
+     * {@link #releaseWithoutCommit()}.<br><br>
+     * 
+     * Created on demand by {@link ChangePayloads}.
+     */
+    @SuppressWarnings("serial")
+    public static final class NotificationPayload extends Persistent {
+        /**
+         * A serialized copy of the object.
+         * 
+         * @see Persistent#serialize()
+         */
+        private final byte[] mObject;
+        
+        /** The {@link Persistent#getID()} of the object. */
+        private final String mObjectID;
+        
+        /** The amount of stored {@link ObjectChangedNotification}s which reference this payload. */
+        private int mReferences = 0;
+        
+        
+        NotificationPayload(final Persistent object) {
+            mObject = object.serialize();
+            mObjectID = object.getID();
+        }
+        
+        /** @param object {@link Persistent#serialize()} of the object with the given ID. */
+        NotificationPayload(final byte[] object, final String objectID) {
+            mObject = object;
+            mObjectID = objectID;
+        }
+        
+        /** {@inheritDoc} */
+        @Override public void startupDatabaseIntegrityTest() throws Exception {
+            activateFully();
+            
+            IfNull.thenThrow(mObject, "mObject");
+            IfNull.thenThrow(mObjectID, "mObjectID");
+            
+            if(mReferences < 1)
+                throw new IllegalStateException("Payload is not referenced: mReferences == " + mReferences);
+            
+            getObject().startupDatabaseIntegrityTest();
+            
+            if(!mObjectID.equals(getObject().getID()))
+                throw new IllegalStateException("mObjectID does not match: " + mObjectID);
+        }
+        
+        /**
+         * @deprecated Not implemented because we don't need it.
+         */
+        @Override
+        @Deprecated()
+        public String getID() {
+            throw new UnsupportedOperationException();
+        }
+        
+        /** @see #mObjectID */
+        String getObjectID() {
+            checkedActivate(1); // String is a db4o primitive type so 1 is enough
+            return mObjectID;
+        }
+        
+        /** @return A new deserialized copy of the object. */
+        Persistent getObject() {
+            checkedActivate(1); // byte[] is a db4o primitive type so 1 is enough
+            return Persistent.deserialize(mWebOfTrust, mObject);
+        }
+        
+        /** @return The serialized object, see {@link Persistent#serialize()}. Must not be modified. */
+        byte[] getSerializedObject() {
+            checkedActivate(1);
+            return mObject;
+        }
+        
+        /** @return The length of the serialized object. */
+        int getSize() {
+            checkedActivate(1);
+            return mObject.length;
+        }
+        
+        /**
+         * Must be called before storing an {@link ObjectChangedNotification} which references this payload.
+         * Stores the payload. Does not commit the transaction.
+         */
+        void acquireWithoutCommit() {
+            checkedActivate(1);
+            ++mReferences;
+            storeWithoutCommit();
+        }
+        
+        /**
+         * Must be called when deleting an {@link ObjectChangedNotification} which references this payload.
+         * Deletes the payload if no other Notification references it. Does not commit the transaction.
+         */
+        void releaseWithoutCommit() {
+            checkedActivate(1);
+            assert(mReferences > 0);
+            
+            if(--mReferences <= 0)
+                deleteWithoutCommit();
+            else
+                storeWithoutCommit();
+        }
+        
+        /** {@inheritDoc} */
+        @Override protected void activateFully() {
+            checkedActivate(1);
+        }
+        
+        @Override
+        public String toString() {
+            return "[" + super.toString()
+                 + "; mObjectID: " + getObjectID()
+                 + "; mReferences: " + mReferences + "]";
+        }
+    }
+    
+    /**
+     * Creates the {@link NotificationPayload}s of a single change on demand, so the {@link ObjectChangedNotification}s
+     * of all {@link Subscription}s about it share them. If no Subscription stores a Notification, for example due to
+     * its {@link Filter}, the objects are not serialized at all.<br>
+     * Not stored in the database.
+     */
+    static final class ChangePayloads {
+        private final Persistent mOldObject;
+        
+        private final Persistent mNewObject;
+        
+        private NotificationPayload mOldPayload = null;
+        
+        private NotificationPayload mNewPayload = null;
+        
+        
+        /**
+         * @param oldObject The version of the object before the change. Null if it was newly created.
+         * @param newObject The version of the object after the change. Null if it was deleted.
+         */
+        ChangePayloads(final Persistent oldObject, final Persistent newObject) {
+            mOldObject = oldObject;
+            mNewObject = newObject;
+        }
+        
+        /** @return The payload of the object before the change. Null if it was newly created. */
+        NotificationPayload getOldPayload() {
+            if(mOldPayload == null && mOldObject != null)
+                mOldPayload = new NotificationPayload(mOldObject);
+            return mOldPayload;
+        }
+        
+        /** @return The payload of the object after the change. Null if it was deleted. */
+        NotificationPayload getNewPayload() {
+            if(mNewPayload == null && mNewObject != null)
+                mNewPayload = new NotificationPayload(mNewObject);
+            return mNewPayload;
+        }
+        
+        /**
+         * @return The {@link Persistent#serialize()} of the object before the change which {@link #getOldPayload()}
+         *     contains, so it is serialized only once. Null if it was newly created. Must not be modified.
+         */
+        byte[] getOldSerializedObject() {
+            // Not NotificationPayload.getSerializedObject(): It cannot activate a payload which is not stored yet.
+            final NotificationPayload payload = getOldPayload();
+            return payload != null ? payload.mObject : null;
+        }
+        
+        /** @return Same as {@link #getOldSerializedObject()} for the object after the change. Null if it was deleted. */
+        byte[] getNewSerializedObject() {
+            final NotificationPayload payload = getNewPayload();
+            return payload != null ? payload.mObject : null;
+        }
+    }
+    
+	/**
+	 * This notification is issued when an {@link Identity} is added/deleted or its attributes change.
+	 * 
+	 * It provides a {@link Identity#clone()} of the identity:
+	 * - before the change via {@link Notification#getOldObject()}
+	 * - and and after the change via ({@link Notification#getNewObject()}
+	 * 
+	 * If one of the before/after getters returns null, this is because the identity was added/deleted.
+	 * If both return an identity, the identity was modified.
+	 * NOTICE: Modification can also mean that its class changed from {@link OwnIdentity} to {@link Identity} or vice versa!
+	 * 
+	 * NOTICE: Both Identity objects are not stored in the database and must not be stored there to prevent duplicates!
+	 * 
+	 * @see IdentitiesSubscription The type of {@link Subscription} which deploys this notification.
+	 */
+	@SuppressWarnings("serial")
+	public static class IdentityChangedNotification extends ObjectChangedNotification {
+		/**
+		 * Only one of oldIdentity and newIdentity may be null. If both are non-null, their {@link Identity#getID()} must match.
+		 * 
+		 * @param mySubscription The {@link Subscription} to whose {@link Notification} queue this {@link Notification} belongs.
+		 * @param oldIdentity The {@link NotificationPayload} of the version of the {@link Identity} before the change.
+		 * @param newIdentity The {@link NotificationPayload} of the version of the {@link Identity} after the change.
+		 */
+		protected IdentityChangedNotification(final Subscription<Identity> mySubscription, 
+				final NotificationPayload oldIdentity, final NotificationPayload newIdentity) {
+			super(mySubscription, oldIdentity, newIdentity);
+		}
+		
+		/**
+		 * Constructs a Notification which is deployed as part of a synchronization.
+		 * 
+		 * @see ObjectChangedNotification#ObjectChangedNotification(SynchronizationStreamNotification, Persistent)
+		 */
+		IdentityChangedNotification(final SynchronizationStreamNotification stream, final Identity identity) {
+			super(stream, identity);
+		}
+		
+		/**
+		 * Constructs a Notification from the {@link NotificationFileQueue}.
+		 * 
+		 * @see ObjectChangedNotification#ObjectChangedNotification(Subscription, NotificationFileQueue.Entry,
+		 *     NotificationPayload, NotificationPayload)
+		 */
+		IdentityChangedNotification(final Subscription<Identity> mySubscription,
+				final NotificationFileQueue.Entry entry, final NotificationPayload oldIdentity,
+				final NotificationPayload newIdentity) {
+			super(mySubscription, entry, oldIdentity, newIdentity);
+		}
 
 	}
 	
@@ -996,14 +2695,34 @@ public final class SubscriptionManager implements PrioRunnable {
 		 * Only one of oldTrust and newTrust may be null. If both are non-null, their {@link Trust#getID()} must match.
 		 * 
 		 * @param mySubscription The {@link Subscription} to whose {@link Notification} queue this {@link Notification} belongs.
-		 * @param oldTrust The version of the {@link Trust} before the change.
-		 * @param newTrust The version of the {@link Trust} after the change.
+		 * @param oldTrust The {@link NotificationPayload} of the version of the {@link Trust} before the change.
+		 * @param newTrust The {@link NotificationPayload} of the version of the {@link Trust} after the change.
 		 */
 		protected TrustChangedNotification(final Subscription<Trust> mySubscription, 
-				final Trust oldTrust, final Trust newTrust) {
+				final NotificationPayload oldTrust, final NotificationPayload newTrust) {
 			super(mySubscription, oldTrust, newTrust);
 		}
 		
+		/**
+		 * Constructs a Notification which is deployed as part of a synchronization.
+		 * 
+		 * @see ObjectChangedNotification#ObjectChangedNotification(SynchronizationStreamNotification, Persistent)
+		 */
+		TrustChangedNotification(final SynchronizationStreamNotification stream, final Trust trust) {
+			super(stream, trust);
+		}
+		
+		/**
+		 * Constructs a Notification from the {@link NotificationFileQueue}.
+		 * 
+		 * @see ObjectChangedNotification#ObjectChangedNotification(Subscription, NotificationFileQueue.Entry,
+		 *     NotificationPayload, NotificationPayload)
+		 */
+		TrustChangedNotification(final Subscription<Trust> mySubscription, final NotificationFileQueue.Entry entry,
+				final NotificationPayload oldTrust, final NotificationPayload newTrust) {
+			super(mySubscription, entry, oldTrust, newTrust);
+		}
+		
 	}
 	
 	/**
@@ -1025,13 +2744,33 @@ public final class SubscriptionManager implements PrioRunnable {
 		 * Only one of oldScore and newScore may be null. If both are non-null, their {@link Score#getID()} must match.
 		 * 
 		 * @param mySubscription The {@link Subscription} to whose {@link Notification} queue this {@link Notification} belongs.
-		 * @param oldScore The version of the {@link Score} before the change.
-		 * @param newScore The version of the {@link Score} after the change.
+		 * @param oldScore The {@link NotificationPayload} of the version of the {@link Score} before the change.
+		 * @param newScore The {@link NotificationPayload} of the version of the {@link Score} after the change.
 		 */
 		protected ScoreChangedNotification(final Subscription<Score> mySubscription,
-				final Score oldScore, final Score newScore) {
+				final NotificationPayload oldScore, final NotificationPayload newScore) {
 			super(mySubscription, oldScore, newScore);
 		}
+		
+		/**
+		 * Constructs a Notification which is deployed as part of a synchronization.
+		 * 
+		 * @see ObjectChangedNotification#ObjectChangedNotification(SynchronizationStreamNotification, Persistent)
+		 */
+		ScoreChangedNotification(final SynchronizationStreamNotification stream, final Score score) {
+			super(stream, score);
+		}
+		
+		/**
+		 * Constructs a Notification from the {@link NotificationFileQueue}.
+		 * 
+		 * @see ObjectChangedNotification#ObjectChangedNotification(Subscription, NotificationFileQueue.Entry,
+		 *     NotificationPayload, NotificationPayload)
+		 */
+		ScoreChangedNotification(final Subscription<Score> mySubscription, final NotificationFileQueue.Entry entry,
+				final NotificationPayload oldScore, final NotificationPayload newScore) {
+			super(mySubscription, entry, oldScore, newScore);
+		}
 
 	}
 
@@ -1044,17 +2783,65 @@ public final class SubscriptionManager implements PrioRunnable {
 	@SuppressWarnings("serial")
 	public static final class IdentitiesSubscription extends Subscription<Identity> {
 
+		/** Names of the fields which a {@link Filter#mFields} of this type of Subscription may contain. */
+		public static final String[] FILTER_FIELDS
+			= { "Type", "Nickname", "Contexts", "Properties", "Edition", "PublishesTrustList" };
+
 		/**
 		 * @param myClient The {@link Client} which created this Subscription. 
+		 * @param filter Must have been validated with {@link #validateFilter(Filter)}.
+		 */
+		protected IdentitiesSubscription(final Client myClient, final boolean coalesceNotifications,
+		        final boolean outOfOrder, final Filter filter) {
+			super(myClient, coalesceNotifications, outOfOrder, filter, FILTER_FIELDS);
+		}
+		
+		/** Supports {@link Filter#mContext} and {@link #FILTER_FIELDS}. */
+		static void validateFilter(final Filter filter) throws InvalidParameterException {
+			filter.validate("Identities", true, false, false, FILTER_FIELDS);
+		}
+		
+		@Override boolean matchesFilter(final Identity identity) {
+			final String context = getFilterContext();
+			return context == null || identity.hasContext(context);
+		}
+		
+		@Override int getChangedFields(final Identity oldIdentity, final Identity newIdentity) {
+			int changed = 0;
+			if((oldIdentity instanceof OwnIdentity) != (newIdentity instanceof OwnIdentity))
+				changed |= 1 << 0;
+			final String oldNickname = oldIdentity.getNickname();
+			if(oldNickname == null ? newIdentity.getNickname() != null
+			                       : !oldNickname.equals(newIdentity.getNickname()))
+				changed |= 1 << 1;
+			if(!oldIdentity.getContexts().equals(newIdentity.getContexts()))
+				changed |= 1 << 2;
+			if(!oldIdentity.getProperties().equals(newIdentity.getProperties()))
+				changed |= 1 << 3;
+			if(oldIdentity.getEdition() != newIdentity.getEdition())
+				changed |= 1 << 4;
+			if(oldIdentity.doesPublishTrustList() != newIdentity.doesPublishTrustList())
+				changed |= 1 << 5;
+			return changed;
+		}
+		
+		/**
+		 * False: {@link Trust}s and {@link Score}s reference Identities, so the creation of an Identity must be
+		 * deployed before them. 
 		 */
-		protected IdentitiesSubscription(final Client myClient) {
-			super(myClient);
+		@Override boolean mayCoalesceCreation() {
+			return false;
 		}
 
 
 		/** {@inheritDoc} */
-        @Override List<Identity> getSynchronization() {
-            return mWebOfTrust.getAllIdentities();
+		@Override Class<Identity> getEventSourceClass() {
+			return Identity.class;
+		}
+
+		/** {@inheritDoc} */
+        @Override List<Identity> getSynchronization(final String afterID) {
+            return ((WebOfTrust)mWebOfTrust).getIdentitiesAfterID(afterID);
         }
 
         // TODO: Code quality: This function is almost the same in TrustsSubscription and
@@ -1088,17 +2875,29 @@ public final class SubscriptionManager implements PrioRunnable {
 		}
 
 		/**
-		 * Stores a {@link IdentityChangedNotification} to the {@link Notification} queue of this {@link Client}.
+		 * Constructs a {@link IdentityChangedNotification} for the {@link Notification} queue of this {@link Client}.
 		 * 
-		 * @param oldIdentity The version of the {@link Identity} before the change. Null if it was newly created.
-		 * @param newIdentity The version of the {@link Identity} after the change. Null if it was deleted.
+		 * @param oldIdentity The payload of the {@link Identity} before the change. Null if it was newly created.
+		 * @param newIdentity The payload of the {@link Identity} after the change. Null if it was deleted.
 		 */
-		@Override void storeNotificationWithoutCommit(
-		        final Identity oldIdentity, final Identity newIdentity) {
+		@Override ObjectChangedNotification constructNotification(
+		        final NotificationPayload oldIdentity, final NotificationPayload newIdentity) {
 		    
-			final IdentityChangedNotification notification = new IdentityChangedNotification(this, oldIdentity, newIdentity);
-			notification.initializeTransient(mWebOfTrust);
-			notification.storeWithoutCommit();
+			return new IdentityChangedNotification(this, oldIdentity, newIdentity);
+		}
+		
+		/** {@inheritDoc} */
+		@Override ObjectChangedNotification constructQueuedNotification(final NotificationFileQueue.Entry entry,
+		        final NotificationPayload oldIdentity, final NotificationPayload newIdentity) {
+		    
+			return new IdentityChangedNotification(this, entry, oldIdentity, newIdentity);
+		}
+		
+		/** {@inheritDoc} */
+		@Override ObjectChangedNotification constructSynchronizationNotification(
+		        final SynchronizationStreamNotification stream, final Identity identity) {
+		    
+			return new IdentityChangedNotification(stream, identity);
 		}
 
 	}
@@ -1112,16 +2911,53 @@ public final class SubscriptionManager implements PrioRunnable {
 	@SuppressWarnings("serial")
 	public static final class TrustsSubscription extends Subscription<Trust> {
 
+		/** Names of the fields which a {@link Filter#mFields} of this type of Subscription may contain. */
+		public static final String[] FILTER_FIELDS = { "Value", "Comment", "TrusterEdition" };
+
 		/**
 		 * @param myClient The {@link Client} which created this Subscription. 
+		 * @param filter Must have been validated with {@link #validateFilter(Filter)}.
 		 */
-		protected TrustsSubscription(final Client myClient) {
-			super(myClient);
+		protected TrustsSubscription(final Client myClient, final boolean coalesceNotifications,
+		        final boolean outOfOrder, final Filter filter) {
+			super(myClient, coalesceNotifications, outOfOrder, filter, FILTER_FIELDS);
+		}
+		
+		/** Supports {@link Filter#mTrusterID} and {@link #FILTER_FIELDS}. */
+		static void validateFilter(final Filter filter) throws InvalidParameterException {
+			filter.validate("Trusts", false, true, false, FILTER_FIELDS);
+		}
+		
+		@Override boolean matchesFilter(final Trust trust) {
+			final String trusterID = getFilterTrusterID();
+			return trusterID == null || trust.getTruster().getID().equals(trusterID);
+		}
+		
+		@Override int getChangedFields(final Trust oldTrust, final Trust newTrust) {
+			int changed = 0;
+			if(oldTrust.getValue() != newTrust.getValue())
+				changed |= 1 << 0;
+			if(!oldTrust.getComment().equals(newTrust.getComment()))
+				changed |= 1 << 1;
+			if(oldTrust.getTrusterEdition() != newTrust.getTrusterEdition())
+				changed |= 1 << 2;
+			return changed;
+		}
+
+		/** {@inheritDoc} */
+		@Override Class<Trust> getEventSourceClass() {
+			return Trust.class;
 		}
 
         /** {@inheritDoc} */
-        @Override List<Trust> getSynchronization() {
-            return mWebOfTrust.getAllTrusts();
+        @Override List<Trust> getSynchronization(final String afterID) {
+            final WebOfTrust wot = (WebOfTrust)mWebOfTrust;
+            final String trusterID = getFilterTrusterID();
+            if(trusterID == null)
+                return wot.getTrustsAfterID(null, afterID);
+            
+            final Identity truster = wot.getIdentityByIDOrNull(trusterID);
+            return truster != null ? wot.getTrustsAfterID(truster, afterID) : new ArrayList<Trust>(0);
         }
 
 		/** {@inheritDoc} */
@@ -1152,15 +2988,27 @@ public final class SubscriptionManager implements PrioRunnable {
 		}
 
 		/**
-		 * Stores a {@link TrustChangedNotification} to the {@link Notification} queue of this {@link Client}.
+		 * Constructs a {@link TrustChangedNotification} for the {@link Notification} queue of this {@link Client}.
 		 * 
-		 * @param oldTrust The version of the {@link Trust} before the change. Null if it was newly created.
-		 * @param newTrust The version of the {@link Trust} after the change. Null if it was deleted.
+		 * @param oldTrust The payload of the {@link Trust} before the change. Null if it was newly created.
+		 * @param newTrust The payload of the {@link Trust} after the change. Null if it was deleted.
 		 */
-		@Override void storeNotificationWithoutCommit(final Trust oldTrust, final Trust newTrust) {
-			final TrustChangedNotification notification = new TrustChangedNotification(this, oldTrust, newTrust);
-			notification.initializeTransient(mWebOfTrust);
-			notification.storeWithoutCommit();
+		@Override ObjectChangedNotification constructNotification(
+		        final NotificationPayload oldTrust, final NotificationPayload newTrust) {
+			return new TrustChangedNotification(this, oldTrust, newTrust);
+		}
+		
+		/** {@inheritDoc} */
+		@Override ObjectChangedNotification constructQueuedNotification(final NotificationFileQueue.Entry entry,
+		        final NotificationPayload oldTrust, final NotificationPayload newTrust) {
+			return new TrustChangedNotification(this, entry, oldTrust, newTrust);
+		}
+		
+		/** {@inheritDoc} */
+		@Override ObjectChangedNotification constructSynchronizationNotification(
+		        final SynchronizationStreamNotification stream, final Trust trust) {
+		    
+			return new TrustChangedNotification(stream, trust);
 		}
 
 	}
@@ -1174,16 +3022,57 @@ public final class SubscriptionManager implements PrioRunnable {
 	@SuppressWarnings("serial")
 	public static final class ScoresSubscription extends Subscription<Score> {
 
+		/** Names of the fields which a {@link Filter#mFields} of this type of Subscription may contain. */
+		public static final String[] FILTER_FIELDS = { "Value", "Rank", "Capacity" };
+
 		/**
 		 * @param myClient The {@link Client} which created this Subscription.
+		 * @param filter Must have been validated with {@link #validateFilter(Filter)}.
 		 */
-		protected ScoresSubscription(final Client myClient) {
-			super(myClient);
+		protected ScoresSubscription(final Client myClient, final boolean coalesceNotifications,
+		        final boolean outOfOrder, final Filter filter) {
+			super(myClient, coalesceNotifications, outOfOrder, filter, FILTER_FIELDS);
+		}
+		
+		/** Supports {@link Filter#mTrusterID}, {@link Filter#mMinimumScore} and {@link #FILTER_FIELDS}. */
+		static void validateFilter(final Filter filter) throws InvalidParameterException {
+			filter.validate("Scores", false, true, true, FILTER_FIELDS);
+		}
+		
+		@Override boolean matchesFilter(final Score score) {
+			final String trusterID = getFilterTrusterID();
+			if(trusterID != null && !score.getTruster().getID().equals(trusterID))
+				return false;
+			
+			final Integer minimumScore = getFilterMinimumScore();
+			return minimumScore == null || score.getValue() >= minimumScore;
+		}
+		
+		@Override int getChangedFields(final Score oldScore, final Score newScore) {
+			int changed = 0;
+			if(oldScore.getValue() != newScore.getValue())
+				changed |= 1 << 0;
+			if(oldScore.getRank() != newScore.getRank())
+				changed |= 1 << 1;
+			if(oldScore.getCapacity() != newScore.getCapacity())
+				changed |= 1 << 2;
+			return changed;
+		}
+
+		/** {@inheritDoc} */
+		@Override Class<Score> getEventSourceClass() {
+			return Score.class;
 		}
 
         /** {@inheritDoc} */
-        @Override List<Score> getSynchronization() {
-            return mWebOfTrust.getAllScores();
+        @Override List<Score> getSynchronization(final String afterID) {
+            final WebOfTrust wot = (WebOfTrust)mWebOfTrust;
+            final String trusterID = getFilterTrusterID();
+            if(trusterID == null)
+                return wot.getScoresAfterID(null, afterID);
+            
+            final OwnIdentity truster = wot.getOwnIdentityByIDOrNull(trusterID);
+            return truster != null ? wot.getScoresAfterID(truster, afterID) : new ArrayList<Score>(0);
         }
 
 		/** {@inheritDoc} */
@@ -1214,15 +3103,27 @@ public final class SubscriptionManager implements PrioRunnable {
 		}
 
 		/**
-		 * Stores a {@link ScoreChangedNotification} to the {@link Notification} queue of this {@link Client}.
+		 * Constructs a {@link ScoreChangedNotification} for the {@link Notification} queue of this {@link Client}.
 		 * 
-		 * @param oldScore The version of the {@link Score} before the change. Null if it was newly created.
-		 * @param newScore The version of the {@link Score} after the change. Null if it was deleted.
+		 * @param oldScore The payload of the {@link Score} before the change. Null if it was newly created.
+		 * @param newScore The payload of the {@link Score} after the change. Null if it was deleted.
 		 */
-		@Override void storeNotificationWithoutCommit(final Score oldScore, final Score newScore) {
-			final ScoreChangedNotification notification = new ScoreChangedNotification(this, oldScore, newScore);
-			notification.initializeTransient(mWebOfTrust);
-			notification.storeWithoutCommit();
+		@Override ObjectChangedNotification constructNotification(
+		        final NotificationPayload oldScore, final NotificationPayload newScore) {
+			return new ScoreChangedNotification(this, oldScore, newScore);
+		}
+		
+		/** {@inheritDoc} */
+		@Override ObjectChangedNotification constructQueuedNotification(final NotificationFileQueue.Entry entry,
+		        final NotificationPayload oldScore, final NotificationPayload newScore) {
+			return new ScoreChangedNotification(this, entry, oldScore, newScore);
+		}
+		
+		/** {@inheritDoc} */
+		@Override ObjectChangedNotification constructSynchronizationNotification(
+		        final SynchronizationStreamNotification stream, final Score score) {
+		    
+			return new ScoreChangedNotification(stream, score);
 		}
 
 	}
@@ -1238,11 +3139,75 @@ public final class SubscriptionManager implements PrioRunnable {
 	public static final long PROCESS_NOTIFICATIONS_DELAY = 60 * 1000;
 	
 	/**
-	 * If {@link Client#sendNotifications(SubscriptionManager)} fails, the failure counter of the subscription is incremented.
+	 * If {@link Client#sendNotifications(SubscriptionManager, Subscription)} fails, the failure counter of the subscription is incremented.
 	 * If the counter reaches this value, the client is disconnected.
 	 */
 	public static final byte DISCONNECT_CLIENT_AFTER_FAILURE_COUNT = 5;
 	
+	/**
+	 * Maximal amount of {@link Client}s whose {@link Notification} queues are deployed concurrently, each by its own
+	 * {@link ClientDelivery} thread. Bounds the amount of threads which a large number of clients can occupy.
+	 */
+	public static final int MAX_PARALLEL_DELIVERIES = 4;
+	
+	/**
+	 * Amount of {@link Notification}s which {@link Client#sendNotifications(SubscriptionManager, Subscription)} loads from the database
+	 * at once while holding the lock of the SubscriptionManager.
+	 */
+	static final int NOTIFICATION_BATCH_SIZE = 64;
+	
+	/**
+	 * Amount of objects which {@link Subscription#loadSynchronizationPage(SynchronizationStreamNotification,
+	 * SynchronizationPage)} loads from the database at once while holding the lock of the {@link WebOfTrust}.
+	 */
+	static final int SYNCHRONIZATION_PAGE_SIZE = IS_UNIT_TEST ? 16 : 1024;
+	
+	/**
+	 * A page of the {@link ObjectChangedNotification}s which a {@link SynchronizationStreamNotification} deploys, as
+	 * returned by {@link Subscription#loadSynchronizationPage(SynchronizationStreamNotification,
+	 * SynchronizationPage)}.
+	 */
+	static final class SynchronizationPage {
+		/** Not stored in the database, see {@link Notification#Notification(SynchronizationStreamNotification)}. */
+		final List<Notification> mNotifications;
+		
+		/**
+		 * The {@link Persistent#getID()} of the last object which this page covers, which may have been filtered out
+		 * of {@link #mNotifications}. Null if this is the last page.
+		 */
+		final String mEndID;
+		
+		/**
+		 * The result of {@link Subscription#getSynchronization(String)} for the first page, in which the following pages
+		 * continue at {@link #mQueryEndIndex}.
+		 */
+		final List<? extends EventSource> mQuery;
+		
+		/** The index of the first object in {@link #mQuery} which this page does not cover. */
+		final int mQueryEndIndex;
+		
+		SynchronizationPage(List<Notification> notifications, String endID, List<? extends EventSource> query,
+				int queryEndIndex) {
+			mNotifications = notifications;
+			mEndID = endID;
+			mQuery = query;
+			mQueryEndIndex = queryEndIndex;
+		}
+	}
+	
+	/**
+	 * Maximal amount of {@link Notification}s which a {@link Client} can negotiate to receive in a single FCP message,
+	 * see {@link Client#getFCPBatchSize()}.
+	 */
+	public static final int MAX_FCP_BATCH_SIZE = 256;
+	
+	/**
+	 * Maximal total {@link Notification#getSerializedSize()} of the Notifications which are sent in a single FCP message
+	 * if the {@link Client} negotiated a {@link Client#getFCPBatchSize()} larger than 1. A single Notification is sent
+	 * even if it is larger.
+	 */
+	public static final int MAX_FCP_BATCH_BYTES = 512 * 1024;
+	
 	
 	/**
 	 * The {@link WebOfTrust} to which this SubscriptionManager belongs.
@@ -1277,6 +3242,77 @@ public final class SubscriptionManager implements PrioRunnable {
 	 */
     private volatile DelayedBackgroundJob mJob = MockDelayedBackgroundJob.DEFAULT;
 
+	/**
+	 * Executes the {@link ClientDelivery}s which {@link #dispatchDeliveries()} starts.
+	 * The executor of the node, or a {@link PooledExecutor} in unit tests.
+	 */
+	private final Executor mDeliveryExecutor;
+
+	/**
+	 * The running {@link ClientDelivery} of each delivery queue, key = {@link Subscription#getDeliveryQueueID()}: The
+	 * queue of each {@link Client}, and of each of its out-of-order Subscriptions.<br>
+	 * There is at most one per queue to ensure that its {@link Notification}s are deployed in order.<br>
+	 * Synchronized on this SubscriptionManager.
+	 */
+	private final HashMap<UUID, ClientDelivery> mDeliveries = new HashMap<UUID, ClientDelivery>();
+
+	/**
+	 * True if {@link #dispatchDeliveries()} could not start a {@link ClientDelivery} for all {@link Client}s because
+	 * {@link #MAX_PARALLEL_DELIVERIES} was reached. The next ClientDelivery which finishes dispatches again then.<br>
+	 * Synchronized on this SubscriptionManager.
+	 */
+	private boolean mDeliveriesThrottled = false;
+
+	/**
+	 * Key = {@link Subscription#getDeliveryQueueID()}, value = {@link CurrentTimeUTC#getInMillis()} before which the
+	 * delivery queue must not be deployed again because deploying it failed, see
+	 * {@link #scheduleDeliveryRetry(UUID)}. Ensures that a client which fails does not reach
+	 * {@link #DISCONNECT_CLIENT_AFTER_FAILURE_COUNT} within a short time if {@link #dispatchDeliveries()} runs early, for
+	 * example due to {@link #mDeliveriesThrottled}.<br>
+	 * Synchronized on this SubscriptionManager.
+	 */
+	private final HashMap<UUID, Long> mDeliveryRetryTimes = new HashMap<UUID, Long>();
+
+	/**
+	 * Key = {@link Client#getClientID()}. Entries are removed when their Client is deleted.<br>
+	 * Synchronized on this SubscriptionManager.
+	 */
+	private final HashMap<UUID, ClientStatistics> mClientStatistics = new HashMap<UUID, ClientStatistics>();
+
+	/**
+	 * Key = {@link Subscription#getDeliveryQueueID()}, value = the highest {@link Notification#getIndex()} which
+	 * {@link #getNextNotifications(Client, Subscription, int)} has loaded for deployment from the queue.<br>
+	 * Notifications up to this index must not be coalesced anymore, see {@link #getCoalescableNotification(Subscription,
+	 * String)}. Not persisted since all Clients are deleted at {@link #start()}.<br>
+	 * Entries are removed when their Client or out-of-order Subscription is deleted. Synchronized on this
+	 * SubscriptionManager.
+	 */
+	private final HashMap<UUID, Long> mLoadedNotificationIndexes = new HashMap<UUID, Long>();
+	
+	/**
+	 * The recent changes which resumed Subscriptions receive, see {@link ResumePosition}.<br>
+	 * Registered at {@link Persistent#addTransactionListener} from {@link #start()} to {@link #stop()}.
+	 */
+	private final NotificationRetentionLog mRetentionLog = new NotificationRetentionLog();
+	
+	/**
+	 * Queues the {@link ObjectChangedNotification}s instead of the database if
+	 * {@link Configuration#NOTIFICATION_QUEUE_TYPE} is {@link NotificationQueueType#File}, else null.<br>
+	 * Created by {@link #start()}, and registered at {@link Persistent#addTransactionListener} from there to
+	 * {@link #stop()}.
+	 */
+	private NotificationFileQueue mFileQueue = null;
+	
+	/**
+	 * The {@link SubscriptionListener}s of the {@link Client}s of {@link Client.Type#Callback}, keyed by
+	 * {@link Client#getClientID()}.<br>
+	 * Concurrent because it is read by the delivery threads without synchronizing on this SubscriptionManager.
+	 * 
+	 * @see #registerListener(SubscriptionListener)
+	 */
+	private final ConcurrentHashMap<UUID, SubscriptionListener> mListeners
+		= new ConcurrentHashMap<UUID, SubscriptionListener>();
+
 
 	/** Automatically set to true by {@link Logger} if the log level is set to {@link LogLevel#DEBUG} for this class.
 	 * Used as performance optimization to prevent construction of the log strings if it is not necessary. */
@@ -1299,6 +3335,11 @@ public final class SubscriptionManager implements PrioRunnable {
 	public SubscriptionManager(WebOfTrust myWoT) {
 		mWoT = myWoT;
 		mDB = mWoT.getDatabase();
+		
+		final PluginRespirator respirator = mWoT.getPluginRespirator();
+		mDeliveryExecutor = (respirator != null /* Can be null in unit tests */)
+		                  ? respirator.getNode().executor
+		                  : new PooledExecutor();
 	}
 
 	
@@ -1306,7 +3347,7 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * Thrown when a single {@link Client} tries to file a {@link Subscription} of the same class of
 	 * {@link EventSource}.
 	 * 
-	 * TODO: Performance: Do not generate a stack trace, as this is a planned Exception.
+	 * Does not generate a stack trace, as this is a planned Exception.
 	 * 
 	 * @see #throwIfSimilarSubscriptionExists
 	 */
@@ -1319,6 +3360,24 @@ public final class SubscriptionManager implements PrioRunnable {
 		    
 			this.existingSubscription = existingSubscription;
 		}
+		
+		@Override public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+	
+	/**
+	 * Thrown by {@link SubscriptionListener#handleEvents(List)} to indicate that processing the events failed.
+	 */
+	@SuppressWarnings("serial")
+	public static final class ListenerFailedException extends Exception {
+		/** The amount of events which were processed before the failure, they will not be passed again. */
+		public final int processedAmount;
+		
+		public ListenerFailedException(int processedAmount, Throwable cause) {
+			super(cause);
+			this.processedAmount = processedAmount;
+		}
 	}
 	
 	/**
@@ -1383,7 +3442,10 @@ public final class SubscriptionManager implements PrioRunnable {
 	}
 	
 	/**
-	 * Calls {@link Subscription#synchronizeSubscriberByFCP()} on the Subscription, stores it and commits the transaction.
+	 * Calls {@link Subscription#storeSynchronizationWithoutCommit()} on the Subscription and stores it.<br>
+	 * If the client requested to resume from a {@link ResumePosition} and the {@link NotificationRetentionLog} still
+	 * contains all changes after it, they are passed to
+	 * {@link Subscription#storeRetainedNotificationsWithoutCommit(List)} instead.
 	 * 
 	 * Shall be used as back-end for all front-end functions for creating subscriptions.
 	 * 
@@ -1404,29 +3466,41 @@ public final class SubscriptionManager implements PrioRunnable {
      *             transfers possibly the whole WOT database to the client and therefore can take
      *             a very long time. Please honor it by terminating the thread so WOT can shutdown
      *             quickly.<br>
-     *             TODO: Performance: Throwing InterruptedException is not implemented yet.
-     *             It should be thrown by {@link Subscription#storeSynchronizationWithoutCommit()}
-     *             as that is the callee of this function which can take very long.<br>
-     *             It would be trivial to implement it to check {@link Thread#interrupted()} in
-     *             its main loop and throw if it returns true. What's difficult is determining in
-     *             {@link SubscriptionManager#stop()} which *are* the Threads which need to be
-     *             interrupted - we do not store them anywhere, they are created by fred when
-     *             calling the FCP interface's
-     *             {@link FredPluginFCPMessageHandler.ServerSideFCPMessageHandler}.
-	 */
-	private void storeNewSubscriptionWithoutCommit(
-	        final Subscription<? extends EventSource> subscription)
-	            throws InterruptedException, SubscriptionExistsAlreadyException {
+     *             Not thrown anymore: {@link Subscription#storeSynchronizationWithoutCommit()}
+     *             only stores placeholders, the data is transferred by
+     *             {@link Client#sendNotifications(SubscriptionManager, Subscription)}, which does honor
+     *             {@link Thread#interrupt()}.
+	 */
+	private SubscribeResult storeNewSubscriptionWithoutCommit(
+	        final Subscription<? extends EventSource> subscription, final int fcpBatchSize,
+	        final ResumePosition resumeFrom) throws InterruptedException, SubscriptionExistsAlreadyException {
 	    
 		subscription.initializeTransient(mWoT);
 
 		throwIfSimilarSubscriptionExists(subscription);
 		
-		// Needs the lock on mWoT which the JavaDoc requests
-		subscription.storeSynchronizationWithoutCommit();
+		// Applies to all Subscriptions of the Client: They share its Notification queue.
+		subscription.getClient().setFCPBatchSizeWithoutCommit(fcpBatchSize);
+		
+		final boolean resumable = !subscription.getCoalesceNotifications();
+		final List<NotificationRetentionLog.Entry> missed = resumable && resumeFrom != null
+			? mRetentionLog.getEntriesAfter(subscription.getClass(), resumeFrom) : null;
+		
+		final ResumePosition position;
+		if(missed != null) {
+			subscription.storeRetainedNotificationsWithoutCommit(missed);
+			position = resumeFrom;
+		} else {
+			// Needs the lock on mWoT which the JavaDoc requests
+			subscription.storeSynchronizationWithoutCommit();
+			position = resumable ? mRetentionLog.getCurrentPosition(subscription.getClass()) : null;
+		}
 		
 		subscription.storeWithoutCommit();
-		Logger.normal(this, "Subscribed: " + subscription);
+		Logger.normal(this, "Subscribed: " + subscription + (missed != null
+			? "; resumed with " + missed.size() + " missed changes" : ""));
+		
+		return new SubscribeResult(subscription.getID(), missed != null, position);
 	}
 	
 	/**
@@ -1447,7 +3521,15 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * TODO: Code quality: Rename to subscribeToIdentitiesByFCP() or similar.
 	 * 
 	 * @param fcpID The identifier of the FCP connection of the {@link Client}. Must be unique among all FCP connections!
-	 * @return The return value of {@link Subscription#getID()} of the created subscription.<br>
+	 *     Or the return value of {@link #registerListener(SubscriptionListener)} for a {@link Client.Type#Callback}.
+	 * @param coalesce See {@link Subscription#getCoalesceNotifications()}.
+	 * @param outOfOrder See {@link Subscription#isOutOfOrder()}.
+	 * @param filter See {@link Filter}. Use {@link Filter#NONE} to receive all objects.
+	 * @param fcpBatchSize See {@link Client#getFCPBatchSize()}. Must be between 1 and {@link #MAX_FCP_BATCH_SIZE}.
+	 *     Replaces the value of previous Subscriptions of the Client.
+	 * @param resumeFrom Null, or the {@link ResumePosition} of a previous Subscription of the client from which it
+	 *     wants to resume.
+	 * @return The {@link Subscription#getID()} of the created subscription, and whether it was resumed.<br>
 	 *         TODO: Return the Subscription object after this is fixed:
 	 *         https://bugs.freenetproject.org/view.php?id=6247
 	 * @throws InterruptedException
@@ -1457,20 +3539,26 @@ public final class SubscriptionManager implements PrioRunnable {
 	 *             possibly creates a full copy of the whole WOT database and therefore can take a
 	 *             very long time. Please honor it by terminating the thread so WOT can shutdown
 	 *             quickly. 
+	 * @throws InvalidParameterException
+	 *             If the filter uses a predicate which this type of Subscription does not support.
 	 * @see IdentityChangedNotification The type of {@link Notification} which is sent when an event happens.
 	 */
-    public String subscribeToIdentities(UUID fcpID)
-            throws InterruptedException, SubscriptionExistsAlreadyException {
+    public SubscribeResult subscribeToIdentities(UUID fcpID, boolean coalesce, boolean outOfOrder, Filter filter,
+            int fcpBatchSize, ResumePosition resumeFrom)
+            throws InterruptedException, SubscriptionExistsAlreadyException, InvalidParameterException {
 
+        IdentitiesSubscription.validateFilter(filter);
+        
 		synchronized(mWoT) {
 		synchronized(this) {
 		synchronized(Persistent.transactionLock(mDB)) {
 		    try {
     			final IdentitiesSubscription subscription
-    			    = new IdentitiesSubscription(getOrCreateClient(fcpID));
-    			storeNewSubscriptionWithoutCommit(subscription);
+    			    = new IdentitiesSubscription(getOrCreateClient(fcpID), coalesce, outOfOrder, filter);
+    			final SubscribeResult result
+    			    = storeNewSubscriptionWithoutCommit(subscription, fcpBatchSize, resumeFrom);
     			subscription.checkedCommit(this);
-    			return subscription.getID();
+    			return result;
 		    } catch(RuntimeException e) {
 		        Persistent.checkedRollbackAndThrow(mDB, this, e);
 		        throw e; // Satisfy the compiler: Without, it would complain about missing return.
@@ -1491,7 +3579,14 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * The {@link Client} is notified when a {@link Trust} changes, is created or removed.
 	 * 
 	 * @param fcpID The identifier of the FCP connection of the {@link Client}. Must be unique among all FCP connections!
-     * @return The return value of {@link Subscription#getID()} of the created subscription.<br>
+	 *     Or the return value of {@link #registerListener(SubscriptionListener)} for a {@link Client.Type#Callback}.
+	 * @param coalesce See {@link Subscription#getCoalesceNotifications()}.
+	 * @param outOfOrder See {@link Subscription#isOutOfOrder()}.
+	 * @param filter See {@link Filter}. Use {@link Filter#NONE} to receive all objects.
+	 * @param fcpBatchSize See {@link Client#getFCPBatchSize()}. Must be between 1 and {@link #MAX_FCP_BATCH_SIZE}.
+	 *     Replaces the value of previous Subscriptions of the Client.
+     * @param resumeFrom See {@link #subscribeToIdentities(UUID, boolean, boolean, Filter, int, ResumePosition)}.
+     * @return See {@link #subscribeToIdentities(UUID, boolean, boolean, Filter, int, ResumePosition)}.<br>
      *         TODO: Return the Subscription object after this is fixed:
      *         https://bugs.freenetproject.org/view.php?id=6247
      * @throws InterruptedException
@@ -1501,20 +3596,26 @@ public final class SubscriptionManager implements PrioRunnable {
      *             possibly creates a full copy of the whole WOT database and therefore can take a
      *             very long time. Please honor it by terminating the thread so WOT can shutdown
      *             quickly.
+     * @throws InvalidParameterException
+     *             If the filter uses a predicate which this type of Subscription does not support.
 	 * @see TrustChangedNotification The type of {@link Notification} which is sent when an event happens.
 	 */
-	public String subscribeToTrusts(UUID fcpID)
-	    throws InterruptedException, SubscriptionExistsAlreadyException {
+	public SubscribeResult subscribeToTrusts(UUID fcpID, boolean coalesce, boolean outOfOrder, Filter filter,
+	        int fcpBatchSize, ResumePosition resumeFrom)
+	    throws InterruptedException, SubscriptionExistsAlreadyException, InvalidParameterException {
+	    
+	    TrustsSubscription.validateFilter(filter);
 	    
 		synchronized(mWoT) {
 		synchronized(this) {
 		synchronized(Persistent.transactionLock(mDB)) {
 	        try {
     			final TrustsSubscription subscription
-    			    = new TrustsSubscription(getOrCreateClient(fcpID));
-    			storeNewSubscriptionWithoutCommit(subscription);
+    			    = new TrustsSubscription(getOrCreateClient(fcpID), coalesce, outOfOrder, filter);
+    			final SubscribeResult result
+    			    = storeNewSubscriptionWithoutCommit(subscription, fcpBatchSize, resumeFrom);
     			subscription.checkedCommit(this);
-    			return subscription.getID();
+    			return result;
 	        } catch(RuntimeException e) {
                 Persistent.checkedRollbackAndThrow(mDB, this, e);
                 throw e; // Satisfy the compiler: Without, it would complain about missing return.
@@ -1535,7 +3636,14 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * The {@link Client} is notified when a {@link Score} changes, is created or removed.
 	 * 
 	 * @param fcpID The identifier of the FCP connection of the {@link Client}. Must be unique among all FCP connections!
-     * @return The return value of {@link Subscription#getID()} of the created subscription.<br>
+	 *     Or the return value of {@link #registerListener(SubscriptionListener)} for a {@link Client.Type#Callback}.
+	 * @param coalesce See {@link Subscription#getCoalesceNotifications()}.
+	 * @param outOfOrder See {@link Subscription#isOutOfOrder()}.
+	 * @param filter See {@link Filter}. Use {@link Filter#NONE} to receive all objects.
+	 * @param fcpBatchSize See {@link Client#getFCPBatchSize()}. Must be between 1 and {@link #MAX_FCP_BATCH_SIZE}.
+	 *     Replaces the value of previous Subscriptions of the Client.
+     * @param resumeFrom See {@link #subscribeToIdentities(UUID, boolean, boolean, Filter, int, ResumePosition)}.
+     * @return See {@link #subscribeToIdentities(UUID, boolean, boolean, Filter, int, ResumePosition)}.<br>
      *         TODO: Return the Subscription object after this is fixed:
      *         https://bugs.freenetproject.org/view.php?id=6247
      * @throws InterruptedException
@@ -1545,20 +3653,26 @@ public final class SubscriptionManager implements PrioRunnable {
      *             possibly creates a full copy of the whole WOT database and therefore can take a
      *             very long time. Please honor it by terminating the thread so WOT can shutdown
      *             quickly.
+     * @throws InvalidParameterException
+     *             If the filter uses a predicate which this type of Subscription does not support.
 	 * @see ScoreChangedNotification The type of {@link Notification} which is sent when an event happens.
 	 */
-	public String subscribeToScores(UUID fcpID)
-	        throws InterruptedException, SubscriptionExistsAlreadyException {
+	public SubscribeResult subscribeToScores(UUID fcpID, boolean coalesce, boolean outOfOrder, Filter filter,
+	        int fcpBatchSize, ResumePosition resumeFrom)
+	        throws InterruptedException, SubscriptionExistsAlreadyException, InvalidParameterException {
+	    
+	    ScoresSubscription.validateFilter(filter);
 	    
 		synchronized(mWoT) {
 		synchronized(this) {
 	    synchronized(Persistent.transactionLock(mDB)) {
 	        try {
 	            final ScoresSubscription subscription
-	                = new ScoresSubscription(getOrCreateClient(fcpID));
-	            storeNewSubscriptionWithoutCommit(subscription);
+	                = new ScoresSubscription(getOrCreateClient(fcpID), coalesce, outOfOrder, filter);
+	            final SubscribeResult result
+	                = storeNewSubscriptionWithoutCommit(subscription, fcpBatchSize, resumeFrom);
 	            subscription.checkedCommit(this);
-	            return subscription.getID();
+	            return result;
 	        } catch(RuntimeException e) {
 	            Persistent.checkedRollbackAndThrow(mDB, this, e);
 	            throw e; // Satisfy the compiler: Without, it would complain about missing return.
@@ -1595,6 +3709,7 @@ public final class SubscriptionManager implements PrioRunnable {
 				final Client client = subscription.getClient();
 				if(getSubscriptions(client).size() == 0) {
 					Logger.normal(this, "Last subscription of client removed, deleting it: " + client);
+					forgetClient(client.getClientID());
 					client.deleteWithoutCommit();
 				}
 				
@@ -1609,7 +3724,54 @@ public final class SubscriptionManager implements PrioRunnable {
 	}
 	
 	/**
-	 * Typically used by {@link #run()}.
+	 * Registers a {@link SubscriptionListener} for a plugin which runs in the same JVM.<br>
+	 * The returned ID is to be passed as the client ID to the subscribeTo*() functions such as
+	 * {@link #subscribeToIdentities(UUID, boolean, boolean, Filter, int, ResumePosition)}: It creates a
+	 * {@link Client} of {@link Client.Type#Callback} instead of FCP. Its batch size is ignored, the listener receives
+	 * the {@link Notification}s in batches of {@link #NOTIFICATION_BATCH_SIZE}.
+	 * 
+	 * @return The ID of the listener, to be passed to {@link #unregisterListener(UUID)}.
+	 */
+	public UUID registerListener(final SubscriptionListener listener) {
+		IfNull.thenThrow(listener, "listener");
+		
+		final UUID id = UUID.randomUUID();
+		mListeners.put(id, listener);
+		return id;
+	}
+	
+	/**
+	 * Unregisters a {@link SubscriptionListener} and deletes the {@link Client} which belongs to it along with all
+	 * its {@link Subscription}s and pending {@link Notification}s.<br>
+	 * The listener is not notified, and not called anymore once this function returns. 
+	 * 
+	 * @param id The return value of {@link #registerListener(SubscriptionListener)}.
+	 */
+	public void unregisterListener(final UUID id) {
+		synchronized(this) {
+		// Before deleting the Client so Client.notifyClientAboutDeletion() doesn't call it, and so a concurrent
+		// Client.sendNotifications() fails with IOException instead of calling it.
+		if(mListeners.remove(id) == null)
+			return;
+		
+		synchronized(Persistent.transactionLock(mDB)) {
+			try {
+				final Client client = getClient(id);
+				forgetClient(id);
+				client.deleteWithoutCommit(this);
+				Persistent.checkedCommit(mDB, this);
+				Logger.normal(this, "Unregistered listener and deleted its Client: " + client);
+			} catch(UnknownClientException e) {
+				// It did not subscribe to anything or its last Subscription was unsubscribed already.
+			} catch(RuntimeException e) {
+				Persistent.checkedRollbackAndThrow(mDB, this, e);
+			}
+		}
+		}
+	}
+	
+	/**
+	 * Typically used by {@link #dispatchDeliveries()}.
 	 * 
 	 * @return All existing {@link Client}s.
 	 */
@@ -1620,7 +3782,7 @@ public final class SubscriptionManager implements PrioRunnable {
 	}
 	
 	/**
-	 * @see Client#getFCP_ID()
+	 * @see Client#getClientID()
 	 */
 	private Client getClient(final UUID fcpID) throws UnknownClientException {
 		final Query q = mDB.query();
@@ -1643,7 +3805,7 @@ public final class SubscriptionManager implements PrioRunnable {
 		try {
 			return getClient(fcpID);
 		} catch(UnknownClientException e) {
-			return new Client(fcpID);
+			return mListeners.containsKey(fcpID) ? new Client(fcpID, Client.Type.Callback) : new Client(fcpID);
 		}
 	}
 	
@@ -1668,6 +3830,18 @@ public final class SubscriptionManager implements PrioRunnable {
 		return new Persistent.InitializingObjectSet<Subscription<? extends EventSource>>(mWoT, q);
 	}
 	
+	/**
+	 * @return All subscriptions of the given {@link Client} which have a delivery queue of their own, see
+	 *     {@link Subscription#isOutOfOrder()}.
+	 */
+	private ObjectSet<Subscription<? extends EventSource>> getOutOfOrderSubscriptions(final Client client) {
+		final Query q = mDB.query();
+		q.constrain(Subscription.class);
+		q.descend("mClient").constrain(client).identity();
+		q.descend("mOutOfOrder").constrain(true);
+		return new Persistent.InitializingObjectSet<Subscription<? extends EventSource>>(mWoT, q);
+	}
+	
 	/**
 	 * Get all {@link Subscription}s to a certain {@link EventSource} type.
 	 * 
@@ -1743,7 +3917,8 @@ public final class SubscriptionManager implements PrioRunnable {
 	/**
 	 * Deletes all existing {@link Client} objects.
 	 * 
-	 * As a consequence, all {@link Subscription} and {@link Notification} objects associated with the clients become useless and are also deleted.
+	 * As a consequence, all {@link Subscription}, {@link Notification} and {@link SnapshotImage} objects associated with
+	 * the clients become useless and are also deleted.
 	 * 
 	 * Typically used at {@link #start()} - we lose connection to all clients when restarting so their subscriptions are worthless.
 	 * 
@@ -1758,6 +3933,17 @@ public final class SubscriptionManager implements PrioRunnable {
 					n.deleteWithoutCommit();
 				}
 				
+				for(SnapshotImage image : getAllSnapshotImages()) {
+					image.deleteWithoutCommit();
+				}
+				
+				// Deleting the Notifications has deleted their payloads. Payloads which are left were leaked by a
+				// reference count which was not rolled back along with a transaction.
+				for(NotificationPayload payload : getAllNotificationPayloads()) {
+					Logger.warning(this, "Deleting leaked NotificationPayload: " + payload);
+					payload.deleteWithoutCommit();
+				}
+				
 				for(Subscription<? extends EventSource> s : getAllSubscriptions()) {
 					s.deleteWithoutCommit();
 				}
@@ -1765,6 +3951,10 @@ public final class SubscriptionManager implements PrioRunnable {
 				for(Client client : getAllClients()) {
 					client.deleteWithoutCommit();
 				}
+				if(mFileQueue != null)
+					mFileQueue.removeAllWithoutCommit();
+				mClientStatistics.clear();
+				mLoadedNotificationIndexes.clear();
 				Persistent.checkedCommit(mDB, this);
 			} catch(RuntimeException e) {
 				Persistent.checkedRollbackAndThrow(mDB, this, e);
@@ -1786,42 +3976,339 @@ public final class SubscriptionManager implements PrioRunnable {
 	}
 	
 	/**
-	 * Gets all {@link Notification} objects in the queue of the given {@link Subscription}.
+	 * Gets all {@link Notification} objects in the queue of the given {@link Subscription}.
+	 * 
+	 * Typically used for:
+	 * - Deleting a subscription in {@link Subscription#deleteWithoutCommit(SubscriptionManager)}
+	 * 
+	 * @param subscription The {@link Subscription} of whose queue to return notifications from.
+	 * @return All {@link Notification}s on the queue of the subscription.
+	 */
+	private ObjectSet<? extends Notification> getNotifications(
+	        final Subscription<? extends EventSource> subscription) {
+	    
+		final Query q = mDB.query();
+		q.constrain(Notification.class);
+		q.descend("mSubscription").constrain(subscription).identity();
+		return new Persistent.InitializingObjectSet<Notification>(mWoT, q);
+	}
+	
+	/**
+	 * Typically used by {@link #deleteAllClients()}.
+	 * 
+	 * @return All objects of class {@link SnapshotImage} which are stored in the database.
+	 */
+	private ObjectSet<SnapshotImage> getAllSnapshotImages() {
+		final Query q = mDB.query();
+		q.constrain(SnapshotImage.class);
+		return new Persistent.InitializingObjectSet<SnapshotImage>(mWoT, q);
+	}
+	
+	/**
+	 * Typically used by {@link #deleteAllClients()}.
+	 * 
+	 * @return All {@link NotificationPayload}s which are stored in the database.
+	 */
+	private ObjectSet<NotificationPayload> getAllNotificationPayloads() {
+		final Query q = mDB.query();
+		q.constrain(NotificationPayload.class);
+		return new Persistent.InitializingObjectSet<NotificationPayload>(mWoT, q);
+	}
+	
+	/**
+	 * @return All {@link SnapshotImage}s of the synchronization of the given {@link Subscription}, in no particular
+	 *     order.
+	 */
+	ObjectSet<SnapshotImage> getSnapshotImages(final Subscription<? extends EventSource> subscription) {
+		final Query q = mDB.query();
+		q.constrain(SnapshotImage.class);
+		q.descend("mSubscription").constrain(subscription).identity();
+		return new Persistent.InitializingObjectSet<SnapshotImage>(mWoT, q);
+	}
+	
+	/**
+	 * Stores a {@link SnapshotImage} of the given version of an object for the given {@link Subscription}, unless it
+	 * has one for the object already: The first image is the version at the time of the synchronization.
 	 * 
-	 * Typically used for:
-	 * - Deleting a subscription in {@link Subscription#deleteWithoutCommit(SubscriptionManager)}
+	 * You must synchronize on this SubscriptionManager and the {@link Persistent#transactionLock(ExtObjectContainer)}
+	 * when calling this function.
 	 * 
-	 * @param subscription The {@link Subscription} of whose queue to return notifications from.
-	 * @return All {@link Notification}s on the queue of the subscription.
+	 * @param object The version of the object before its first change since the synchronization. Null if it did not
+	 *     exist.
 	 */
-	private ObjectSet<? extends Notification> getNotifications(
-	        final Subscription<? extends EventSource> subscription) {
+	void storeSnapshotImageWithoutCommit(final Subscription<? extends EventSource> subscription,
+	        final String objectID, final Persistent object) {
 	    
 		final Query q = mDB.query();
-		q.constrain(Notification.class);
+		q.constrain(SnapshotImage.class);
 		q.descend("mSubscription").constrain(subscription).identity();
-		return new Persistent.InitializingObjectSet<Notification>(mWoT, q);
+		q.descend("mObjectID").constrain(objectID);
+		if(q.execute().size() != 0)
+			return;
+		
+		final SnapshotImage image = new SnapshotImage(subscription, objectID, object);
+		image.initializeTransient(mWoT);
+		image.storeWithoutCommit();
 	}
 	
  	/**
- 	 * Gets all {@link Notification} objects in the queue of the given {@link Client}.
+ 	 * Gets all {@link Notification} objects in the database in a delivery queue of the given {@link Client}.
 	 * They are ordered ascending by the time of when the event which triggered them happened.
 	 * 
 	 * Precisely, they are ordered by their {@link Notification#mIndex}.
  	 * 
- 	 * Typically used for deploying the notification queue of a Subscription in {@link Client#sendNotifications(SubscriptionManager)}
+ 	 * Typically used for deploying the notification queue in {@link Client#sendNotifications(SubscriptionManager, Subscription)}
  	 * 
- 	 * @param subscription The {@link Client} of whose queue to return notifications from.
-	 * @return All {@link Notification}s on the queue of the {@link Client}, ordered ascending by time of happening of their inducing event.
+ 	 * @param client The {@link Client} of whose queue to return notifications from.
+ 	 * @param queue Null for the queue of the Client, which contains the Notifications of all its Subscriptions except the
+ 	 *     out-of-order ones. Or an out-of-order {@link Subscription} of it for its own queue, see
+ 	 *     {@link Subscription#getDeliveryQueueID()}.
+	 * @return All {@link Notification}s on the queue, ordered ascending by time of happening of their inducing event.
  	 */
-	private ObjectSet<? extends Notification> getNotifications(final Client client) {
+	private ObjectSet<? extends Notification> getQueuedNotifications(final Client client,
+	        final Subscription<? extends EventSource> queue) {
+	    
 		final Query q = mDB.query();
 		q.constrain(Notification.class);
-		q.descend("mClient").constrain(client).identity();
+		if(queue != null)
+			q.descend("mSubscription").constrain(queue).identity();
+		else {
+			q.descend("mClient").constrain(client).identity();
+			q.descend("mSubscription").descend("mOutOfOrder").constrain(false);
+		}
 		q.descend("mIndex").orderAscending();
 		return new Persistent.InitializingObjectSet<Notification>(mWoT, q);
 	}
 	
+	/**
+	 * Gets the first {@link Notification}s in the given delivery queue, see {@link #getQueuedNotifications(Client,
+	 * Subscription)}.<br>
+	 * They are activated fully so {@link Client#sendNotifications(SubscriptionManager, Subscription)} can deploy them
+	 * without holding any locks.
+	 * 
+	 * You must synchronize on this SubscriptionManager when calling this function.
+	 * 
+	 * @param queue Null for the queue of the Client, or an out-of-order {@link Subscription} of it for its queue.
+	 * @param limit The maximal amount of Notifications to return.
+	 */
+	private List<Notification> getNextNotifications(final Client client,
+	        final Subscription<? extends EventSource> queue, final int limit) {
+	    
+		final UUID queueID = queue != null ? queue.getDeliveryQueueID() : client.getClientID();
+		final ObjectSet<? extends Notification> stored = getQueuedNotifications(client, queue);
+		final List<NotificationFileQueue.Entry> queued = mFileQueue != null
+			? mFileQueue.getEntries(queueID, limit)
+			: Collections.<NotificationFileQueue.Entry>emptyList();
+		
+		// Key = Subscription#getID(), to look up the Subscription of each Entry only once.
+		final HashMap<String, Subscription<? extends EventSource>> subscriptions
+			= new HashMap<String, Subscription<? extends EventSource>>();
+		
+		final ArrayList<Notification> result = new ArrayList<Notification>(limit);
+		Notification nextStored = stored.hasNext() ? stored.next() : null;
+		int nextQueued = 0;
+		
+		// Merge both queues ascending by index.
+		while(result.size() < limit) {
+			final Notification notification;
+			if(nextQueued < queued.size()
+					&& (nextStored == null || queued.get(nextQueued).mIndex < nextStored.getIndex())) {
+				
+				final NotificationFileQueue.Entry entry = queued.get(nextQueued++);
+				Subscription<? extends EventSource> subscription = subscriptions.get(entry.mSubscriptionID);
+				if(subscription == null) {
+					try {
+						subscription = getSubscription(entry.mSubscriptionID);
+					} catch(UnknownSubscriptionException e) {
+						// Its Entries are removed along with it.
+						throw new IllegalStateException("Entry of deleted Subscription: " + entry, e);
+					}
+					subscriptions.put(entry.mSubscriptionID, subscription);
+				}
+				notification = loadQueuedNotification(subscription, entry);
+			} else if(nextStored != null) {
+				notification = nextStored;
+				nextStored = stored.hasNext() ? stored.next() : null;
+			} else
+				break;
+			
+			notification.activateFully();
+			notification.getSubscription().getClient();
+			result.add(notification);
+		}
+		
+		if(!result.isEmpty())
+			mLoadedNotificationIndexes.put(queueID, result.get(result.size() - 1).getIndex());
+		
+		return result;
+	}
+	
+	/**
+	 * Used by {@link Subscription#storeNotificationWithoutCommit(EventSource, EventSource)} if
+	 * {@link Subscription#getCoalesceNotifications()} is true.
+	 * 
+	 * A pending {@link ObjectChangedNotification} may be merged with a new one if:<br>
+	 * - It was not loaded for deployment yet, see {@link #mLoadedNotificationIndexes}: The client might be receiving
+	 *   it already. And if its deployment failed, it must be retried before any later Notification is deployed.<br>
+	 * - The synchronization of the Subscription has been deployed, i.e. no {@link BeginSynchronizationNotification}
+	 *   of it is pending: The objects of a synchronization must be deployed between its markers.<br>
+	 * - It is not about the creation of the object, unless {@link Subscription#mayCoalesceCreation()}.<br><br>
+	 * 
+	 * The merged Notification is stored at the position of the new one in the queue of the {@link Client}. Apart from
+	 * creations, this cannot break the order of the queue: The core of WOT has stored the new one after all
+	 * Notifications which it depends on, and the before-image of the pending one is not referenced by any Notification
+	 * in between.<br><br>
+	 * 
+	 * You must synchronize on this SubscriptionManager when calling this function.
+	 * 
+	 * @param objectID The {@link Persistent#getID()} of the changed object.
+	 * @return The newest pending Notification of the Subscription about the object if it may be merged, or null.
+	 *     The caller must merge it by deleting it.
+	 */
+	private ObjectChangedNotification getCoalescableNotification(
+	        final Subscription<? extends EventSource> subscription, final String objectID) {
+	    
+		final UUID clientID = subscription.getClient().getClientID();
+		final UUID queueID = subscription.getDeliveryQueueID();
+		final ObjectChangedNotification pending;
+		if(mFileQueue != null) {
+			final NotificationFileQueue.Entry entry
+			    = mFileQueue.getNewestEntry(queueID, subscription.getID(), objectID);
+			if(entry == null)
+				return null;
+			
+			pending = loadQueuedNotification(subscription, entry);
+		} else {
+			final Query q = mDB.query();
+			q.constrain(ObjectChangedNotification.class);
+			q.descend("mSubscription").constrain(subscription).identity();
+			q.descend("mObjectID").constrain(objectID);
+			q.descend("mIndex").orderDescending();
+			final ObjectSet<ObjectChangedNotification> result
+			    = new Persistent.InitializingObjectSet<ObjectChangedNotification>(mWoT, q);
+			
+			if(!result.hasNext())
+				return null;
+			
+			pending = result.next();
+		}
+		
+		final Long loadedIndex = mLoadedNotificationIndexes.get(queueID);
+		if(loadedIndex != null && pending.getIndex() <= loadedIndex)
+			return null;
+		
+		if(pending.getOldObject() == null && !subscription.mayCoalesceCreation())
+			return null;
+		
+		final Query markers = mDB.query();
+		markers.constrain(BeginSynchronizationNotification.class);
+		markers.descend("mSubscription").constrain(subscription).identity();
+		if(markers.execute().size() != 0)
+			return null;
+		
+		++getOrCreateClientStatistics(clientID).mCoalescedNotifications;
+		
+		return pending;
+	}
+	
+	/**
+	 * Used by {@link Subscription#storeNotificationWithoutCommit(EventSource, EventSource, ChangePayloads, long)}
+	 * instead of storing an {@link ObjectChangedNotification} in the database if {@link #mFileQueue} is non-null:
+	 * Appends an {@link NotificationFileQueue.Entry} with the serialized objects of the given payloads to it.
+	 * 
+	 * You must synchronize on this SubscriptionManager and the {@link Persistent#transactionLock(ExtObjectContainer)}
+	 * when calling this function.
+	 */
+	private void storeQueuedNotificationWithoutCommit(final Subscription<? extends EventSource> subscription,
+	        final NotificationPayload oldPayload, final NotificationPayload newPayload, final long retentionLogIndex) {
+	    
+		final Client client = subscription.getClient();
+		final NotificationFileQueue.Entry entry = new NotificationFileQueue.Entry(
+			client.takeFreeNotificationIndexWithoutCommit(),
+			CurrentTimeUTC.getInMillis(),
+			subscription.getID(),
+			(newPayload != null ? newPayload : oldPayload).getObjectID(),
+			retentionLogIndex,
+			oldPayload != null ? oldPayload.getSerializedObject() : null,
+			newPayload != null ? newPayload.getSerializedObject() : null);
+		mFileQueue.addWithoutCommit(subscription.getDeliveryQueueID(), entry);
+	}
+	
+	/**
+	 * @return A new {@link ObjectChangedNotification} with the contents of the given Entry of the {@link #mFileQueue}.
+	 *     Not stored in the database, see {@link ObjectChangedNotification#isQueuedInFile()}.
+	 * @throws RuntimeException If reading the file of the {@link Client} fails.
+	 */
+	private ObjectChangedNotification loadQueuedNotification(final Subscription<? extends EventSource> subscription,
+	        final NotificationFileQueue.Entry entry) {
+	    
+		final byte[][] objects;
+		try {
+			objects = mFileQueue.readObjects(subscription.getDeliveryQueueID(), entry);
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot read " + entry, e);
+		}
+		
+		final ObjectChangedNotification notification = subscription.constructQueuedNotification(entry,
+			objects[0] != null ? new NotificationPayload(objects[0], entry.mObjectID) : null,
+			objects[1] != null ? new NotificationPayload(objects[1], entry.mObjectID) : null);
+		notification.initializeTransient(mWoT);
+		return notification;
+	}
+	
+	/**
+	 * @return True if the given {@link Notification} is still in the queue of its {@link Client}, i.e. stored in the
+	 *     database or queued in the {@link #mFileQueue}. False if it was deleted meanwhile, for example along with its
+	 *     {@link Subscription}.
+	 */
+	private boolean isQueued(final Notification notification) {
+		if(notification instanceof ObjectChangedNotification
+				&& ((ObjectChangedNotification)notification).isQueuedInFile()) {
+			
+			return mFileQueue.contains(notification.getSubscription().getDeliveryQueueID(), notification.getIndex());
+		}
+		
+		return mDB.isStored(notification);
+	}
+	
+	/**
+	 * Deletes the given {@link Notification} from the queue of its {@link Client}, i.e. from the database or the
+	 * {@link #mFileQueue}. Does not commit the transaction.
+	 * 
+	 * You must synchronize on this SubscriptionManager and the {@link Persistent#transactionLock(ExtObjectContainer)}
+	 * when calling this function.
+	 */
+	private void deleteQueuedNotificationWithoutCommit(final Notification notification) {
+		if(notification instanceof ObjectChangedNotification
+				&& ((ObjectChangedNotification)notification).isQueuedInFile()) {
+			
+			mFileQueue.removeWithoutCommit(notification.getSubscription().getDeliveryQueueID(),
+				notification.getIndex());
+		} else
+			notification.deleteWithoutCommit();
+	}
+	
+	/**
+	 * @return The amount of {@link Notification}s in the given delivery queue, both in the database and in the
+	 *     {@link #mFileQueue}.
+	 * @see #getNextNotifications(Client, Subscription, int)
+	 */
+	private int getQueuedNotificationCount(final Client client, final Subscription<? extends EventSource> queue) {
+		final UUID queueID = queue != null ? queue.getDeliveryQueueID() : client.getClientID();
+		return getQueuedNotifications(client, queue).size() + (mFileQueue != null ? mFileQueue.size(queueID) : 0);
+	}
+	
+	/**
+	 * @return The amount of {@link Notification}s in all delivery queues of the given {@link Client}, i.e. in its
+	 *     own queue and the ones of its out-of-order {@link Subscription}s.
+	 */
+	private int getQueuedNotificationCount(final Client client) {
+		int count = getQueuedNotificationCount(client, null);
+		for(Subscription<? extends EventSource> subscription : getOutOfOrderSubscriptions(client))
+			count += getQueuedNotificationCount(client, subscription);
+		return count;
+	}
+	
 	/**
 	 * Interface for the core of WOT to queue an {@link IdentityChangedNotification} to be deployed to all {@link Client}s subscribed to that type of notification. 
 	 * 
@@ -1830,7 +4317,8 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * 
      * <br><br>This function does not store the given objects as real database entries, it
      * only stores a copy of them serialized into a byte[] by {@link Persistent#serialize()},
-     * encapsulated into a {@link Notification} database object.<br>
+     * encapsulated into a {@link NotificationPayload} database object which the {@link Notification}s of all
+     * {@link Client}s share.<br>
      * Thus, the passed objects will be invisible to regular database queries and you are safe to
      * pass object such as clones which must not be stored in the database for consistency reasons
      * (= not duplicating the objects in the main tables).<br><br>
@@ -1846,8 +4334,11 @@ public final class SubscriptionManager implements PrioRunnable {
 		@SuppressWarnings("unchecked")
 		final ObjectSet<IdentitiesSubscription> subscriptions = (ObjectSet<IdentitiesSubscription>)getSubscriptions(IdentitiesSubscription.class);
 		
+		final ChangePayloads payloads = new ChangePayloads(oldIdentity, newIdentity);
+		final long retentionLogIndex = mRetentionLog.add(IdentitiesSubscription.class, payloads, subscriptions.size() != 0);
+		
 		for(IdentitiesSubscription subscription : subscriptions) {
-			subscription.storeNotificationWithoutCommit(oldIdentity, newIdentity);
+			subscription.storeNotificationWithoutCommit(oldIdentity, newIdentity, payloads, retentionLogIndex);
 		}
 		
 		if(logDEBUG) Logger.debug(this, "storeIdentityChangedNotificationWithoutCommit() finished.");
@@ -1860,7 +4351,8 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * 
      * <br><br>This function does not store the given objects as real database entries, it
      * only stores a copy of them serialized into a byte[] by {@link Persistent#serialize()},
-     * encapsulated into a {@link Notification} database object.<br>
+     * encapsulated into a {@link NotificationPayload} database object which the {@link Notification}s of all
+     * {@link Client}s share.<br>
      * Thus, the passed objects will be invisible to regular database queries and you are safe to
      * pass object such as clones which must not be stored in the database for consistency reasons
      * (= not duplicating the objects in the main tables).<br><br>
@@ -1876,8 +4368,11 @@ public final class SubscriptionManager implements PrioRunnable {
 		@SuppressWarnings("unchecked")
 		final ObjectSet<TrustsSubscription> subscriptions = (ObjectSet<TrustsSubscription>)getSubscriptions(TrustsSubscription.class);
 		
+		final ChangePayloads payloads = new ChangePayloads(oldTrust, newTrust);
+		final long retentionLogIndex = mRetentionLog.add(TrustsSubscription.class, payloads, subscriptions.size() != 0);
+		
 		for(TrustsSubscription subscription : subscriptions) {
-			subscription.storeNotificationWithoutCommit(oldTrust, newTrust);
+			subscription.storeNotificationWithoutCommit(oldTrust, newTrust, payloads, retentionLogIndex);
 		}
 		
 		if(logDEBUG) Logger.debug(this, "storeTrustChangedNotificationWithoutCommit() finished.");
@@ -1890,7 +4385,8 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * 
      * <br><br>This function does not store the given objects as real database entries, it
      * only stores a copy of them serialized into a byte[] by {@link Persistent#serialize()},
-     * encapsulated into a {@link Notification} database object.<br>
+     * encapsulated into a {@link NotificationPayload} database object which the {@link Notification}s of all
+     * {@link Client}s share.<br>
      * Thus, the passed objects will be invisible to regular database queries and you are safe to
      * pass object such as clones which must not be stored in the database for consistency reasons
      * (= not duplicating the objects in the main tables).<br><br>
@@ -1906,62 +4402,293 @@ public final class SubscriptionManager implements PrioRunnable {
 		@SuppressWarnings("unchecked")
 		final ObjectSet<ScoresSubscription> subscriptions = (ObjectSet<ScoresSubscription>)getSubscriptions(ScoresSubscription.class);
 		
+		final ChangePayloads payloads = new ChangePayloads(oldScore, newScore);
+		final long retentionLogIndex = mRetentionLog.add(ScoresSubscription.class, payloads, subscriptions.size() != 0);
+		
 		for(ScoresSubscription subscription : subscriptions) {
-			subscription.storeNotificationWithoutCommit(oldScore, newScore);
+			subscription.storeNotificationWithoutCommit(oldScore, newScore, payloads, retentionLogIndex);
 		}
 		
 		if(logDEBUG) Logger.debug(this, "storeScoreChangedNotificationWithoutCommit() finished.");
 	}
 
 	/**
-	 * Sends out the {@link Notification} queue of each {@link Client}.
+	 * Sends out the {@link Notification} queue of each {@link Client} and returns once all of them were sent.
 	 * 
-	 * Typically called by the DelayedBackgroundJob {@link #mJob} on a separate thread. This is
-	 * triggered by {@link #scheduleNotificationProcessing()} - that scheduling function should be
-	 * called whenever a {@link Notification} is stored to the database. <br>
-	 * {@link Thread#interrupt()} may be called by {@link DelayedBackgroundJob#terminate()} to
-	 * request the thread to exit soon for speeding up shutdown.<br><br>
+	 * The deployment happens on the calling thread, one {@link Client} after another. If a {@link ClientDelivery} which was
+	 * started by {@link #dispatchDeliveries()} is deploying the queue of a Client already, waits for it to finish first.<br>
+	 * During regular operation this is NOT used: The DelayedBackgroundJob {@link #mJob} executes {@link #dispatchDeliveries()}
+	 * instead, which deploys to the Clients in parallel. This function is for unit tests, which need to trigger the deployment
+	 * manually and synchronously, see {@link #start()}, and for deploying to the DebugFCPClient at shutdown of WOT.
+	 * {@link Thread#interrupt()} may be called by {@link #stop()} to request the thread to exit soon.<br><br>
 	 * 
-	 * If deploying the notifications for a {@link Client} fails, this function is scheduled to be run again after some time.
+	 * If deploying the notifications for a {@link Client} fails, {@link #scheduleNotificationProcessing()} retries it after some time.
 	 * If deploying for a certain {@link Client} fails more than {@link #DISCONNECT_CLIENT_AFTER_FAILURE_COUNT} times, the {@link Client} is deleted.
 	 * 
-	 * @see Client#sendNotifications(SubscriptionManager) This function is called on each {@link Client} to deploy the {@link Notification} queue.
+	 * @see Client#sendNotifications(SubscriptionManager, Subscription) This function is called on each {@link Client} to deploy the {@link Notification} queue.
 	 */
 	@Override
 	public void run() {
 		if(logMINOR) Logger.minor(this, "run()...");
 		
-		/* We do NOT allow database queries on the WebOfTrust object in sendNotifications: 
-		 * Notification objects contain serialized clones of all required objects for deploying them, they are self-contained.
-		 * Therefore, we don't have to take the WebOfTrust lock and can execute in parallel to threads which need to lock the WebOfTrust.*/
-		// synchronized(mWoT) {
+		final ArrayList<ClientDelivery> deliveries = new ArrayList<ClientDelivery>();
 		synchronized(this) {
-		    // TODO: Optimization: We should investigate whether we can deploy notifications in
-		    // a thread for each client instead of one thread which iterates over all clients:
-		    // This will prevent a single slow client from causing all others to starve.
 			for(Client client : getAllClients()) {
+				deliveries.add(new ClientDelivery(client, null));
+				for(Subscription<? extends EventSource> subscription : getOutOfOrderSubscriptions(client))
+					deliveries.add(new ClientDelivery(client, subscription));
+			}
+		}
+		
+		for(ClientDelivery delivery : deliveries) {
+			synchronized(this) {
 				try {
-					if(client.sendNotifications(this)) {
-						// Persistent.checkedCommit(mDB, this);	/* sendNotifications() does this already */
-					} else {
-						Logger.warning(this, "sendNotifications tells us to delete the Client, deleting it: " + client);
-						client.deleteWithoutCommit(this);
-						Persistent.checkedCommit(mDB, this);
-					}
+					while(mDeliveries.containsKey(delivery.mQueueID))
+						wait();
 				} catch(InterruptedException e) {
-				    Logger.normal(this, "run(): Got InterruptedException, exiting thread.", e);
-				    // Rollback is already done by sendNotifications().
-				    return;
-				} catch(RuntimeException e) {
-					Persistent.checkedRollback(mDB, this, e);
+					Logger.normal(this, "run(): Got InterruptedException, exiting thread.", e);
+					return;
 				}
+				mDeliveries.put(delivery.mQueueID, delivery);
+			}
+			
+			if(!delivery.deliver()) {
+				Logger.normal(this, "run(): Got InterruptedException, exiting thread.");
+				return;
 			}
 		}
-		//}
 		
 		if(logMINOR) Logger.minor(this, "run() finished.");
 	}
 	
+	/**
+	 * Starts a {@link ClientDelivery} on the {@link #mDeliveryExecutor} for each delivery queue which has queued
+	 * {@link Notification}s and no running ClientDelivery yet, up to {@link #MAX_PARALLEL_DELIVERIES} at once: The queue
+	 * of each {@link Client}, and the ones of its out-of-order {@link Subscription}s.
+	 * Does not wait for them to finish, so a single slow Client cannot delay the deployment to all others.<br><br>
+	 * 
+	 * Executed by the DelayedBackgroundJob {@link #mJob}. This is triggered by {@link #scheduleNotificationProcessing()} -
+	 * that scheduling function should be called whenever a {@link Notification} is stored to the database.
+	 */
+	private synchronized void dispatchDeliveries() {
+		if(logMINOR) Logger.minor(this, "dispatchDeliveries()...");
+		
+		/* We do NOT allow database queries on the WebOfTrust object in sendNotifications, except for loading a single page
+		 * of a SynchronizationStreamNotification:
+		 * Notification objects contain serialized clones of all required objects for deploying them, they are self-contained.
+		 * Therefore, we don't have to take the WebOfTrust lock and can execute in parallel to threads which need to lock the WebOfTrust.*/
+		
+		// Remove the retry times which have passed, the entries of deleted queues would never be removed otherwise.
+		final long now = CurrentTimeUTC.getInMillis();
+		for(Iterator<Long> retryTimes = mDeliveryRetryTimes.values().iterator(); retryTimes.hasNext(); ) {
+			if(retryTimes.next() <= now)
+				retryTimes.remove();
+		}
+		
+		dispatch: for(Client client : getAllClients()) {
+			if(!dispatchDelivery(client, null))
+				break;
+			
+			for(Subscription<? extends EventSource> subscription : getOutOfOrderSubscriptions(client)) {
+				if(!dispatchDelivery(client, subscription))
+					break dispatch;
+			}
+		}
+		
+		if(logMINOR) Logger.minor(this, "dispatchDeliveries() finished, running deliveries: " + mDeliveries.size());
+	}
+	
+	/**
+	 * Used by {@link #dispatchDeliveries()} to start a {@link ClientDelivery} for the given delivery queue if it has
+	 * queued {@link Notification}s and no running ClientDelivery yet.
+	 * 
+	 * @param queue See {@link Client#sendNotifications(SubscriptionManager, Subscription)}.
+	 * @return False if {@link #MAX_PARALLEL_DELIVERIES} was reached.
+	 */
+	private boolean dispatchDelivery(final Client client, final Subscription<? extends EventSource> queue) {
+		final UUID id = queue != null ? queue.getDeliveryQueueID() : client.getClientID();
+		
+		if(mDeliveries.containsKey(id) || getQueuedNotificationCount(client, queue) == 0)
+			return true;
+		
+		final Long retryTime = mDeliveryRetryTimes.get(id);
+		if(retryTime != null) {
+			// Deploying failed recently. Make sure that the job runs again once the retry is due.
+			mJob.triggerExecution(Math.max(retryTime - CurrentTimeUTC.getInMillis(), 0));
+			return true;
+		}
+		
+		if(mDeliveries.size() >= MAX_PARALLEL_DELIVERIES) {
+			mDeliveriesThrottled = true;
+			return false;
+		}
+		
+		final ClientDelivery delivery = new ClientDelivery(client, queue);
+		mDeliveries.put(id, delivery);
+		mDeliveryExecutor.execute(delivery, "WoT SubscriptionManager delivery to " + id);
+		return true;
+	}
+	
+	/**
+	 * Deploys the {@link Notification} queue of a single {@link Client}, or of one of its out-of-order
+	 * {@link Subscription}s, with {@link Client#sendNotifications(SubscriptionManager, Subscription)}.
+	 * <br>
+	 * Executed on the {@link #mDeliveryExecutor} if started by {@link #dispatchDeliveries()}, or on the thread of {@link #run()}.
+	 * It must be added to {@link #mDeliveries} before it is executed, and removes itself when it is finished.
+	 * As there is at most one per queue, this ensures that the Notifications of each queue are deployed in order.
+	 */
+	private final class ClientDelivery implements PrioRunnable {
+		/** @see Client#getClientID() */
+		private final UUID mClientID;
+		
+		/** The key in {@link #mDeliveries}, see {@link Subscription#getDeliveryQueueID()}. */
+		private final UUID mQueueID;
+		
+		/** The {@link Subscription#getID()} of the out-of-order Subscription whose queue to deploy, or null. */
+		private final String mSubscriptionID;
+		
+		/** The thread which is executing this ClientDelivery, or null if it is not running. */
+		private volatile Thread mThread = null;
+		
+		/** Set by {@link #interrupt()} */
+		private volatile boolean mInterrupted = false;
+		
+		/**
+		 * Set by {@link SubscriptionManager#scheduleNotificationProcessing(Client)} if a new {@link Notification} is
+		 * stored for the Client while this ClientDelivery is running: {@link #dispatchDeliveries()} would skip the queue
+		 * then, so the ClientDelivery must deploy it before it exits.<br>
+		 * Synchronized on the SubscriptionManager.
+		 */
+		private boolean mRerun = false;
+		
+		/** @param queue See {@link Client#sendNotifications(SubscriptionManager, Subscription)}. */
+		ClientDelivery(final Client client, final Subscription<? extends EventSource> queue) {
+			mClientID = client.getClientID();
+			mQueueID = queue != null ? queue.getDeliveryQueueID() : mClientID;
+			mSubscriptionID = queue != null ? queue.getID() : null;
+		}
+		
+		@Override public void run() {
+			deliver();
+		}
+		
+		/** @return False if the thread was interrupted, true otherwise. */
+		boolean deliver() {
+			// Set mThread before checking mInterrupted, interrupt() does it the other way round.
+			mThread = Thread.currentThread();
+			try {
+				if(mInterrupted)
+					throw new InterruptedException();
+				
+				while(true) {
+					final Client client;
+					final Subscription<? extends EventSource> queue;
+					synchronized(SubscriptionManager.this) {
+						try {
+							client = getClient(mClientID);
+							queue = mSubscriptionID != null ? getSubscription(mSubscriptionID) : null;
+						} catch(UnknownClientException e) {
+							removeFromDeliveries(); // Deleted by unsubscribe() meanwhile
+							return true;
+						} catch(UnknownSubscriptionException e) {
+							removeFromDeliveries(); // Deleted by unsubscribe() meanwhile
+							return true;
+						}
+						mRerun = false;
+					}
+					
+					final Client.SendNotificationsResult result = client.sendNotifications(SubscriptionManager.this, queue);
+					
+					if(result == Client.SendNotificationsResult.SubscriptionDeleted
+							|| result == Client.SendNotificationsResult.DeleteClient) {
+						
+						final List<Subscription<? extends EventSource>> deleted
+							= new ArrayList<Subscription<? extends EventSource>>();
+						if(result == Client.SendNotificationsResult.SubscriptionDeleted)
+							deleted.add(queue);
+						
+						synchronized(SubscriptionManager.this) {
+						synchronized(Persistent.transactionLock(mDB)) {
+							// The Client would be deleted by unsubscribe() as well if it has no Subscription anymore.
+							if(mDB.isStored(client) && (result == Client.SendNotificationsResult.DeleteClient
+									|| getSubscriptions(client).size() == 0)) {
+								
+								Logger.warning(SubscriptionManager.this,
+									"sendNotifications tells us to delete the Client, deleting it: " + client);
+								try {
+									forgetClient(mClientID);
+									final List<Subscription<? extends EventSource>> subscriptions
+										= client.deleteWithoutCommit(SubscriptionManager.this);
+									Persistent.checkedCommit(mDB, SubscriptionManager.this);
+									deleted.addAll(subscriptions);
+								} catch(RuntimeException e) {
+									Persistent.checkedRollback(mDB, SubscriptionManager.this, e);
+								}
+							}
+							removeFromDeliveries();
+						}
+						}
+						
+						// Not before releasing the locks: The client may subscribe again, see SubscriptionListener.
+						for(Subscription<? extends EventSource> subscription : deleted)
+							client.notifyClientAboutDeletion(subscription);
+						
+						return true;
+					}
+					
+					// Must be checked in the same synchronized() as the removal from mDeliveries, see mRerun.
+					// After a failure, the Notifications which were queued meanwhile are deployed by the delayed retry:
+					// Deploying them now would retry immediately.
+					synchronized(SubscriptionManager.this) {
+						if(!mRerun || result == Client.SendNotificationsResult.RetryLater) {
+							removeFromDeliveries();
+							return true;
+						}
+					}
+				}
+			} catch(InterruptedException e) {
+				Logger.normal(SubscriptionManager.this, "Delivery to " + mClientID
+					+ ": Got InterruptedException, exiting thread.", e);
+				// Rollback is already done by sendNotifications().
+				return false;
+			} catch(RuntimeException e) {
+				synchronized(Persistent.transactionLock(mDB)) {
+					Persistent.checkedRollback(mDB, SubscriptionManager.this, e);
+				}
+				return true;
+			} finally {
+				mThread = null;
+				synchronized(SubscriptionManager.this) {
+					if(mDeliveries.get(mQueueID) == this)
+						removeFromDeliveries();
+				}
+			}
+		}
+		
+		/** Must be called while synchronized on the SubscriptionManager. */
+		private void removeFromDeliveries() {
+			mDeliveries.remove(mQueueID);
+			SubscriptionManager.this.notifyAll();
+			
+			if(mDeliveriesThrottled) {
+				mDeliveriesThrottled = false;
+				mJob.triggerExecution(0);
+			}
+		}
+		
+		/** Requests the thread to exit soon, used by {@link SubscriptionManager#stop()}. */
+		void interrupt() {
+			mInterrupted = true;
+			final Thread thread = mThread;
+			if(thread != null)
+				thread.interrupt();
+		}
+		
+		@Override public int getPriority() {
+			return SubscriptionManager.this.getPriority();
+		}
+	}
+	
 	/** {@inheritDoc} */
 	@Override
 	public int getPriority() {
@@ -1969,7 +4696,7 @@ public final class SubscriptionManager implements PrioRunnable {
 	}
 	
 	/**
-	 * Schedules the {@link #run()} method to be executed after a delay of {@link #PROCESS_NOTIFICATIONS_DELAY}
+	 * Schedules {@link #dispatchDeliveries()} to be executed after a delay of {@link #PROCESS_NOTIFICATIONS_DELAY}
 	 */
 	private void scheduleNotificationProcessing() {
         // We do not do the following commented out assert() because:
@@ -1991,6 +4718,89 @@ public final class SubscriptionManager implements PrioRunnable {
         mJob.triggerExecution();
 	}
 	
+	/**
+	 * Same as {@link #scheduleNotificationProcessing()}, for a new {@link Notification} of the given {@link Client}:
+	 * Additionally makes sure that the running {@link ClientDelivery}s of the Client deploy it before they exit.<br>
+	 * Marks all of them because the Notification may be in the queue of the Client or of an out-of-order
+	 * {@link Subscription}. There are at most {@link #MAX_PARALLEL_DELIVERIES}.
+	 * 
+	 * You must synchronize on this SubscriptionManager when calling this function.
+	 */
+	private void scheduleNotificationProcessing(final Client client) {
+		final UUID clientID = client.getClientID();
+		for(ClientDelivery delivery : mDeliveries.values()) {
+			if(delivery.mClientID.equals(clientID))
+				delivery.mRerun = true;
+		}
+		
+		scheduleNotificationProcessing();
+	}
+	
+	/**
+	 * Used by {@link Client#sendNotifications(SubscriptionManager, Subscription)} if deploying a delivery queue failed:
+	 * Prevents {@link #dispatchDeliveries()} from deploying the queue again before {@link #PROCESS_NOTIFICATIONS_DELAY}
+	 * has passed, and schedules it to run then.
+	 * 
+	 * You must synchronize on this SubscriptionManager when calling this function.
+	 * 
+	 * @param queueID See {@link Subscription#getDeliveryQueueID()}.
+	 */
+	private void scheduleDeliveryRetry(final UUID queueID) {
+		mDeliveryRetryTimes.put(queueID, CurrentTimeUTC.getInMillis() + PROCESS_NOTIFICATIONS_DELAY);
+		scheduleNotificationProcessing();
+	}
+	
+	/**
+	 * @return True if a {@link ClientDelivery} is running for any delivery queue of the given {@link Client}.
+	 * You must synchronize on this SubscriptionManager when calling this function.
+	 */
+	private boolean isDeliveryRunning(final UUID clientID) {
+		for(ClientDelivery delivery : mDeliveries.values()) {
+			if(delivery.mClientID.equals(clientID))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Used by {@link #start()} to create the {@link #mFileQueue} according to
+	 * {@link Configuration#NOTIFICATION_QUEUE_TYPE}.
+	 * 
+	 * @return Null if {@link NotificationQueueType#Database} is configured, or if creating the directory of the
+	 *     queue fails.
+	 */
+	private NotificationFileQueue createNotificationFileQueue() {
+		final String typeName = mWoT.getConfig().getString(Configuration.NOTIFICATION_QUEUE_TYPE);
+		NotificationQueueType type;
+		try {
+			type = NotificationQueueType.valueOf(typeName);
+		} catch(IllegalArgumentException e) {
+			Logger.error(this, "Invalid " + Configuration.NOTIFICATION_QUEUE_TYPE + ": "
+				+ typeName + ", using " + NotificationQueueType.File, e);
+			type = NotificationQueueType.File;
+		}
+		
+		if(type == NotificationQueueType.File) {
+			final File directory = new File(mWoT.getDatabaseFile().getAbsoluteFile().getParentFile(),
+				NotificationFileQueue.DIRECTORY_NAME);
+			try {
+				final NotificationFileQueue queue = new NotificationFileQueue(directory);
+				Logger.normal(this, "Using notification queue: " + type);
+				return queue;
+			} catch(IOException e) {
+				Logger.error(this, "Cannot create " + directory + ", using "
+					+ NotificationQueueType.Database, e);
+			}
+		}
+		
+		Logger.normal(this, "Using notification queue: " + NotificationQueueType.Database);
+		return null;
+	}
+	
+	/** @return The {@link NotificationQueueType} which {@link #start()} has chosen. */
+	synchronized NotificationQueueType getNotificationQueueType() {
+		return mFileQueue != null ? NotificationQueueType.File : NotificationQueueType.Database;
+	}
 
 	/**
 	 * Deletes all old {@link Client}s, {@link Subscription}s and {@link Notification}s and enables subscription processing. 
@@ -2025,15 +4835,29 @@ public final class SubscriptionManager implements PrioRunnable {
         // Notice: Once you change Clients/Notifications to be persistent across restarts of WOT,
         // and therefore remove this, please make sure to notice and update the comments inside
         // scheduleNotificationProcessing().
+		mFileQueue = createNotificationFileQueue();
+		if(mFileQueue != null)
+			Persistent.addTransactionListener(mDB, mFileQueue);
+		
 		deleteAllClients();
 		
+		Persistent.addTransactionListener(mDB, mRetentionLog);
+		
 		final PluginRespirator respirator = mWoT.getPluginRespirator();
         final Ticker ticker;
         final Runnable jobRunnable;
         
 		if(respirator != null) { // We are connected to a node
             ticker = respirator.getNode().getTicker();
-            jobRunnable = this;
+            jobRunnable = new PrioRunnable() {
+                @Override public void run() {
+                    dispatchDeliveries();
+                }
+                
+                @Override public int getPriority() {
+                    return SubscriptionManager.this.getPriority();
+                }
+            };
 		} else { // We are inside of a unit test
 		    Logger.warning(this, "No PluginRespirator available, will never run job. "
 		                       + "This should only happen in unit tests!");
@@ -2064,19 +4888,20 @@ public final class SubscriptionManager implements PrioRunnable {
 	/**
 	 * Shuts down this SubscriptionManager by aborting all queued notification processing and waiting for running processing to finish.
 	 * 
-	 * Notice: Not synchronized so it can be run in parallel with {@link #run()}. This will allow it
-	 * to call {@link DelayedBackgroundJob#terminate()} while run() is executing, which calls
-	 * {@link Thread#interrupt()} on the run()-thread to cause it to exit quickly.
+	 * Notice: Not synchronized so it can be run in parallel with {@link #dispatchDeliveries()}. This will allow it
+	 * to call {@link DelayedBackgroundJob#terminate()} while the job is executing, which calls
+	 * {@link Thread#interrupt()} on the job thread to cause it to exit quickly.
+	 * The threads of the {@link ClientDelivery}s are interrupted afterwards.
 	 */
 	protected void stop() {
 		Logger.normal(this, "stop()...");
 		
         // The following code intentionally does NOT write to the mJob variable so it does not have
         // to use synchronized(this). We do not want to synchronize because:
-        // 1) run() is synchronized(this), so we would not get the lock until run() is finished.
-        //    But we want to call mJob.terminate() immediately while run() is still executing to
-        //    make it call Thread.interrupt() upon run() to speed up its termination. So we
-        //    shouldn't require acquisition of the lock before terminate().
+        // 1) dispatchDeliveries() is synchronized(this), so we would not get the lock until it is
+        //    finished. But we want to call mJob.terminate() immediately while it is still
+        //    executing to make it call Thread.interrupt() upon it to speed up its termination.
+        //    So we shouldn't require acquisition of the lock before terminate().
         // 2) Keeping mJob as is makes sure that start() is not possible anymore so this object can
         //    only have a single lifecycle. Recycling being impossible reduces complexity and is not
         //    needed for normal operation of WOT anyway.
@@ -2107,6 +4932,29 @@ public final class SubscriptionManager implements PrioRunnable {
             Logger.error(this, "stop() should not be interrupt()ed.", e);
         }
 
+        // The ClientDeliverys don't run on the thread of mJob, so terminate() did not interrupt
+        // them. No new ones will be dispatched since mJob is terminated now.
+        synchronized(this) {
+            for(ClientDelivery delivery : mDeliveries.values())
+                delivery.interrupt();
+            
+            try {
+                while(!mDeliveries.isEmpty())
+                    wait();
+            } catch (InterruptedException e) {
+                Logger.error(this, "stop() should not be interrupt()ed.", e);
+            }
+        }
+        
+        Persistent.removeTransactionListener(mDB, mRetentionLog);
+        
+        synchronized(this) {
+            if(mFileQueue != null) {
+                Persistent.removeTransactionListener(mDB, mFileQueue);
+                mFileQueue.close();
+            }
+        }
+
 		Logger.normal(this, "stop() finished.");
 	}
 
@@ -2117,7 +4965,7 @@ public final class SubscriptionManager implements PrioRunnable {
      * @return The total amount of all {@link Notification}s which are queued for sending.
      */
     public synchronized int getPendingNotificationAmount() {
-        return getAllNotifications().size();
+        return getAllNotifications().size() + (mFileQueue != null ? mFileQueue.size() : 0);
     }
 
     /**
@@ -2133,4 +4981,122 @@ public final class SubscriptionManager implements PrioRunnable {
         return amount;
     }
 
+    /**
+     * Statistics about the deployment of {@link Notification}s to a single {@link Client}.
+     * 
+     * @see SubscriptionManager#getClientStatistics()
+     */
+    public static final class ClientStatistics implements Cloneable {
+        /** @see Client#getClientID() */
+        public final UUID mFCP_ID;
+
+        /** Amount of {@link Notification}s which are queued for sending to the {@link Client}. */
+        public int mQueuedNotifications = 0;
+
+        /** True if a thread is deploying the queue of the {@link Client} currently. */
+        public boolean mDeliveryRunning = false;
+
+        /** Amount of {@link Notification}s which were deployed to the {@link Client}. */
+        public long mDeployedNotifications = 0;
+
+        /**
+         * Amount of FCP messages which were sent to deploy the {@link Notification}s, including
+         * failed ones. Less than {@link #mDeployedNotifications} if the Client negotiated a
+         * {@link Client#getFCPBatchSize()} larger than 1.<br>
+         * For {@link Client.Type#Callback}, the amount of calls to
+         * {@link SubscriptionListener#handleEvents(List)}.
+         */
+        public long mFCPMessages = 0;
+
+        /**
+         * Amount of pending {@link Notification}s which were merged into a later one instead of
+         * being deployed, see {@link Subscription#getCoalesceNotifications()}.
+         */
+        public long mCoalescedNotifications = 0;
+
+        /**
+         * Time from the creation of each deployed {@link Notification} until it was deployed.
+         * This includes the {@link SubscriptionManager#PROCESS_NOTIFICATIONS_DELAY}.
+         */
+        public TimeHistogram mDeliveryLatency = new TimeHistogram();
+
+        ClientStatistics(UUID fcpID) {
+            mFCP_ID = fcpID;
+        }
+
+        @Override public ClientStatistics clone() {
+            try {
+                ClientStatistics clone = (ClientStatistics)super.clone();
+                clone.mDeliveryLatency = mDeliveryLatency.clone();
+                return clone;
+            } catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Removes the in-memory state of a {@link Client} which is being deleted.<br>
+     * You must synchronize on this SubscriptionManager when calling this function.
+     */
+    private void forgetClient(final UUID fcpID) {
+        mClientStatistics.remove(fcpID);
+        mLoadedNotificationIndexes.remove(fcpID);
+    }
+
+    /**
+     * Called by {@link Client#sendNotifications(SubscriptionManager, Subscription)} for each {@link Notification} which was deployed
+     * successfully, before it is deleted.<br>
+     * You must synchronize on this SubscriptionManager when calling this function.
+     */
+    private void onNotificationDeployed(final Client client, final Notification notification) {
+        final ClientStatistics stats = getOrCreateClientStatistics(client.getClientID());
+        ++stats.mDeployedNotifications;
+        // Math.max() because the clock might have been adjusted.
+        final long latency
+            = Math.max(0, CurrentTimeUTC.getInMillis() - notification.getCreationTime());
+        stats.mDeliveryLatency.add(MILLISECONDS.toNanos(latency));
+    }
+
+    /**
+     * Called by {@link Client#sendNotifications(SubscriptionManager, Subscription)} for each FCP message which it sent.<br>
+     * You must synchronize on this SubscriptionManager when calling this function.
+     */
+    private void onFCPMessageSent(final Client client) {
+        ++getOrCreateClientStatistics(client.getClientID()).mFCPMessages;
+    }
+
+    /**
+     * You must synchronize on this SubscriptionManager when calling this function.
+     * @return The entry of {@link #mClientStatistics} for the given {@link Client#getClientID()}. 
+     */
+    private ClientStatistics getOrCreateClientStatistics(final UUID fcpID) {
+        ClientStatistics stats = mClientStatistics.get(fcpID);
+        if(stats == null) {
+            stats = new ClientStatistics(fcpID);
+            mClientStatistics.put(fcpID, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Gets a {@link ClientStatistics} object for each current {@link Client}, suitable for
+     * displaying statistics in the UI.<br>
+     * The objects are clones, you may interfere with the contents of the member variables.
+     */
+    public synchronized ArrayList<ClientStatistics> getClientStatistics() {
+        final ArrayList<ClientStatistics> result = new ArrayList<ClientStatistics>();
+
+        for(Client client : getAllClients()) {
+            final UUID id = client.getClientID();
+            final ClientStatistics stats = mClientStatistics.get(id);
+            final ClientStatistics clone
+                = stats != null ? stats.clone() : new ClientStatistics(id);
+            clone.mQueuedNotifications = getQueuedNotificationCount(client);
+            clone.mDeliveryRunning = isDeliveryRunning(id);
+            result.add(clone);
+        }
+        return result;
+    }
+
 }
@@ -533,7 +533,7 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 		if(mLastChangedDate.after(CurrentTimeUTC.get()))
 			throw new IllegalStateException("mLastChangedDate is in the future");
 		
-		if(mTrusterTrustListEdition != getTruster().getEdition() && getTruster().getCurrentEditionFetchState() == Identity.FetchState.Fetched
+		if(mTrusterTrustListEdition != getTruster().getTrustListEdition() && getTruster().getCurrentEditionFetchState() == Identity.FetchState.Fetched
 				&& !(getTruster() instanceof OwnIdentity)) // We do not update mTrusterTrustListEdition for OwnIdentities, they do not need it.
 			throw new IllegalStateException("mTrusterTrustListEdition is invalid: " + mTrusterTrustListEdition);
 	}
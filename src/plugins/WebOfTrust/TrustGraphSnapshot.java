@@ -0,0 +1,284 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import freenet.keys.FreenetURI;
+
+/**
+ * Compact binary format for a snapshot of the trust graph of a {@link WebOfTrust}: Its
+ * {@link Identity}s including their edition, contexts and properties, and their {@link Trust}s.
+ * <br>
+ * {@link Score}s are not included, the importing WOT computes its own ones as they depend on its
+ * {@link OwnIdentity}s.<br><br>
+ *
+ * A fresh WOT needs to fetch and import the identity file of every identity one by one before its
+ * Scores become useful, which takes very long for large networks. Importing a snapshot with
+ * {@link WebOfTrust#importTrustGraphSnapshot(InputStream)} allows it to start with the graph of
+ * another WOT instead, and only fetch the editions which are newer than the snapshot. Snapshots
+ * are created by {@link WebOfTrust#exportTrustGraphSnapshot(OutputStream)}.<br>
+ * ATTENTION: The identity files are signed, snapshots are not: Only import snapshots from sources
+ * which you trust as much as yourself!<br><br>
+ *
+ * Format, compressed with GZIP as a whole, numbers are written by {@link DataOutputStream}:<br>
+ * - int {@link #MAGIC}, int {@link #FORMAT_VERSION}, long creation date.<br>
+ * - int amount of identities, followed by the identities. Each identity is: UTF request URI with
+ *   the edition of the last fetched file, long edition hint, boolean whether the edition was
+ *   fetched, long last fetched date, boolean whether the nickname is present and UTF nickname,
+ *   boolean publishes trust list, int amount of contexts and UTF contexts, int amount of
+ *   properties and pairs of UTF key and value.<br>
+ * - int amount of trusts, followed by the trusts. Each trust is: int index of the truster and int
+ *   index of the trustee in the above list of identities, byte value, UTF comment.<br><br>
+ *
+ * The identities are referenced by index instead of by ID so the trust list of a network with
+ * hundreds of thousands of trusts stays compact.<br>
+ * The format is processed as a stream by {@link Writer} and {@link Reader}, they don't keep the
+ * snapshot in memory. */
+public final class TrustGraphSnapshot {
+	/** "WOTG" */
+	static final int MAGIC = 0x574f5447;
+
+	/** Must be incremented when the format changes. */
+	static final int FORMAT_VERSION = 1;
+
+
+	/** An {@link Identity} as read by {@link Reader#readIdentity()}. */
+	static final class IdentityEntry {
+		FreenetURI mRequestURI;
+
+		long mLatestEditionHint;
+
+		/**
+		 * True if the edition of the {@link #mRequestURI} was fetched and imported successfully,
+		 * i.e. if {@link Identity#getCurrentEditionFetchState()} was
+		 * {@link Identity.FetchState#Fetched}. Only then the below data and the trust list of
+		 * the identity are imported. */
+		boolean mFetched;
+
+		Date mLastFetchedDate;
+
+		String mNickname;
+
+		boolean mPublishesTrustList;
+
+		ArrayList<String> mContexts;
+
+		HashMap<String, String> mProperties;
+	}
+
+	/** A {@link Trust} as read by {@link Reader#readTrust()}. */
+	static final class TrustEntry {
+		/** Index of the truster in the order of {@link Reader#readIdentity()}. */
+		int mTrusterIndex;
+
+		/** Index of the trustee in the order of {@link Reader#readIdentity()}. */
+		int mTrusteeIndex;
+
+		byte mValue;
+
+		String mComment;
+	}
+
+	/** Result of {@link WebOfTrust#importTrustGraphSnapshot(InputStream)}. */
+	public static final class ImportStatistics {
+		/** Identities which were created or whose data was taken from the snapshot. */
+		public int mImportedIdentities = 0;
+
+		/**
+		 * Identities of which we already have the same or a newer edition, or which are
+		 * {@link OwnIdentity}s. Their data and trust lists are not imported. */
+		public int mSkippedIdentities = 0;
+
+		public int mImportedTrusts = 0;
+
+		/** Trusts given by {@link #mSkippedIdentities}. */
+		public int mSkippedTrusts = 0;
+
+		@Override public String toString() {
+			return "Imported identities: " + mImportedIdentities
+			     + "; skipped identities: " + mSkippedIdentities
+			     + "; imported trusts: " + mImportedTrusts
+			     + "; skipped trusts: " + mSkippedTrusts;
+		}
+	}
+
+
+	/**
+	 * Writes a snapshot. The caller must call {@link #writeIdentity(Identity)} for the amount of
+	 * identities which was passed to the constructor, then {@link #writeTrustCount(int)}, then
+	 * {@link #writeTrust(int, int, Trust)} for that amount of trusts, and then {@link #finish()}.
+	 * <br>
+	 * Not thread-safe. */
+	static final class Writer {
+		private final DataOutputStream mOutput;
+
+		private final GZIPOutputStream mGZIP;
+
+		/** Does not close the given stream, the caller must do so after {@link #finish()}. */
+		Writer(OutputStream out, int identityCount) throws IOException {
+			mGZIP = new GZIPOutputStream(out);
+			mOutput = new DataOutputStream(new BufferedOutputStream(mGZIP));
+			mOutput.writeInt(MAGIC);
+			mOutput.writeInt(FORMAT_VERSION);
+			mOutput.writeLong(System.currentTimeMillis());
+			mOutput.writeInt(identityCount);
+		}
+
+		void writeIdentity(Identity identity) throws IOException {
+			mOutput.writeUTF(identity.getRequestURI().toString());
+			mOutput.writeLong(identity.getLatestEditionHint());
+			mOutput.writeBoolean(
+				identity.getCurrentEditionFetchState() == Identity.FetchState.Fetched);
+			mOutput.writeLong(identity.getLastFetchedDate().getTime());
+
+			final String nickname = identity.getNickname();
+			mOutput.writeBoolean(nickname != null);
+			if(nickname != null)
+				mOutput.writeUTF(nickname);
+
+			mOutput.writeBoolean(identity.doesPublishTrustList());
+
+			final ArrayList<String> contexts = identity.getContexts();
+			mOutput.writeInt(contexts.size());
+			for(String context : contexts)
+				mOutput.writeUTF(context);
+
+			final HashMap<String, String> properties = identity.getProperties();
+			mOutput.writeInt(properties.size());
+			for(Map.Entry<String, String> property : properties.entrySet()) {
+				mOutput.writeUTF(property.getKey());
+				mOutput.writeUTF(property.getValue());
+			}
+		}
+
+		void writeTrustCount(int trustCount) throws IOException {
+			mOutput.writeInt(trustCount);
+		}
+
+		void writeTrust(int trusterIndex, int trusteeIndex, Trust trust) throws IOException {
+			mOutput.writeInt(trusterIndex);
+			mOutput.writeInt(trusteeIndex);
+			mOutput.writeByte(trust.getValue());
+			mOutput.writeUTF(trust.getComment());
+		}
+
+		void finish() throws IOException {
+			mOutput.flush();
+			mGZIP.finish();
+		}
+	}
+
+	/**
+	 * Reads a snapshot in the order in which {@link Writer} writes it.<br>
+	 * All functions throw {@link IOException} if the snapshot is corrupt.<br>
+	 * Not thread-safe. */
+	static final class Reader {
+		private final DataInputStream mInput;
+
+		private final int mIdentityCount;
+
+		private int mIdentitiesRead = 0;
+
+		private int mTrustCount = -1;
+
+		/** Does not close the given stream, the caller must do so. */
+		Reader(InputStream in) throws IOException {
+			mInput = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+
+			if(mInput.readInt() != MAGIC)
+				throw new IOException("Not a trust graph snapshot!");
+
+			final int version = mInput.readInt();
+			if(version != FORMAT_VERSION)
+				throw new IOException("Unsupported snapshot format version: " + version);
+
+			mInput.readLong(); // Creation date, only for humans so far.
+
+			mIdentityCount = readCount();
+		}
+
+		private int readCount() throws IOException {
+			final int count = mInput.readInt();
+			if(count < 0)
+				throw new IOException("Invalid count: " + count);
+			return count;
+		}
+
+		int getIdentityCount() {
+			return mIdentityCount;
+		}
+
+		IdentityEntry readIdentity() throws IOException {
+			if(mIdentitiesRead >= mIdentityCount)
+				throw new IllegalStateException("All identities were read already!");
+
+			final IdentityEntry result = new IdentityEntry();
+			try {
+				result.mRequestURI = new FreenetURI(mInput.readUTF());
+			} catch(MalformedURLException e) {
+				throw new IOException("Invalid request URI", e);
+			}
+			result.mLatestEditionHint = mInput.readLong();
+			result.mFetched = mInput.readBoolean();
+			result.mLastFetchedDate = new Date(mInput.readLong());
+			result.mNickname = mInput.readBoolean() ? mInput.readUTF() : null;
+			result.mPublishesTrustList = mInput.readBoolean();
+
+			final int contextCount = readCount();
+			result.mContexts = new ArrayList<String>(Math.min(contextCount, 32));
+			for(int i = 0; i < contextCount; ++i)
+				result.mContexts.add(mInput.readUTF());
+
+			final int propertyCount = readCount();
+			result.mProperties = new HashMap<String, String>();
+			for(int i = 0; i < propertyCount; ++i)
+				result.mProperties.put(mInput.readUTF(), mInput.readUTF());
+
+			++mIdentitiesRead;
+			return result;
+		}
+
+		/** Must be called after all identities were read. */
+		int readTrustCount() throws IOException {
+			if(mIdentitiesRead != mIdentityCount)
+				throw new IllegalStateException("Not all identities were read yet!");
+
+			mTrustCount = readCount();
+			return mTrustCount;
+		}
+
+		TrustEntry readTrust() throws IOException {
+			if(mTrustCount < 0)
+				throw new IllegalStateException("readTrustCount() was not called!");
+
+			final TrustEntry result = new TrustEntry();
+			result.mTrusterIndex = mInput.readInt();
+			result.mTrusteeIndex = mInput.readInt();
+
+			if(result.mTrusterIndex < 0 || result.mTrusterIndex >= mIdentityCount
+					|| result.mTrusteeIndex < 0 || result.mTrusteeIndex >= mIdentityCount) {
+				throw new IOException("Invalid identity index in trust: " + result.mTrusterIndex
+					+ " -> " + result.mTrusteeIndex);
+			}
+
+			result.mValue = mInput.readByte();
+			result.mComment = mInput.readUTF();
+			return result;
+		}
+	}
+}
@@ -8,6 +8,8 @@ import static java.util.Arrays.sort;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
@@ -18,6 +20,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.concurrent.CountDownLatch;
@@ -25,6 +28,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
+import plugins.WebOfTrust.Configuration.IdentityFileQueueType;
 import plugins.WebOfTrust.Identity.FetchState;
 import plugins.WebOfTrust.Identity.IdentityID;
 import plugins.WebOfTrust.Score.ScoreID;
@@ -54,6 +58,7 @@ import com.db4o.ObjectSet;
 import com.db4o.defragment.Defragment;
 import com.db4o.defragment.DefragmentConfig;
 import com.db4o.ext.ExtObjectContainer;
+import com.db4o.query.Constraint;
 import com.db4o.query.Query;
 import com.db4o.reflect.jdk.JdkReflector;
 
@@ -158,11 +163,28 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * for processing by {@link #mIdentityFileProcessor}. */
 	private IdentityFileQueue mIdentityFileQueue;
 	
+	/**
+	 * Remembers the files which the {@link #mXMLTransformer} failed to parse so the
+	 * {@link #mIdentityFileQueue} can reject them, and lowers the fetch priority of identities
+	 * which publish broken files repeatedly. */
+	private final IdentityFileNegativeCache mIdentityFileNegativeCache
+		= new IdentityFileNegativeCache();
+	
+	/**
+	 * Caches the identity XML of {@link OwnIdentity}s for the {@link #mInserter}. Must be
+	 * invalidated upon changes of the trust list of an OwnIdentity. */
+	private final OwnIdentityXMLCache mOwnIdentityXMLCache = new OwnIdentityXMLCache(this);
+	
 	/**
 	 * Processes identity files after they were fetched by the {@link #mFetcher} and enqueued in
 	 * the {@link #mIdentityFileQueue}. */
 	private IdentityFileProcessor mIdentityFileProcessor;
 	
+	/**
+	 * Receives the edition hints of trust lists from the {@link #mXMLTransformer} and passes them
+	 * to the {@link Identity}s and the {@link #mFetcher} in batches. */
+	private EditionHintAggregator mEditionHintAggregator;
+	
 	
 	/**
 	 * Uploads captchas belonging to our own identities which others can solve to get on the trust list of them. Checks whether someone
@@ -262,13 +284,12 @@ public final class WebOfTrust extends WebOfTrustInterface
 			};
 
 
-			mIdentityFileQueue = new IdentityFileDiskQueue(getUserDataDirectory());
-			// You may use this instead for debugging purposes, or on very high memory nodes.
-			// See its JavaDoc for requirements of making this a config option.
-			/* mIdentityFileQueue = new IdentityFileMemoryQueue(); */
+			mIdentityFileQueue = createIdentityFileQueue();
 			
 			mXMLTransformer = new XMLTransformer(this);
 
+			mEditionHintAggregator = new EditionHintAggregator(this, mPR.getNode().getTicker());
+
 			mIdentityFileProcessor = new IdentityFileProcessor(
 				mIdentityFileQueue, mPR.getNode().getTicker(), mXMLTransformer);
 
@@ -384,10 +405,12 @@ public final class WebOfTrust extends WebOfTrustInterface
 		// Use a memory queue instead of the disk queue we use during regular operation:
 		// This constructor only has the name of the database file, not a user data directory.
 		// Thus getUserDataDirectory() would fail, so constructing a disk queue would also fail.
-		mIdentityFileQueue = new IdentityFileMemoryQueue();
+		mIdentityFileQueue = new IdentityFileMemoryQueue(mIdentityFileNegativeCache);
 
 		mXMLTransformer = new XMLTransformer(this);
 		
+		mEditionHintAggregator = new EditionHintAggregator(this, null);
+		
 		mIdentityFileProcessor
 			= new IdentityFileProcessor(mIdentityFileQueue, null, mXMLTransformer);
 
@@ -490,6 +513,9 @@ public final class WebOfTrust extends WebOfTrustInterface
         	SubscriptionManager.IdentityChangedNotification.class,
         	SubscriptionManager.ScoreChangedNotification.class,
         	SubscriptionManager.TrustChangedNotification.class,
+        	SubscriptionManager.SynchronizationStreamNotification.class,
+        	SubscriptionManager.SnapshotImage.class,
+        	SubscriptionManager.NotificationPayload.class,
         	IntroductionPuzzle.class,
         	OwnIntroductionPuzzle.class
         };
@@ -1357,6 +1383,295 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return false;
 	}
 	
+	/**
+	 * Writes a {@link TrustGraphSnapshot} of all {@link Identity}s and {@link Trust}s to the given
+	 * stream, which can be imported by {@link #importTrustGraphSnapshot(InputStream)} to bootstrap
+	 * another WOT. Does not close the stream.<br>
+	 * {@link OwnIdentity}s are exported as regular identities, their insert URIs are not exported.
+	 * 
+	 * The function is synchronized, no outer synchronization is needed. */
+	public synchronized void exportTrustGraphSnapshot(OutputStream out) throws IOException {
+		Logger.normal(this, "exportTrustGraphSnapshot() ...");
+		
+		final ObjectSet<Identity> identities = getAllIdentities();
+		// Key = Identity ID, value = index of the identity in the snapshot.
+		final HashMap<String, Integer> indices = new HashMap<String, Integer>(identities.size() * 2);
+		final TrustGraphSnapshot.Writer writer
+			= new TrustGraphSnapshot.Writer(out, identities.size());
+		
+		for(Identity identity : identities) {
+			indices.put(identity.getID(), indices.size());
+			writer.writeIdentity(identity);
+		}
+		
+		final ObjectSet<Trust> trusts = getAllTrusts();
+		writer.writeTrustCount(trusts.size());
+		for(Trust trust : trusts) {
+			writer.writeTrust(indices.get(trust.getTruster().getID()),
+				indices.get(trust.getTrustee().getID()), trust);
+		}
+		
+		writer.finish();
+		Logger.normal(this, "exportTrustGraphSnapshot() finished: " + identities.size()
+			+ " identities, " + trusts.size() + " trusts.");
+	}
+	
+	/** Amount of objects which {@link #importTrustGraphSnapshot(InputStream)} stores per commit. */
+	private static final int TRUST_GRAPH_SNAPSHOT_BATCH_SIZE = 4096;
+	
+	/**
+	 * Imports a {@link TrustGraphSnapshot} which was created by
+	 * {@link #exportTrustGraphSnapshot(OutputStream)}. Does not close the stream.<br><br>
+	 * 
+	 * Only the identities which we have not fetched yet are imported, i.e. which are unknown or
+	 * {@link FetchState#NotFetched} with an edition which is not newer than the one in the
+	 * snapshot. Their edition is marked as {@link FetchState#Fetched} if it was fetched by the
+	 * exporting WOT so the {@link IdentityFetcher} only fetches newer editions. Their trust list
+	 * replaces the existing one.<br>
+	 * {@link OwnIdentity}s and identities of which we have fetched an edition already are not
+	 * modified.<br><br>
+	 * 
+	 * For performance, the objects are stored in batches of
+	 * {@link #TRUST_GRAPH_SNAPSHOT_BATCH_SIZE} per transaction, and the {@link Score}s are computed
+	 * by a single {@link #computeAllScoresWithoutCommit()} at the end instead of incrementally.
+	 * As the Scores are wrong in between, {@link #verifyAndCorrectStoredScores()} is scheduled for
+	 * the next startup until the import has finished. If the import fails, the batches which were
+	 * committed already are kept, and the Scores are computed for them. The identities which the
+	 * committed batches marked as fetched are marked for refetching since their trust list may be
+	 * incomplete, so they are fetched again and a retry of the import replaces their trust list.
+	 * <br><br>
+	 * 
+	 * ATTENTION: Snapshots are not signed, only import them from trustworthy sources! See
+	 * {@link TrustGraphSnapshot}.<br><br>
+	 * 
+	 * The function is synchronized and does the transactions, no outer synchronization is needed.
+	 * 
+	 * @throws IOException If the snapshot is corrupt or reading it fails. */
+	public synchronized TrustGraphSnapshot.ImportStatistics importTrustGraphSnapshot(InputStream in)
+			throws IOException {
+		
+		Logger.normal(this, "importTrustGraphSnapshot() ...");
+		final TrustGraphSnapshot.ImportStatistics result
+			= new TrustGraphSnapshot.ImportStatistics();
+		// IDs of the identities which were marked as fetched, in the order of the snapshot.
+		final ArrayList<String> fetchedIDs = new ArrayList<String>();
+		// Amount of the fetchedIDs which were committed.
+		int committedFetchedIDs = 0;
+		
+		synchronized(mFetcher) {
+		synchronized(mSubscriptionManager) {
+		synchronized(Persistent.transactionLock(mDB)) {
+			try {
+				mConfig.scheduleVerificationOfScoresWithoutCommit();
+				mConfig.storeWithoutCommit();
+				Persistent.checkedCommit(mDB, this);
+				
+				beginTrustListImport();
+				// Don't compute Scores incrementally for each Trust, finishTrustListImport() will
+				// compute them all at once.
+				mFullScoreComputationNeeded = true;
+				
+				final TrustGraphSnapshot.Reader reader = new TrustGraphSnapshot.Reader(in);
+				final int identityCount = reader.getIdentityCount();
+				final Identity[] identities = new Identity[identityCount];
+				// True for the identities whose trust list is imported.
+				final boolean[] imported = new boolean[identityCount];
+				int uncommitted = 0;
+				
+				for(int i = 0; i < identityCount; ++i) {
+					final TrustGraphSnapshot.IdentityEntry entry = reader.readIdentity();
+					final String id
+						= IdentityID.constructAndValidateFromURI(entry.mRequestURI).toString();
+					
+					Identity identity;
+					try {
+						identity = getIdentityByID(id);
+					} catch(UnknownIdentityException e) {
+						identity = null;
+					}
+					
+					final Identity oldIdentity;
+					if(identity == null) {
+						identity = new Identity(this, entry.mRequestURI, null,
+							entry.mPublishesTrustList);
+						oldIdentity = null;
+					} else if(identity instanceof OwnIdentity
+							|| identity.getCurrentEditionFetchState() != FetchState.NotFetched
+							|| identity.getEdition() > entry.mRequestURI.getEdition()) {
+						identities[i] = identity;
+						++result.mSkippedIdentities;
+						continue;
+					} else
+						oldIdentity = identity.clone();
+					
+					identity.setNewEditionHint(entry.mLatestEditionHint);
+					
+					if(entry.mFetched) {
+						importTrustGraphSnapshotIdentityWithoutCommit(identity, entry);
+						// The trust list of the snapshot replaces the existing one. The identity
+						// can have one if it was marked for refetching.
+						for(Trust trust : new ArrayList<Trust>(getGivenTrusts(identity))) {
+							removeTrustWithoutCommit(trust);
+							++uncommitted;
+						}
+						imported[i] = true;
+						fetchedIDs.add(id);
+					}
+					
+					identity.storeWithoutCommit();
+					if(oldIdentity == null || !oldIdentity.equals(identity)) {
+						mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(
+							oldIdentity, identity);
+					}
+					
+					identities[i] = identity;
+					++result.mImportedIdentities;
+					
+					if(++uncommitted >= TRUST_GRAPH_SNAPSHOT_BATCH_SIZE) {
+						Persistent.checkedCommit(mDB, this);
+						committedFetchedIDs = fetchedIDs.size();
+						uncommitted = 0;
+					}
+				}
+				
+				final int trustCount = reader.readTrustCount();
+				// Key = truster index << 32 | trustee index. To not store duplicates of corrupt
+				// snapshots: Querying the database for each Trust would be too slow.
+				final HashSet<Long> importedTrusts = new HashSet<Long>();
+				for(int i = 0; i < trustCount; ++i) {
+					final TrustGraphSnapshot.TrustEntry entry = reader.readTrust();
+					
+					if(!imported[entry.mTrusterIndex]) {
+						++result.mSkippedTrusts;
+						continue;
+					}
+					
+					if(!importedTrusts.add(
+							((long)entry.mTrusterIndex << 32) | entry.mTrusteeIndex)) {
+						throw new IOException("Duplicate trust: " + entry.mTrusterIndex + " -> "
+							+ entry.mTrusteeIndex);
+					}
+					
+					final Trust trust = new Trust(this, identities[entry.mTrusterIndex],
+						identities[entry.mTrusteeIndex], entry.mValue, entry.mComment);
+					trust.storeWithoutCommit();
+					mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(null, trust);
+					++result.mImportedTrusts;
+					
+					if(++uncommitted >= TRUST_GRAPH_SNAPSHOT_BATCH_SIZE) {
+						Persistent.checkedCommit(mDB, this);
+						committedFetchedIDs = fetchedIDs.size();
+						uncommitted = 0;
+					}
+				}
+				
+				// Also stores the fetch commands for identities which should be fetched now.
+				finishTrustListImport();
+				mConfig.updateLastVerificationOfScoresDate();
+				mConfig.storeWithoutCommit();
+				Persistent.checkedCommit(mDB, this);
+			} catch(IOException e) {
+				abortTrustGraphSnapshotImport(e, fetchedIDs.subList(0, committedFetchedIDs));
+				throw e;
+			} catch(InvalidParameterException e) {
+				abortTrustGraphSnapshotImport(e, fetchedIDs.subList(0, committedFetchedIDs));
+				throw new IOException("Invalid data in snapshot", e);
+			} catch(RuntimeException e) {
+				abortTrustGraphSnapshotImport(e, fetchedIDs.subList(0, committedFetchedIDs));
+				throw e;
+			}
+		}
+		}
+		}
+		
+		Logger.normal(this, "importTrustGraphSnapshot() finished: " + result);
+		return result;
+	}
+	
+	/**
+	 * Backend of {@link #importTrustGraphSnapshot(InputStream)}: Marks the edition of the given
+	 * entry as fetched and imports its nickname, contexts and properties. Invalid values are
+	 * ignored the same way as {@link XMLTransformer} does for identity files.<br>
+	 * The caller must replace the trust list of the identity with the one of the snapshot. */
+	private void importTrustGraphSnapshotIdentityWithoutCommit(Identity identity,
+			TrustGraphSnapshot.IdentityEntry entry) throws InvalidParameterException {
+		
+		identity.setEdition(entry.mRequestURI.getEdition());
+		// The identity may carry the fingerprint of an earlier XML import if it was marked for
+		// refetching. The new trust list doesn't match it, and its Trusts get the new edition as
+		// truster edition.
+		identity.setIdentityFileFingerprint(null);
+		identity.setPublishTrustList(entry.mPublishesTrustList);
+		
+		try {
+			if(entry.mNickname != null)
+				identity.setNickname(entry.mNickname);
+		} catch(Exception e) {
+			Logger.warning(this, "setNickname() failed.", e);
+		}
+		
+		try {
+			identity.setContexts(entry.mContexts);
+		} catch(Exception e) {
+			Logger.warning(this, "setContexts() failed.", e);
+		}
+		
+		try {
+			identity.setProperties(entry.mProperties);
+		} catch(Exception e) {
+			Logger.warning(this, "setProperties() failed", e);
+		}
+		
+		identity.onFetched(entry.mLastFetchedDate);
+	}
+	
+	/**
+	 * Backend of {@link #importTrustGraphSnapshot(InputStream)}: Rolls back the current batch,
+	 * marks the given identities for refetching and computes the Scores for the batches which were
+	 * committed already.<br>
+	 * Cannot use {@link #abortTrustListImport(Exception)}: It expects the Scores to be correct
+	 * after the rollback.
+	 * 
+	 * @param committedFetchedIDs The IDs of the identities which the committed batches marked as
+	 *     fetched. Their trust list may be incomplete. */
+	private void abortTrustGraphSnapshotImport(Exception e, List<String> committedFetchedIDs) {
+		mTrustListImportInProgress = false;
+		mFullScoreComputationNeeded = false;
+		Persistent.checkedRollback(mDB, this, e);
+		
+		try {
+			final ArrayList<Identity> refetch = new ArrayList<Identity>(committedFetchedIDs.size());
+			for(String id : committedFetchedIDs) {
+				final Identity identity = getIdentityByIDOrNull(id);
+				if(identity == null || identity.getCurrentEditionFetchState() != FetchState.Fetched)
+					continue;
+				
+				final Identity oldIdentity = identity.clone();
+				identity.markForRefetch();
+				identity.storeWithoutCommit();
+				mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(
+					oldIdentity, identity);
+				refetch.add(identity);
+			}
+			
+			computeAllScoresWithoutCommit();
+			
+			// computeAllScoresWithoutCommit() only stores fetch commands for identities whose
+			// fetch status changed.
+			for(Identity identity : refetch) {
+				if(shouldFetchIdentity(identity))
+					mFetcher.storeStartFetchCommandWithoutCommit(identity);
+			}
+			
+			mConfig.updateLastVerificationOfScoresDate();
+			mConfig.storeWithoutCommit();
+			Persistent.checkedCommit(mDB, this);
+		} catch(RuntimeException e2) {
+			// The verification at the next startup will fix the Scores.
+			Persistent.checkedRollback(mDB, this, e2);
+		}
+	}
+	
 	/**
 	 * Debug function for deleting duplicate identities etc. which might have been created due to bugs :)
 	 * 
@@ -1618,6 +1933,36 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 	}
 
+	/**
+	 * Creates the {@link IdentityFileQueue} implementation which is selected by
+	 * {@link Configuration#IDENTITY_FILE_QUEUE_TYPE}. */
+	private IdentityFileQueue createIdentityFileQueue() {
+		final String typeName = mConfig.getString(Configuration.IDENTITY_FILE_QUEUE_TYPE);
+		IdentityFileQueueType type;
+		try {
+			type = IdentityFileQueueType.valueOf(typeName);
+		} catch(IllegalArgumentException e) {
+			Logger.error(this, "Invalid " + Configuration.IDENTITY_FILE_QUEUE_TYPE + ": "
+				+ typeName + ", using " + IdentityFileQueueType.Disk, e);
+			type = IdentityFileQueueType.Disk;
+		}
+		
+		Logger.normal(this, "Using identity file queue: " + type);
+		
+		switch(type) {
+			case Memory:
+				return new IdentityFileMemoryQueue(mIdentityFileNegativeCache);
+			case Hybrid:
+				return new IdentityFileHybridQueue(getUserDataDirectory(),
+					mConfig.getInt(Configuration.IDENTITY_FILE_QUEUE_MEMORY_BUDGET),
+					mIdentityFileNegativeCache);
+			case Disk:
+			default:
+				return new IdentityFileDiskQueue(getUserDataDirectory(),
+					mIdentityFileNegativeCache);
+		}
+	}
+
 	/**
 	 * Loads an existing Config object from the database and adds any missing default values to it, creates and stores a new one if none exists.
 	 * @return The config object.
@@ -1722,15 +2067,14 @@ public final class WebOfTrust extends WebOfTrustInterface
 		if(truster == trustee)
 			return 100;
 		 
-		try {
-            // TODO: Performance: The comment "Security check, if rank computation breaks this will
-            // hit." below sounds like we don't actually need to execute this because the callers
-            // probably do it implicitly. Check if this is true and if yes, convert it to an assert.
-			if(getTrust(truster, trustee).getValue() <= 0) { // Security check, if rank computation breaks this will hit.
-				assert(rank == Integer.MAX_VALUE);
-				return 0;
-			}
-		} catch(NotTrustedException e) { }
+        // TODO: Performance: The comment "Security check, if rank computation breaks this will
+        // hit." below sounds like we don't actually need to execute this because the callers
+        // probably do it implicitly. Check if this is true and if yes, convert it to an assert.
+		final Trust trust = getTrustOrNull(truster, trustee);
+		if(trust != null && trust.getValue() <= 0) { // Security check, if rank computation breaks this will hit.
+			assert(rank == Integer.MAX_VALUE);
+			return 0;
+		}
 		
 		if(rank == -1 || rank == Integer.MAX_VALUE)
 			return 0;
@@ -1859,19 +2203,17 @@ public final class WebOfTrust extends WebOfTrustInterface
 							if(oldTrusteeRank == Integer.MAX_VALUE) {
 								// If we found a rank less than infinite we can overwrite the old rank with this one, but only if the infinite rank was not
 								// given by the tree owner.
-								try {
-									final Trust treeOwnerTrust = getTrust(treeOwner, trustee);
+								final Trust treeOwnerTrust = getTrustOrNull(treeOwner, trustee);
+								if(treeOwnerTrust != null) {
 									assert(treeOwnerTrust.getValue() <= 0)
 										: "The treeOwner Trusts are processed before all other "
 										+ "Trusts, and their rank value overwrites the ones of "
 										+ "non-treeOwner Trusts. Thus, if there is a treeOwner "
 										+ "Trust, it should have a value which could have caused "
 										+ "the current rank of Integer.MAX_VALUE.";
-								} catch(NotTrustedException e) {
-									if(trust.getValue() > 0) {
-										rankValues.put(trustee.getID(), trusteeRank);
-										unprocessedTrusters.addLast(trustee);
-									}
+								} else if(trust.getValue() > 0) {
+									rankValues.put(trustee.getID(), trusteeRank);
+									unprocessedTrusters.addLast(trustee);
 								}
 							}
 						}
@@ -1903,9 +2245,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 					}
 					else {
 						// If the treeOwner has assigned a trust value to the target, it always overrides the "remote" score.
-						try {
-							targetScore = (int)getTrust(treeOwner, target).getValue();
-						} catch(NotTrustedException e) {
+						final Trust treeOwnerTrust = getTrustOrNull(treeOwner, target);
+						if(treeOwnerTrust != null) {
+							targetScore = (int)treeOwnerTrust.getValue();
+						} else {
 							targetScore = 0;
 							for(Trust receivedTrust : getReceivedTrusts(target)) {
 								final Identity truster = receivedTrust.getTruster();
@@ -1932,8 +2275,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 				int oldCapacity = 0;
 				
 				// Now we have the rank and the score of the target computed and can check whether the database-stored score object is correct.
-				try {
-					Score currentStoredScore = getScore(treeOwner, target);
+				final Score currentStoredScore = getScoreOrNull(treeOwner, target);
+				if(currentStoredScore != null) {
 					oldCapacity = currentStoredScore.getCapacity();
 					
 					if(newScore == null) {
@@ -1966,7 +2309,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 							mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(oldScore, currentStoredScore);
 						}
 					}
-				} catch(NotInTrustTreeException e) {
+				} else {
 					oldCapacity = 0;
 					
 					if(newScore != null) {
@@ -2069,6 +2412,12 @@ public final class WebOfTrust extends WebOfTrustInterface
 
 						mFetcher.storeAbortFetchCommandWithoutCommit(target);
 					}
+					else if(oldCapacity != (newScore != null ? newScore.getCapacity() : 0)
+							&& shouldFetchIdentity(target)) {
+						// The best capacity may have changed, which determines the priority of
+						// the fetch
+						mFetcher.storeUpdatePriorityCommandWithoutCommit(target);
+					}
 				}
 			}
 		}
@@ -2243,11 +2592,6 @@ public final class WebOfTrust extends WebOfTrustInterface
 				mInserter.terminate();
 		}});
 		
-		shutdownThreads.add(new ShutdownThread() { @Override public void realRun() {
-			if(mFetcher != null)
-				mFetcher.stop();
-		}});
-		
 		shutdownThreads.add(new ShutdownThread() { @Override public void realRun() {
 			if(mIdentityFileProcessor != null) {
 				// TODO: Code quality: Make all subsystems support non-blocking terminate() and
@@ -2264,6 +2608,15 @@ public final class WebOfTrust extends WebOfTrustInterface
 					success.set(false);
 				}
 			}
+			
+			// Flushes the pending hints, so they are not lost if we are not restarted soon.
+			// After the IdentityFileProcessor has terminated as it adds the hints, and before the
+			// IdentityFetcher is stopped as the flush stores commands for it.
+			if(mEditionHintAggregator != null)
+				mEditionHintAggregator.terminate();
+			
+			if(mFetcher != null)
+				mFetcher.stop();
 		}});
 
 		shutdownThreads.add(new ShutdownThread() { @Override public void realRun() {
@@ -2388,6 +2741,22 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws UnknownIdentityException if there is no identity with this id in the database
 	 */
 	public synchronized Identity getIdentityByID(String id) throws UnknownIdentityException {
+		final Identity result = getIdentityByIDOrNull(id);
+		if(result == null)
+			throw new UnknownIdentityException(id);
+		return result;
+	}
+	
+	/**
+	 * Same as {@link #getIdentityByID(String)}, but returns null instead of throwing
+	 * {@link UnknownIdentityException} if there is no identity with the given ID.<br>
+	 * Use this in code paths where the identity not existing is a regular case, for example when
+	 * processing the trustees of an imported trust list: Constructing and catching the exception
+	 * is a lot slower than checking for null.
+	 * 
+	 * @throws DuplicateIdentityException if there are more than one identity with this id in the
+	 *     database */
+	public synchronized Identity getIdentityByIDOrNull(String id) {
 		final Query query = mDB.query();
 		query.constrain(Identity.class);
 		query.descend("mID").constrain(id);
@@ -2395,7 +2764,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		switch(result.size()) {
 			case 1: return result.next();
-			case 0: throw new UnknownIdentityException(id);
+			case 0: return null;
 			default: throw new DuplicateIdentityException(id, result.size());
 		}  
 	}
@@ -2408,6 +2777,18 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws UnknownIdentityException if there is now OwnIdentity with that id
 	 */
 	public synchronized OwnIdentity getOwnIdentityByID(String id) throws UnknownIdentityException {
+		final OwnIdentity result = getOwnIdentityByIDOrNull(id);
+		if(result == null)
+			throw new UnknownIdentityException(id);
+		return result;
+	}
+	
+	/**
+	 * Same as {@link #getOwnIdentityByID(String)}, but returns null instead of throwing
+	 * {@link UnknownIdentityException} if there is no OwnIdentity with the given ID.
+	 * 
+	 * @see #getIdentityByIDOrNull(String) */
+	public synchronized OwnIdentity getOwnIdentityByIDOrNull(String id) {
 		final Query query = mDB.query();
 		query.constrain(OwnIdentity.class);
 		query.descend("mID").constrain(id);
@@ -2415,7 +2796,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		switch(result.size()) {
 			case 1: return result.next();
-			case 0: throw new UnknownIdentityException(id);
+			case 0: return null;
 			default: throw new DuplicateIdentityException(id, result.size());
 		}  
 	}
@@ -2431,6 +2812,39 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return getIdentityByID(IdentityID.constructAndValidateFromURI(uri).toString());
 	}
 
+	/**
+	 * Loads the identities with the given IDs from the database using a single query.<br>
+	 * This is much faster than calling {@link #getIdentityByID(String)} for each ID when
+	 * processing many IDs at once, such as the trustees of an imported trust list.<br><br>
+	 * 
+	 * IDs for which there is no identity in the database are not contained in the result, they
+	 * do NOT cause an {@link UnknownIdentityException}.
+	 * 
+	 * @return A map which maps the IDs to the identities. It is not backed by the database.
+	 * @throws DuplicateIdentityException If there are multiple identities with the same ID in the
+	 *     database (should never happen).
+	 */
+	public synchronized HashMap<String, Identity> getIdentitiesByID(Collection<String> ids) {
+		final HashMap<String, Identity> result = new HashMap<String, Identity>(ids.size() * 2);
+		if(ids.isEmpty())
+			return result;
+		
+		final Query query = mDB.query();
+		query.constrain(Identity.class);
+		Constraint idConstraint = null;
+		for(String id : ids) {
+			final Constraint c = query.descend("mID").constrain(id);
+			idConstraint = (idConstraint == null) ? c : idConstraint.or(c);
+		}
+		
+		for(Identity identity : new Persistent.InitializingObjectSet<Identity>(this, query)) {
+			if(result.put(identity.getID(), identity) != null)
+				throw new DuplicateIdentityException(identity.getID(), 2);
+		}
+		
+		return result;
+	}
+
 	/**
 	 * Loads an identity from the database, querying on its requestURI (as String)
 	 * 
@@ -2481,6 +2895,24 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return new Persistent.InitializingObjectSet<Identity>(this, query);
 	}
 	
+	/**
+	 * Returns the identities whose {@link Identity#getID()} is greater than the given ID, in ascending order of the ID.
+	 * <br>
+	 * Allows processing all identities in pages without holding the lock of this WoT in between: The caller
+	 * remembers the ID of the last identity of a page and passes it to the query of the next page.<br>
+	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 * 
+	 * @param afterID Null to start with the first identity.
+	 */
+	public ObjectSet<Identity> getIdentitiesAfterID(final String afterID) {
+		final Query query = mDB.query();
+		query.constrain(Identity.class);
+		if(afterID != null)
+			query.descend("mID").constrain(afterID).greater();
+		query.descend("mID").orderAscending();
+		return new Persistent.InitializingObjectSet<Identity>(this, query);
+	}
+	
 	public static enum SortOrder {
 	    ByEditionAscending,
 	    ByEditionDescending,
@@ -2674,8 +3106,14 @@ public final class WebOfTrust extends WebOfTrustInterface
 
 			if(logDEBUG) Logger.debug(this, "Deleting received trusts...");
 			for(Trust trust : getReceivedTrusts(identity)) {
+				final Identity truster = trust.getTruster();
+				if(truster instanceof OwnIdentity)
+					mOwnIdentityXMLCache.invalidate(truster.getID());
 				trust.deleteWithoutCommit();
 				mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(trust, null);
+				// Re-importing the unchanged trust list of the truster must re-create the identity
+				truster.clearIdentityFileFingerprint();
+				truster.storeWithoutCommit();
 			}
 
 			if(logDEBUG) Logger.debug(this, "Deleting given trusts...");
@@ -2726,6 +3164,20 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws NotInTrustTreeException if this identity is not in the required trust tree 
 	 */
 	public synchronized Score getScore(final OwnIdentity truster, final Identity trustee) throws NotInTrustTreeException {
+		final Score result = getScoreOrNull(truster, trustee);
+		if(result == null)
+			throw new NotInTrustTreeException(truster, trustee);
+		return result;
+	}
+	
+	/**
+	 * Same as {@link #getScore(OwnIdentity, Identity)}, but returns null instead of throwing
+	 * {@link NotInTrustTreeException} if the trustee is not in the trust tree of the truster.
+	 * <br>
+	 * Use this in the Score computation and other loops where a missing Score is a regular case.
+	 * 
+	 * @see #getIdentityByIDOrNull(String) */
+	public synchronized Score getScoreOrNull(final OwnIdentity truster, final Identity trustee) {
 		final Query query = mDB.query();
 		query.constrain(Score.class);
 		query.descend("mID").constrain(new ScoreID(truster, trustee).toString());
@@ -2737,7 +3189,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 				assert(score.getTruster() == truster);
 				assert(score.getTrustee() == trustee);
 				return score;
-			case 0: throw new NotInTrustTreeException(truster, trustee);
+			case 0: return null;
 			default: throw new DuplicateScoreException(truster, trustee, result.size());
 		}
 	}
@@ -2809,14 +3261,25 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws NotInTrustTreeException If the identity is not in any trust tree. Can be interpreted as capacity 0.
 	 */
 	public synchronized int getBestCapacity(final Identity identity) throws NotInTrustTreeException {
-		int bestCapacity = 0;
-		final ObjectSet<Score> scores = getScores(identity);
+		final int bestCapacity = getBestCapacityOrZero(identity);
 		
-		if(scores.size() == 0)
+		// Capacity 0 can also be the result of Scores which all have capacity 0.
+		if(bestCapacity == 0 && getScores(identity).size() == 0)
 			throw new NotInTrustTreeException(identity);
 		
+		return bestCapacity;
+	}
+	
+	/**
+	 * Same as {@link #getBestCapacity(Identity)}, but returns 0 instead of throwing
+	 * {@link NotInTrustTreeException} if the identity is not in any trust tree.
+	 * 
+	 * @see #getIdentityByIDOrNull(String) */
+	public synchronized int getBestCapacityOrZero(final Identity identity) {
+		int bestCapacity = 0;
+		
 		// TODO: Cache the best score of an identity as a member variable.
-		for(final Score score : scores) 
+		for(final Score score : getScores(identity)) 
 			bestCapacity  = Math.max(score.getCapacity(), bestCapacity);
 		
 		return bestCapacity;
@@ -2833,6 +3296,24 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return new Persistent.InitializingObjectSet<Score>(this, query);
 	}
 	
+	/**
+	 * Same as {@link #getIdentitiesAfterID(String)} for {@link Score}s.
+	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 * 
+	 * @param truster If non-null, only the scores which this own identity has assigned are returned.
+	 * @param afterID Null to start with the first score.
+	 */
+	public ObjectSet<Score> getScoresAfterID(final OwnIdentity truster, final String afterID) {
+		final Query query = mDB.query();
+		query.constrain(Score.class);
+		if(truster != null)
+			query.descend("mTruster").constrain(truster).identity();
+		if(afterID != null)
+			query.descend("mID").constrain(afterID).greater();
+		query.descend("mID").orderAscending();
+		return new Persistent.InitializingObjectSet<Score>(this, query);
+	}
+	
 	/**
 	 * Checks whether the given identity should be downloaded. 
 	 * 
@@ -2987,6 +3468,26 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @see #getTrust(Identity, Identity)
 	 */
 	public synchronized Trust getTrust(final String trustID) throws NotTrustedException, DuplicateTrustException {
+		final Trust result = getTrustOrNull(trustID);
+		if(result == null)
+			throw new NotTrustedException(trustID);
+		return result;
+	}
+	
+	/**
+	 * Same as {@link #getTrust(Identity, Identity)}, but returns null instead of throwing
+	 * {@link NotTrustedException} if the truster doesn't trust the trustee.<br>
+	 * Use this in the Score computation and other loops where a missing Trust is a regular case.
+	 * 
+	 * @see #getIdentityByIDOrNull(String) */
+	public synchronized Trust getTrustOrNull(final Identity truster, final Identity trustee)
+			throws DuplicateTrustException {
+		
+		return getTrustOrNull(new TrustID(truster, trustee).toString());
+	}
+	
+	/** @see #getTrustOrNull(Identity, Identity) */
+	public synchronized Trust getTrustOrNull(final String trustID) throws DuplicateTrustException {
 		final Query query = mDB.query();
 		query.constrain(Trust.class);
 		query.descend("mID").constrain(trustID);
@@ -2997,7 +3498,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 				final Trust trust = result.next();
 				assert(trustID.equals(new TrustID(trust.getTruster(), trust.getTrustee()).toString()));
 				return trust;
-			case 0: throw new NotTrustedException(trustID);
+			case 0: return null;
 			default: throw new DuplicateTrustException(trustID, result.size());
 		}
 	}
@@ -3015,6 +3516,22 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return new Persistent.InitializingObjectSet<Trust>(this, query);
 	}
 	
+	/**
+	 * Gets all trusts given by the given truster, keyed by the ID of their trustee.<br>
+	 * Used by the {@link XMLTransformer} to compute the difference between the trust list in
+	 * the database and an imported one without querying each Trust individually.<br>
+	 * You have to synchronize on this WoT when calling the function and processing the returned map!
+	 * 
+	 * @return A map which is NOT backed by the database. Modifying it won't modify the database.
+	 */
+	protected HashMap<String, Trust> getGivenTrustsByTrusteeID(final Identity truster) {
+		final ObjectSet<Trust> givenTrusts = getGivenTrusts(truster);
+		final HashMap<String, Trust> result = new HashMap<String, Trust>(givenTrusts.size() * 2);
+		for(Trust trust : givenTrusts)
+			result.put(trust.getTrustee().getID(), trust);
+		return result;
+	}
+	
 	/**
 	 * Gets all trusts given by the given truster.
 	 * The result is sorted descending by the time we last fetched the trusted identity. 
@@ -3056,18 +3573,6 @@ public final class WebOfTrust extends WebOfTrustInterface
 
 		return new Persistent.InitializingObjectSet<Trust>(this, query);
 	}
-	/**
-	 * Gets all trusts given by the given truster in a trust list with a different edition than the passed in one.
-	 * You have to synchronize on this WoT when calling the function and processing the returned list!
-	 */
-	protected ObjectSet<Trust> getGivenTrustsOfDifferentEdition(final Identity truster, final long edition) {
-		final Query q = mDB.query();
-		q.constrain(Trust.class);
-		q.descend("mTruster").constrain(truster).identity();
-		q.descend("mTrusterTrustListEdition").constrain(edition).not();
-		return new Persistent.InitializingObjectSet<Trust>(this, q);
-	}
-
 	/**
 	 * Gets all trusts received by the given trustee.
 	 * You have to synchronize on this WoT when calling the function and processing the returned list!
@@ -3120,6 +3625,24 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return new Persistent.InitializingObjectSet<Trust>(this, query); 
 	}
 	
+	/**
+	 * Same as {@link #getIdentitiesAfterID(String)} for {@link Trust}s.
+	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 * 
+	 * @param truster If non-null, only the trusts which this identity has given are returned.
+	 * @param afterID Null to start with the first trust.
+	 */
+	public ObjectSet<Trust> getTrustsAfterID(final Identity truster, final String afterID) {
+		final Query query = mDB.query();
+		query.constrain(Trust.class);
+		if(truster != null)
+			query.descend("mTruster").constrain(truster).identity();
+		if(afterID != null)
+			query.descend("mID").constrain(afterID).greater();
+		query.descend("mID").orderAscending();
+		return new Persistent.InitializingObjectSet<Trust>(this, query); 
+	}
+	
 	/**
 	 * Gives some {@link Trust} to another Identity.
 	 * It creates or updates an existing Trust object and make the trustee compute its {@link Score}.
@@ -3142,8 +3665,43 @@ public final class WebOfTrust extends WebOfTrustInterface
 	protected void setTrustWithoutCommit(Identity truster, Identity trustee, byte newValue, String newComment)
 		throws InvalidParameterException {
 		
-		try { // Check if we are updating an existing trust value
-			final Trust trust = getTrust(truster, trustee);
+		// Check if we are updating an existing trust value
+		final Trust existingTrust = getTrustOrNull(truster, trustee);
+		
+		setTrustWithoutCommit(truster, trustee, existingTrust, newValue, newComment);
+
+		truster.updated();
+		truster.storeWithoutCommit();
+		
+		// TODO: Mabye notify clients about this. IMHO it would create too much notifications on trust list import so we don't.
+		// As soon as we have notification-coalescing we might do it.
+		// mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(truster);
+	}
+	
+	/**
+	 * Backend for {@link #setTrustWithoutCommit(Identity, Identity, byte, String)} for callers
+	 * which have already queried the existing {@link Trust} from the truster to the trustee, for
+	 * example by using {@link #getGivenTrustsByTrusteeID(Identity)}.<br>
+	 * Does NOT call {@link Identity#updated()} and {@link Identity#storeWithoutCommit()} upon the
+	 * truster, the caller must do so.<br><br>
+	 * 
+	 * The same synchronization as for {@link #setTrustWithoutCommit(Identity, Identity, byte,
+	 * String)} is required.
+	 * 
+	 * @param existingTrust The existing Trust from the truster to the trustee, or null if there
+	 *     is none.
+	 * @return The updated existingTrust, or the newly created Trust if existingTrust was null.
+	 */
+	protected Trust setTrustWithoutCommit(Identity truster, Identity trustee, Trust existingTrust,
+			byte newValue, String newComment) throws InvalidParameterException {
+		
+		if(truster instanceof OwnIdentity)
+			mOwnIdentityXMLCache.invalidate(truster.getID());
+		
+		if(existingTrust != null) {
+			final Trust trust = existingTrust;
+			assert(trust.getTruster().getID().equals(truster.getID()));
+			assert(trust.getTrustee().getID().equals(trustee.getID()));
 			final Trust oldTrust = trust.clone();
 			trust.trusterEditionUpdated();
 			trust.setComment(newComment);
@@ -3161,20 +3719,16 @@ public final class WebOfTrust extends WebOfTrustInterface
 				if(logDEBUG) Logger.debug(this, "Updated trust value ("+ trust +"), now updating Score.");
 				updateScoresWithoutCommit(oldTrust, trust);
 			}
-		} catch (NotTrustedException e) {
+			
+			return trust;
+		} else {
 			final Trust trust = new Trust(this, truster, trustee, newValue, newComment);
 			trust.storeWithoutCommit();
 			mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(null, trust);
 			if(logDEBUG) Logger.debug(this, "New trust value ("+ trust +"), now updating Score.");
 			updateScoresWithoutCommit(null, trust);
-		} 
-
-		truster.updated();
-		truster.storeWithoutCommit();
-		
-		// TODO: Mabye notify clients about this. IMHO it would create too much notifications on trust list import so we don't.
-		// As soon as we have notification-coalescing we might do it.
-		// mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(truster);
+			return trust;
+		}
 	}
 	
 	/**
@@ -3241,6 +3795,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * 
 	 */
 	protected void removeTrustWithoutCommit(Trust trust) {
+		final Identity truster = trust.getTruster();
+		if(truster instanceof OwnIdentity)
+			mOwnIdentityXMLCache.invalidate(truster.getID());
+		
 		trust.deleteWithoutCommit();
 		mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(trust, null);
 		updateScoresWithoutCommit(trust, null);
@@ -3291,16 +3849,14 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		int value = 0;
 		
-		try {
-			return getTrust(truster, trustee).getValue();
-		}
-		catch(NotTrustedException e) { }
+		final Trust treeOwnerTrust = getTrustOrNull(truster, trustee);
+		if(treeOwnerTrust != null)
+			return treeOwnerTrust.getValue();
 		
 		for(Trust trust : getReceivedTrusts(trustee)) {
-			try {
-				final Score trusterScore = getScore(truster, trust.getTruster());
+			final Score trusterScore = getScoreOrNull(truster, trust.getTruster());
+			if(trusterScore != null)
 				value += ( trust.getValue() * trusterScore.getCapacity() ) / 100;
-			} catch (NotInTrustTreeException e) {}
 		}
 		return value;
 	}
@@ -4025,32 +4581,29 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		int rank = -1;
 		
-		try {
-			Trust treeOwnerTrust = getTrust(truster, trustee);
-			
+		final Trust treeOwnerTrust = getTrustOrNull(truster, trustee);
+		if(treeOwnerTrust != null) {
 			if(treeOwnerTrust.getValue() > 0)
 				return 1;
 			else
 				return Integer.MAX_VALUE;
-		} catch(NotTrustedException e) { }
+		}
 		
 		for(Trust trust : getReceivedTrusts(trustee)) {
-			try {
-				Score score = getScore(truster, trust.getTruster());
-
-				if(score.getCapacity() != 0) { // If the truster has no capacity, he can't give his rank
-					// A truster only gives his rank to a trustee if he has assigned a strictly positive trust value
-					if(trust.getValue() > 0 ) {
-						// We give the rank to the trustee if it is better than its current rank or he has no rank yet. 
-						if(rank == -1 || score.getRank() < rank)  
-							rank = score.getRank();						
-					} else {
-						// If the trustee has no rank yet we give him an infinite rank. because he is distrusted by the truster.
-						if(rank == -1)
-							rank = Integer.MAX_VALUE;
-					}
+			final Score score = getScoreOrNull(truster, trust.getTruster());
+
+			if(score != null && score.getCapacity() != 0) { // If the truster has no capacity, he can't give his rank
+				// A truster only gives his rank to a trustee if he has assigned a strictly positive trust value
+				if(trust.getValue() > 0 ) {
+					// We give the rank to the trustee if it is better than its current rank or he has no rank yet. 
+					if(rank == -1 || score.getRank() < rank)  
+						rank = score.getRank();						
+				} else {
+					// If the trustee has no rank yet we give him an infinite rank. because he is distrusted by the truster.
+					if(rank == -1)
+						rank = Integer.MAX_VALUE;
 				}
-			} catch (NotInTrustTreeException e) {}
+			}
 		}
 		
 		if(rank == -1)
@@ -4280,13 +4833,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 
 		if(!mFullScoreComputationNeeded && (trustWasCreated || trustWasModified)) {
 			for(OwnIdentity treeOwner : getAllOwnIdentities()) {
-				try {
-					// Throws to abort the update of the trustee's score: If the truster has no rank or capacity in the tree owner's view then we don't need to update the trustee's score.
-					if(getScore(treeOwner, newTrust.getTruster()).getCapacity() == 0)
-						continue;
-				} catch(NotInTrustTreeException e) {
+				// If the truster has no rank or capacity in the tree owner's view then we don't need to update the trustee's score.
+				final Score trusterScore = getScoreOrNull(treeOwner, newTrust.getTruster());
+				if(trusterScore == null || trusterScore.getCapacity() == 0)
 					continue;
-				}
 				
 				// FIXME: Performance: Why is this inside the loop, it doesn't depend on anything
 				// which changes during the loop?
@@ -4306,17 +4856,12 @@ public final class WebOfTrust extends WebOfTrustInterface
 					if(trustee == treeOwner)
 						continue;
 
-					Score currentStoredTrusteeScore;
+					Score currentStoredTrusteeScore = getScoreOrNull(treeOwner, trustee);
 
-					boolean scoreExistedBefore;
+					final boolean scoreExistedBefore = (currentStoredTrusteeScore != null);
 					
-					try {
-						currentStoredTrusteeScore = getScore(treeOwner, trustee);
-						scoreExistedBefore = true;
-					} catch(NotInTrustTreeException e) {
-						scoreExistedBefore = false;
+					if(!scoreExistedBefore)
 						currentStoredTrusteeScore = new Score(this, treeOwner, trustee, 0, -1, 0);
-					}
 					
 					final Score oldScore = currentStoredTrusteeScore.clone();
 					boolean oldShouldFetch = shouldFetchIdentity(trustee);
@@ -4396,6 +4941,11 @@ public final class WebOfTrust extends WebOfTrustInterface
 
 						mFetcher.storeAbortFetchCommandWithoutCommit(trustee);
 					}
+					else if(oldScore.getCapacity() != newScore.getCapacity() && shouldFetchIdentity(trustee)) {
+						// The best capacity may have changed, which determines the priority of
+						// the fetch
+						mFetcher.storeUpdatePriorityCommandWithoutCommit(trustee);
+					}
 					
 					// If the rank or capacity changed then the trustees might be affected because the could have inherited theirs
 					if(oldScore.getRank() != newScore.getRank() || oldScore.getCapacity() != newScore.getCapacity()) {
@@ -4571,11 +5121,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 				if(!scoresWithUpdatedValue.add(scoreID.toString()))
 					continue;
 				
-				Score score;
-				try {
-					// TODO: Performance: Use getScore() which consumes ScoreID
-					score = getScore(treeOwner, trustReceiver);
-				} catch(NotInTrustTreeException e) {
+				// TODO: Performance: Use getScore() which consumes ScoreID
+				final Score score = getScoreOrNull(treeOwner, trustReceiver);
+				if(score == null) {
 					// No need to create it: updateRanksAfterDistrustWithoutCommit() has already
 					// created all scores which could be created.
 					continue;
@@ -4663,6 +5211,13 @@ public final class WebOfTrust extends WebOfTrustInterface
 					mFetcher.storeStartFetchCommandWithoutCommit(target);
 				} else
 					mFetcher.storeAbortFetchCommandWithoutCommit(target);
+			} else if(oldScore.getCapacity() != newScore.getCapacity()) {
+				// The best capacity may have changed, which determines the priority of the fetch.
+				// Score created or deleted was handled above so both are non-null.
+				Identity target = newScore.getTrustee();
+				
+				if(shouldFetchIdentity(target))
+					mFetcher.storeUpdatePriorityCommandWithoutCommit(target);
 			}
 		}
 	}
@@ -4773,10 +5328,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 				if(scoresQueued.contains(new ScoreID(treeOwner, neighbour).toString()))
 					continue;
 				
-				Score touchedScore;
-				try  {
-					touchedScore = getScore(treeOwner, neighbour);
-				} catch(NotInTrustTreeException e) {
+				final Score touchedScore = getScoreOrNull(treeOwner, neighbour);
+				if(touchedScore == null) {
 					// No need to create a Score: This function is only called upon distrust.
 					// Distrust can only induce Score creation for the distrusted identity, not
 					// for its trustees. We already dealt with creating scores for the distrusted
@@ -4941,7 +5494,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 					mIntroductionClient.nextIteration(); // This will make it fetch more introduction puzzles.
 				
 	            if(mInserter != null)
-	                mInserter.nextIteration();
+	                mInserter.scheduleInsert(identity);
 
 				Logger.normal(this, "Successfully created a new OwnIdentity: " + identity);
 				return identity;
@@ -4975,6 +5528,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 			
 			try {
 				Logger.normal(this, "Deleting an OwnIdentity by converting it to a non-own Identity: " + oldIdentity);
+				
+				mOwnIdentityXMLCache.invalidate(id);
 
 				// We don't need any score computations to happen (explanation will follow below) so we don't need the following: 
 				/* beginTrustListImport(); */
@@ -5383,7 +5938,13 @@ public final class WebOfTrust extends WebOfTrustInterface
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
 			try  {
-				removeTrustWithoutCommit(getTrust(trusterID, trusteeID));
+				final Trust trust = getTrust(trusterID, trusteeID);
+				final Identity truster = trust.getTruster();
+				removeTrustWithoutCommit(trust);
+				// The trust list in the database doesn't match the last imported one anymore, so
+				// XMLTransformer.importIdentity() must not skip the next edition if it is unchanged
+				truster.clearIdentityFileFingerprint();
+				truster.storeWithoutCommit();
 				Persistent.checkedCommit(mDB, this);
 			}
 			catch(RuntimeException e) {
@@ -5598,11 +6159,23 @@ public final class WebOfTrust extends WebOfTrustInterface
 	public IdentityFileQueue getIdentityFileQueue() {
 		return mIdentityFileQueue;
 	}
+	
+	IdentityFileNegativeCache getIdentityFileNegativeCache() {
+		return mIdentityFileNegativeCache;
+	}
+
+	OwnIdentityXMLCache getOwnIdentityXMLCache() {
+		return mOwnIdentityXMLCache;
+	}
 
 	public IdentityFileProcessor getIdentityFileProcessor() {
 		return mIdentityFileProcessor;
 	}
 
+	public EditionHintAggregator getEditionHintAggregator() {
+		return mEditionHintAggregator;
+	}
+
     public IdentityInserter getIdentityInserter() {
         return mInserter;
     }
@@ -5718,6 +6291,23 @@ public final class WebOfTrust extends WebOfTrustInterface
 			/ (1000d * (mFullScoreRecomputationCount != 0 ? mFullScoreRecomputationCount : 1));
 	}
 
+	/**
+	 * @return The total time which all incremental Score computations took, in nanoseconds.
+	 *     Used by {@link XMLTransformer} to measure the Score computation caused by a trust list
+	 *     import separately from the rest of the import. */
+	synchronized long getTotalIncrementalScoreRecomputationNanos() {
+		return mIncrementalScoreRecomputationDueToTrustNanos
+		     + mIncrementalScoreRecomputationDueToDistrustNanos;
+	}
+
+	/**
+	 * @return The total time which all full Score computations took, in nanoseconds.
+	 *     The precision is only milliseconds.
+	 * @see #getTotalIncrementalScoreRecomputationNanos() */
+	synchronized long getTotalFullScoreRecomputationNanos() {
+		return TimeUnit.MILLISECONDS.toNanos(mFullScoreRecomputationMilliseconds);
+	}
+
 	public int getNumberOfIncrementalScoreRecomputationDueToTrust() {
 		return mIncrementalScoreRecomputationDueToTrustCount;
 	}
@@ -3,16 +3,24 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import java.io.ByteArrayInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -20,6 +28,8 @@ import java.util.HashSet;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
@@ -39,11 +49,12 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 import plugins.WebOfTrust.Identity.FetchState;
+import plugins.WebOfTrust.Identity.IdentityID;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
-import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.introduction.IntroductionPuzzle;
+import plugins.WebOfTrust.util.StopWatch;
 
 import com.db4o.ext.ExtObjectContainer;
 
@@ -51,6 +62,7 @@ import freenet.keys.FreenetURI;
 import freenet.support.Base64;
 import freenet.support.IllegalBase64Exception;
 import freenet.support.Logger;
+import freenet.support.io.FileUtil;
 
 /**
  * This class handles all XML creation and parsing of the WoT plugin, that is import and export of identities, identity introductions 
@@ -98,6 +110,64 @@ public final class XMLTransformer {
 	 */
 	public static final int MAX_IDENTITY_XML_TRUSTEE_AMOUNT = 512;
 	
+	/**
+	 * The stages of {@link #importIdentity(FreenetURI, InputStream, ImportTimings)} whose
+	 * duration is measured separately. */
+	public static enum ImportStage {
+		/** Parsing the XML. Does not hold any locks. */
+		Parsing,
+		/**
+		 * Waiting for the locks upon the {@link WebOfTrust}, {@link IdentityFetcher},
+		 * {@link SubscriptionManager} and {@link Persistent#transactionLock(ExtObjectContainer)}.
+		 * Long durations indicate that other daemons or the UI keep WOT busy. */
+		LockAcquisition,
+		/** Updating edition, nickname, contexts, properties and fetch state of the identity. */
+		IdentityUpdate,
+		/**
+		 * Creating, modifying and deleting the {@link Trust} objects and trustees of the trust
+		 * list, excluding the {@link Score} computation which this causes. */
+		TrustListApplication,
+		/** Incremental Score computation caused by the trust list. */
+		IncrementalScoreComputation,
+		/** Full Score computation caused by the trust list. */
+		FullScoreComputation,
+		/** Committing the transaction. */
+		Commit
+	}
+	
+	/**
+	 * Durations of the {@link ImportStage}s of a single call to
+	 * {@link #importIdentity(FreenetURI, InputStream, ImportTimings)}. */
+	public static final class ImportTimings {
+		private final long[] mNanos = new long[ImportStage.values().length];
+		
+		/** @see #wasIdentityUnknown() */
+		private boolean mIdentityUnknown = false;
+		
+		public ImportTimings() {
+			Arrays.fill(mNanos, -1);
+		}
+		
+		void add(ImportStage stage, long nanos) {
+			final int i = stage.ordinal();
+			mNanos[i] = (mNanos[i] == -1 ? 0 : mNanos[i]) + Math.max(nanos, 0);
+		}
+		
+		/**
+		 * @return The duration of the stage in nanoseconds, or -1 if the stage did not happen,
+		 *     e.g. if no Score computation was necessary or if importing failed early. */
+		public long getNanos(ImportStage stage) {
+			return mNanos[stage.ordinal()];
+		}
+		
+		/**
+		 * @return True if the file was not imported because its identity did not exist (anymore),
+		 *     for example because it was deleted while the file was queued. */
+		public boolean wasIdentityUnknown() {
+			return mIdentityUnknown;
+		}
+	}
+	
 	private final WebOfTrust mWoT;
 	
 	/**
@@ -188,96 +258,192 @@ public final class XMLTransformer {
         }
     }
 
-	public void exportOwnIdentity(OwnIdentity identity, OutputStream os) throws TransformerException {
-		Document xmlDoc;
-		synchronized(mDocumentBuilder) { // TODO: Figure out whether the DocumentBuilder is maybe synchronized anyway 
-			xmlDoc = mDOM.createDocument(null, WebOfTrustInterface.WOT_NAME, null);
+	/**
+	 * Selects the {@link Trust}s which are included in the identity XML of the given
+	 * {@link OwnIdentity}, in the order in which they are written.<br>
+	 * You have to synchronize on the {@link WebOfTrust} when calling this function. */
+	private ArrayList<Trust> getExportedTrusts(OwnIdentity identity) {
+		final ArrayList<Trust> trusts = new ArrayList<Trust>(MAX_IDENTITY_XML_TRUSTEE_AMOUNT + 1);
+		// We can only include a limited amount of trust values because the allowed size of a trust list must be finite to prevent DoS.
+		// So we chose the included trust values by sorting the trust list by last seen date of the trustee and cutting off
+		// the list after the size limit. This gives active identities who still publish a trust list a better chance than the ones
+		// who aren't in use anymore.
+		int trustCount = 0;
+		for(Trust trustCandidate : mWoT.getGivenTrustsSortedDescendingByLastSeen(identity)) {
+			if(++trustCount > MAX_IDENTITY_XML_TRUSTEE_AMOUNT) {
+				Logger.normal(this, "Amount of trustees exceeded " + MAX_IDENTITY_XML_TRUSTEE_AMOUNT + ", not adding any more to trust list of " + identity);
+				break;
+			}
+			trusts.add(trustCandidate);
 		}
+
+		// We cannot add the trusts like we queried them from the database: We have sorted the database query by last-seen date
+		// and that date reveals some information about the state of the WOT. This is a potential privacy leak.
+		// So we randomize the appearance of the trust values in the XML. We are OK to use a weak RNG:
+		// - The original sort order which we try to hide is not used for any computations, it is merely of statistical significance.
+		//   So RNG exploits cannot wreak any havoc by maliciously positioning stuff where it shouldn't be
+		// - The order in which the node fetches identities should already be softly randomized.
+		//   Randomizing it even more with a weak RNG will make it very random.
+		Collections.shuffle(trusts, mFastWeakRandom);
+		return trusts;
+	}
+
+	/**
+	 * Writes the identity XML of the given {@link OwnIdentity} to the given stream.<br>
+	 * Unlike {@link #exportIntroduction(OwnIdentity, OutputStream)}, the XML is written directly
+	 * to the stream instead of building a DOM {@link Document} and serializing it with the
+	 * {@link #mSerializer}. This avoids the memory and CPU overhead of the DOM, and the
+	 * synchronization upon the {@link #mDocumentBuilder} and {@link #mSerializer} - which the
+	 * {@link IdentityInserter} would otherwise hold while holding the {@link WebOfTrust} lock.
+	 * <br><br>
+	 *
+	 * The output is the same as the one of the DOM serializer apart from the whitespace between
+	 * the elements: Instead of indenting, every element is followed by a newline to keep the lines
+	 * short, see the TODO at the {@link #mSerializer} indentation setting.<br>
+	 * Elements and attributes are written in the same order as the serializer does, which is
+	 * the alphabetical order for attributes.<br><br>
+	 *
+	 * Does not close the given stream. */
+	public void exportOwnIdentityStreaming(OwnIdentity identity, OutputStream os)
+			throws IOException {
 		
-		// 1.0 does not support all Unicode characters which the String class supports. To prevent us from having to filter all Strings, we use 1.1
-		xmlDoc.setXmlVersion("1.1");
-		
-		Element rootElement = xmlDoc.getDocumentElement();
+		final StreamingXMLWriter xml = new StreamingXMLWriter(os);
 		
 		// We include the WoT version to have an easy way of handling bogus XML which might be created by bugged versions.
-		rootElement.setAttribute("Version", Long.toString(Version.getRealVersion()));
+		xml.startElement(WebOfTrustInterface.WOT_NAME);
+		xml.attribute("Version", Long.toString(Version.getRealVersion()));
 		
-		/* Create the identity Element */
-		
-		Element identityElement = xmlDoc.createElement("Identity");
-		identityElement.setAttribute("Version", Integer.toString(XML_FORMAT_VERSION)); /* Version of the XML format */
+		xml.startElement("Identity");
 		
 		synchronized(mWoT) {
-			identityElement.setAttribute("Name", identity.getNickname());
-			identityElement.setAttribute("PublishesTrustList", Boolean.toString(identity.doesPublishTrustList()));
-			
-			/* Create the context Elements */
+			xml.attribute("Name", identity.getNickname());
+			xml.attribute("PublishesTrustList", Boolean.toString(identity.doesPublishTrustList()));
+			xml.attribute("Version", Integer.toString(XML_FORMAT_VERSION)); /* Version of the XML format */
 			
 			for(String context : identity.getContexts()) {
-				Element contextElement = xmlDoc.createElement("Context");
-				contextElement.setAttribute("Name", context);
-				identityElement.appendChild(contextElement);
+				xml.startElement("Context");
+				xml.attribute("Name", context);
+				xml.endElement();
 			}
 			
-			/* Create the property Elements */
-			
 			for(Entry<String, String> property : identity.getProperties().entrySet()) {
-				Element propertyElement = xmlDoc.createElement("Property");
-				propertyElement.setAttribute("Name", property.getKey());
-				propertyElement.setAttribute("Value", property.getValue());
-				identityElement.appendChild(propertyElement);
+				xml.startElement("Property");
+				xml.attribute("Name", property.getKey());
+				xml.attribute("Value", property.getValue());
+				xml.endElement();
 			}
 			
-			/* Create the trust list Element and its trust Elements */
-
 			if(identity.doesPublishTrustList()) {
-				Element trustListElement = xmlDoc.createElement("TrustList");
+				xml.startElement("TrustList");
 				
-				final ArrayList<Trust> trusts = new ArrayList<Trust>(MAX_IDENTITY_XML_TRUSTEE_AMOUNT + 1);
-				// We can only include a limited amount of trust values because the allowed size of a trust list must be finite to prevent DoS.
-				// So we chose the included trust values by sorting the trust list by last seen date of the trustee and cutting off
-				// the list after the size limit. This gives active identities who still publish a trust list a better chance than the ones
-				// who aren't in use anymore.
-				int trustCount = 0;
-				for(Trust trustCandidate : mWoT.getGivenTrustsSortedDescendingByLastSeen(identity)) {
-					if(++trustCount > MAX_IDENTITY_XML_TRUSTEE_AMOUNT) {
-						Logger.normal(this, "Amount of trustees exceeded " + MAX_IDENTITY_XML_TRUSTEE_AMOUNT + ", not adding any more to trust list of " + identity);
-						break;
-					}
-					trusts.add(trustCandidate);
-				}
-
-				// We cannot add the trusts like we queried them from the database: We have sorted the database query by last-seen date
-				// and that date reveals some information about the state of the WOT. This is a potential privacy leak.
-				// So we randomize the appearance of the trust values in the XML. We are OK to use a weak RNG:
-				// - The original sort order which we try to hide is not used for any computations, it is merely of statistical significance.
-				//   So RNG exploits cannot wreak any havoc by maliciously positioning stuff where it shouldn't be
-				// - The order in which the node fetches identities should already be softly randomized.
-				//   Randomizing it even more with a weak RNG will make it very random.
-				Collections.shuffle(trusts, mFastWeakRandom);
-				
-				for(Trust trust : trusts) {
+				for(Trust trust : getExportedTrusts(identity)) {
 					/* We should make very sure that we do not reveal the other own identity's */
 					if(trust.getTruster() != identity) 
 						throw new RuntimeException("Error in WoT: It is trying to export trust values of someone else in the trust list " +
 								"of " + identity + ": Trust value from " + trust.getTruster() + "");
-
-					Element trustElement = xmlDoc.createElement("Trust");
-					trustElement.setAttribute("Identity", trust.getTrustee().getRequestURI().toString());
-					trustElement.setAttribute("Value", Byte.toString(trust.getValue()));
-					trustElement.setAttribute("Comment", trust.getComment());
-					trustListElement.appendChild(trustElement);
+					
+					xml.startElement("Trust");
+					xml.attribute("Comment", trust.getComment());
+					xml.attribute("Identity", trust.getTrustee().getRequestURI().toString());
+					xml.attribute("Value", Byte.toString(trust.getValue()));
+					xml.endElement();
 				}
-				identityElement.appendChild(trustListElement);
+				
+				xml.endElement();
 			}
 		}
 		
-		rootElement.appendChild(identityElement);
+		xml.endElement(); // Identity
+		xml.endElement(); // WebOfTrust
+		xml.finish();
+	}
 
-		DOMSource domSource = new DOMSource(xmlDoc);
-		StreamResult resultStream = new StreamResult(os);
-		synchronized(mSerializer) { // TODO: Figure out whether the Serializer is maybe synchronized anyway
-			mSerializer.transform(domSource, resultStream);
+	/**
+	 * Minimal XML 1.1 writer for {@link #exportOwnIdentityStreaming(OwnIdentity, OutputStream)}.
+	 * Only supports elements with attributes, no text content, namespaces etc.<br>
+	 * Escapes attribute values in the same way as the {@link #mSerializer}. */
+	private static final class StreamingXMLWriter {
+		private final Writer mWriter;
+		
+		/** Names of the elements which were started but not ended yet. */
+		private final ArrayList<String> mOpenElements = new ArrayList<String>();
+		
+		/**
+		 * True if the start tag of the last element of {@link #mOpenElements} is not terminated
+		 * yet, i.e. if attributes can be added to it. */
+		private boolean mStartTagOpen = false;
+		
+		StreamingXMLWriter(OutputStream os) throws IOException {
+			mWriter = new BufferedWriter(new OutputStreamWriter(os, XML_CHARSET_NAME));
+			mWriter.write("<?xml version=\"1.1\" encoding=\"" + XML_CHARSET_NAME
+				+ "\" standalone=\"no\"?>\n");
+		}
+		
+		void startElement(String name) throws IOException {
+			closeStartTag();
+			mWriter.write('<');
+			mWriter.write(name);
+			mOpenElements.add(name);
+			mStartTagOpen = true;
+		}
+		
+		void attribute(String name, String value) throws IOException {
+			if(!mStartTagOpen)
+				throw new IllegalStateException("No start tag is open: " + name);
+			
+			mWriter.write(' ');
+			mWriter.write(name);
+			mWriter.write("=\"");
+			writeEscaped(value);
+			mWriter.write('"');
+		}
+		
+		void endElement() throws IOException {
+			final String name = mOpenElements.remove(mOpenElements.size() - 1);
+			if(mStartTagOpen) {
+				mWriter.write("/>\n");
+				mStartTagOpen = false;
+			} else {
+				mWriter.write("</");
+				mWriter.write(name);
+				mWriter.write(">\n");
+			}
+		}
+		
+		private void closeStartTag() throws IOException {
+			if(mStartTagOpen) {
+				mWriter.write(">\n");
+				mStartTagOpen = false;
+			}
+		}
+		
+		private void writeEscaped(String value) throws IOException {
+			for(int i = 0; i < value.length(); ++i) {
+				final char c = value.charAt(i);
+				switch(c) {
+					case '&': mWriter.write("&amp;"); break;
+					case '<': mWriter.write("&lt;"); break;
+					case '>': mWriter.write("&gt;"); break;
+					case '"': mWriter.write("&quot;"); break;
+					default:
+						// Control characters and line separators must be escaped in XML 1.1
+						// attributes, otherwise the parser would normalize them to spaces.
+						if(c < 0x20 || (c >= 0x7F && c <= 0x9F) || c == 0x2028) {
+							mWriter.write("&#");
+							mWriter.write(Integer.toString(c));
+							mWriter.write(';');
+						} else
+							mWriter.write(c);
+				}
+			}
+		}
+		
+		/** Flushes the output, does not close the underlying stream. */
+		void finish() throws IOException {
+			if(!mOpenElements.isEmpty())
+				throw new IllegalStateException("Unclosed elements: " + mOpenElements);
+			
+			mWriter.flush();
 		}
 	}
 	
@@ -304,11 +470,14 @@ public final class XMLTransformer {
 	private static final class ParsedIdentityXML {
 		static final class TrustListEntry {
 			final FreenetURI mTrusteeURI;
+			/** The {@link IdentityID} of {@link #mTrusteeURI}, as String. */
+			final String mTrusteeID;
 			final byte mTrustValue;
 			final String mTrustComment;
 			
 			public TrustListEntry(FreenetURI myTrusteeURI, byte myTrustValue, String myTrustComment) {
 				mTrusteeURI = myTrusteeURI;
+				mTrusteeID = IdentityID.constructAndValidateFromURI(myTrusteeURI).toString();
 				mTrustValue = myTrustValue;
 				mTrustComment = myTrustComment;
 			}
@@ -321,6 +490,72 @@ public final class XMLTransformer {
 		ArrayList<String> identityContexts = null;
 		HashMap<String, String> identityProperties = null;
 		ArrayList<TrustListEntry> identityTrustList = null;
+		
+		/** @see #computeContentFingerprint() */
+		String identityContentFingerprint = null;
+		
+		/**
+		 * Computes a hash of the normalized data of the file: Order of contexts, properties and
+		 * trust values is ignored, and so are the edition hints of the trustee URIs since they
+		 * change a lot more often than the actual trust values.<br>
+		 * Strings are prefixed with their length to ensure an unambiguous encoding.
+		 * 
+		 * @see Identity#getIdentityFileFingerprint() */
+		String computeContentFingerprint() {
+			final StringBuilder normalized = new StringBuilder(4096);
+			appendNormalized(normalized, identityName);
+			appendNormalized(normalized, identityPublishesTrustList.toString());
+			
+			final TreeSet<String> contexts = new TreeSet<String>();
+			for(String context : identityContexts)
+				contexts.add(context.trim());
+			normalized.append(contexts.size()).append(';');
+			for(String context : contexts)
+				appendNormalized(normalized, context);
+			
+			final TreeMap<String, String> properties = new TreeMap<String, String>();
+			for(Entry<String, String> property : identityProperties.entrySet())
+				properties.put(property.getKey().trim(), property.getValue());
+			normalized.append(properties.size()).append(';');
+			for(Entry<String, String> property : properties.entrySet()) {
+				appendNormalized(normalized, property.getKey());
+				appendNormalized(normalized, property.getValue());
+			}
+			
+			if(identityTrustList != null) {
+				// Later entries overwrite earlier ones for the same trustee, just like when
+				// importing them with setTrustWithoutCommit().
+				final TreeMap<String, TrustListEntry> trusts = new TreeMap<String, TrustListEntry>();
+				for(TrustListEntry entry : identityTrustList)
+					trusts.put(entry.mTrusteeID, entry);
+				normalized.append(trusts.size()).append(';');
+				for(Entry<String, TrustListEntry> trust : trusts.entrySet()) {
+					appendNormalized(normalized, trust.getKey());
+					appendNormalized(normalized, Byte.toString(trust.getValue().mTrustValue));
+					appendNormalized(normalized, trust.getValue().mTrustComment);
+				}
+			}
+			
+			try {
+				final MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+				return Base64.encode(sha256.digest(normalized.toString().getBytes(XML_CHARSET)));
+			} catch(NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		private static void appendNormalized(StringBuilder normalized, String value) {
+			normalized.append(value.length()).append(':').append(value);
+		}
+		
+		/**
+		 * The result of importing a trust list does not only depend on its contents but also on
+		 * whether the truster has a positive {@link Score} and capacity: They decide whether
+		 * trustees are created and edition hints are accepted. Thus they are part of the
+		 * fingerprint which is stored at the {@link Identity}. */
+		String getFingerprint(boolean positiveScore, boolean hasCapacity) {
+			return identityContentFingerprint + (positiveScore ? '+' : '-') + (hasCapacity ? '+' : '-');
+		}
 	}
 	
 	/**
@@ -366,14 +601,25 @@ public final class XMLTransformer {
 				result.identityTrustList = new ArrayList<ParsedIdentityXML.TrustListEntry>(trustList.getLength() + 1);
 				for(int i = 0; i < trustList.getLength(); ++i) {
 					Element trustElement = (Element)trustList.item(i);
+					final FreenetURI trusteeURI = new FreenetURI(trustElement.getAttribute("Identity"));
+					final byte trustValue = Byte.parseByte(trustElement.getAttribute("Value"));
 	
-					result.identityTrustList.add(new ParsedIdentityXML.TrustListEntry(
-								new FreenetURI(trustElement.getAttribute("Identity")),
-								Byte.parseByte(trustElement.getAttribute("Value")),
-								trustElement.getAttribute("Comment")
-							));
+					try {
+						result.identityTrustList.add(new ParsedIdentityXML.TrustListEntry(
+									trusteeURI,
+									trustValue,
+									trustElement.getAttribute("Comment")
+								));
+					} catch(IllegalArgumentException e) {
+						// The URI is not of an identity. Only the entry is invalid, not the whole
+						// file, so we only drop the entry.
+						// Logging the exception does NOT log the actual malformed URL so we do it manually.
+						Logger.warning(this, "Received malformed identity URL: " + trusteeURI, e);
+					}
 				}
 			}
+			
+			result.identityContentFingerprint = result.computeContentFingerprint();
 		} catch(Exception e) {
 			result.parseError = e;
 		}
@@ -388,16 +634,54 @@ public final class XMLTransformer {
 	 * - The identity itself and its attributes
 	 * - The trust list of the identity, if it has published one in the XML.
 	 * 
+	 * If the file is equal to the previously imported edition apart from edition hints, only the
+	 * edition and fetch state of the identity are updated, see
+	 * {@link Identity#getIdentityFileFingerprint()}.
+	 * 
+	 * If the file cannot be parsed or fails validation, the edition is marked as
+	 * {@link FetchState#ParsingFailed} and the file is added to the
+	 * {@link IdentityFileNegativeCache} so it is not enqueued again. If the identity does not exist
+	 * anymore, the file is not imported, see {@link ImportTimings#wasIdentityUnknown()}. Any other
+	 * failure, for example of the database, is not the fault of the file: It is thrown as a
+	 * {@link RuntimeException} without marking the edition or caching the file, so the edition
+	 * will be fetched again.
+	 * 
 	 * @param xmlInputStream The input stream containing the XML.
+	 * @return True if the import was skipped because the file was unchanged.
 	 */
-	public void importIdentity(FreenetURI identityURI, InputStream xmlInputStream) {
+	public boolean importIdentity(FreenetURI identityURI, InputStream xmlInputStream) {
+		return importIdentity(identityURI, xmlInputStream, new ImportTimings());
+	}
+	
+	/**
+	 * Same as {@link #importIdentity(FreenetURI, InputStream)}, but additionally measures the
+	 * duration of each {@link ImportStage} and stores it in the given {@link ImportTimings}. */
+	public boolean importIdentity(FreenetURI identityURI, InputStream xmlInputStream,
+			ImportTimings timings) {
+		
+		final IdentityFileNegativeCache negativeCache = mWoT.getIdentityFileNegativeCache();
+		// Kept for computing the IdentityFile.crc32() for the negative cache if parsing fails
+		byte[] xml = null;
+		// parseIdentityXML() stores any exception as parseError, so we cannot tell by the type of
+		// the exception whether it was caused by parsing.
+		boolean parsingFailed = false;
+		
 		try { // Catch import problems so we can mark the edition as parsing failed
 		// We first parse the XML without synchronization, then do the synchronized import into the WebOfTrust		
-		final ParsedIdentityXML xmlData = parseIdentityXML(xmlInputStream);
+		StopWatch stageTime = new StopWatch();
+		final ByteArrayOutputStream xmlBytes = new ByteArrayOutputStream();
+		FileUtil.copy(xmlInputStream, xmlBytes, -1);
+		xml = xmlBytes.toByteArray();
+		final ParsedIdentityXML xmlData = parseIdentityXML(new ByteArrayInputStream(xml));
+		parsingFailed = xmlData.parseError != null;
+		timings.add(ImportStage.Parsing, stageTime.getNanos());
 		
+		stageTime = new StopWatch();
 		synchronized(mWoT) {
 		synchronized(mWoT.getIdentityFetcher()) {
 		synchronized(mSubscriptionManager) {
+			timings.add(ImportStage.LockAcquisition, stageTime.getNanos());
+			
 			final Identity identity = mWoT.getIdentityByURI(identityURI);
 			final Identity oldIdentity = identity.clone(); // For the SubscriptionManager
 			
@@ -418,17 +702,17 @@ public final class XMLTransformer {
                   + "IdentityFetcher has not processed the AbortFetchCommand yet or the "
                   + "file was in the IdentityFileQueue for some time, not importing: "
                   + identity);
-                return;
+                return false;
             }
 			
 			long newEdition = identityURI.getEdition();
 			if(identity.getEdition() > newEdition) {
 				if(logDEBUG) Logger.debug(this, "Fetched an older edition: current == " + identity.getEdition() + "; fetched == " + identityURI.getEdition());
-				return;
+				return false;
 			} else if(identity.getEdition() == newEdition) {
 				if(identity.getCurrentEditionFetchState() == FetchState.Fetched) {
 					if(logDEBUG) Logger.debug(this, "Fetched current edition which is marked as fetched already, not importing: " + identityURI);
-					return;
+					return false;
 				} else if(identity.getCurrentEditionFetchState() == FetchState.ParsingFailed) {
 					Logger.normal(this, "Re-fetched current-edition which was marked as parsing failed: " + identityURI);
 				}
@@ -437,138 +721,131 @@ public final class XMLTransformer {
 			// We throw parse errors AFTER checking the edition number: If this XML was outdated anyway, we don't have to throw.
 			if(xmlData.parseError != null)
 				throw xmlData.parseError;
-				
 			
+			// We import the trust list of an identity if it's score is equal to 0, but we only create new identities or import edition hints
+			// if the score is greater than 0. Solving a captcha therefore only allows you to create one single identity.
+			boolean positiveScore = false;
+			boolean hasCapacity = false;
+			
+			if(xmlData.identityPublishesTrustList) {
+				// TODO: getBestScore/getBestCapacity should always yield a positive result because we store a positive score object for an OwnIdentity
+				// upon creation. The only case where it could not exist might be restoreOwnIdentity() ... check that. If it is created there as well,
+				// remove the additional check here.
+				if(identity instanceof OwnIdentity) {
+					// Importing of OwnIdentities is always allowed
+					positiveScore = true;
+					hasCapacity = true;
+				} else {
+					// Equivalent to getBestScore() > 0 and getBestCapacity() > 0, but with a
+					// single query, and without NotInTrustTreeException for new identities.
+					for(Score score : mWoT.getScores(identity)) {
+						positiveScore |= score.getScore() > 0;
+						hasCapacity |= score.getCapacity() > 0;
+					}
+				}
+			}
+			
+			final String fingerprint = xmlData.getFingerprint(positiveScore, hasCapacity);
+			// The trust list of OwnIdentitys is modified locally by the user, so we cannot assume
+			// that the database matches the last imported file. Also, they are imported rarely.
+			final boolean isUnchanged = !(identity instanceof OwnIdentity)
+				&& fingerprint.equals(identity.getIdentityFileFingerprint())
+				&& allTrusteesExist(xmlData);
+			
+			stageTime = new StopWatch();
 			synchronized(Persistent.transactionLock(mDB)) {
+				timings.add(ImportStage.LockAcquisition, stageTime.getNanos());
+				
 				try { // Transaction rollback block
-					identity.setEdition(newEdition); // The identity constructor only takes the edition number as a hint, so we must store it explicitly.
-					boolean didPublishTrustListPreviously = identity.doesPublishTrustList();
-					identity.setPublishTrustList(xmlData.identityPublishesTrustList);
+					// For excluding the Score computation from the trust list import time.
+					final long incrementalScoreNanosBefore
+						= mWoT.getTotalIncrementalScoreRecomputationNanos();
+					final long fullScoreNanosBefore = mWoT.getTotalFullScoreRecomputationNanos();
 					
-					try {
-						identity.setNickname(xmlData.identityName);
-					}
-					catch(Exception e) {
-						/* Nickname changes are not allowed, ignore them... */
-						Logger.warning(this, "setNickname() failed.", e);
-					}
-	
-					try { /* Failure of context importing should not make an identity disappear, therefore we catch exceptions. */
-						identity.setContexts(xmlData.identityContexts);
-					}
-					catch(Exception e) {
-						Logger.warning(this, "setContexts() failed.", e);
-					}
-	
-					try { /* Failure of property importing should not make an identity disappear, therefore we catch exceptions. */
-						identity.setProperties(xmlData.identityProperties);
-					}
-					catch(Exception e) {
-						Logger.warning(this, "setProperties() failed", e);
-					}
-				
+					stageTime = new StopWatch();
+					identity.setEdition(newEdition); // The identity constructor only takes the edition number as a hint, so we must store it explicitly.
 					
 					mWoT.beginTrustListImport(); // We delete the old list if !identityPublishesTrustList and it did publish one earlier => we always call this. 
 					
-					if(xmlData.identityPublishesTrustList) {
-						// We import the trust list of an identity if it's score is equal to 0, but we only create new identities or import edition hints
-						// if the score is greater than 0. Solving a captcha therefore only allows you to create one single identity.
-						boolean positiveScore = false;
-						boolean hasCapacity = false;
+					if(isUnchanged) {
+						timings.add(ImportStage.IdentityUpdate, stageTime.getNanos());
+						stageTime = new StopWatch();
 						
-						// TODO: getBestScore/getBestCapacity should always yield a positive result because we store a positive score object for an OwnIdentity
-						// upon creation. The only case where it could not exist might be restoreOwnIdentity() ... check that. If it is created there as well,
-						// remove the additional check here.
-						if(identity instanceof OwnIdentity) {
-							// Importing of OwnIdentities is always allowed
-							positiveScore = true;
-							hasCapacity = true;
-						} else {
-							try {
-								positiveScore = mWoT.getBestScore(identity) > 0;
-								hasCapacity = mWoT.getBestCapacity(identity) > 0;
-							}
-							catch(NotInTrustTreeException e) { }
-						}
+						// The nickname, contexts, properties and Trust objects in the database
+						// already match the file, so we only need to process the edition hints.
+						if(logMINOR) Logger.minor(this, "Identity file is unchanged, not importing trust list: " + identityURI);
 						
+						if(xmlData.identityPublishesTrustList && positiveScore)
+							importEditionHintsWithoutCommit(xmlData);
+					} else {
+						final boolean didPublishTrustListPreviously
+							= importIdentityDataWithoutCommit(identity, xmlData);
 						
-						HashSet<String>	identitiesWithUpdatedEditionHint = null;
-
-						if(positiveScore) {
-							identitiesWithUpdatedEditionHint = new HashSet<String>(xmlData.identityTrustList.size() * 2);
-						}
-
-						for(final ParsedIdentityXML.TrustListEntry trustListEntry : xmlData.identityTrustList) {
-							final FreenetURI trusteeURI = trustListEntry.mTrusteeURI;
-							final byte trustValue = trustListEntry.mTrustValue;
-							final String trustComment = trustListEntry.mTrustComment;
-
-							Identity trustee = null;
-							try {
-								trustee = mWoT.getIdentityByURI(trusteeURI);
-								if(positiveScore) {
-									if(trustee.setNewEditionHint(trusteeURI.getEdition())) {
-										identitiesWithUpdatedEditionHint.add(trustee.getID());
-										trustee.storeWithoutCommit();
-										
-										// We don't notify clients about this: The edition hint is not very useful to them.
-										// mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(trustee, trustee);
-									}
-								}
-							}
-							catch(UnknownIdentityException e) {
-								if(hasCapacity) { /* We only create trustees if the truster has capacity to rate them. */
-									try {
-										trustee = new Identity(mWoT, trusteeURI, null, false);
-										trustee.storeWithoutCommit();
-										mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(null, trustee);
-										Logger.normal(this, "New identity received via trust list: " + identity);
-									} catch(MalformedURLException urlEx) {
-										// Logging the exception does NOT log the actual malformed URL so we do it manually.
-										Logger.warning(this, "Received malformed identity URL: " + trusteeURI, urlEx);
-										throw urlEx;
-									}
-								}
-							}
-
-							if(trustee != null)
-								mWoT.setTrustWithoutCommit(identity, trustee, trustValue, trustComment); // Also takes care of SubscriptionManager
-						}
-
-						for(Trust trust : mWoT.getGivenTrustsOfDifferentEdition(identity, identityURI.getEdition())) {
-							mWoT.removeTrustWithoutCommit(trust); // Also takes care of SubscriptionManager
-						}
-
-						IdentityFetcher identityFetcher = mWoT.getIdentityFetcher();
-						if(positiveScore) {
-							for(String id : identitiesWithUpdatedEditionHint)
-								identityFetcher.storeUpdateEditionHintCommandWithoutCommit(id);
-
-							// We do not have to store fetch commands for new identities here, setTrustWithoutCommit does it.
-						}
-					} else if(!xmlData.identityPublishesTrustList && didPublishTrustListPreviously && !(identity instanceof OwnIdentity)) {
-						// If it does not publish a trust list anymore, we delete all trust values it has given.
-						for(Trust trust : mWoT.getGivenTrusts(identity))
-							mWoT.removeTrustWithoutCommit(trust); // Also takes care of SubscriptionManager
+						timings.add(ImportStage.IdentityUpdate, stageTime.getNanos());
+						stageTime = new StopWatch();
+						
+						importTrustListWithoutCommit(identity, xmlData, positiveScore, hasCapacity,
+							didPublishTrustListPreviously);
+						
+						if(!(identity instanceof OwnIdentity))
+							identity.setIdentityFileFingerprint(fingerprint);
 					}
-
+					
 					mWoT.finishTrustListImport();
+					
+					final long incrementalScoreNanos = mWoT.getTotalIncrementalScoreRecomputationNanos()
+						- incrementalScoreNanosBefore;
+					final long fullScoreNanos = mWoT.getTotalFullScoreRecomputationNanos()
+						- fullScoreNanosBefore;
+					timings.add(ImportStage.TrustListApplication,
+						stageTime.getNanos() - incrementalScoreNanos - fullScoreNanos);
+					if(incrementalScoreNanos > 0)
+						timings.add(ImportStage.IncrementalScoreComputation, incrementalScoreNanos);
+					if(fullScoreNanos > 0)
+						timings.add(ImportStage.FullScoreComputation, fullScoreNanos);
+					
+					stageTime = new StopWatch();
 					identity.onFetched(); // Marks the identity as parsed successfully
 					mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(oldIdentity, identity);
+					// Restore the fetch priority if it was lowered due to broken files.
+					// If the transaction is rolled back, it stays lowered until the next priority
+					// update, which is harmless.
+					if(negativeCache.onImported(identity.getID()))
+						mWoT.getIdentityFetcher().storeUpdatePriorityCommandWithoutCommit(identity);
+					timings.add(ImportStage.IdentityUpdate, stageTime.getNanos());
+					
+					stageTime = new StopWatch();
 					identity.storeAndCommit();
+					timings.add(ImportStage.Commit, stageTime.getNanos());
 				}
 				catch(Exception e) { 
 					mWoT.abortTrustListImport(e, Logger.LogLevel.WARNING); // Does the rollback
 					throw e;
 				} // try
 			} // synchronized(Persistent.transactionLock(db))
-				
+			
 			Logger.normal(this, "Finished XML import for " + identity);
+			return isUnchanged;
 		} // synchronized(mSubscriptionManager)
 		} // synchronized(mWoT.getIdentityFetcher())
 		} // synchronized(mWoT)
 		} // try
 		catch(Exception e) {
+			if(e instanceof UnknownIdentityException) {
+				// The identity was deleted after the file was fetched, e.g. because it is not
+				// wanted anymore. There is no edition to mark as parsing failed.
+				Logger.normal(this, "Not importing file of deleted identity: " + identityURI);
+				timings.mIdentityUnknown = true;
+				return false;
+			}
+			
+			if(!parsingFailed && !isValidationFailure(e)) {
+				// The rollback was already done by the inner catch, if necessary. The caller logs it.
+				if(e instanceof RuntimeException)
+					throw (RuntimeException)e;
+				throw new RuntimeException(e);
+			}
+			
 			synchronized(mWoT) {
 			// synchronized(mSubscriptionManager) { // We don't use the SubscriptionManager, see below
 			synchronized(mWoT.getIdentityFetcher()) {
@@ -585,8 +862,35 @@ public final class XMLTransformer {
 							throw new RuntimeException(e1);
 						}
 						identity.onParsingFailed();
-						// We don't notify the SubscriptionManager here since there is not really any new information about the identity because parsing failed.
-						identity.storeAndCommit();
+						
+						// Added to the negative cache only after the commit, so a rolled back
+						// edition is not rejected when it is fetched again.
+						final boolean isChronicOffender = xml != null
+							&& negativeCache.isChronicOffenderAfterFailure(identity.getID());
+						
+						synchronized(Persistent.transactionLock(mDB)) {
+							try {
+								// We don't notify the SubscriptionManager here since there is not really any new information about the identity because parsing failed.
+								identity.storeWithoutCommit();
+								
+								if(isChronicOffender) {
+									Logger.warning(this, "Parsing failed repeatedly, lowering "
+										+ "fetch priority of: " + identity);
+									mWoT.getIdentityFetcher()
+										.storeUpdatePriorityCommandWithoutCommit(identity);
+								}
+								
+								Persistent.checkedCommit(mDB, this);
+							} catch(RuntimeException e2) {
+								Persistent.checkedRollbackAndThrow(mDB, this, e2);
+							}
+						}
+						
+						if(xml != null) {
+							final boolean becameChronicOffender = negativeCache.onParsingFailed(
+								identityURI, IdentityFile.crc32(identityURI, xml));
+							assert(becameChronicOffender == isChronicOffender);
+						}
 					} else {
 						Logger.normal(this, "Not marking edition as parsing failed, we have already fetched a new one (" + 
 								identity.getEdition() + "):" + identityURI);
@@ -599,9 +903,181 @@ public final class XMLTransformer {
 				}	
 			}
 			}
+			return false;
+		}
+	}
+
+	/**
+	 * @return True if the given exception of
+	 *     {@link #importIdentity(FreenetURI, InputStream, ImportTimings)} means that the content of
+	 *     the identity file is invalid, for example a trustee URI or a trust value. */
+	private static boolean isValidationFailure(Exception e) {
+		return e instanceof SAXException
+			|| e instanceof InvalidParameterException
+			|| e instanceof MalformedURLException;
+	}
+
+	/**
+	 * Backend of {@link #importIdentity(FreenetURI, InputStream, ImportTimings)} for files which
+	 * have changed: Imports the nickname, contexts and properties.
+	 * 
+	 * You must synchronize upon the {@link WebOfTrust}, its {@link IdentityFetcher} and
+	 * {@link SubscriptionManager} and the {@link Persistent#transactionLock(ExtObjectContainer)},
+	 * and have called {@link WebOfTrust#beginTrustListImport()} before calling this function.
+	 * 
+	 * @return The value of {@link Identity#doesPublishTrustList()} before the import. */
+	private boolean importIdentityDataWithoutCommit(Identity identity, ParsedIdentityXML xmlData) {
+		boolean didPublishTrustListPreviously = identity.doesPublishTrustList();
+		identity.setPublishTrustList(xmlData.identityPublishesTrustList);
+		
+		try {
+			identity.setNickname(xmlData.identityName);
+		}
+		catch(Exception e) {
+			/* Nickname changes are not allowed, ignore them... */
+			Logger.warning(this, "setNickname() failed.", e);
+		}
+
+		try { /* Failure of context importing should not make an identity disappear, therefore we catch exceptions. */
+			identity.setContexts(xmlData.identityContexts);
+		}
+		catch(Exception e) {
+			Logger.warning(this, "setContexts() failed.", e);
+		}
+
+		try { /* Failure of property importing should not make an identity disappear, therefore we catch exceptions. */
+			identity.setProperties(xmlData.identityProperties);
+		}
+		catch(Exception e) {
+			Logger.warning(this, "setProperties() failed", e);
+		}
+		
+		return didPublishTrustListPreviously;
+	}
+
+	/**
+	 * Backend of {@link #importIdentity(FreenetURI, InputStream, ImportTimings)} for files which
+	 * have changed: Imports the trust list.
+	 * 
+	 * The same synchronization as for {@link #importIdentityDataWithoutCommit(Identity,
+	 * ParsedIdentityXML)} is required. */
+	private void importTrustListWithoutCommit(Identity identity, ParsedIdentityXML xmlData,
+			boolean positiveScore, boolean hasCapacity, boolean didPublishTrustListPreviously)
+				throws InvalidParameterException, MalformedURLException {
+		
+		if(xmlData.identityPublishesTrustList) {
+			// Instead of querying the database for each entry of the trust list, we load all
+			// existing Trusts of the truster at once and compute the difference to the new list.
+			final HashMap<String, Trust> givenTrusts = mWoT.getGivenTrustsByTrusteeID(identity);
+			final HashSet<String> trusteesInTrustList
+				= new HashSet<String>(xmlData.identityTrustList.size() * 2);
+			final HashSet<String> unknownTrustees = new HashSet<String>();
+			
+			for(final ParsedIdentityXML.TrustListEntry trustListEntry : xmlData.identityTrustList) {
+				trusteesInTrustList.add(trustListEntry.mTrusteeID);
+				if(!givenTrusts.containsKey(trustListEntry.mTrusteeID))
+					unknownTrustees.add(trustListEntry.mTrusteeID);
+			}
+			
+			// Trustees which the truster did not trust yet might exist in the database already
+			// because other identities trust them, so we must query them. One query for all.
+			final HashMap<String, Identity> newTrustees = mWoT.getIdentitiesByID(unknownTrustees);
+			
+			final EditionHintAggregator editionHints = mWoT.getEditionHintAggregator();
+			boolean trustsChanged = false;
+
+			for(final ParsedIdentityXML.TrustListEntry trustListEntry : xmlData.identityTrustList) {
+				final FreenetURI trusteeURI = trustListEntry.mTrusteeURI;
+				final String trusteeID = trustListEntry.mTrusteeID;
+				final byte trustValue = trustListEntry.mTrustValue;
+				final String trustComment = trustListEntry.mTrustComment;
+
+				final Trust existingTrust = givenTrusts.get(trusteeID);
+				Identity trustee = existingTrust != null
+					? existingTrust.getTrustee() : newTrustees.get(trusteeID);
+				
+				if(trustee != null) {
+					// The aggregator stores the trustee and the IdentityFetcher command for the
+					// hint in a batch with the hints of other trust lists.
+					// We don't notify clients about this: The edition hint is not very useful to them.
+					if(positiveScore)
+						editionHints.addHint(trusteeID, trusteeURI.getEdition());
+				} else if(hasCapacity) { /* We only create trustees if the truster has capacity to rate them. */
+					try {
+						trustee = new Identity(mWoT, trusteeURI, null, false);
+						trustee.storeWithoutCommit();
+						mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(null, trustee);
+						// The trust list might contain the same trustee multiple times.
+						newTrustees.put(trusteeID, trustee);
+						Logger.normal(this, "New identity received via trust list: " + identity);
+					} catch(MalformedURLException urlEx) {
+						// Logging the exception does NOT log the actual malformed URL so we do it manually.
+						Logger.warning(this, "Received malformed identity URL: " + trusteeURI, urlEx);
+						throw urlEx;
+					}
+				}
+
+				if(trustee != null) {
+					// Also takes care of SubscriptionManager
+					givenTrusts.put(trusteeID, mWoT.setTrustWithoutCommit(
+						identity, trustee, existingTrust, trustValue, trustComment));
+					trustsChanged = true;
+				}
+			}
+			
+			// The bulk version of setTrustWithoutCommit() doesn't do this for each trust.
+			// Storing is done by our caller.
+			if(trustsChanged)
+				identity.updated();
+
+			for(Entry<String, Trust> givenTrust : givenTrusts.entrySet()) {
+				if(!trusteesInTrustList.contains(givenTrust.getKey()))
+					mWoT.removeTrustWithoutCommit(givenTrust.getValue()); // Also takes care of SubscriptionManager
+			}
+
+			// We do not have to store fetch commands for new identities here, setTrustWithoutCommit does it.
+		} else if(!xmlData.identityPublishesTrustList && didPublishTrustListPreviously && !(identity instanceof OwnIdentity)) {
+			// If it does not publish a trust list anymore, we delete all trust values it has given.
+			for(Trust trust : mWoT.getGivenTrusts(identity))
+				mWoT.removeTrustWithoutCommit(trust); // Also takes care of SubscriptionManager
 		}
 	}
 
+	/**
+	 * Trusts to trustees which did not exist when a trust list was imported could not be created.
+	 * If they have been created since then, for example due to the trust list of another
+	 * identity, the trust list must be imported again even if the file is unchanged.
+	 * 
+	 * @return True if all trustees of the trust list of the given file exist in the database. */
+	private boolean allTrusteesExist(ParsedIdentityXML xmlData) {
+		if(!xmlData.identityPublishesTrustList)
+			return true;
+		
+		final HashSet<String> trusteeIDs
+			= new HashSet<String>(xmlData.identityTrustList.size() * 2);
+		for(final ParsedIdentityXML.TrustListEntry trustListEntry : xmlData.identityTrustList)
+			trusteeIDs.add(trustListEntry.mTrusteeID);
+		
+		return mWoT.getIdentitiesByID(trusteeIDs).size() == trusteeIDs.size();
+	}
+
+	/**
+	 * Backend of {@link #importIdentity(FreenetURI, InputStream, ImportTimings)} for files which
+	 * are unchanged apart from the edition hints: Passes the hints to the
+	 * {@link EditionHintAggregator}, which passes them to the trustees which exist already, and
+	 * to the {@link IdentityFetcher}. Trustees which don't exist are not created: The previous
+	 * import of the same trust list did not create them either as the truster had no capacity,
+	 * which is ensured by {@link ParsedIdentityXML#getFingerprint(boolean, boolean)}.
+	 * 
+	 * The same synchronization as for {@link #importIdentityDataWithoutCommit(Identity,
+	 * ParsedIdentityXML)} is required. */
+	private void importEditionHintsWithoutCommit(ParsedIdentityXML xmlData) {
+		// The aggregator queries the trustees itself when flushing, so we don't need to.
+		final EditionHintAggregator editionHints = mWoT.getEditionHintAggregator();
+		for(final ParsedIdentityXML.TrustListEntry trustListEntry : xmlData.identityTrustList)
+			editionHints.addHint(trustListEntry.mTrusteeID, trustListEntry.mTrusteeURI.getEdition());
+	}
+
 	public void exportIntroduction(OwnIdentity identity, OutputStream os) throws TransformerException {
 		Document xmlDoc;
 		synchronized(mDocumentBuilder) { // TODO: Figure out whether the DocumentBuilder is maybe synchronized anyway
@@ -29,4 +29,14 @@ public class NotInTrustTreeException extends Exception {
 		super("There is no Score with ID " + id);
 	}
 
+	/**
+	 * Does not fill in the stack trace: Identities without a Score are normal, so this is a
+	 * planned exception, and generating the stack trace would cost more than the query which
+	 * threw it.<br>
+	 * Loops should use {@link plugins.WebOfTrust.WebOfTrust#getScoreOrNull(
+	 * plugins.WebOfTrust.OwnIdentity, Identity)} instead. */
+	@Override public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+
 }
@@ -19,4 +19,14 @@ public class NotTrustedException extends Exception {
 		super("No Trust with ID " + trustID);
 	}
 	
+	/**
+	 * Not filling in the stack trace: Checking for a Trust which might not exist is a regular
+	 * operation, the stack trace would be expensive and useless.<br>
+	 * Code paths which expect the Trust to be missing often should use
+	 * {@link plugins.WebOfTrust.WebOfTrust#getTrustOrNull(plugins.WebOfTrust.Identity,
+	 * plugins.WebOfTrust.Identity)} to avoid the exception entirely. */
+	@Override public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+
 }
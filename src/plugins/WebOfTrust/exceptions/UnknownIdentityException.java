@@ -23,4 +23,13 @@ public class UnknownIdentityException extends Exception {
 		return getMessage();
 	}
 
+	/**
+	 * Does not fill in the stack trace: Looking up an identity which we don't know yet is a
+	 * regular operation when processing data from the network.<br>
+	 * See {@link plugins.WebOfTrust.WebOfTrust#getIdentityByIDOrNull(String)} for a lookup which
+	 * does not throw at all. */
+	@Override public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+
 }
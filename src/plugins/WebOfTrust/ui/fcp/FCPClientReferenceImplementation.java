@@ -104,6 +104,11 @@ public final class FCPClientReferenceImplementation {
 	/** The amount of milliseconds for waiting for "Unsubscribed" messages to arrive in {@link #stop()} */
 	private static final int SHUTDOWN_UNSUBSCRIBE_TIMEOUT = 3*1000;
 	
+	/**
+	 * The "BatchSize" which we request in {@link #fcp_Subscribe(SubscriptionType)}: The maximal amount of event-{@link Notification}s
+	 * which WOT sends with a single "Notifications" message, see {@link FCPNotificationsEventHandler}. */
+	private static final int SUBSCRIPTION_BATCH_SIZE = 64;
+	
 	/**
 	 * The implementing child class provides this Map. It is used for obtaining the {@link Identity} objects which are used for
 	 * constructing {@link Trust} and {@link Score} objects which are passed to its handlers.
@@ -313,7 +318,8 @@ public final class FCPClientReferenceImplementation {
 				new FCPErrorHandler(),
 				new FCPBeginSynchronizationEventHandler(),
 				new FCPEndSynchronizationEventHandler(),
-				new FCPObjectChangedEventHandler()
+				new FCPObjectChangedEventHandler(),
+				new FCPNotificationsEventHandler()
 		};
 		
 		for(FCPMessageHandler handler : handlers)
@@ -707,6 +713,7 @@ public final class FCPClientReferenceImplementation {
 		final SimpleFieldSet sfs = new SimpleFieldSet(true);
 		sfs.putOverwrite("Message", "Subscribe");
 		sfs.putOverwrite("To", type.toString());
+		sfs.put("BatchSize", SUBSCRIPTION_BATCH_SIZE);
 		send(sfs);
 	}
 	
@@ -790,9 +797,16 @@ public final class FCPClientReferenceImplementation {
 			    String errorMessage = "Message handler failed and requested passing the error to"
 			                        + " WOT, doing so: " + handler;
 				Logger.error(this, errorMessage, e);
-				return !message.isReplyMessage() ? FCPPluginMessage.constructErrorReply(
-				           message, "InternalError", errorMessage)
-				       : null;
+				
+				if(message.isReplyMessage())
+				    return null;
+				
+				final FCPPluginMessage reply
+				    = FCPPluginMessage.constructErrorReply(message, "InternalError", errorMessage);
+				// Tell WOT which notifications of a "Notifications" message it must not re-send.
+				if(e.highestProcessedIndex >= 0)
+				    reply.params.put("HighestProcessedIndex", e.highestProcessedIndex);
+				return reply;
 			} finally {
 				if(logMINOR) Logger.minor(this, "Handling message finished.");
 			}
@@ -834,8 +848,18 @@ public final class FCPClientReferenceImplementation {
 	 */
 	@SuppressWarnings("serial")
     public final class ProcessingFailedException extends Exception {
+		/**
+		 * If the failure happened in a "Notifications" message: Index of the last contained notification which was processed
+		 * successfully, see {@link FCPNotificationsEventHandler}. -1 if none was processed or if it was another message. */
+		final int highestProcessedIndex;
+		
 		public ProcessingFailedException(Throwable t) {
+			this(t, -1);
+		}
+		
+		ProcessingFailedException(Throwable t, int highestProcessedIndex) {
 			super(t);
+			this.highestProcessedIndex = highestProcessedIndex;
 		}
 	}
 	
@@ -1051,6 +1075,50 @@ public final class FCPClientReferenceImplementation {
 	    }
 	}
 
+	/**
+	 * Handles the "Notifications" message which WOT sends instead of multiple single event-{@link Notification} messages if
+	 * we requested a "BatchSize" larger than 1 in {@link FCPClientReferenceImplementation#fcp_Subscribe(SubscriptionType)}.
+	 * <br><br>
+	 * 
+	 * Passes each contained message to the {@link FCPMessageHandler} of its type, in order. If one of them fails, the
+	 * following ones are not processed, and WOT is told the index of the last successful one so it only re-sends the
+	 * remaining ones.
+	 * 
+	 * @see FCPInterface#sendNotifications(UUID, java.util.List)
+	 */
+	private final class FCPNotificationsEventHandler implements FCPMessageHandler {
+		@Override
+		public String getMessageName() {
+			return "Notifications";
+		}
+
+		@Override
+		public void handle(final FCPPluginMessage message) throws ProcessingFailedException {
+			int amount = 0;
+			try {
+				amount = message.params.getInt("Amount");
+			} catch(FSParseException e) {
+				throw new ProcessingFailedException(e);
+			}
+			
+			for(int i = 0; i < amount; ++i) {
+				try {
+					final SimpleFieldSet sfs = message.params.subset(Integer.toString(i));
+					final FCPMessageHandler handler = sfs != null ? mFCPMessageHandlers.get(sfs.get("Message")) : null;
+					
+					if(handler == null || handler == this)
+						throw new IllegalArgumentException("Invalid notification at index " + i + ": " + sfs);
+					
+					handler.handle(FCPPluginMessage.construct(sfs, null));
+				} catch(ProcessingFailedException e) {
+					throw new ProcessingFailedException(e.getCause(), i - 1);
+				} catch(RuntimeException e) {
+					throw new ProcessingFailedException(e, i - 1);
+				}
+			}
+		}
+	}
+
 	/**
 	 * Handles the "ObjectChangedEvent" message which WOT sends when an
 	 * {@link Identity}, {@link Trust} or {@link Score} was changed, added or deleted.
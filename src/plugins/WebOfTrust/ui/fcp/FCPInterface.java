@@ -3,10 +3,14 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust.ui.fcp;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.UUID;
@@ -15,7 +19,9 @@ import java.util.concurrent.TimeUnit;
 import plugins.WebOfTrust.EventSource;
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.Identity.IdentityID;
+import plugins.WebOfTrust.IdentityFileProcessor;
 import plugins.WebOfTrust.OwnIdentity;
+import plugins.WebOfTrust.Persistent;
 import plugins.WebOfTrust.Score;
 import plugins.WebOfTrust.SubscriptionManager;
 import plugins.WebOfTrust.SubscriptionManager.BeginSynchronizationNotification;
@@ -24,8 +30,10 @@ import plugins.WebOfTrust.SubscriptionManager.IdentitiesSubscription;
 import plugins.WebOfTrust.SubscriptionManager.IdentityChangedNotification;
 import plugins.WebOfTrust.SubscriptionManager.Notification;
 import plugins.WebOfTrust.SubscriptionManager.ObjectChangedNotification;
+import plugins.WebOfTrust.SubscriptionManager.ResumePosition;
 import plugins.WebOfTrust.SubscriptionManager.ScoreChangedNotification;
 import plugins.WebOfTrust.SubscriptionManager.ScoresSubscription;
+import plugins.WebOfTrust.SubscriptionManager.SubscribeResult;
 import plugins.WebOfTrust.SubscriptionManager.Subscription;
 import plugins.WebOfTrust.SubscriptionManager.SubscriptionExistsAlreadyException;
 import plugins.WebOfTrust.SubscriptionManager.TrustChangedNotification;
@@ -33,6 +41,7 @@ import plugins.WebOfTrust.SubscriptionManager.TrustsSubscription;
 import plugins.WebOfTrust.SubscriptionManager.UnknownSubscriptionException;
 import plugins.WebOfTrust.Trust;
 import plugins.WebOfTrust.WebOfTrust;
+import plugins.WebOfTrust.XMLTransformer.ImportStage;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NoSuchContextException;
 import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
@@ -44,6 +53,10 @@ import plugins.WebOfTrust.introduction.IntroductionPuzzle.PuzzleType;
 import plugins.WebOfTrust.introduction.IntroductionPuzzleStore;
 import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.SubscriptionType;
 import plugins.WebOfTrust.util.RandomName;
+import plugins.WebOfTrust.util.TimeHistogram;
+
+import com.db4o.ext.ExtObjectContainer;
+
 import freenet.clients.fcp.FCPPluginConnection;
 import freenet.clients.fcp.FCPPluginMessage;
 import freenet.keys.FreenetURI;
@@ -58,6 +71,7 @@ import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.SimpleFieldSet;
 import freenet.support.api.Bucket;
+import freenet.support.io.Closer;
 
 /**
  * ATTENTION: There is a deprecation mechanism for getting rid of old SimpleFieldSet keys (fields)
@@ -87,6 +101,12 @@ public final class FCPInterface
      */
     public static final int SUBSCRIPTION_NOTIFICATION_TIMEOUT_MINUTES = 1;
 
+    /**
+     * Amount of objects which the "GetIdentities", "GetTrusts" and "GetScores" messages process while holding the
+     * lock on the {@link WebOfTrust}. See {@link #handleGetIdentities(FCPPluginMessage)}.
+     */
+    public static final int GET_OBJECTS_PAGE_SIZE = 1024;
+
     private final WebOfTrust mWoT;
     
     private final PluginRespirator mPluginRespirator;
@@ -199,6 +219,8 @@ public final class FCPInterface
                 reply = handleUnsubscribe(fcpMessage);
             } else if (message.equals("Ping")) {
                 result = handlePing();
+            } else if (message.equals("GetIdentityFileProcessorStatistics")) {
+                result = handleGetIdentityFileProcessorStatistics();
             } else if (message.equals("RandomName")) {
                 result = handleRandomName(params);
             } else {
@@ -783,74 +805,333 @@ public final class FCPInterface
 		return sfs;
     }
 
-    private FCPPluginMessage handleGetIdentities(final FCPPluginMessage request) {
-        final FCPPluginMessage result = FCPPluginMessage.constructSuccessReply(request);
+    /**
+     * Processes the "GetIdentities" FCP message: Lists all {@link Identity}s and {@link OwnIdentity}s in the database,
+     * ordered by {@link Identity#getID()}.<br>
+     * The database is queried once, and the result is processed in pages of {@link #GET_OBJECTS_PAGE_SIZE} objects
+     * while the lock on the {@link WebOfTrust} is released between the pages. Thus the reply is not an atomic snapshot
+     * of the database if it spans multiple pages: Each object is listed at most once, but objects which are changed
+     * during the processing may be listed in their old or new version, or not at all if they are created or deleted
+     * meanwhile.<br><br>
+     * 
+     * <b>Optional fields:</b><br>
+     * "Context" = Only identities which have this context are listed.<br>
+     * "Limit" = Maximal amount of objects in the reply. Default is to list all.<br>
+     * "After" = Continuation token of the previous reply, see below: Listing continues after the last object of the
+     * previous reply. Default is to start with the first object.<br>
+     * "Format" = "SimpleFieldSet" (default) or "Lines" - See below.<br><br>
+     * 
+     * <b>Reply:</b><br>
+     * "Message" = "Identities"<br>
+     * "Identities.Amount" = Amount of listed objects.<br>
+     * "Identities.Continuation" = Only present if the "Limit" was reached before all objects were listed: Send it as
+     * "After" to get the next page. The next page may be empty if none of the remaining objects matched the
+     * "Context".<br>
+     * "Identities.Format" = The "Format" of the reply.<br>
+     * For "Format" = "SimpleFieldSet", the objects are contained in the params as "Identities.0.ID" etc. as created by
+     * {@link #addIdentityFields(SimpleFieldSet, Identity, String, String)}.<br>
+     * For "Format" = "Lines", the objects are contained in the {@link FCPPluginMessage#data} as UTF-8 text, one object
+     * per line terminated by "\n". The fields of a line are separated by "\t". Within the fields, the characters
+     * "\\", "\t", "\n" and "\r" are escaped as "\\\\", "\\t", "\\n" and "\\r". The fields are:<br>
+     * ID, Type ("Identity" or "OwnIdentity"), Nickname (empty if unknown yet), RequestURI, InsertURI (empty for
+     * non-own identities), VersionID, PublishesTrustList, CurrentEditionFetchState, amount of contexts, the contexts,
+     * and then pairs of property name and property value until the end of the line.<br>
+     * This is much more compact than the SimpleFieldSet and thus recommended for large databases.
+     */
+    private FCPPluginMessage handleGetIdentities(final FCPPluginMessage request)
+            throws InvalidParameterException, IOException {
         
-        result.params.putOverwrite("Message", "Identities");
-		
         final String context = request.params.get("Context");
+        final boolean getAll = context == null || context.equals("");
         
-        // WebOfTrust.getAllIdentities() demands that we synchronize while processing the result.
-		synchronized(mWoT) {
-			final boolean getAll = context == null || context.equals("");
-	
-			int i = 0;
-			for(final Identity identity : mWoT.getAllIdentities()) {
-				if(getAll || identity.hasContext(context)) {
-					// TODO: Allow the client to select what data he wants
-                    addIdentityFields(result.params, identity,
-                        "Identities." + Integer.toString(i) + ".", "");
-					
-					++i;
-				}
-			}
+        return handleGetObjects(request, "Identities", new ObjectLister<Identity>() {
+            @Override List<Identity> getObjects(final String afterID) {
+                return mWoT.getIdentitiesAfterID(afterID);
+            }
             
-            // Need to use Overwrite because addIdentityFields() sets it to 1
-            result.params.putOverwrite("Identities.Amount", Integer.toString(i));
-		}
-		
-        return result;
+            @Override boolean matches(final Identity identity) {
+                return getAll || identity.hasContext(context);
+            }
+            
+            @Override void addFields(final SimpleFieldSet sfs, final Identity identity, final int index) {
+                // TODO: Allow the client to select what data he wants
+                addIdentityFields(sfs, identity, "Identities." + Integer.toString(index) + ".", "");
+            }
+            
+            @Override void appendLine(final StringBuilder line, final Identity identity) {
+                final boolean isOwnIdentity = identity instanceof OwnIdentity;
+                appendField(line, identity.getID());
+                appendField(line, isOwnIdentity ? "OwnIdentity" : "Identity");
+                appendField(line, identity.getNickname());
+                appendField(line, identity.getRequestURI().toString());
+                appendField(line, isOwnIdentity ? ((OwnIdentity)identity).getInsertURI().toString() : null);
+                appendField(line, identity.getVersionID().toString());
+                appendField(line, Boolean.toString(identity.doesPublishTrustList()));
+                appendField(line, identity.getCurrentEditionFetchState().toString());
+                
+                final ArrayList<String> contexts = identity.getContexts();
+                appendField(line, Integer.toString(contexts.size()));
+                for(String identityContext : contexts)
+                    appendField(line, identityContext);
+                
+                for(Entry<String, String> property : identity.getProperties().entrySet()) {
+                    appendField(line, property.getKey());
+                    appendField(line, property.getValue());
+                }
+            }
+        });
     }
 
-    private FCPPluginMessage handleGetTrusts(final FCPPluginMessage request) {
-        final FCPPluginMessage result = FCPPluginMessage.constructSuccessReply(request);
+    /**
+     * Processes the "GetTrusts" FCP message: Lists all {@link Trust}s in the database, ordered by
+     * {@link Trust#getID()}.<br>
+     * Paging and the optional fields "Limit", "After" and "Format" work as specified at
+     * {@link #handleGetIdentities(FCPPluginMessage)}.<br><br>
+     * 
+     * <b>Reply:</b><br>
+     * "Message" = "Trusts"<br>
+     * "Trusts.Amount", "Trusts.Continuation", "Trusts.Format" = See {@link #handleGetIdentities(FCPPluginMessage)}.
+     * <br>
+     * For "Format" = "SimpleFieldSet", the objects are contained in the params as "Trusts.0.Truster" etc. as created by
+     * {@link #handleGetTrust(SimpleFieldSet, Trust, String)}.<br>
+     * For "Format" = "Lines", the fields of a line are: Truster ID, Trustee ID, Value, TrusterEdition, VersionID,
+     * Comment.
+     */
+    private FCPPluginMessage handleGetTrusts(final FCPPluginMessage request)
+            throws InvalidParameterException, IOException {
         
-        result.params.putOverwrite("Message", "Trusts");
-   
-        // WebOfTrust.getAllTrusts() demands that we synchronize while processing the result.
-        synchronized(mWoT) {
-        	int i = 0;
-			for(final Trust trust : mWoT.getAllTrusts()) {
-                handleGetTrust(result.params, trust, Integer.toString(i));
-				++i;
-			}
+        return handleGetObjects(request, "Trusts", new ObjectLister<Trust>() {
+            @Override List<Trust> getObjects(final String afterID) {
+                return mWoT.getTrustsAfterID(null, afterID);
+            }
             
-            // Need to use Overwrite because handleGetTrust() sets it to 1
-            result.params.putOverwrite("Trusts.Amount", Integer.toString(i));
+            @Override void addFields(final SimpleFieldSet sfs, final Trust trust, final int index) {
+                handleGetTrust(sfs, trust, Integer.toString(index));
+            }
+            
+            @Override void appendLine(final StringBuilder line, final Trust trust) {
+                appendField(line, trust.getTruster().getID());
+                appendField(line, trust.getTrustee().getID());
+                appendField(line, Byte.toString(trust.getValue()));
+                appendField(line, Long.toString(trust.getTrusterEdition()));
+                appendField(line, trust.getVersionID().toString());
+                appendField(line, trust.getComment());
+            }
+        });
+    }
+
+    /**
+     * Processes the "GetScores" FCP message: Lists all {@link Score}s in the database, ordered by
+     * {@link Score#getID()}.<br>
+     * Paging and the optional fields "Limit", "After" and "Format" work as specified at
+     * {@link #handleGetIdentities(FCPPluginMessage)}.<br><br>
+     * 
+     * <b>Reply:</b><br>
+     * "Message" = "Scores"<br>
+     * "Scores.Amount", "Scores.Continuation", "Scores.Format" = See {@link #handleGetIdentities(FCPPluginMessage)}.
+     * <br>
+     * For "Format" = "SimpleFieldSet", the objects are contained in the params as "Scores.0.Truster" etc. as created by
+     * {@link #handleGetScore(SimpleFieldSet, Score, String)}.<br>
+     * For "Format" = "Lines", the fields of a line are: Truster ID, Trustee ID, Value, Rank, Capacity, VersionID.
+     */
+    private FCPPluginMessage handleGetScores(final FCPPluginMessage request)
+            throws InvalidParameterException, IOException {
+        
+        return handleGetObjects(request, "Scores", new ObjectLister<Score>() {
+            @Override List<Score> getObjects(final String afterID) {
+                return mWoT.getScoresAfterID(null, afterID);
+            }
+            
+            @Override void addFields(final SimpleFieldSet sfs, final Score score, final int index) {
+                handleGetScore(sfs, score, Integer.toString(index));
+            }
+            
+            @Override void appendLine(final StringBuilder line, final Score score) {
+                appendField(line, score.getTruster().getID());
+                appendField(line, score.getTrustee().getID());
+                appendField(line, Integer.toString(score.getScore()));
+                appendField(line, Integer.toString(score.getRank()));
+                appendField(line, Integer.toString(score.getCapacity()));
+                appendField(line, score.getVersionID().toString());
+            }
+        });
+    }
+
+    /**
+     * Provides the type-specific parts of {@link FCPInterface#handleGetObjects(FCPPluginMessage, String,
+     * ObjectLister)}.
+     */
+    private static abstract class ObjectLister<T extends Persistent> {
+        /**
+         * Must return the objects whose {@link Persistent#getID()} is greater than the given one, ordered ascending by
+         * the ID, such as {@link WebOfTrust#getIdentitiesAfterID(String)}.<br>
+         * Is called once per request while synchronized on the {@link WebOfTrust}. The result is then accessed by
+         * {@link List#get(int)} in pages of {@link FCPInterface#GET_OBJECTS_PAGE_SIZE}, synchronizing again for
+         * each page. Thus it must be a database query result which only stores the IDs of the objects, and loads
+         * them upon access.
+         * 
+         * @param afterID Null to start with the first object.
+         */
+        abstract List<T> getObjects(String afterID);
+        
+        /** Override to exclude objects from the listing. They are skipped, but still advance the cursor. */
+        boolean matches(T object) {
+            return true;
         }
         
-        return result;
+        /** Adds the fields of the object for "Format" = "SimpleFieldSet". */
+        abstract void addFields(SimpleFieldSet sfs, T object, int index);
+        
+        /**
+         * Appends the fields of the object for "Format" = "Lines" by {@link FCPInterface#appendField(StringBuilder,
+         * String)}. Must append at least one field. The caller replaces the separator after the last field with the
+         * line terminator.
+         */
+        abstract void appendLine(StringBuilder line, T object);
     }
 
-    private FCPPluginMessage handleGetScores(final FCPPluginMessage request) {
-        final FCPPluginMessage result = FCPPluginMessage.constructSuccessReply(request);
-       
-        result.params.putOverwrite("Message", "Scores");
-   
-        // WebOfTrust.getAllScores() demands that we synchronize while processing the result.
-        synchronized(mWoT) {
-        	int i = 0;
-			for(final Score score: mWoT.getAllScores()) {
-                handleGetScore(result.params, score, Integer.toString(i));
-				
-				++i;
-			}
+    /**
+     * Implementation of {@link #handleGetIdentities(FCPPluginMessage)}, {@link #handleGetTrusts(FCPPluginMessage)} and
+     * {@link #handleGetScores(FCPPluginMessage)}: Lists the objects of the given {@link ObjectLister} in pages of
+     * {@link #GET_OBJECTS_PAGE_SIZE} while synchronized on the {@link WebOfTrust}, releasing the lock between pages.
+     * <br>The objects are queried only once: Querying the remaining objects for each page would sort all of them
+     * again and thus take O(N^2 / GET_OBJECTS_PAGE_SIZE) time for N objects.
+     * <br>For "Format" = "Lines", each page is formatted while holding the lock but written to the reply
+     * {@link Bucket} after releasing it.
+     * 
+     * @param type The name of the reply message, also used as prefix for the fields of the reply.
+     */
+    private <T extends Persistent> FCPPluginMessage handleGetObjects(final FCPPluginMessage request,
+            final String type, final ObjectLister<T> lister) throws InvalidParameterException, IOException {
+        
+        final SimpleFieldSet params = request.params;
+        
+        final String format = params.get("Format");
+        final boolean lines;
+        if(format == null || format.equals("SimpleFieldSet"))
+            lines = false;
+        else if(format.equals("Lines"))
+            lines = true;
+        else
+            throw new InvalidParameterException("Invalid Format: " + format);
+        
+        final int limit;
+        final String limitString = params.get("Limit");
+        if(limitString == null)
+            limit = Integer.MAX_VALUE;
+        else {
+            try {
+                limit = Integer.parseInt(limitString);
+            } catch(NumberFormatException e) {
+                throw new InvalidParameterException("Invalid Limit: " + limitString);
+            }
+            if(limit < 1)
+                throw new InvalidParameterException("Limit must be at least 1: " + limit);
+        }
+        
+        String afterID = params.get("After");
+        if(afterID != null && afterID.equals(""))
+            afterID = null;
+        
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", type);
+        
+        Bucket data = null;
+        Writer writer = null;
+        boolean success = false;
+        try {
+            if(lines) {
+                data = mPluginRespirator.getNode().clientCore.tempBucketFactory.makeBucket(-1);
+                writer = new OutputStreamWriter(new BufferedOutputStream(data.getOutputStream()), "UTF-8");
+            }
+            
+            final ExtObjectContainer db = mWoT.getDatabase();
+            final List<T> objects;
+            final int size;
+            synchronized(mWoT) {
+                objects = lister.getObjects(afterID);
+                size = objects.size();
+            }
+            
+            int amount = 0;
+            int index = 0;
+            final StringBuilder page = new StringBuilder();
+            
+            while(index < size && amount < limit) {
+                // The functions which return the objects demand that we synchronize while processing the result.
+                synchronized(mWoT) {
+                    final int pageEnd = Math.min(index + GET_OBJECTS_PAGE_SIZE, size);
+                    
+                    for(; index < pageEnd && amount < limit; ++index) {
+                        final T object = objects.get(index);
+                        if(object == null || !db.isStored(object))
+                            continue; // Deleted while we did not hold the lock
+                        
+                        afterID = object.getID();
+                        
+                        if(!lister.matches(object))
+                            continue;
+                        
+                        if(lines) {
+                            lister.appendLine(page, object);
+                            page.setCharAt(page.length() - 1, '\n');
+                        } else
+                            lister.addFields(sfs, object, amount);
+                        
+                        ++amount;
+                    }
+                }
+                
+                if(lines) {
+                    writer.write(page.toString());
+                    page.setLength(0);
+                }
+            }
             
-            // Need to use Overwrite because handleGetScore() sets it to 1
-            result.params.putOverwrite("Scores.Amount", Integer.toString(i));
+            // Need to use Overwrite because addFields() sets it to 1
+            sfs.putOverwrite(type + ".Amount", Integer.toString(amount));
+            if(index < size)
+                sfs.putOverwrite(type + ".Continuation", afterID);
+            sfs.putOverwrite(type + ".Format", lines ? "Lines" : "SimpleFieldSet");
+            
+            if(lines) {
+                writer.close();
+                writer = null;
+                data.setReadOnly();
+            }
+            
+            success = true;
+            return FCPPluginMessage.constructReplyMessage(request, sfs, data, true, null, null);
+        } finally {
+            Closer.close(writer);
+            if(!success && data != null)
+                data.free();
+        }
+    }
+
+    /**
+     * Appends a field of the "Lines" format of {@link #handleGetIdentities(FCPPluginMessage)} to the given line,
+     * followed by the "\t" separator.
+     * 
+     * @param value Null is appended as an empty field.
+     */
+    private static void appendField(final StringBuilder line, final String value) {
+        if(value == null) {
+            line.append('\t');
+            return;
         }
         
-        return result;
+        for(int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            switch(c) {
+                case '\\': line.append("\\\\"); break;
+                case '\t': line.append("\\t"); break;
+                case '\n': line.append("\\n"); break;
+                case '\r': line.append("\\r"); break;
+                default: line.append(c);
+            }
+        }
+        line.append('\t');
     }
 
     private SimpleFieldSet handleGetIdentitiesByScore(final SimpleFieldSet params) throws InvalidParameterException, UnknownIdentityException, FSParseException {
@@ -1233,6 +1514,32 @@ public final class FCPInterface
      * "To" = "Identities" or "Trusts" or "Scores" - chooses among {@link IdentitiesSubscription} / {@link TrustsSubscription} /
      * {@link ScoresSubscription}.<br><br>
      * 
+     * <b>Optional fields:</b><br>
+     * "Coalesce" = "true" or "false" (default) - If true, multiple changes of the same object which happen before the
+     * notification about the first one was sent are sent as a single "ObjectChangedEvent", with the version of the object
+     * before the first change and after the last change. See
+     * {@link SubscriptionManager.Subscription#getCoalesceNotifications()}.<br>
+     * "OutOfOrder" = "true" or "false" (default) - If true, the notifications of this subscription are sent
+     * independently of the ones of your other subscriptions: They may arrive before or after notifications which
+     * happened earlier or later in the other subscriptions, and if you fail to process one of them, only this
+     * subscription stops until it is retried successfully. Useful if you do not need references between the types
+     * to be valid, for example if you only cache scores. See
+     * {@link SubscriptionManager.Subscription#isOutOfOrder()}.<br>
+     * "Filter.Context" = Only for "To" = "Identities": Only identities which have this context are sent.<br>
+     * "Filter.Truster" = Only for "To" = "Trusts" and "Scores": Only objects whose truster has this identity ID
+     * are sent.<br>
+     * "Filter.MinimumScore" = Only for "To" = "Scores": Only scores with at least this value are sent.<br>
+     * "Filter.Fields" = Comma-separated list of field names: Changes of an object are only sent if they change at least
+     * one of these fields. See the FILTER_FIELDS of {@link SubscriptionManager.IdentitiesSubscription},
+     * {@link SubscriptionManager.TrustsSubscription} and {@link SubscriptionManager.ScoresSubscription} for the
+     * names.<br>
+     * If an object starts or stops matching the filters, you receive it as created or deleted. See
+     * {@link SubscriptionManager.Filter}.<br>
+     * "BatchSize" = Maximal amount of notifications which you want to receive with a single "Notifications" message,
+     * see below. Default is 1, which means that no "Notifications" messages are sent. Values above
+     * {@link SubscriptionManager#MAX_FCP_BATCH_SIZE} are lowered to it. The batch size is per client, not per
+     * subscription: All your subscriptions use the value of the most recent "Subscribe" message.<br><br>
+     * 
      * <b>Reply:</b><br>
      * The reply will have the same {@link FCPPluginMessage#identifier} as the
      * original "Subscribe" message which you first sent to subscribe, or in other words be the
@@ -1240,7 +1547,11 @@ public final class FCPInterface
      * params will be formatted as: <br>
      * "Message" = "Subscribed"<br>
      * "SubscriptionID" = Random {@link UUID} of the Subscription.<br>
-     * "To" = Same as the "To" field of your original message.<br><br>
+     * "To" = Same as the "To" field of your original message.<br>
+     * "BatchSize" = The batch size which the server will use, which may be lower than the requested one.<br>
+     * "Resumed" = "true" if the "ResumeLogID" and "ResumeIndex" which you requested were honored, see below.<br>
+     * "RetentionLogID", "RetentionLogIndex" = Your position for resuming the subscription, see below. Not present if
+     * you requested "Coalesce".<br><br>
      *     
      * <b>Errors</b>:<br>
      * If you are already subscribed to the selected type, you will only receive a single message:
@@ -1272,6 +1583,32 @@ public final class FCPInterface
      * {@link #sendScoreChangedNotification(String, ScoreChangedNotification)}.
      * <br>
      * 
+     * <h2>Batches of notifications:</h2>
+     * If you requested a "BatchSize" larger than 1, multiple notifications may be sent with a
+     * single message of the following format, see {@link #sendNotifications(UUID, List)}:<br>
+     * "Message" = "Notifications"<br>
+     * "Amount" = Number of contained notifications<br>
+     * "0", "1", ... = Prefixes under which the params of the individual notification messages are
+     * contained, in the order in which you must process them. Each of them has the same format
+     * as the single messages, including their "Message" field.<br>
+     * The batches are also limited by the size of the contained objects, so they can be smaller
+     * than the "BatchSize" even if more notifications are pending.<br>
+     * If you reply with {@link FCPPluginMessage#success}=false, you can put the field
+     * "HighestProcessedIndex" = index of the last notification which you processed successfully
+     * into the reply. The notifications up to this index will not be sent again, only the
+     * remaining ones. Without this field, the whole batch is re-sent.<br>
+     * 
+     * <h2>Resuming subscriptions:</h2>
+     * If you lose your connection to WOT, you can resume your subscriptions when subscribing again instead of
+     * receiving the full synchronization again: Put the fields "ResumeLogID" and "ResumeIndex" into the "Subscribe"
+     * message, with the "RetentionLogID" of the "Subscribed" reply and the highest "RetentionLogIndex" which you
+     * processed. That is the one of the "Subscribed" reply once you have processed the "EndSynchronizationEvent", and
+     * later the one of each processed "ObjectChangedEvent" which contains the field.<br>
+     * If WOT still knows all changes which you missed, the reply contains "Resumed" = "true" and you only receive those
+     * changes as "ObjectChangedEvent"s, without a synchronization. Otherwise you receive a regular synchronization.
+     * You must use the same filter as before, and resuming is not possible with "Coalesce".
+     * See {@link SubscriptionManager.ResumePosition}.<br>
+     * 
      * <h2>Replying to notifications:</h2>
      * By replying with a {@link FCPPluginMessage} with {@link FCPPluginMessage#success}=false, you
      * can signal that you want to receive the same notification again.
@@ -1301,11 +1638,20 @@ public final class FCPInterface
             final FCPPluginMessage message) throws InvalidParameterException {
         
         final String to = getMandatoryParameter(message.params, "To");
+        final boolean coalesce = message.params.getBoolean("Coalesce", false);
+        final boolean outOfOrder = message.params.getBoolean("OutOfOrder", false);
+        final SubscriptionManager.Filter filter = parseSubscriptionFilter(message.params);
+        // The server may lower the requested value, the client learns the result from the reply.
+        final int batchSize = Math.max(1, Math.min(SubscriptionManager.MAX_FCP_BATCH_SIZE,
+            message.params.getInt("BatchSize", 1)));
+        final String resumeLogID = message.params.get("ResumeLogID");
+        final ResumePosition resumeFrom = resumeLogID == null ? null
+            : new ResumePosition(resumeLogID, message.params.getLong("ResumeIndex", -1));
 
     	
     	try {
             FCPPluginMessage reply = FCPPluginMessage.constructSuccessReply(message);
-            String subscriptionID;
+            SubscribeResult result;
             
             // TODO: Code quality: Use FCPClientReferenceImplementation.SubscriptionType.valueOf()
             // Maybe copy the enum to class SubscriptionManager. (It must be copied instead of moved
@@ -1313,18 +1659,27 @@ public final class FCPInterface
             // which wouldn't make sense to copy to a WOT client plugin. SubscriptionManager for
             // sure does not need to be in a WOT client plugin)
 	    	if(to.equals("Identities")) {
-                subscriptionID = mSubscriptionManager.subscribeToIdentities(connection.getID());
+                result = mSubscriptionManager.subscribeToIdentities(connection.getID(), coalesce, outOfOrder, filter,
+                    batchSize, resumeFrom);
 	    	} else if(to.equals("Trusts")) {
-                subscriptionID = mSubscriptionManager.subscribeToTrusts(connection.getID());
+                result = mSubscriptionManager.subscribeToTrusts(connection.getID(), coalesce, outOfOrder, filter,
+                    batchSize, resumeFrom);
 	    	} else if(to.equals("Scores")) {
-                subscriptionID = mSubscriptionManager.subscribeToScores(connection.getID());
+                result = mSubscriptionManager.subscribeToScores(connection.getID(), coalesce, outOfOrder, filter,
+                    batchSize, resumeFrom);
 	    	} else
 	    		throw new InvalidParameterException("Invalid subscription type specified: " + to);
 	    	
 	    	SimpleFieldSet sfs = reply.params;
 	    	sfs.putOverwrite("Message", "Subscribed");
-            sfs.putOverwrite("SubscriptionID", subscriptionID);
+            sfs.putOverwrite("SubscriptionID", result.mSubscriptionID);
 	    	sfs.putOverwrite("To", to);
+	    	sfs.put("BatchSize", batchSize);
+	    	sfs.put("Resumed", result.mResumed);
+	    	if(result.mPosition != null) {
+	    	    sfs.putOverwrite("RetentionLogID", result.mPosition.mLogID);
+	    	    sfs.put("RetentionLogIndex", result.mPosition.mIndex);
+	    	}
             
             return reply;
     	} catch(SubscriptionExistsAlreadyException e) {
@@ -1360,6 +1715,38 @@ public final class FCPInterface
         }
     }
     
+    /** Parses the optional "Filter.*" fields of {@link #handleSubscribe(FCPPluginConnection, FCPPluginMessage)}. */
+    private SubscriptionManager.Filter parseSubscriptionFilter(final SimpleFieldSet params)
+            throws InvalidParameterException {
+        
+        final String context = params.get("Filter.Context");
+        final String trusterID = params.get("Filter.Truster");
+        final String minimumScoreString = params.get("Filter.MinimumScore");
+        final String fieldsString = params.get("Filter.Fields");
+        
+        if(context == null && trusterID == null && minimumScoreString == null && fieldsString == null)
+            return SubscriptionManager.Filter.NONE;
+        
+        Integer minimumScore = null;
+        if(minimumScoreString != null) {
+            try {
+                minimumScore = Integer.parseInt(minimumScoreString);
+            } catch(NumberFormatException e) {
+                throw new InvalidParameterException("Invalid Filter.MinimumScore: " + minimumScoreString);
+            }
+        }
+        
+        final HashSet<String> fields = new HashSet<String>();
+        if(fieldsString != null) {
+            for(String field : fieldsString.split(",")) {
+                if(field.trim().length() > 0)
+                    fields.add(field.trim());
+            }
+        }
+        
+        return new SubscriptionManager.Filter(context, trusterID, minimumScore, fields);
+    }
+    
     /**
      * Handles the "Unsubscribe" message, the inverse operation to the "Subscribe".<br>
      * See {@link #handleSubscribe(FCPPluginConnection, FCPPluginMessage)}.
@@ -1440,10 +1827,17 @@ public final class FCPInterface
             final BeginSynchronizationNotification<?> notification)
                 throws FCPCallFailedException, IOException, InterruptedException {
         
-        // Not a reply to an existing message since it is sent due to an event, not a client message
-        final FCPPluginMessage fcpMessage = FCPPluginMessage.construct();
+        sendNotificationMessage(clientID, constructBeginOrEndSynchronizationNotification(notification));
+    }
+    
+    /** Constructs the params of the FCP message of {@link #sendBeginOrEndSynchronizationNotification(UUID,
+     *  BeginSynchronizationNotification)}. */
+    private SimpleFieldSet constructBeginOrEndSynchronizationNotification(
+            final BeginSynchronizationNotification<?> notification) {
+        
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
         
-        fcpMessage.params.putOverwrite("Message", 
+        sfs.putOverwrite("Message", 
              notification instanceof EndSynchronizationNotification 
                  ? "EndSynchronizationEvent" : "BeginSynchronizationEvent");
         
@@ -1471,15 +1865,9 @@ public final class FCPInterface
         }
         
         // "To" because thats what we also use in handleSubscribe()
-        fcpMessage.params.putOverwrite("To", to);
-        fcpMessage.params.putOverwrite("VersionID", notification.getID());
-        
-        final FCPPluginMessage reply = mPluginRespirator.getPluginConnectionByID(clientID)
-            .sendSynchronous(
-                fcpMessage, TimeUnit.MINUTES.toNanos(SUBSCRIPTION_NOTIFICATION_TIMEOUT_MINUTES));
-        
-        if(reply.success == false)
-            throw new FCPCallFailedException(reply);
+        sfs.putOverwrite("To", to);
+        sfs.putOverwrite("VersionID", notification.getID());
+        return sfs;
     }
 
     /**
@@ -1494,10 +1882,19 @@ public final class FCPInterface
             final IdentityChangedNotification notification)
                 throws FCPCallFailedException, IOException, InterruptedException {
         
+        sendNotificationMessage(clientID, constructIdentityChangedNotification(notification));
+    }
+    
+    /** Constructs the params of the FCP message of {@link #sendIdentityChangedNotification(UUID,
+     *  IdentityChangedNotification)}. */
+    private SimpleFieldSet constructIdentityChangedNotification(
+            final IdentityChangedNotification notification) {
+        
     	final SimpleFieldSet oldIdentity = handleGetIdentity((Identity)notification.getOldObject(), null);
     	final SimpleFieldSet newIdentity = handleGetIdentity((Identity)notification.getNewObject(), null);
     	
-        sendChangeNotification(clientID, SubscriptionType.Identities, oldIdentity, newIdentity);
+        return constructChangeNotification(SubscriptionType.Identities, oldIdentity, newIdentity,
+            notification.getRetentionLogIndex());
     }
     
     /**
@@ -1512,10 +1909,19 @@ public final class FCPInterface
             final TrustChangedNotification notification)
                 throws FCPCallFailedException, IOException, InterruptedException {
         
+        sendNotificationMessage(clientID, constructTrustChangedNotification(notification));
+    }
+    
+    /** Constructs the params of the FCP message of {@link #sendTrustChangedNotification(UUID,
+     *  TrustChangedNotification)}. */
+    private SimpleFieldSet constructTrustChangedNotification(
+            final TrustChangedNotification notification) {
+        
     	final SimpleFieldSet oldTrust = handleGetTrust(new SimpleFieldSet(true), (Trust)notification.getOldObject(), "0");
     	final SimpleFieldSet newTrust = handleGetTrust(new SimpleFieldSet(true), (Trust)notification.getNewObject(), "0");
 
-        sendChangeNotification(clientID, SubscriptionType.Trusts, oldTrust, newTrust);
+        return constructChangeNotification(SubscriptionType.Trusts, oldTrust, newTrust,
+            notification.getRetentionLogIndex());
     }
     
     /**
@@ -1530,45 +1936,177 @@ public final class FCPInterface
             final ScoreChangedNotification notification)
                 throws FCPCallFailedException, IOException, InterruptedException {
         
+        sendNotificationMessage(clientID, constructScoreChangedNotification(notification));
+    }
+    
+    /** Constructs the params of the FCP message of {@link #sendScoreChangedNotification(UUID,
+     *  ScoreChangedNotification)}. */
+    private SimpleFieldSet constructScoreChangedNotification(
+            final ScoreChangedNotification notification) {
+        
     	final SimpleFieldSet oldScore = handleGetScore(new SimpleFieldSet(true), (Score)notification.getOldObject(), "0");
     	final SimpleFieldSet newScore = handleGetScore(new SimpleFieldSet(true), (Score)notification.getNewObject(), "0");
 
-        sendChangeNotification(clientID, SubscriptionType.Scores, oldScore, newScore);
+        return constructChangeNotification(SubscriptionType.Scores, oldScore, newScore,
+            notification.getRetentionLogIndex());
+    }
+    
+    /**
+     * @param retentionLogIndex See {@link ObjectChangedNotification#getRetentionLogIndex()}. Only sent to the client if
+     *     it is not 0, see {@link #handleSubscribe(FCPPluginConnection, FCPPluginMessage)}.
+     */
+    private SimpleFieldSet constructChangeNotification(final SubscriptionType subscriptionType,
+            final SimpleFieldSet beforeChange, final SimpleFieldSet afterChange, final long retentionLogIndex) {
+        
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "ObjectChangedEvent");
+        sfs.putOverwrite("SubscriptionType", subscriptionType.name());
+        sfs.put("Before", beforeChange);
+        sfs.put("After", afterChange);
+        if(retentionLogIndex != 0)
+            sfs.put("RetentionLogIndex", retentionLogIndex);
+        return sfs;
     }
     
     /**
+     * Sends multiple {@link Notification}s of a {@link SubscriptionManager.Client} with a single
+     * FCP message, for clients which negotiated a "BatchSize" larger than 1 when subscribing. See
+     * {@link #handleSubscribe(FCPPluginConnection, FCPPluginMessage)} for the format.<br><br>
+     * 
      * ATTENTION: At shutdown of WOT, you have to make sure to use {@link Thread#interrupt()} to
      * interrupt any of your threads which call this function:<br>
      * It uses the blocking {@link FCPPluginConnection#sendSynchronous(FCPPluginMessage, long)},
      * which can take a long time to complete. It can be aborted by interrupt().<br><br>
+     * 
+     * @throws FCPCallFailedException
+     *             If the client indicated failure. Its
+     *             {@link FCPCallFailedException#processedAmount} tells how many of the
+     *             notifications the client processed before the failure.
      */
-    private void sendChangeNotification(
-            final UUID clientID, final SubscriptionType subscriptionType,
-            final SimpleFieldSet beforeChange, final SimpleFieldSet afterChange)
-                throws FCPCallFailedException, IOException, InterruptedException {
+    public void sendNotifications(final UUID clientID, final List<Notification> notifications)
+            throws FCPCallFailedException, IOException, InterruptedException {
         
-        // Not a reply to an existing message since it is sent due to an event, not a client message
-        final FCPPluginMessage fcpMessage = FCPPluginMessage.construct();
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "Notifications");
+        sfs.put("Amount", notifications.size());
         
-        fcpMessage.params.putOverwrite("Message", "ObjectChangedEvent");
-        fcpMessage.params.putOverwrite("SubscriptionType", subscriptionType.name());
-        fcpMessage.params.put("Before", beforeChange);
-        fcpMessage.params.put("After", afterChange);
+        for(int i = 0; i < notifications.size(); ++i) {
+            final Notification notification = notifications.get(i);
+            final SimpleFieldSet params;
+            
+            if(notification instanceof IdentityChangedNotification)
+                params = constructIdentityChangedNotification((IdentityChangedNotification)notification);
+            else if(notification instanceof TrustChangedNotification)
+                params = constructTrustChangedNotification((TrustChangedNotification)notification);
+            else if(notification instanceof ScoreChangedNotification)
+                params = constructScoreChangedNotification((ScoreChangedNotification)notification);
+            else if(notification instanceof BeginSynchronizationNotification<?>) {
+                // EndSynchronizationNotification is a child of BeginSynchronizationNotification.
+                params = constructBeginOrEndSynchronizationNotification(
+                    (BeginSynchronizationNotification<?>)notification);
+            } else {
+                throw new UnsupportedOperationException("Unknown notification type: "
+                    + notification);
+            }
+            
+            sfs.put(Integer.toString(i), params);
+        }
+        
+        final FCPPluginMessage reply = sendSynchronous(clientID, sfs);
+        
+        if(reply.success == false) {
+            // The client acknowledges the index of the last notification it processed.
+            int processed = reply.params != null ? reply.params.getInt("HighestProcessedIndex", -1) + 1 : 0;
+            processed = Math.max(0, Math.min(processed, notifications.size()));
+            throw new FCPCallFailedException(reply, processed);
+        }
+    }
+    
+    /**
+     * Sends a message which contains a single {@link Notification}.<br><br>
+     * 
+     * ATTENTION: At shutdown of WOT, you have to make sure to use {@link Thread#interrupt()} to
+     * interrupt any of your threads which call this function:<br>
+     * It uses the blocking {@link FCPPluginConnection#sendSynchronous(FCPPluginMessage, long)},
+     * which can take a long time to complete. It can be aborted by interrupt().<br><br>
+     */
+    private void sendNotificationMessage(final UUID clientID, final SimpleFieldSet params)
+            throws FCPCallFailedException, IOException, InterruptedException {
         
-        final FCPPluginMessage reply = mPluginRespirator.getPluginConnectionByID(clientID)
-            .sendSynchronous(
-                fcpMessage, TimeUnit.MINUTES.toNanos(SUBSCRIPTION_NOTIFICATION_TIMEOUT_MINUTES));
+        final FCPPluginMessage reply = sendSynchronous(clientID, params);
         
         if(reply.success == false)
             throw new FCPCallFailedException(reply);
     }
     
+    /** @see #sendNotificationMessage(UUID, SimpleFieldSet) */
+    private FCPPluginMessage sendSynchronous(final UUID clientID, final SimpleFieldSet params)
+            throws IOException, InterruptedException {
+        
+        // Not a reply to an existing message since it is sent due to an event, not a client message
+        final FCPPluginMessage fcpMessage = FCPPluginMessage.construct(params, null);
+        
+        return mPluginRespirator.getPluginConnectionByID(clientID).sendSynchronous(
+            fcpMessage, TimeUnit.MINUTES.toNanos(SUBSCRIPTION_NOTIFICATION_TIMEOUT_MINUTES));
+    }
+    
     private SimpleFieldSet handlePing() {
     	final SimpleFieldSet sfs = new SimpleFieldSet(true);
     	sfs.putOverwrite("Message", "Pong");
     	return sfs;
     }
 
+    /**
+     * Replies with the {@link IdentityFileProcessor.Statistics}, including the histograms of the
+     * durations of each {@link ImportStage} of importing identity files.<br><br>
+     * 
+     * Reply format:<br>
+     * Message=IdentityFileProcessorStatistics<br>
+     * ProcessedFiles=...<br>
+     * FailedFiles=...<br>
+     * UnchangedFiles=...<br>
+     * UnknownIdentityFiles=...<br>
+     * ProcessingTimeNanoseconds=...<br>
+     * BucketUpperBoundNanoseconds.0=... (upper bound of the histogram buckets, exclusive, see
+     * {@link TimeHistogram})<br>
+     * ...<br>
+     * ImportStages.STAGE.Count=...<br>
+     * ImportStages.STAGE.TotalNanoseconds=...<br>
+     * ImportStages.STAGE.MaxNanoseconds=...<br>
+     * ImportStages.STAGE.Buckets.0=... (number of durations in the bucket)<br>
+     * ...<br>
+     * where STAGE is the name of each {@link ImportStage}.
+     */
+    private SimpleFieldSet handleGetIdentityFileProcessorStatistics() {
+        final IdentityFileProcessor.Statistics stats
+            = mWoT.getIdentityFileProcessor().getStatistics();
+        
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "IdentityFileProcessorStatistics");
+        sfs.put("ProcessedFiles", stats.mProcessedFiles);
+        sfs.put("FailedFiles", stats.mFailedFiles);
+        sfs.put("UnchangedFiles", stats.mUnchangedFiles);
+        sfs.put("UnknownIdentityFiles", stats.mUnknownIdentityFiles);
+        sfs.put("ProcessingTimeNanoseconds", stats.mProcessingTimeNanoseconds);
+        
+        for(int i = 0; i < TimeHistogram.BUCKET_COUNT; ++i) {
+            sfs.put("BucketUpperBoundNanoseconds." + i,
+                TimeHistogram.getBucketUpperBoundNanos(i));
+        }
+        
+        for(Entry<ImportStage, TimeHistogram> entry : stats.mImportStageTimes.entrySet()) {
+            final String prefix = "ImportStages." + entry.getKey().name() + ".";
+            final TimeHistogram histogram = entry.getValue();
+            sfs.put(prefix + "Count", histogram.getCount());
+            sfs.put(prefix + "TotalNanoseconds", histogram.getTotalNanos());
+            sfs.put(prefix + "MaxNanoseconds", histogram.getMaxNanos());
+            for(int i = 0; i < TimeHistogram.BUCKET_COUNT; ++i)
+                sfs.put(prefix + "Buckets." + i, histogram.getBucketCount(i));
+        }
+        
+        return sfs;
+    }
+
     /**
      * ATTENTION: This does cause the {@link FCPPluginMessage#errorCode} field to be "InternalError"
      * which complicates error handling at the client. Therefore, only use this for Exception types
@@ -1628,12 +2166,26 @@ public final class FCPInterface
     public static final class FCPCallFailedException extends Exception {
         private static final long serialVersionUID = 1L;
         
+        /**
+         * For messages which contain multiple {@link Notification}s, see
+         * {@link FCPInterface#sendNotifications(UUID, List)}: The amount of them which the client
+         * processed successfully before the failure. 0 for all other messages.
+         */
+        public final int processedAmount;
+        
         public FCPCallFailedException(FCPPluginMessage clientReply) {
+            this(clientReply, 0);
+        }
+        
+        public FCPCallFailedException(FCPPluginMessage clientReply, int processedAmount) {
             super("The client indicated failure of processing the message."
                 + " errorCode: " + clientReply.errorCode
-                + "; errorMessage: " + clientReply.errorMessage);
+                + "; errorMessage: " + clientReply.errorMessage
+                + "; processedAmount: " + processedAmount);
             
             assert(clientReply.success == false);
+            
+            this.processedAmount = processedAmount;
         }
     }
 
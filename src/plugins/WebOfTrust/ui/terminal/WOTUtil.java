@@ -3,8 +3,12 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust.ui.terminal;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -16,11 +20,16 @@ import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import plugins.WebOfTrust.Identity;
+import plugins.WebOfTrust.IdentityFile;
+import plugins.WebOfTrust.Persistent;
 import plugins.WebOfTrust.Trust;
 import plugins.WebOfTrust.Trust.TrustID;
+import plugins.WebOfTrust.TrustGraphSnapshot;
 import plugins.WebOfTrust.WebOfTrust;
+import plugins.WebOfTrust.XMLTransformer;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.ui.fcp.FCPInterface;
@@ -30,6 +39,10 @@ import com.db4o.ObjectSet;
 
 import freenet.clients.fcp.FCPPluginConnection;
 import freenet.clients.fcp.FCPPluginMessage;
+import freenet.support.SizeUtil;
+import freenet.support.TimeUtil;
+import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
 
 /**
  * Command-line tool for maintenance and analysis of WOT databases.
@@ -90,6 +103,144 @@ public final class WOTUtil {
 		output.close();
 	}
 	
+	/**
+	 * Imports the identity files which the IdentityFileDiskQueue archived in its "Finished"
+	 * directory (when logging is configured to DEBUG for it) into the given
+	 * {@link WebOfTrust}, in the order in which they were originally processed.<br>
+	 * This allows benchmarking the performance of the {@link XMLTransformer} upon real data.<br>
+	 * <br>
+	 * 
+	 * ATTENTION: Modifies the given database, so pass a copy!
+	 * {@link #mainWithReturnValue(String[])} does that for you. */
+	public static void replayImport(WebOfTrust wot, File archiveDir) throws IOException {
+		assert(false)
+			: "WOT has very sophisticated assertions which can impact performance a lot, so please "
+			+ "disable them for all classes running these benchmarks. ";
+		
+		final File[] files = archiveDir.listFiles(new FilenameFilter() {
+			@Override public boolean accept(File dir, String name) {
+				return name.endsWith(IdentityFile.FILE_EXTENSION);
+			}
+		});
+		
+		if(files == null)
+			throw new FileNotFoundException(archiveDir.toString());
+		
+		// The filenames are prefixed with a zero-padded index which tells the original order, see
+		// IdentityFileDiskQueue.getAndReserveFinishedFilename().
+		Arrays.sort(files);
+		
+		System.out.println("Replaying import of " + files.length + " identity files...");
+		
+		final XMLTransformer xmlTransformer = wot.getXMLTransformer();
+		final Runtime runtime = Runtime.getRuntime();
+		final int fullRecomputationsBefore = wot.getNumberOfFullScoreRecomputations();
+		final int trustRecomputationsBefore = wot.getNumberOfIncrementalScoreRecomputationDueToTrust();
+		final int distrustRecomputationsBefore
+			= wot.getNumberOfIncrementalScoreRecomputationDueToDistrust();
+		final long commitsBefore = Persistent.getCommitCount();
+		final long commitNanosBefore = Persistent.getTotalCommitTimeNanos();
+		
+		int importedFiles = 0;
+		int unchangedFiles = 0;
+		int failedFiles = 0;
+		long peakHeapBytes = runtime.totalMemory() - runtime.freeMemory();
+		final StopWatch time = new StopWatch();
+		
+		for(File file : files) {
+			final IdentityFile identityFile;
+			try {
+				identityFile = IdentityFile.read(file);
+			} catch(RuntimeException e) {
+				System.err.println("Cannot read, skipping: " + file + ": " + e);
+				++failedFiles;
+				continue;
+			}
+			
+			final boolean unchanged = xmlTransformer.importIdentity(identityFile.getURI(),
+				new ByteArrayInputStream(identityFile.mXML));
+			if(unchanged)
+				++unchangedFiles;
+			
+			++importedFiles;
+			peakHeapBytes = Math.max(peakHeapBytes, runtime.totalMemory() - runtime.freeMemory());
+			
+			if(importedFiles % 1000 == 0)
+				System.out.println("Progress: " + importedFiles + " files ...");
+		}
+		
+		time.stop();
+		
+		final long commits = Persistent.getCommitCount() - commitsBefore;
+		final long commitNanos = Persistent.getTotalCommitTimeNanos() - commitNanosBefore;
+		final double seconds = (double)time.getNanos() / (1000 * 1000 * 1000);
+		
+		System.out.println();
+		System.out.println("Time: " + time);
+		System.out.println("Imported files: " + importedFiles);
+		System.out.println("Unchanged files: " + unchangedFiles);
+		System.out.println("Unreadable files: " + failedFiles);
+		System.out.println("Files/s: " + (seconds > 0 ? importedFiles / seconds : 0));
+		System.out.println("Full Score recomputations: "
+			+ (wot.getNumberOfFullScoreRecomputations() - fullRecomputationsBefore));
+		System.out.println("Incremental Score recomputations due to trust: "
+			+ (wot.getNumberOfIncrementalScoreRecomputationDueToTrust()
+				- trustRecomputationsBefore));
+		System.out.println("Incremental Score recomputations due to distrust: "
+			+ (wot.getNumberOfIncrementalScoreRecomputationDueToDistrust()
+				- distrustRecomputationsBefore));
+		System.out.println("Commits: " + commits);
+		System.out.println("Total commit time: "
+			+ TimeUtil.formatTime(TimeUnit.NANOSECONDS.toMillis(commitNanos), 3, true));
+		System.out.println("Average commit time: "
+			+ (commits > 0 ? (double)commitNanos / commits / (1000 * 1000) : 0) + " ms");
+		System.out.println("Slowest commit (whole session): "
+			+ TimeUtil.formatTime(
+				TimeUnit.NANOSECONDS.toMillis(Persistent.getMaxCommitTimeNanos()), 3, true));
+		System.out.println("Peak heap usage: " + SizeUtil.formatSize(peakHeapBytes));
+	}
+	
+	/**
+	 * Writes a {@link TrustGraphSnapshot} of the given {@link WebOfTrust} to the given file, see
+	 * {@link WebOfTrust#exportTrustGraphSnapshot(java.io.OutputStream)}. */
+	public static void exportSnapshot(WebOfTrust wot, File snapshot) throws IOException {
+		final FileOutputStream out = new FileOutputStream(snapshot);
+		try {
+			final StopWatch time = new StopWatch();
+			wot.exportTrustGraphSnapshot(out);
+			time.stop();
+			System.out.println("Time: " + time);
+			System.out.println("Identities: " + wot.getAllIdentities().size());
+			System.out.println("Trusts: " + wot.getAllTrusts().size());
+			System.out.println("Size: " + SizeUtil.formatSize(snapshot.length()));
+		} finally {
+			Closer.close(out);
+		}
+	}
+	
+	/**
+	 * Bulk-imports the given {@link TrustGraphSnapshot} into the given {@link WebOfTrust}, see
+	 * {@link WebOfTrust#importTrustGraphSnapshot(java.io.InputStream)}.<br><br>
+	 * 
+	 * ATTENTION: Modifies the given database! */
+	public static void importSnapshot(WebOfTrust wot, File snapshot) throws IOException {
+		final FileInputStream in = new FileInputStream(snapshot);
+		try {
+			final StopWatch time = new StopWatch();
+			final TrustGraphSnapshot.ImportStatistics result = wot.importTrustGraphSnapshot(in);
+			time.stop();
+			System.out.println("Time: " + time);
+			System.out.println("Imported identities: " + result.mImportedIdentities);
+			System.out.println("Skipped identities: " + result.mSkippedIdentities);
+			System.out.println("Imported trusts: " + result.mImportedTrusts);
+			System.out.println("Skipped trusts: " + result.mSkippedTrusts);
+			System.out.println("Full Score recomputations: "
+				+ wot.getNumberOfFullScoreRecomputations());
+		} finally {
+			Closer.close(in);
+		}
+	}
+	
 	/**
 	 * Sends a {@link FCPPluginMessage} to the {@link FCPInterface} of the given {@link WebOfTrust}
 	 * and returns the reply {@link FCPPluginMessage}.<br><br>
@@ -247,7 +398,16 @@ public final class WOTUtil {
 		err.println("    ATTENTION: OUTPUT_GNUPLOT will be appended to, not overwritten.");
 		err.println("    Push ENTER to exit for pause. Resume by restarting with same parameters.");
 		err.println("    Deterministic execution by SEED is not supported with resume.");
+		err.println("WOTUtil -exportSnapshot INPUT_DATABASE OUTPUT_SNAPSHOT");
+		err.println("    Writes the identities and trusts to a snapshot for bootstrapping other");
+		err.println("    databases with -importSnapshot.");
 		err.println("WOTUtil -fcp INPUT_DATABASE Message=WOT_FCP_CALL key1=value1 key2=value2 ...");
+		err.println("WOTUtil -importSnapshot INPUT_DATABASE SNAPSHOT");
+		err.println("    ATTENTION: Modifies the given database!");
+		err.println("    Only import snapshots of sources you trust, they are not signed.");
+		err.println("WOTUtil -replayImport INPUT_DATABASE ARCHIVE_DIR");
+		err.println("    Imports the identity files of the given IdentityFileQueue/Finished dir");
+		err.println("    into a temporary copy of the database and prints performance statistics.");
 		err.println("WOTUtil -testAndRepair INPUT_DATABASE");
 		err.println("WOTUtil -trustValueHistogram INPUT_DATABASE");
 		err.println("WOTUtil -trusteeCountHistogram INPUT_DATABASE");
@@ -255,6 +415,7 @@ public final class WOTUtil {
 	
 	public static int mainWithReturnValue(String[] args) {
 		WebOfTrust wot = null;
+		File databaseCopy = null;
 		
 		try {
 			if(args.length < 2) {
@@ -266,6 +427,23 @@ public final class WOTUtil {
 			if(!new File(databaseFile).isFile())
 				throw new FileNotFoundException(databaseFile);
 			
+			if(args[0].equalsIgnoreCase("-replayImport")) {
+				if(args.length != 3) {
+					printSyntax();
+					return 1;
+				}
+				
+				// The import modifies the database, so we use a copy to allow reproducible
+				// results when running the benchmark multiple times.
+				File original = new File(databaseFile);
+				databaseCopy = File.createTempFile(original.getName() + "-replayImport-", ".db4o",
+					original.getAbsoluteFile().getParentFile());
+				System.err.println("Copying database to " + databaseCopy + "...");
+				if(!FileUtil.copyFile(original, databaseCopy))
+					throw new IOException("Copying the database failed!");
+				databaseFile = databaseCopy.toString();
+			}
+			
 			wot = new WebOfTrust(databaseFile);
 			
 			System.err.println("Checking database for corruption...");
@@ -287,6 +465,21 @@ public final class WOTUtil {
 					return 1;
 				}
 				benchmarkRemoveTrustDestructive(wot, new File(args[2]), Long.parseLong(args[3]));
+			} else if(args[0].equalsIgnoreCase("-replayImport")) {
+				// The amount of arguments was checked before copying the database.
+				replayImport(wot, new File(args[2]));
+			} else if(args[0].equalsIgnoreCase("-exportSnapshot")) {
+				if(args.length != 3) {
+					printSyntax();
+					return 1;
+				}
+				exportSnapshot(wot, new File(args[2]));
+			} else if(args[0].equalsIgnoreCase("-importSnapshot")) {
+				if(args.length != 3) {
+					printSyntax();
+					return 1;
+				}
+				importSnapshot(wot, new File(args[2]));
 			} else if(args[0].equalsIgnoreCase("-fcp")) {
 				FCPPluginMessage message = FCPPluginMessage.construct();
 				for(String keyValuePair : Arrays.copyOfRange(args, 2, args.length)) {
@@ -316,6 +509,9 @@ public final class WOTUtil {
 				wot.terminate();
 				assert(wot.isTerminated());
 			}
+			
+			if(databaseCopy != null && !databaseCopy.delete())
+				System.err.println("Cannot delete database copy: " + databaseCopy);
 		}
 	}
 			
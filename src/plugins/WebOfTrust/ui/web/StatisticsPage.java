@@ -8,16 +8,23 @@ import static plugins.WebOfTrust.Configuration.DEFAULT_DEFRAG_INTERVAL;
 import static plugins.WebOfTrust.Configuration.DEFAULT_VERIFY_SCORES_INTERVAL;
 import static plugins.WebOfTrust.ui.web.CommonWebUtils.formatTimeDelta;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Locale;
+import java.util.Map.Entry;
 import java.util.concurrent.TimeUnit;
 
 import plugins.WebOfTrust.Configuration;
+import plugins.WebOfTrust.EditionHintAggregator;
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.IdentityFileProcessor;
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileQueueStatistics;
 import plugins.WebOfTrust.SubscriptionManager;
+import plugins.WebOfTrust.SubscriptionManager.ClientStatistics;
 import plugins.WebOfTrust.WebOfTrust;
+import plugins.WebOfTrust.XMLTransformer.ImportStage;
 import plugins.WebOfTrust.introduction.IntroductionPuzzleStore;
+import plugins.WebOfTrust.util.TimeHistogram;
 import freenet.clients.http.ToadletContext;
 import freenet.support.CurrentTimeUTC;
 import freenet.support.HTMLNode;
@@ -47,6 +54,8 @@ public class StatisticsPage extends WebPageImpl {
 		makeSummary();
 		makeIdentityFileQueueBox();
 		makeIdentityFileProcessorBox();
+		makeEditionHintAggregatorBox();
+		makeSubscriptionManagerBox();
 		makeMaintenanceBox();
 	}
 
@@ -126,8 +135,18 @@ public class StatisticsPage extends WebPageImpl {
 			+ " " + stats.mFinishedFiles));
 		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "DeduplicatedFiles")
 			+ " " + stats.mDeduplicatedFiles));
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "RejectedFiles")
+			+ " " + stats.mRejectedFiles));
 		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "FailedFiles")
 			+ " " + stats.mFailedFiles));
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "MemoryFiles")
+			+ " " + stats.mMemoryFiles));
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "MemoryBytes")
+			+ " " + stats.mMemoryBytes));
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "SpilledFiles")
+			+ " " + stats.mSpilledFiles));
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "SpilledBytes")
+			+ " " + stats.mSpilledBytes));
 		
 		box.addChild(list);
 	}
@@ -145,6 +164,12 @@ public class StatisticsPage extends WebPageImpl {
 		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "FailedFiles") + " "
 			+ stats.mFailedFiles));
 
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "UnchangedFiles") + " "
+			+ stats.mUnchangedFiles));
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "UnknownIdentityFiles") + " "
+			+ stats.mUnknownIdentityFiles));
+
 		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "TotalProcessingTime") + " "
 			+ TimeUtil.formatTime(TimeUnit.NANOSECONDS.toMillis(stats.mProcessingTimeNanoseconds))));
 		
@@ -152,6 +177,98 @@ public class StatisticsPage extends WebPageImpl {
 			+ " " + stats.getAverageXMLImportTime()));
 		
 		box.addChild(list);
+		
+		box.addChild("p", l10n().getString(l10nPrefix + "ImportStages"));
+		HTMLNode table = box.addChild("table");
+		HTMLNode header = table.addChild("tr");
+		for(String column : new String[] {
+				"Stage", "Count", "Average", "Median", "Percentile90", "Percentile99", "Max" }) {
+			header.addChild("th", l10n().getString(l10nPrefix + "ImportStages." + column));
+		}
+		
+		for(Entry<ImportStage, TimeHistogram> entry : stats.mImportStageTimes.entrySet()) {
+			TimeHistogram histogram = entry.getValue();
+			HTMLNode row = table.addChild("tr");
+			row.addChild("td",
+				l10n().getString(l10nPrefix + "ImportStages.Stage." + entry.getKey().name()));
+			row.addChild("td", Long.toString(histogram.getCount()));
+			row.addChild("td", formatNanos(histogram.getAverageNanos()));
+			row.addChild("td", formatNanos(histogram.getPercentileNanos(50)));
+			row.addChild("td", formatNanos(histogram.getPercentileNanos(90)));
+			row.addChild("td", formatNanos(histogram.getPercentileNanos(99)));
+			row.addChild("td", formatNanos(histogram.getMaxNanos()));
+		}
+	}
+	
+	public void makeEditionHintAggregatorBox() {
+		String l10nPrefix = "StatisticsPage.EditionHintAggregatorBox.";
+		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
+		HTMLNode list = new HTMLNode("ul");
+		EditionHintAggregator.Statistics stats
+			= mWebOfTrust.getEditionHintAggregator().getStatistics();
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "ReceivedHints") + " "
+			+ stats.mReceivedHints));
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "FlushedHints") + " "
+			+ stats.mFlushedHints));
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "StoredIdentities") + " "
+			+ stats.mStoredIdentities));
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "SavedStores") + " "
+			+ stats.getSavedStores()));
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "Flushes") + " "
+			+ stats.mFlushes));
+
+		box.addChild(list);
+	}
+
+	public void makeSubscriptionManagerBox() {
+		String l10nPrefix = "StatisticsPage.SubscriptionManagerBox.";
+		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
+		ArrayList<ClientStatistics> clients
+			= mWebOfTrust.getSubscriptionManager().getClientStatistics();
+
+		if(clients.isEmpty()) {
+			box.addChild("p", l10n().getString(l10nPrefix + "NoClients"));
+			return;
+		}
+
+		HTMLNode table = box.addChild("table");
+		HTMLNode header = table.addChild("tr");
+		for(String column : new String[] {
+				"Client", "QueuedNotifications", "DeliveryRunning", "DeployedNotifications",
+				"FCPMessages", "CoalescedNotifications", "LatencyAverage", "LatencyPercentile90", "LatencyMax" }) {
+			header.addChild("th", l10n().getString(l10nPrefix + column));
+		}
+
+		for(ClientStatistics stats : clients) {
+			TimeHistogram latency = stats.mDeliveryLatency;
+			HTMLNode row = table.addChild("tr");
+			row.addChild("td", stats.mFCP_ID.toString());
+			row.addChild("td", Integer.toString(stats.mQueuedNotifications));
+			row.addChild("td", l10n().getString(
+				l10nPrefix + "DeliveryRunning." + (stats.mDeliveryRunning ? "Yes" : "No")));
+			row.addChild("td", Long.toString(stats.mDeployedNotifications));
+			row.addChild("td", Long.toString(stats.mFCPMessages));
+			row.addChild("td", Long.toString(stats.mCoalescedNotifications));
+			row.addChild("td", formatNanos(latency.getAverageNanos()));
+			row.addChild("td", formatNanos(latency.getPercentileNanos(90)));
+			row.addChild("td", formatNanos(latency.getMaxNanos()));
+		}
+	}
+
+	/**
+	 * Formats a duration of the {@link TimeHistogram}s. Durations below one second are shown as
+	 * fractional milliseconds with microsecond precision: Most import stages take less than a
+	 * millisecond, which {@link TimeUtil#formatTime(long, int, boolean)} would show as 0. */
+	private static String formatNanos(long nanos) {
+		if(nanos < TimeUnit.SECONDS.toNanos(1))
+			return String.format(Locale.US, "%.3fms", (double)nanos / TimeUnit.MILLISECONDS.toNanos(1));
+		
+		return formatTime(TimeUnit.NANOSECONDS.toMillis(nanos), 3, true);
 	}
 
 	public void makeMaintenanceBox() {
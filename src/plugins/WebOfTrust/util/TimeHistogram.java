@@ -0,0 +1,125 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust.util;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of measured durations, for example obtained by {@link StopWatch#getNanos()}.<br>
+ * Allows to see the distribution of durations, which is more useful for spotting outliers than
+ * the average which other statistics of WOT show.<br><br>
+ *
+ * The buckets have exponentially growing size: Bucket 0 counts durations below 1 microsecond,
+ * bucket i > 0 counts durations of [2^(i-1), 2^i) microseconds. The last bucket also counts
+ * everything which is longer.<br><br>
+ *
+ * Not synchronized, the user must synchronize. */
+public final class TimeHistogram implements Cloneable {
+	/**
+	 * The last bucket starts at 2^(BUCKET_COUNT-2) microseconds = ~4.5 minutes, which is long
+	 * enough even for full Score computations of large databases. */
+	public static final int BUCKET_COUNT = 30;
+
+	private long[] mBuckets = new long[BUCKET_COUNT];
+
+	private long mCount = 0;
+
+	private long mTotalNanos = 0;
+
+	private long mMaxNanos = 0;
+
+
+	public void add(long nanos) {
+		assert(nanos >= 0);
+		++mBuckets[getBucketIndex(nanos)];
+		++mCount;
+		mTotalNanos += nanos;
+		mMaxNanos = Math.max(mMaxNanos, nanos);
+	}
+
+	private static int getBucketIndex(long nanos) {
+		final long micros = NANOSECONDS.toMicros(nanos);
+		// Number of significant bits = 1 + floor(log2(micros)) for micros > 0, 0 for micros == 0
+		final int index = Long.SIZE - Long.numberOfLeadingZeros(micros);
+		return Math.min(index, BUCKET_COUNT - 1);
+	}
+
+	/** @return The lower bound of the durations which bucket i counts, inclusive. */
+	public static long getBucketLowerBoundNanos(int i) {
+		return i == 0 ? 0 : MICROSECONDS.toNanos(1L << (i - 1));
+	}
+
+	/**
+	 * @return The upper bound of the durations which bucket i counts, exclusive.
+	 *     {@link Long#MAX_VALUE} for the last bucket. */
+	public static long getBucketUpperBoundNanos(int i) {
+		return i == BUCKET_COUNT - 1 ? Long.MAX_VALUE : MICROSECONDS.toNanos(1L << i);
+	}
+
+	/** @return The number of durations which fell into bucket i. */
+	public long getBucketCount(int i) {
+		return mBuckets[i];
+	}
+
+	/** @return The total number of durations which were {@link #add(long)}ed. */
+	public long getCount() {
+		return mCount;
+	}
+
+	public long getTotalNanos() {
+		return mTotalNanos;
+	}
+
+	public long getMaxNanos() {
+		return mMaxNanos;
+	}
+
+	public long getAverageNanos() {
+		return mCount != 0 ? mTotalNanos / mCount : 0;
+	}
+
+	/**
+	 * Estimates the given percentile by the upper bound of the bucket in which it is contained.
+	 * Thus the result may be up to twice as large as the actual value, which is enough to show
+	 * the order of magnitude.<br>
+	 * For the last bucket, {@link #getMaxNanos()} is returned instead of its infinite bound.
+	 *
+	 * @param percentile Must be in the range of (0, 100].
+	 * @return The estimate in nanoseconds, or 0 if nothing was added yet. */
+	public long getPercentileNanos(double percentile) {
+		if(percentile <= 0 || percentile > 100)
+			throw new IllegalArgumentException("Invalid percentile: " + percentile);
+
+		if(mCount == 0)
+			return 0;
+
+		final double rank = mCount * percentile / 100;
+		long sum = 0;
+		for(int i = 0; i < BUCKET_COUNT; ++i) {
+			sum += mBuckets[i];
+			if(sum >= rank)
+				return Math.min(getBucketUpperBoundNanos(i), mMaxNanos);
+		}
+
+		return mMaxNanos;
+	}
+
+	@Override public TimeHistogram clone() {
+		try {
+			final TimeHistogram clone = (TimeHistogram)super.clone();
+			clone.mBuckets = mBuckets.clone();
+			return clone;
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override public String toString() {
+		return "[count: " + mCount + "; total ns: " + mTotalNanos + "; max ns: " + mMaxNanos
+			+ "; buckets: " + Arrays.toString(mBuckets) + "]";
+	}
+}
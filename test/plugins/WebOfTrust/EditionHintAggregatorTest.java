@@ -0,0 +1,82 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.Identity.IdentityID;
+
+/** Tests {@link EditionHintAggregator}. */
+public final class EditionHintAggregatorTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust;
+
+	private EditionHintAggregator mAggregator;
+
+
+	@Before public void setUp() throws Exception {
+		mWebOfTrust = constructEmptyWebOfTrust();
+		// The WebOfTrust has no Ticker in unit tests, so the aggregator never flushes by itself.
+		mAggregator = mWebOfTrust.getEditionHintAggregator();
+	}
+
+	@Test public void testAggregation() throws Exception {
+		final ArrayList<Identity> identities = addRandomIdentities(10);
+		final Identity a = identities.get(0);
+		final Identity b = identities.get(1);
+		final long hintA = a.getLatestEditionHint();
+		final long hintB = b.getLatestEditionHint();
+
+		mAggregator.addHint(a.getID(), hintA + 5);
+		mAggregator.addHint(a.getID(), hintA + 10);
+		mAggregator.addHint(a.getID(), hintA + 7);
+		mAggregator.addHint(b.getID(), hintB); // Not newer than the existing one
+		mAggregator.addHint( // Unknown identity
+			IdentityID.constructAndValidateFromURI(getRandomRequestURI()).toString(), 1);
+
+		// Not applied before the flush
+		assertEquals(hintA, mWebOfTrust.getIdentityByID(a.getID()).getLatestEditionHint());
+
+		mAggregator.flush();
+
+		assertEquals(hintA + 10, mWebOfTrust.getIdentityByID(a.getID()).getLatestEditionHint());
+		assertEquals(hintB, mWebOfTrust.getIdentityByID(b.getID()).getLatestEditionHint());
+
+		flushCaches();
+		assertEquals(hintA + 10, mWebOfTrust.getIdentityByID(a.getID()).getLatestEditionHint());
+
+		EditionHintAggregator.Statistics stats = mAggregator.getStatistics();
+		assertEquals(5, stats.mReceivedHints);
+		assertEquals(4, stats.mRaisingHints); // hintA + 7 was lower than the pending hintA + 10
+		assertEquals(3, stats.mFlushedHints);
+		assertEquals(1, stats.mStoredIdentities);
+		assertEquals(3, stats.getSavedStores());
+		assertEquals(1, stats.mFlushes);
+
+		// Flushing nothing is not counted.
+		mAggregator.flush();
+		assertEquals(1, mAggregator.getStatistics().mFlushes);
+
+		// Lower hints don't decrease the existing one.
+		mAggregator.addHint(a.getID(), hintA + 1);
+		mAggregator.flush();
+		assertEquals(hintA + 10, mWebOfTrust.getIdentityByID(a.getID()).getLatestEditionHint());
+		stats = mAggregator.getStatistics();
+		assertEquals(5, stats.mRaisingHints);
+		assertEquals(1, stats.mStoredIdentities);
+		assertEquals(4, stats.getSavedStores());
+		assertEquals(2, stats.mFlushes);
+
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+}
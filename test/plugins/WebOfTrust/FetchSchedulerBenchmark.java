@@ -0,0 +1,89 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import plugins.WebOfTrust.FetchScheduler.Tier;
+
+/**
+ * This is NOT an actual unit test. It benchmarks the {@link FetchScheduler} with a large simulated
+ * WOT using a {@link SimulatedUSKManager}: It prints the amount of subscriptions which are needed
+ * at the node, and the delays until new editions of the Identitys of each {@link Tier} are fetched.
+ * <br><br>
+ *
+ * Also, this is NOT run in the default test suite which is run by Ant when building.
+ * To run it, put "test.benchmark=true" into the "override.properties" build configuration file.
+ * If it does not exist, create it in the root of the project. */
+public final class FetchSchedulerBenchmark {
+
+	@Test public void benchmark() throws Exception {
+		// Benchmark parameters...
+
+		final int[] identityCounts = new int[Tier.values().length];
+		identityCounts[Tier.Permanent.ordinal()] = 100;
+		identityCounts[Tier.Frequent.ordinal()] = 5000;
+		identityCounts[Tier.Rare.ordinal()] = 50000;
+		// On average each Identity inserts a new edition once per this interval.
+		final long publishInterval = DAYS.toMillis(1);
+		final long duration = DAYS.toMillis(3);
+		final long step = SECONDS.toMillis(10);
+
+		// Setup...
+
+		final Random random = new Random(0);
+		final SimulatedUSKManager manager = new SimulatedUSKManager(0);
+		final FetchScheduler scheduler = manager.getScheduler();
+		final ArrayList<String> ids = new ArrayList<String>();
+		for(Tier tier : Tier.values()) {
+			for(int i = 0; i < identityCounts[tier.ordinal()]; ++i) {
+				final String id = tier + "-" + i;
+				scheduler.fetch(id, tier, false, manager.getTime());
+				ids.add(id);
+			}
+		}
+
+		// The actual benchmark
+
+		final double publicationsPerStep = (double)ids.size() * step / publishInterval;
+		final long startTime = System.nanoTime();
+
+		while(manager.getTime() < duration) {
+			// Poisson-ish: Round the expected amount of publications randomly
+			int publications = (int)publicationsPerStep;
+			if(random.nextDouble() < publicationsPerStep - publications)
+				++publications;
+
+			for(int i = 0; i < publications; ++i)
+				manager.publish(ids.get(random.nextInt(ids.size())));
+
+			manager.step(step);
+		}
+
+		final long cpuTime = System.nanoTime() - startTime;
+
+		System.out.println("FetchSchedulerBenchmark: Simulated "
+			+ MILLISECONDS.toHours(duration) + " hours with " + ids.size() + " identities in "
+			+ NANOSECONDS.toMillis(cpuTime) + " ms");
+		System.out.println("Subscriptions: maximum concurrent: "
+			+ manager.getMaxConcurrentSubscriptions() + " (instead of " + ids.size()
+			+ " without scheduler); total started: " + manager.getSubscriptionCount()
+			+ "; probes timed out: " + scheduler.getProbeTimeoutCount()
+			+ "; editions not fetched at end: " + manager.getUnfetchedCount());
+		for(Tier tier : Tier.values()) {
+			System.out.println(tier + ": fetched editions: " + manager.getFetchCount(tier)
+				+ "; average delay: " + MILLISECONDS.toSeconds(manager.getAverageFetchDelay(tier))
+				+ " s; maximum delay: " + MILLISECONDS.toSeconds(manager.getMaxFetchDelay(tier))
+				+ " s");
+		}
+	}
+}
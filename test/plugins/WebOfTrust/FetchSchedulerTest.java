@@ -0,0 +1,192 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+import static plugins.WebOfTrust.FetchScheduler.PROBE_TIMEOUT;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.FetchScheduler.Tier;
+
+/** Tests {@link FetchScheduler} using a {@link SimulatedUSKManager}. */
+public final class FetchSchedulerTest {
+
+	private static final long STEP = SECONDS.toMillis(10);
+
+	private SimulatedUSKManager mManager;
+
+	private FetchScheduler mScheduler;
+
+	@Before public void setUp() {
+		mManager = new SimulatedUSKManager(0);
+		mScheduler = mManager.getScheduler();
+	}
+
+	/** Steps the simulation until the given amount of time has passed. */
+	private void run(long millis) {
+		for(long end = mManager.getTime() + millis; mManager.getTime() < end; ) {
+			mManager.step(STEP);
+			mManager.assertConsistent();
+		}
+	}
+
+	private ArrayList<String> addIdentities(String prefix, int amount, Tier tier) throws Exception {
+		final ArrayList<String> ids = new ArrayList<String>(amount);
+		for(int i = 0; i < amount; ++i) {
+			// Padded since the FetchScheduler orders by ID if the due times are equal
+			final String id = String.format("%s%05d", prefix, i);
+			mScheduler.fetch(id, tier, false, mManager.getTime());
+			ids.add(id);
+		}
+		return ids;
+	}
+
+	@Test public void testTierFromCapacity() {
+		for(int capacity : new int[] { 100, 40, 16 })
+			assertEquals(Tier.Permanent, Tier.fromCapacity(capacity));
+		for(int capacity : new int[] { 6, 2, 1 })
+			assertEquals(Tier.Frequent, Tier.fromCapacity(capacity));
+		assertEquals(Tier.Rare, Tier.fromCapacity(0));
+	}
+
+	@Test public void testPermanent() throws Exception {
+		mScheduler.fetch("a", Tier.Permanent, false, mManager.getTime());
+		assertTrue(mManager.isSubscribed("a"));
+		assertTrue(mScheduler.hintUpdate("a", mManager.getTime()));
+
+		mManager.publish("a");
+		run(SimulatedUSKManager.FETCH_LATENCY);
+		assertTrue(mManager.isFetched("a"));
+		// Permanent subscriptions are not stopped by found editions or timeouts
+		run(PROBE_TIMEOUT * 2);
+		assertTrue(mManager.isSubscribed("a"));
+		assertEquals(1, mManager.getSubscriptionCount());
+
+		// Restarting re-creates the subscription
+		mScheduler.fetch("a", Tier.Permanent, true, mManager.getTime());
+		assertTrue(mManager.isSubscribed("a"));
+		assertEquals(2, mManager.getSubscriptionCount());
+
+		assertTrue(mScheduler.abortFetch("a"));
+		assertFalse(mManager.isSubscribed("a"));
+		assertFalse(mScheduler.contains("a"));
+		assertFalse(mScheduler.abortFetch("a"));
+	}
+
+	@Test public void testProbeBatches() throws Exception {
+		final int batch = Tier.Rare.mMaxConcurrentProbes;
+		final ArrayList<String> ids = addIdentities("r", batch * 3, Tier.Rare);
+		assertEquals(0, mManager.getConcurrentSubscriptions());
+
+		mManager.step(STEP);
+		mManager.assertConsistent();
+		assertEquals(batch, mManager.getConcurrentSubscriptions());
+		for(int i = 0; i < ids.size(); ++i)
+			assertEquals(i < batch, mManager.isSubscribed(ids.get(i)));
+
+		// Nothing is published so the probes time out and the next batch is started
+		run(PROBE_TIMEOUT);
+		assertEquals(batch, mManager.getConcurrentSubscriptions());
+		assertFalse(mManager.isSubscribed(ids.get(0)));
+		assertTrue(mManager.isSubscribed(ids.get(batch)));
+		assertEquals(batch, mScheduler.getProbeTimeoutCount());
+
+		run(PROBE_TIMEOUT * 2);
+		assertEquals(batch * 3, mScheduler.getProbeCount());
+		assertEquals(0, mManager.getConcurrentSubscriptions());
+
+		// The next round of probes is due after the probe interval
+		run(Tier.Rare.mProbeInterval - PROBE_TIMEOUT * 2);
+		assertEquals(batch, mManager.getConcurrentSubscriptions());
+		assertTrue(mManager.isSubscribed(ids.get(0)));
+	}
+
+	@Test public void testProbeStopsOnFound() throws Exception {
+		mManager.publish("f");
+		mScheduler.fetch("f", Tier.Frequent, false, mManager.getTime());
+
+		run(SimulatedUSKManager.FETCH_LATENCY + STEP);
+		assertTrue(mManager.isFetched("f"));
+		assertFalse(mManager.isSubscribed("f"));
+		assertEquals(0, mScheduler.getProbeTimeoutCount());
+
+		// A publication during the interval is found by the next probe
+		mManager.publish("f");
+		run(Tier.Frequent.mProbeInterval - STEP);
+		assertFalse(mManager.isFetched("f"));
+		run(SimulatedUSKManager.FETCH_LATENCY + STEP * 2);
+		assertTrue(mManager.isFetched("f"));
+		assertEquals(2, mManager.getSubscriptionCount());
+	}
+
+	@Test public void testHintUpdate() throws Exception {
+		mScheduler.fetch("r", Tier.Rare, false, mManager.getTime());
+		run(PROBE_TIMEOUT + STEP);
+		assertFalse(mManager.isSubscribed("r"));
+
+		mManager.publish("r");
+		assertFalse(mScheduler.hintUpdate("r", mManager.getTime()));
+		mManager.step(STEP);
+		assertTrue(mManager.isSubscribed("r"));
+		run(SimulatedUSKManager.FETCH_LATENCY);
+		assertTrue(mManager.isFetched("r"));
+
+		assertFalse(mScheduler.hintUpdate("unknown", mManager.getTime()));
+	}
+
+	@Test public void testChangeTier() throws Exception {
+		mScheduler.fetch("x", Tier.Permanent, false, mManager.getTime());
+		assertEquals(1, mScheduler.getCount(Tier.Permanent));
+
+		mScheduler.fetch("x", Tier.Frequent, false, mManager.getTime());
+		mManager.assertConsistent();
+		assertFalse(mManager.isSubscribed("x"));
+		assertEquals(Tier.Frequent, mScheduler.getTier("x"));
+		assertEquals(0, mScheduler.getCount(Tier.Permanent));
+		assertEquals(1, mScheduler.getCount(Tier.Frequent));
+
+		// Was subscribed until now, so the first probe is not due immediately...
+		run(STEP);
+		assertFalse(mManager.isSubscribed("x"));
+		// ... unless a restart is requested
+		mScheduler.fetch("x", Tier.Frequent, true, mManager.getTime());
+		run(STEP);
+		assertTrue(mManager.isSubscribed("x"));
+
+		// The running probe is moved between Tiers
+		mScheduler.fetch("x", Tier.Rare, false, mManager.getTime());
+		mManager.assertConsistent();
+		assertEquals(1, mScheduler.getProbingCount(Tier.Rare));
+		assertEquals(0, mScheduler.getProbingCount(Tier.Frequent));
+
+		// The running probe becomes the permanent subscription
+		final long subscriptions = mManager.getSubscriptionCount();
+		mScheduler.fetch("x", Tier.Permanent, false, mManager.getTime());
+		mManager.assertConsistent();
+		assertTrue(mManager.isSubscribed("x"));
+		assertEquals(subscriptions, mManager.getSubscriptionCount());
+		run(PROBE_TIMEOUT * 2);
+		assertTrue(mManager.isSubscribed("x"));
+	}
+
+	@Test public void testAbortAll() throws Exception {
+		addIdentities("p", 10, Tier.Permanent);
+		addIdentities("f", 100, Tier.Frequent);
+		addIdentities("r", 100, Tier.Rare);
+		run(STEP);
+		assertEquals(10 + Tier.Frequent.mMaxConcurrentProbes + Tier.Rare.mMaxConcurrentProbes,
+			mManager.getConcurrentSubscriptions());
+
+		mScheduler.abortAll();
+		assertEquals(0, mManager.getConcurrentSubscriptions());
+		for(Tier tier : Tier.values())
+			assertEquals(0, mScheduler.getCount(tier));
+		assertEquals(Long.MAX_VALUE, mScheduler.getNextTickTime(mManager.getTime()));
+	}
+}
@@ -4,6 +4,7 @@
 package plugins.WebOfTrust;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -13,12 +14,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
-import javax.xml.transform.TransformerException;
-
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import plugins.WebOfTrust.IdentityFileQueue.IdentityFileQueueStatistics;
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
 import plugins.WebOfTrust.exceptions.DuplicateTrustException;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
@@ -28,8 +28,8 @@ import freenet.support.PooledExecutor;
 import freenet.support.PrioritizedTicker;
 
 /**
- * Test for both implementations of {@link IdentityFileQueue}: {@link IdentityFileDiskQueue} and
- * {@link IdentityFileMemoryQueue}.<br><br>
+ * Test for the implementations of {@link IdentityFileQueue}: {@link IdentityFileDiskQueue},
+ * {@link IdentityFileHybridQueue} and {@link IdentityFileMemoryQueue}.<br><br>
  * 
  * They are being tested against each other by feeding the same set of identity files to them, and
  * then checking whether the resulting WOT database is equal.<br><br>
@@ -65,7 +65,7 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 	 * by the test which needs it so the tests of the parent class do not cause it to run since it
 	 * takes a long time to execute. */
 	private void setUp() throws InvalidParameterException, DuplicateTrustException,
-			NotTrustedException, UnknownIdentityException, TransformerException, IOException {
+			NotTrustedException, UnknownIdentityException, IOException {
 		
 		mWebOfTrust = constructEmptyWebOfTrust();
 
@@ -128,7 +128,7 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 				}
 				Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
 				
-				mWebOfTrust.getXMLTransformer().exportOwnIdentity(identity, bos);
+				mWebOfTrust.getXMLTransformer().exportOwnIdentityStreaming(identity, bos);
 				
 				ByteArrayInputStream bis1
 					= new ByteArrayInputStream(bos.toByteArray());
@@ -144,11 +144,41 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 
 	@Test public void testByComparingResultsOfTwoImplementations()
 			throws IOException, InterruptedException, InvalidParameterException,
-			DuplicateTrustException, NotTrustedException, UnknownIdentityException,
-			TransformerException {
+			DuplicateTrustException, NotTrustedException, UnknownIdentityException {
 		
 		setUp();
+		compareWithMemoryQueue(new IdentityFileDiskQueue(mTempFolder.newFolder()));
+	}
 
+	/**
+	 * Compares the {@link IdentityFileHybridQueue} against the {@link IdentityFileMemoryQueue}
+	 * with a memory budget which is small enough to cause it to spill files to disk: The test
+	 * only uses 5 identities, so deduplication keeps the amount of files in memory low. */
+	@Test public void testHybridQueue()
+			throws IOException, InterruptedException, InvalidParameterException,
+			DuplicateTrustException, NotTrustedException, UnknownIdentityException {
+		
+		setUp();
+		IdentityFileHybridQueue queue
+			= new IdentityFileHybridQueue(mTempFolder.newFolder(), 2 * 1024);
+		compareWithMemoryQueue(queue);
+		
+		IdentityFileQueueStatistics stats = queue.getStatistics();
+		assertTrue(stats.mSpilledFiles > 0);
+		assertTrue(stats.mSpilledBytes > 0);
+		assertEquals(0, stats.mMemoryFiles);
+		assertEquals(0, stats.mMemoryBytes);
+		assertEquals(0, stats.mQueuedFiles);
+		assertEquals(0, stats.mFailedFiles);
+	}
+
+	/**
+	 * Feeds {@link #mIdentityFiles1} to an {@link IdentityFileMemoryQueue} and
+	 * {@link #mIdentityFiles2} to the given queue, and checks whether the resulting WOTs are equal
+	 * to {@link #mWebOfTrust}. */
+	private void compareWithMemoryQueue(IdentityFileQueue queue2)
+			throws IOException, InterruptedException, InvalidParameterException {
+		
 		WebOfTrust wot1 = constructEmptyWebOfTrust();
 		WebOfTrust wot2 = constructEmptyWebOfTrust();
 		
@@ -162,7 +192,6 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 		}
 
 		IdentityFileQueue queue1 = new IdentityFileMemoryQueue();
-		IdentityFileQueue queue2 = new IdentityFileDiskQueue(mTempFolder.newFolder());
 		
 		// TODO: Code quality: Move the Ticker creation to a function. Also search the other unit
 		// tests for similar code to deduplicate then.
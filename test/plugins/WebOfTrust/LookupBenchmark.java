@@ -0,0 +1,207 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import freenet.keys.FreenetURI;
+
+/**
+ * This is NOT an actual unit test. It measures the import of trust lists by
+ * {@link XMLTransformer#importIdentity(FreenetURI, java.io.InputStream)} when about half of the
+ * trustees are unknown, i.e. when their lookups miss:<br>
+ * - "before": One exception which fills in its stack trace is thrown per miss, as the throwing
+ *   lookups such as {@link WebOfTrust#getIdentityByID(String)} did previously.<br>
+ * - "stackless": One of the now stackless {@link UnknownIdentityException}s is thrown per miss.<br>
+ * - "after": No exception is thrown, as the import now queries all trustees at once by
+ *   {@link WebOfTrust#getIdentitiesByID(java.util.Collection)}.<br>
+ * The old import code is gone, so "before" and "stackless" are emulated: Before each import, each
+ * trustee of the file is looked up by {@link WebOfTrust#getIdentityByIDOrNull(String)}, and one
+ * exception is thrown and caught per miss. Each measurement imports the same files into a new
+ * database with the same identities, so the misses are the same.<br>
+ * It also measures a full Score computation, which only uses the null-returning lookups now.
+ * <br><br>
+ *
+ * Also, this is NOT run in the default test suite which is run by Ant when building.
+ * To run it, put "test.benchmark=true" into the "override.properties" build configuration file.
+ * If it does not exist, create it in the root of the project. */
+public final class LookupBenchmark extends AbstractJUnit4BaseTest {
+
+	/** Amount of trust lists which are imported per measurement. */
+	private static final int FILE_COUNT = 30;
+
+	/** Amount of trustees from which the trust lists are chosen. */
+	private static final int TRUSTEE_COUNT = 600;
+
+	/** Must not exceed {@link XMLTransformer#MAX_IDENTITY_XML_TRUSTEE_AMOUNT}. */
+	private static final int TRUSTEES_PER_FILE = 100;
+
+	private static enum Mode {
+		Before,
+		Stackless,
+		After
+	}
+
+	/** Same as the exceptions were before they became stackless. */
+	@SuppressWarnings("serial")
+	private static final class StackfulException extends Exception {
+		StackfulException(String message) {
+			super(message);
+		}
+	}
+
+	private WebOfTrust mWebOfTrust;
+
+	/** The request URIs of the trusters of the {@link #mFiles}, at edition 1. */
+	private final ArrayList<FreenetURI> mTrusterURIs = new ArrayList<FreenetURI>();
+
+	/** The XML of the trust lists which are imported. */
+	private final ArrayList<byte[]> mFiles = new ArrayList<byte[]>();
+
+	/** The {@link Identity#getID()}s of the trustees of each of the {@link #mFiles}. */
+	private final ArrayList<List<String>> mTrusteeIDs = new ArrayList<List<String>>();
+
+	/**
+	 * Every second trustee, they exist in the database before the import. The others are
+	 * created by the import. */
+	private final ArrayList<String> mKnownTrusteeURIs = new ArrayList<String>();
+
+	/** The IDs of all trustees which exist after importing all {@link #mFiles}. */
+	private final HashSet<String> mAllTrusteeIDs = new HashSet<String>();
+
+
+	/** Exports the trust lists from a separate database in which the trusters are own identities. */
+	@Before public void setUp() throws Exception {
+		mWebOfTrust = constructEmptyWebOfTrust();
+		final XMLTransformer transformer = new XMLTransformer(mWebOfTrust);
+
+		final ArrayList<Identity> trustees = addRandomIdentities(TRUSTEE_COUNT);
+		for(int i = 0; i < trustees.size(); i += 2) {
+			mKnownTrusteeURIs.add(trustees.get(i).getRequestURI().toString());
+			mAllTrusteeIDs.add(trustees.get(i).getID());
+		}
+
+		for(int file = 0; file < FILE_COUNT; ++file) {
+			final OwnIdentity truster = mWebOfTrust.createOwnIdentity(getRandomInsertURI(),
+				getRandomLatinString(Identity.MAX_NICKNAME_LENGTH), true, null);
+			final ArrayList<Identity> chosen = new ArrayList<Identity>(trustees);
+			Collections.shuffle(chosen, mRandom);
+			final ArrayList<String> ids = new ArrayList<String>(TRUSTEES_PER_FILE);
+			for(Identity trustee : chosen.subList(0, TRUSTEES_PER_FILE)) {
+				mWebOfTrust.setTrust(truster.getID(), trustee.getID(), getRandomTrustValue(), "");
+				ids.add(trustee.getID());
+			}
+			mAllTrusteeIDs.addAll(ids);
+
+			final ByteArrayOutputStream os = new ByteArrayOutputStream();
+			transformer.exportOwnIdentityStreaming(mWebOfTrust.getOwnIdentityByID(truster.getID()), os);
+			mFiles.add(os.toByteArray());
+			mTrusterURIs.add(truster.getRequestURI().setSuggestedEdition(1));
+			mTrusteeIDs.add(ids);
+		}
+	}
+
+	@Test public void benchmark() throws Exception {
+		// Warm up the JIT.
+		for(int i = 0; i < 2; ++i) {
+			for(Mode mode : Mode.values())
+				benchmarkImport(mode, false);
+		}
+
+		for(Mode mode : Mode.values())
+			benchmarkImport(mode, true);
+
+		synchronized(mWebOfTrust) {
+			final long start = System.nanoTime();
+			assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+			System.out.println("LookupBenchmark: Full Score computation: "
+				+ NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+		}
+	}
+
+	/**
+	 * Replaces {@link #mWebOfTrust} with a new database which contains an {@link OwnIdentity}
+	 * which trusts the trusters of the {@link #mFiles}, and the {@link #mKnownTrusteeURIs}. */
+	private void setUpImportDatabase() throws Exception {
+		mWebOfTrust.terminate();
+		mWebOfTrust = constructEmptyWebOfTrust();
+
+		final OwnIdentity root = mWebOfTrust.createOwnIdentity(getRandomInsertURI(), "root", true,
+			null);
+		for(FreenetURI trusterURI : mTrusterURIs) {
+			final Identity truster = mWebOfTrust.addIdentity(trusterURI.toString());
+			// Trusted by the root so the trust lists are imported and the trustees created.
+			mWebOfTrust.setTrust(root.getID(), truster.getID(), (byte)100, "");
+		}
+		for(String trusteeURI : mKnownTrusteeURIs)
+			mWebOfTrust.addIdentity(trusteeURI);
+	}
+
+	/**
+	 * Throws and catches one exception of the given {@link Mode} for each trustee of the given
+	 * file which does not exist.
+	 *
+	 * @return The amount of misses. */
+	private int emulateLookups(Mode mode, int file) {
+		int misses = 0;
+		for(String id : mTrusteeIDs.get(file)) {
+			if(mWebOfTrust.getIdentityByIDOrNull(id) != null)
+				continue;
+
+			try {
+				if(mode == Mode.Before)
+					throw new StackfulException(id);
+				else
+					throw new UnknownIdentityException(id);
+			} catch(Exception e) {
+				++misses;
+			}
+		}
+		return misses;
+	}
+
+	private void benchmarkImport(Mode mode, boolean print) throws Exception {
+		setUpImportDatabase();
+		final XMLTransformer transformer = new XMLTransformer(mWebOfTrust);
+		int misses = 0;
+
+		final long start = System.nanoTime();
+		for(int i = 0; i < mFiles.size(); ++i) {
+			if(mode != Mode.After)
+				misses += emulateLookups(mode, i);
+
+			assertFalse(transformer.importIdentity(mTrusterURIs.get(i),
+				new ByteArrayInputStream(mFiles.get(i))));
+		}
+		final long time = System.nanoTime() - start;
+
+		assertEquals(1 + mTrusterURIs.size() + mAllTrusteeIDs.size(),
+			mWebOfTrust.getAllIdentities().size());
+		assertTrue(mode == Mode.After || misses > 0);
+
+		if(!print)
+			return;
+
+		System.out.println("LookupBenchmark: importIdentity(), " + mode + ": " + mFiles.size()
+			+ " files with " + TRUSTEES_PER_FILE + " trustees each, "
+			+ (mode != Mode.After ? misses + " exceptions thrown, " : "")
+			+ NANOSECONDS.toMillis(time) + " ms");
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+}
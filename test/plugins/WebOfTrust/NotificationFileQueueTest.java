@@ -0,0 +1,187 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.NotificationFileQueue.Entry;
+
+/** Tests {@link NotificationFileQueue} without a database, by calling its transaction callbacks directly. */
+public final class NotificationFileQueueTest extends AbstractJUnit4BaseTest {
+
+	private File mDirectory;
+
+	private NotificationFileQueue mQueue;
+
+	private final UUID mClient = UUID.randomUUID();
+
+
+	@Before public void setUp() throws Exception {
+		mDirectory = mTempFolder.newFolder();
+		mQueue = new NotificationFileQueue(mDirectory);
+	}
+
+	private byte[] getRandomObject() {
+		final byte[] object = new byte[1 + mRandom.nextInt(256)];
+		mRandom.nextBytes(object);
+		return object;
+	}
+
+	private Entry addEntry(long index, String objectID) {
+		final Entry entry = new Entry(index, index * 1000, "Subscription", objectID, 0,
+			mRandom.nextBoolean() ? getRandomObject() : null, getRandomObject());
+		mQueue.addWithoutCommit(mClient, entry);
+		return entry;
+	}
+
+	private void commit() {
+		mQueue.onPrepareCommit();
+		mQueue.onCommit();
+	}
+
+	private File getFile() {
+		return new File(mDirectory, mClient + ".queue");
+	}
+
+	@Test public void testCommitAndRollback() throws Exception {
+		final Entry[] entries = new Entry[3];
+		final byte[][][] objects = new byte[entries.length][][];
+		for(int i = 0; i < entries.length; ++i) {
+			entries[i] = addEntry(i, "Object" + (i % 2));
+			// Uncommitted Entries are readable from memory.
+			objects[i] = mQueue.readObjects(mClient, entries[i]);
+			assertNotNull(objects[i][1]);
+		}
+		assertEquals(entries.length, mQueue.size(mClient));
+		assertSame(entries[2], mQueue.getNewestEntry(mClient, "Subscription", "Object0"));
+
+		commit();
+		final long committedLength = getFile().length();
+		assertTrue(committedLength > 0);
+
+		List<Entry> loaded = mQueue.getEntries(mClient, 10);
+		assertEquals(entries.length, loaded.size());
+		for(int i = 0; i < entries.length; ++i) {
+			assertEquals(i, loaded.get(i).mIndex);
+			final byte[][] read = mQueue.readObjects(mClient, loaded.get(i));
+			assertArrayEquals(objects[i][0], read[0]);
+			assertArrayEquals(objects[i][1], read[1]);
+		}
+		assertEquals(2, mQueue.getEntries(mClient, 2).size());
+
+		// The rollback must undo both the addition and the removal, and the data written for the addition.
+		final Entry added = addEntry(3, "Object0");
+		mQueue.removeWithoutCommit(mClient, 2);
+		assertSame(added, mQueue.getNewestEntry(mClient, "Subscription", "Object0"));
+		mQueue.onPrepareCommit();
+		assertTrue(getFile().length() > committedLength);
+		mQueue.onRollback();
+
+		assertEquals(committedLength, getFile().length());
+		assertEquals(entries.length, mQueue.size(mClient));
+		assertTrue(mQueue.contains(mClient, 2));
+		assertFalse(mQueue.contains(mClient, 3));
+		assertSame(entries[2], mQueue.getNewestEntry(mClient, "Subscription", "Object0"));
+
+		// Appending continues at the committed length.
+		final Entry appended = addEntry(4, "Object1");
+		final byte[][] appendedObjects = mQueue.readObjects(mClient, appended);
+		commit();
+		final byte[][] read = mQueue.readObjects(mClient, appended);
+		assertArrayEquals(appendedObjects[0], read[0]);
+		assertArrayEquals(appendedObjects[1], read[1]);
+
+		// The file is truncated once all Entries were consumed.
+		for(Entry entry : mQueue.getEntries(mClient, 10))
+			mQueue.removeWithoutCommit(mClient, entry.mIndex);
+		commit();
+		assertEquals(0, mQueue.size());
+		assertEquals(0, getFile().length());
+
+		addEntry(5, "Object0");
+		commit();
+		mQueue.removeClientWithoutCommit(mClient);
+		commit();
+		assertFalse(getFile().exists());
+		assertEquals(0, mQueue.size(mClient));
+
+		mQueue.close();
+	}
+
+	@Test public void testEntriesRemovedBeforeCommit() throws Exception {
+		addEntry(0, "Object0");
+		addEntry(1, "Object0");
+		mQueue.removeWithoutCommit(mClient, 0);
+		commit();
+
+		final List<Entry> loaded = mQueue.getEntries(mClient, 10);
+		assertEquals(1, loaded.size());
+		assertEquals(1, loaded.get(0).mIndex);
+		assertNotNull(mQueue.readObjects(mClient, loaded.get(0))[1]);
+
+		// Files of a previous run are deleted.
+		mQueue.close();
+		assertTrue(getFile().exists());
+		mQueue = new NotificationFileQueue(mDirectory);
+		assertFalse(getFile().exists());
+		assertEquals(0, mQueue.size());
+	}
+
+	/** A Client which always has pending Entries must not have a file which grows without bound. */
+	@Test public void testCompaction() throws Exception {
+		final HashMap<Long, byte[][]> objects = new HashMap<Long, byte[][]>();
+		boolean compacted = false;
+		long previousLength = 0;
+
+		for(long i = 0; i < 2000; ++i) {
+			final Entry entry = addEntry(i, "Object" + i);
+			objects.put(i, mQueue.readObjects(mClient, entry));
+			commit();
+			if(i >= 10) {
+				mQueue.removeWithoutCommit(mClient, i - 10);
+				objects.remove(i - 10);
+				commit();
+			}
+
+			final long length = getFile().length();
+			assertTrue(length < 3 * NotificationFileQueue.COMPACTION_MIN_CONSUMED);
+			compacted |= length < previousLength;
+			previousLength = length;
+		}
+		assertTrue(compacted);
+		assertEquals(1, mDirectory.listFiles().length);
+
+		final List<Entry> loaded = mQueue.getEntries(mClient, 100);
+		assertEquals(10, loaded.size());
+		for(Entry entry : loaded) {
+			final byte[][] read = mQueue.readObjects(mClient, entry);
+			assertArrayEquals(objects.get(entry.mIndex)[0], read[0]);
+			assertArrayEquals(objects.get(entry.mIndex)[1], read[1]);
+		}
+
+		// Reading must not create the file of a deleted Client again.
+		mQueue.removeClientWithoutCommit(mClient);
+		commit();
+		try {
+			mQueue.readObjects(mClient, loaded.get(0));
+			fail("Reading Entries of a deleted Client should fail");
+		} catch(IOException e) {}
+		assertFalse(getFile().exists());
+
+		mQueue.close();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return null;
+	}
+}
@@ -0,0 +1,79 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+import static plugins.WebOfTrust.NotificationRetentionLog.WINDOW;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import plugins.WebOfTrust.NotificationRetentionLog.Entry;
+import plugins.WebOfTrust.SubscriptionManager.ChangePayloads;
+import plugins.WebOfTrust.SubscriptionManager.ResumePosition;
+import plugins.WebOfTrust.SubscriptionManager.TrustsSubscription;
+
+/** Tests {@link NotificationRetentionLog} without a database, by calling its transaction callbacks directly. */
+public final class NotificationRetentionLogTest extends AbstractJUnit4BaseTest {
+
+	private final NotificationRetentionLog mLog = new NotificationRetentionLog();
+
+	private void addChanges(int amount) {
+		for(int i = 0; i < amount; ++i)
+			mLog.add(TrustsSubscription.class, new ChangePayloads(null, null), true);
+	}
+
+	private List<Entry> getEntriesAfter(long index) {
+		return mLog.getEntriesAfter(TrustsSubscription.class, new ResumePosition(mLog.getID(), index));
+	}
+
+	private void commit() {
+		mLog.onPrepareCommit();
+		mLog.onCommit();
+	}
+
+	/** Tests whether a transaction with more than {@link NotificationRetentionLog#WINDOW} changes keeps the last ones. */
+	@Test public void testLargeTransaction() {
+		addChanges(10);
+		commit();
+		assertEquals(10, getEntriesAfter(0).size());
+
+		addChanges(WINDOW + 5);
+		// Resuming is not possible while a transaction is uncommitted.
+		assertNull(getEntriesAfter(10));
+		commit();
+
+		final long lastIndex = 10 + WINDOW + 5;
+		assertEquals(lastIndex, mLog.getCurrentPosition(TrustsSubscription.class).mIndex);
+		assertNull(getEntriesAfter(0));
+		assertNull(getEntriesAfter(lastIndex - WINDOW - 1));
+		final List<Entry> entries = getEntriesAfter(lastIndex - WINDOW);
+		assertEquals(WINDOW, entries.size());
+		assertEquals(lastIndex - WINDOW + 1, entries.get(0).mIndex);
+		assertEquals(lastIndex, entries.get(entries.size() - 1).mIndex);
+		assertEquals(0, getEntriesAfter(lastIndex).size());
+	}
+
+	/** Tests whether dropping uncommitted changes of a rolled back transaction only prevents resuming from before it. */
+	@Test public void testLargeTransactionRollback() {
+		addChanges(10);
+		commit();
+
+		addChanges(WINDOW + 1);
+		mLog.onRollback();
+
+		assertNull(getEntriesAfter(0));
+		assertNull(getEntriesAfter(10));
+
+		addChanges(1);
+		commit();
+		final long lastIndex = 10 + WINDOW + 2;
+		assertEquals(1, getEntriesAfter(lastIndex - 1).size());
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return null;
+	}
+}
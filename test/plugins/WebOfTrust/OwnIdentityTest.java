@@ -106,4 +106,21 @@ public class OwnIdentityTest extends AbstractJUnit3BaseTest {
 		assertNotSame(original, deserialized);
 		assertEquals(original, deserialized);
 	}
+	
+	/**
+	 * Tests whether {@link OwnIdentity#needsInsert()} is true exactly at the time for which the
+	 * {@link IdentityInserter} schedules the re-insert of an unchanged identity.
+	 */
+	public void testNeedsInsertAtInsertDueTime() throws MalformedURLException, InvalidParameterException {
+		final OwnIdentity identity = new OwnIdentity(mWoT, insertURIStringUSK, "test", true);
+		identity.updateLastInsertDate(); // Not after the last change, so it is unchanged
+		
+		final long dueTime = IdentityInserter.getInsertDueTime(identity);
+		assertEquals(identity.getLastInsertDate().getTime()
+			+ IdentityInserter.MAX_UNCHANGED_TINE_BEFORE_REINSERT, dueTime);
+		
+		assertFalse(identity.needsInsert(dueTime - 1));
+		assertTrue(identity.needsInsert(dueTime));
+		assertTrue(identity.needsInsert(dueTime + 1));
+	}
 }
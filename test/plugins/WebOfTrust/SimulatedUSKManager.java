@@ -0,0 +1,186 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import plugins.WebOfTrust.FetchScheduler.Tier;
+
+/**
+ * Simulates the USK subscriptions of a Freenet node so the {@link FetchScheduler} can be tested
+ * and benchmarked without a node.<br><br>
+ *
+ * The simulation uses its own clock which is advanced by {@link #step(long)}. Editions are
+ * published by {@link #publish(String)}, and a subscription finds the latest unfetched edition
+ * {@link #FETCH_LATENCY} after it was published or after the subscription was started, whichever
+ * is later. The {@link FetchScheduler} is then notified of the found edition, and gets
+ * {@link FetchScheduler#tick(long)}ed at each step - just like the {@link IdentityFetcher} would
+ * do it.<br><br>
+ *
+ * Not thread-safe. */
+final class SimulatedUSKManager implements FetchScheduler.Backend {
+
+	/** Time a subscription needs to find an edition. Must be below the probe timeout. */
+	static final long FETCH_LATENCY = SECONDS.toMillis(30);
+
+	private final FetchScheduler mScheduler = new FetchScheduler(this);
+
+	private long mNow;
+
+	/** Key = Identity ID, value = time of subscription start. */
+	private final HashMap<String, Long> mSubscriptions = new HashMap<String, Long>();
+
+	/**
+	 * Key = Identity ID, value = time of the publication of the oldest edition which was not
+	 * fetched yet. */
+	private final HashMap<String, Long> mUnfetchedPublications = new HashMap<String, Long>();
+
+	private long mSubscriptionCount = 0;
+
+	private int mMaxConcurrentSubscriptions = 0;
+
+	private final EnumMap<Tier, Long> mFetchCount = new EnumMap<Tier, Long>(Tier.class);
+
+	/** Sum of the delays between publication and fetch of editions, per Tier. */
+	private final EnumMap<Tier, Long> mTotalFetchDelay = new EnumMap<Tier, Long>(Tier.class);
+
+	private final EnumMap<Tier, Long> mMaxFetchDelay = new EnumMap<Tier, Long>(Tier.class);
+
+
+	SimulatedUSKManager(long startTime) {
+		mNow = startTime;
+
+		for(Tier tier : Tier.values()) {
+			mFetchCount.put(tier, 0l);
+			mTotalFetchDelay.put(tier, 0l);
+			mMaxFetchDelay.put(tier, 0l);
+		}
+	}
+
+	FetchScheduler getScheduler() {
+		return mScheduler;
+	}
+
+	long getTime() {
+		return mNow;
+	}
+
+	@Override public void startFetch(String identityID) {
+		if(mSubscriptions.containsKey(identityID))
+			throw new IllegalStateException("Already subscribed: " + identityID);
+
+		mSubscriptions.put(identityID, mNow);
+		++mSubscriptionCount;
+		mMaxConcurrentSubscriptions = Math.max(mMaxConcurrentSubscriptions, mSubscriptions.size());
+	}
+
+	@Override public void stopFetch(String identityID) {
+		if(mSubscriptions.remove(identityID) == null)
+			throw new IllegalStateException("Not subscribed: " + identityID);
+	}
+
+	/** Publishes a new edition of the given Identity at the current time. */
+	void publish(String identityID) {
+		if(!mUnfetchedPublications.containsKey(identityID))
+			mUnfetchedPublications.put(identityID, mNow);
+	}
+
+	/**
+	 * Advances the clock by the given amount of milliseconds, delivers the editions which the
+	 * subscriptions have found until then to the {@link FetchScheduler}, and ticks it. */
+	void step(long millis) {
+		mNow += millis;
+
+		// Collect first because FetchScheduler.onFound() modifies mSubscriptions
+		final ArrayList<String> found = new ArrayList<String>();
+		for(String id : mSubscriptions.keySet()) {
+			final Long published = mUnfetchedPublications.get(id);
+			if(published == null)
+				continue;
+
+			if(Math.max(published, mSubscriptions.get(id)) + FETCH_LATENCY <= mNow)
+				found.add(id);
+		}
+
+		for(String id : found) {
+			final Tier tier = mScheduler.getTier(id);
+			final long delay = mNow - mUnfetchedPublications.remove(id);
+			mFetchCount.put(tier, mFetchCount.get(tier) + 1);
+			mTotalFetchDelay.put(tier, mTotalFetchDelay.get(tier) + delay);
+			mMaxFetchDelay.put(tier, Math.max(mMaxFetchDelay.get(tier), delay));
+
+			mScheduler.onFound(id, mNow);
+		}
+
+		mScheduler.tick(mNow);
+	}
+
+	boolean isSubscribed(String identityID) {
+		return mSubscriptions.containsKey(identityID);
+	}
+
+	int getConcurrentSubscriptions() {
+		return mSubscriptions.size();
+	}
+
+	int getMaxConcurrentSubscriptions() {
+		return mMaxConcurrentSubscriptions;
+	}
+
+	/** @return The amount of subscriptions which were started, including probes. */
+	long getSubscriptionCount() {
+		return mSubscriptionCount;
+	}
+
+	/** @return True if the latest published edition of the Identity has been fetched. */
+	boolean isFetched(String identityID) {
+		return !mUnfetchedPublications.containsKey(identityID);
+	}
+
+	int getUnfetchedCount() {
+		return mUnfetchedPublications.size();
+	}
+
+	long getFetchCount(Tier tier) {
+		return mFetchCount.get(tier);
+	}
+
+	long getAverageFetchDelay(Tier tier) {
+		final long count = mFetchCount.get(tier);
+		return count != 0 ? mTotalFetchDelay.get(tier) / count : 0;
+	}
+
+	long getMaxFetchDelay(Tier tier) {
+		return mMaxFetchDelay.get(tier);
+	}
+
+	/** Checks the limits of the {@link FetchScheduler} and the consistency of the subscriptions. */
+	void assertConsistent() {
+		int expectedSubscriptions = mScheduler.getCount(Tier.Permanent);
+		for(Tier tier : Tier.values()) {
+			if(tier == Tier.Permanent)
+				continue;
+
+			final int probing = mScheduler.getProbingCount(tier);
+			if(probing > tier.mMaxConcurrentProbes)
+				throw new AssertionError("Too many probes for " + tier + ": " + probing);
+			expectedSubscriptions += probing;
+		}
+
+		if(expectedSubscriptions != mSubscriptions.size()) {
+			throw new AssertionError("Subscriptions: " + mSubscriptions.size()
+				+ "; expected: " + expectedSubscriptions);
+		}
+
+		for(String id : mSubscriptions.keySet()) {
+			if(!mScheduler.isSubscribed(id))
+				throw new AssertionError("Leaked subscription: " + id);
+		}
+	}
+}
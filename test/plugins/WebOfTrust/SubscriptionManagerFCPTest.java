@@ -20,7 +20,17 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import plugins.WebOfTrust.Configuration.NotificationQueueType;
+import plugins.WebOfTrust.SubscriptionManager.Client;
+import plugins.WebOfTrust.SubscriptionManager.ClientStatistics;
+import plugins.WebOfTrust.SubscriptionManager.Filter;
+import plugins.WebOfTrust.SubscriptionManager.ListenerFailedException;
 import plugins.WebOfTrust.SubscriptionManager.Notification;
+import plugins.WebOfTrust.SubscriptionManager.NotificationPayload;
+import plugins.WebOfTrust.SubscriptionManager.ObjectChangedNotification;
+import plugins.WebOfTrust.SubscriptionManager.SubscriptionEvent;
+import plugins.WebOfTrust.SubscriptionManager.SubscriptionExistsAlreadyException;
+import plugins.WebOfTrust.SubscriptionManager.SubscriptionListener;
 import plugins.WebOfTrust.exceptions.DuplicateTrustException;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
@@ -58,14 +68,38 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
 
 		private final LinkedList<FCPPluginMessage> mResults = new LinkedList<FCPPluginMessage>();
 
+		/**
+		 * Amount of received "Notifications" messages, see
+		 * {@link plugins.WebOfTrust.ui.fcp.FCPInterface#sendNotifications(UUID, List)}. */
+		int mReceivedBatches = 0;
+
+		/**
+		 * If not null, is run after each received non-reply message. The {@link SubscriptionManager} does not hold any
+		 * locks while sending, so it may change the database. */
+		Runnable mOnMessage = null;
+
 		/**
 		 * Called by fred to handle messages from WOT's FCP server.
+		 * Unpacks "Notifications" messages into the single messages which they contain so the tests
+		 * can process them the same way as unbatched ones.
 		 */
 		@Override
         public FCPPluginMessage handlePluginFCPMessage(FCPPluginConnection connection,
                 FCPPluginMessage message) {
 		    
-		    mResults.addLast(message);
+		    if("Notifications".equals(message.params.get("Message"))) {
+		        ++mReceivedBatches;
+		        final int amount = message.params.getInt("Amount", -1);
+		        assertTrue(amount >= 1);
+		        for(int i = 0; i < amount; ++i) {
+		            mResults.addLast(FCPPluginMessage.construct(
+		                message.params.subset(Integer.toString(i)), null));
+		        }
+		    } else
+		        mResults.addLast(message);
+
+		    if(mOnMessage != null && !message.isReplyMessage())
+		        mOnMessage.run();
 
 		    // The fred code which calls this handler expects a reply to be returned to indicate
 		    // success so the sendSynchronous() calls in WOT can return.
@@ -138,6 +172,14 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
 	 */
 	HashMap<String, Score> mReceivedScores = new HashMap<String, Score>();
 	
+	/**
+	 * The highest "RetentionLogIndex" of the ObjectChangedEvents which {@link #importObjectChangedEvents()} has
+	 * received, i.e. the position for resuming the subscription.
+	 * 
+	 * Key = {@link SubscriptionType#name()}
+	 */
+	HashMap<String, Long> mRetentionLogIndexes = new HashMap<String, Long>();
+	
 	@Before public void setUpWOT() throws UnknownIdentityException, MalformedURLException {
 	    // Delete the seed identities since the test assumes the WOT database to be empty.
 	    deleteSeedIdentities();
@@ -180,7 +222,7 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
     }
 	
     /**
-     * TODO: Code quality: Replace with {@link #subscribeAndSynchronize(String)} as it duplicates
+     * TODO: Code quality: Replace with {@link #subscribeAndSynchronize(String, boolean)} as it duplicates
      * most of this.<br>
      * The only difference is probably that this function here assumes that the
      * received synchronization will be empty (= no messages will arrive between
@@ -235,6 +277,14 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
         // No further messages should arrive by now.
 		assertFalse(mReplyReceiver.hasNextResult());
 		
+		final List<ClientStatistics> clients
+		    = mWebOfTrust.getSubscriptionManager().getClientStatistics();
+		assertEquals(1, clients.size());
+		assertEquals(0, clients.get(0).mQueuedNotifications);
+		assertEquals(false, clients.get(0).mDeliveryRunning);
+		assertEquals(2, clients.get(0).mDeployedNotifications);
+		assertEquals(2, clients.get(0).mDeliveryLatency.getCount());
+		
 		// Try to file the same subscription again - should fail because we already are subscribed
 		fcpCall(sfs);
 		final FCPPluginMessage duplicateSubscriptionMessage = mReplyReceiver.getNextResult();
@@ -254,6 +304,54 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
 	        throws InvalidParameterException, FSParseException, DuplicateTrustException,
 	        NotTrustedException, UnknownIdentityException, IOException, InterruptedException {
 	    
+		testAllRandomized(false);
+	}
+
+	/**
+	 * Same as {@link #testAllRandomized()} with the "Coalesce" option of the subscriptions:
+	 * The merged notifications must result in the same data at the client.
+	 */
+	@Test public void testAllRandomizedCoalesced()
+	        throws InvalidParameterException, FSParseException, DuplicateTrustException,
+	        NotTrustedException, UnknownIdentityException, IOException, InterruptedException {
+	    
+		testAllRandomized(true);
+	}
+
+	/**
+	 * Same as {@link #testAllRandomized()} with the "BatchSize" option of the subscriptions, i.e.
+	 * with multiple notifications per FCP message.
+	 */
+	@Test public void testAllRandomizedBatched()
+	        throws InvalidParameterException, FSParseException, DuplicateTrustException,
+	        NotTrustedException, UnknownIdentityException, IOException, InterruptedException {
+	    
+		final SimpleFieldSet options = new SimpleFieldSet(true);
+		options.put("BatchSize", 16);
+		testAllRandomized(options);
+		
+		assertTrue(mReplyReceiver.mReceivedBatches > 0);
+		final List<ClientStatistics> clients
+		    = mWebOfTrust.getSubscriptionManager().getClientStatistics();
+		assertEquals(1, clients.size());
+		// Batches contain at least 1 notification so the batching cannot have increased the count
+		assertTrue(clients.get(0).mFCPMessages <= clients.get(0).mDeployedNotifications);
+	}
+
+	void testAllRandomized(boolean coalesce)
+	        throws InvalidParameterException, FSParseException, DuplicateTrustException,
+	        NotTrustedException, UnknownIdentityException, IOException, InterruptedException {
+	    
+		final SimpleFieldSet options = new SimpleFieldSet(true);
+		options.put("Coalesce", coalesce);
+		testAllRandomized(options);
+	}
+
+	/** @param options See {@link #subscribeAndSynchronize(String, SimpleFieldSet)}. */
+	void testAllRandomized(SimpleFieldSet options)
+	        throws InvalidParameterException, FSParseException, DuplicateTrustException,
+	        NotTrustedException, UnknownIdentityException, IOException, InterruptedException {
+	    
 		// TODO: Extract a generic AbstractJUnit4BaseTest function for random trust graph setup.
 		
 		final int initialOwnIdentityCount = 1;
@@ -270,9 +368,9 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
 		addRandomTrustValues(identities, initialTrustCount);
 
 		/* Initial test data is set up */
-		subscribeAndSynchronize("Identities");
-		subscribeAndSynchronize("Trusts");
-		subscribeAndSynchronize("Scores");
+		subscribeAndSynchronize("Identities", options);
+		subscribeAndSynchronize("Trusts", options);
+		subscribeAndSynchronize("Scores", options);
 		
 		testWhetherReceivedDataMatchesMainDatabase();
 		
@@ -287,6 +385,492 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
 		
 	}
 
+	/**
+	 * Changes the database after subscribing but before the synchronization is deployed. The
+	 * synchronization is loaded in multiple pages then, and must nevertheless deploy the state of
+	 * the database as of subscribing: The following ObjectChangedEvents are validated against it by
+	 * {@link #putObjectChangedEvent(ChangeSet, HashMap)}.
+	 */
+	@Test public void testSynchronizationSnapshot()
+	        throws InvalidParameterException, FSParseException, DuplicateTrustException,
+	        NotTrustedException, UnknownIdentityException, IOException, InterruptedException {
+	    
+		final ArrayList<Identity> identities = addRandomIdentities(100);
+		identities.addAll(addRandomOwnIdentities(1));
+		addRandomTrustValues(identities, (identities.size() * identities.size()) / 10);
+		
+		final SimpleFieldSet options = new SimpleFieldSet(true);
+		subscribe("Identities", options);
+		subscribe("Trusts", options);
+		subscribe("Scores", options);
+		
+		doRandomChangesToWOT(100);
+		// Our parent class terminates all subsystem threads of WoT so we have to manually invoke
+		// the SubscriptionManager's thread to deploy notifications.
+		mWebOfTrust.getSubscriptionManager().run();
+		
+		importSynchronizationEvents("Identities");
+		importSynchronizationEvents("Trusts");
+		importSynchronizationEvents("Scores");
+		importObjectChangedEvents();
+		assertFalse(mReplyReceiver.hasNextResult());
+		
+		testWhetherReceivedDataMatchesMainDatabase();
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+	}
+
+	/**
+	 * Changes the database while the synchronization is deployed, i.e. between its pages, which continue in the
+	 * result of the query of the first page: Objects which were deleted since the query must be deployed in their
+	 * version of the time of subscribing, and created ones must not be deployed. This is validated the same way as
+	 * by {@link #testSynchronizationSnapshot()}.
+	 */
+	@Test public void testSynchronizationChangedBetweenPages()
+	        throws InvalidParameterException, FSParseException, DuplicateTrustException,
+	        NotTrustedException, UnknownIdentityException, IOException, InterruptedException {
+	    
+		final ArrayList<Identity> identities = addRandomIdentities(100);
+		identities.addAll(addRandomOwnIdentities(1));
+		addRandomTrustValues(identities, (identities.size() * identities.size()) / 10);
+		
+		final SimpleFieldSet options = new SimpleFieldSet(true);
+		subscribe("Identities", options);
+		subscribe("Trusts", options);
+		subscribe("Scores", options);
+		
+		// Enough changes to span multiple pages of all three synchronizations.
+		final int[] remainingChanges = { 300 };
+		mReplyReceiver.mOnMessage = new Runnable() {
+			@Override public void run() {
+				if(remainingChanges[0] == 0)
+					return;
+				--remainingChanges[0];
+				
+				try {
+					doRandomChangesToWOT(1);
+				} catch(Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		
+		// Our parent class terminates all subsystem threads of WoT so we have to manually invoke
+		// the SubscriptionManager's thread to deploy notifications.
+		mWebOfTrust.getSubscriptionManager().run();
+		assertEquals(0, remainingChanges[0]);
+		mReplyReceiver.mOnMessage = null;
+		// Deploys the changes which were stored while the previous run() was sending.
+		mWebOfTrust.getSubscriptionManager().run();
+		
+		importSynchronizationEvents("Identities");
+		importSynchronizationEvents("Trusts");
+		importSynchronizationEvents("Scores");
+		importObjectChangedEvents();
+		assertFalse(mReplyReceiver.hasNextResult());
+		
+		testWhetherReceivedDataMatchesMainDatabase();
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+	}
+
+	/**
+	 * Subscribes, loses the subscriptions while the database is changed, and resumes them with a new connection: The
+	 * client must only receive the changes which it missed, and have the same data as the database afterwards.<br>
+	 * Then checks that a position which is not of the current log causes a regular synchronization.
+	 */
+	@Test public void testResume()
+	        throws InvalidParameterException, FSParseException, DuplicateTrustException,
+	        NotTrustedException, UnknownIdentityException, IOException, InterruptedException {
+	    
+		final ArrayList<Identity> identities = addRandomIdentities(100);
+		identities.addAll(addRandomOwnIdentities(1));
+		addRandomTrustValues(identities, (identities.size() * identities.size()) / 10);
+		
+		final String[] types = { "Identities", "Trusts", "Scores" };
+		final HashMap<String, String> subscriptionIDs = new HashMap<String, String>();
+		String logID = null;
+		for(String type : types) {
+			final SimpleFieldSet subscribed = subscribe(type, new SimpleFieldSet(true));
+			mWebOfTrust.getSubscriptionManager().run();
+			importSynchronizationEvents(type);
+			
+			subscriptionIDs.put(type, subscribed.get("SubscriptionID"));
+			assertEquals("false", subscribed.get("Resumed"));
+			logID = subscribed.get("RetentionLogID");
+			assertNotNull(logID);
+			mRetentionLogIndexes.put(type, subscribed.getLong("RetentionLogIndex"));
+		}
+		
+		doRandomChangesToWOT(100);
+		// Our parent class terminates all subsystem threads of WoT so we have to manually invoke
+		// the SubscriptionManager's thread to deploy notifications.
+		mWebOfTrust.getSubscriptionManager().run();
+		importObjectChangedEvents();
+		testWhetherReceivedDataMatchesMainDatabase();
+		
+		for(String type : types)
+			testUnsubscribeFrom(type, subscriptionIDs.get(type));
+		
+		// Changes which the client misses. Few of them so they fit into the retention window.
+		doRandomChangesToWOT(5);
+		
+		mConnection = mWebOfTrust.getPluginRespirator()
+			.connectToOtherPlugin(FCPClientReferenceImplementation.WOT_FCP_NAME, mReplyReceiver);
+		
+		for(String type : types) {
+			final SimpleFieldSet options = new SimpleFieldSet(true);
+			options.putOverwrite("ResumeLogID", logID);
+			options.put("ResumeIndex", mRetentionLogIndexes.get(type));
+			final SimpleFieldSet subscribed = subscribe(type, options);
+			assertEquals("true", subscribed.get("Resumed"));
+			subscriptionIDs.put(type, subscribed.get("SubscriptionID"));
+		}
+		
+		mWebOfTrust.getSubscriptionManager().run();
+		// There is no synchronization, only the missed ObjectChangedEvents.
+		importObjectChangedEvents();
+		testWhetherReceivedDataMatchesMainDatabase();
+		
+		// Unknown log: Must not be resumed, but synchronized.
+		testUnsubscribeFrom("Identities", subscriptionIDs.get("Identities"));
+		mReceivedIdentities.clear();
+		final SimpleFieldSet options = new SimpleFieldSet(true);
+		options.putOverwrite("ResumeLogID", UUID.randomUUID().toString());
+		options.put("ResumeIndex", mRetentionLogIndexes.get("Identities"));
+		assertEquals("false", subscribe("Identities", options).get("Resumed"));
+		mWebOfTrust.getSubscriptionManager().run();
+		importSynchronizationEvents("Identities");
+		assertFalse(mReplyReceiver.hasNextResult());
+		testWhetherReceivedDataMatchesMainDatabase();
+	}
+
+	/**
+	 * Subscribes two clients and checks that their {@link ObjectChangedNotification}s share the
+	 * {@link NotificationPayload}s of each change, and that the payloads are deleted once both clients have received
+	 * them.<br>
+	 * With the default {@link NotificationQueueType#File}, checks that the Notifications are not stored in the
+	 * database instead.
+	 */
+	@Test public void testSharedPayloads()
+	        throws InvalidParameterException, FSParseException, DuplicateTrustException,
+	        NotTrustedException, UnknownIdentityException, IOException, InterruptedException {
+	    
+		final ArrayList<Identity> identities = addRandomIdentities(100);
+		identities.addAll(addRandomOwnIdentities(1));
+		addRandomTrustValues(identities, (identities.size() * identities.size()) / 10);
+		
+		final ReplyReceiver otherReceiver = new ReplyReceiver();
+		final FCPPluginConnection otherConnection = mWebOfTrust.getPluginRespirator()
+			.connectToOtherPlugin(FCPClientReferenceImplementation.WOT_FCP_NAME, otherReceiver);
+		for(String type : new String[] { "Identities", "Trusts", "Scores" }) {
+			subscribeAndSynchronize(type, false);
+			
+			final SimpleFieldSet sfs = new SimpleFieldSet(true);
+			sfs.putOverwrite("Message", "Subscribe");
+			sfs.putOverwrite("To", type);
+			assertTrue(otherConnection.sendSynchronous(
+				FCPPluginMessage.construct(sfs, null), TimeUnit.SECONDS.toNanos(10)).success);
+		}
+		mWebOfTrust.getSubscriptionManager().run();
+		
+		doRandomChangesToWOT(100);
+		
+		final SubscriptionManager manager = mWebOfTrust.getSubscriptionManager();
+		if(manager.getNotificationQueueType() == NotificationQueueType.File) {
+			// The NotificationFileQueue keeps the ObjectChangedNotifications out of the database.
+			assertEquals(0, mWebOfTrust.getDatabase().query(ObjectChangedNotification.class).size());
+			assertEquals(0, mWebOfTrust.getDatabase().query(NotificationPayload.class).size());
+			assertTrue(manager.getPendingNotificationAmount() > 0);
+		} else {
+			int objects = 0;
+			for(ObjectChangedNotification notification
+					: mWebOfTrust.getDatabase().query(ObjectChangedNotification.class)) {
+				
+				notification.initializeTransient(mWebOfTrust);
+				if(notification.getOldObject() != null)
+					++objects;
+				if(notification.getNewObject() != null)
+					++objects;
+			}
+			assertTrue(objects > 0);
+			// Both clients receive all changes, so each payload is referenced twice.
+			assertEquals(objects, 2 * mWebOfTrust.getDatabase().query(NotificationPayload.class).size());
+		}
+		
+		manager.run();
+		assertEquals(0, mWebOfTrust.getDatabase().query(NotificationPayload.class).size());
+		assertEquals(0, manager.getPendingNotificationAmount());
+		
+		importObjectChangedEvents();
+		testWhetherReceivedDataMatchesMainDatabase();
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+	}
+
+	/**
+	 * Subscribes with a {@link SubscriptionListener} instead of FCP and checks that it receives the same data as the
+	 * database, including when the listener fails once after having processed part of the events.
+	 */
+	@Test public void testCallbackListener()
+	        throws InvalidParameterException, DuplicateTrustException, NotTrustedException,
+	        UnknownIdentityException, MalformedURLException, InterruptedException,
+	        SubscriptionExistsAlreadyException {
+	    
+		final ArrayList<Identity> identities = addRandomIdentities(100);
+		identities.addAll(addRandomOwnIdentities(1));
+		addRandomTrustValues(identities, (identities.size() * identities.size()) / 10);
+		
+		final ArrayList<SubscriptionEvent> received = new ArrayList<SubscriptionEvent>();
+		final boolean[] fail = { false };
+		final ArrayList<String> unsubscribed = new ArrayList<String>();
+		final SubscriptionListener listener = new SubscriptionListener() {
+			@Override public void handleEvents(List<SubscriptionEvent> events) throws ListenerFailedException {
+				if(fail[0] && events.size() > 1) {
+					fail[0] = false;
+					received.add(events.get(0));
+					throw new ListenerFailedException(1, new Exception("Test failure"));
+				}
+				received.addAll(events);
+			}
+			
+			@Override public void handleUnsubscribed(String subscriptionID) {
+				unsubscribed.add(subscriptionID);
+			}
+		};
+		
+		final SubscriptionManager manager = mWebOfTrust.getSubscriptionManager();
+		final UUID id = manager.registerListener(listener);
+		manager.subscribeToIdentities(id, false, false, Filter.NONE, 1, null);
+		manager.subscribeToTrusts(id, false, false, Filter.NONE, 1, null);
+		manager.subscribeToScores(id, false, false, Filter.NONE, 1, null);
+		manager.run();
+		
+		fail[0] = true;
+		doRandomChangesToWOT(100);
+		manager.run();
+		// The failure schedules another run().
+		manager.run();
+		assertFalse(fail[0]);
+		assertEquals(0, manager.getPendingNotificationAmount());
+		
+		int synchronizations = 0;
+		for(SubscriptionEvent event : received) {
+			switch(event.mType) {
+				case BeginSynchronization:
+					assertNotNull(event.mVersionID);
+					++synchronizations;
+					break;
+				case EndSynchronization:
+					break;
+				case ObjectChanged:
+					putObjectChangedEvent(event);
+					break;
+			}
+		}
+		assertEquals(3, synchronizations);
+		testWhetherReceivedDataMatchesMainDatabase();
+		
+		manager.unregisterListener(id);
+		assertTrue(unsubscribed.isEmpty());
+		assertEquals(0, mWebOfTrust.getDatabase().query(Client.class).size());
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+	}
+	
+	/**
+	 * Subscribes to the {@link Trust}s and {@link Score}s out-of-order with a {@link SubscriptionListener} which always
+	 * fails to process Trusts: The Identities and Scores must be deployed nevertheless, and only the Subscription to
+	 * the Trusts must be deleted once it has failed too often.
+	 */
+	@Test public void testOutOfOrder()
+	        throws InvalidParameterException, DuplicateTrustException, NotTrustedException,
+	        UnknownIdentityException, MalformedURLException, InterruptedException,
+	        SubscriptionExistsAlreadyException {
+	    
+		final ArrayList<Identity> identities = addRandomIdentities(50);
+		identities.addAll(addRandomOwnIdentities(1));
+		addRandomTrustValues(identities, (identities.size() * identities.size()) / 10);
+		
+		final ArrayList<String> unsubscribed = new ArrayList<String>();
+		final SubscriptionListener listener = new SubscriptionListener() {
+			@Override public void handleEvents(List<SubscriptionEvent> events) throws ListenerFailedException {
+				// Each out-of-order queue only contains the events of its own Subscription.
+				if(events.get(0).mEventSourceClass == Trust.class)
+					throw new ListenerFailedException(0, new Exception("Test failure"));
+				
+				for(SubscriptionEvent event : events) {
+					assertNotSame(Trust.class, event.mEventSourceClass);
+					if(event.mType == SubscriptionEvent.Type.ObjectChanged)
+						putObjectChangedEvent(event);
+				}
+			}
+			
+			@Override public void handleUnsubscribed(String subscriptionID) {
+				unsubscribed.add(subscriptionID);
+			}
+		};
+		
+		final SubscriptionManager manager = mWebOfTrust.getSubscriptionManager();
+		final UUID id = manager.registerListener(listener);
+		manager.subscribeToIdentities(id, false, false, Filter.NONE, 1, null);
+		final String trustsID = manager.subscribeToTrusts(id, false, true, Filter.NONE, 1, null).mSubscriptionID;
+		manager.subscribeToScores(id, false, true, Filter.NONE, 1, null);
+		doRandomChangesToWOT(100);
+		
+		// Each run() retries the Trusts once.
+		for(int i = 0; i < SubscriptionManager.DISCONNECT_CLIENT_AFTER_FAILURE_COUNT; ++i) {
+			assertTrue(unsubscribed.isEmpty());
+			manager.run();
+		}
+		
+		assertEquals(1, unsubscribed.size());
+		assertEquals(trustsID, unsubscribed.get(0));
+		assertEquals(0, manager.getPendingNotificationAmount());
+		assertTrue(mReceivedTrusts.isEmpty());
+		assertEquals(getAllIdentities(), new HashSet<Identity>(mReceivedIdentities.values()));
+		assertEquals(getAllScores(), new HashSet<Score>(mReceivedScores.values()));
+		
+		final List<ClientStatistics> clients = manager.getClientStatistics();
+		assertEquals(1, clients.size());
+		manager.unregisterListener(id);
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+	}
+	
+	/**
+	 * Lets the out-of-order Subscription to the {@link Trust}s of a {@link SubscriptionListener} fail until it is
+	 * deleted, and subscribes again from {@link SubscriptionListener#handleUnsubscribed(String)}: It must be called
+	 * without holding any locks of WOT, and the new Subscription must receive all Trusts.
+	 */
+	@Test public void testResubscribeFromHandleUnsubscribed()
+	        throws InvalidParameterException, DuplicateTrustException, NotTrustedException,
+	        UnknownIdentityException, MalformedURLException, InterruptedException,
+	        SubscriptionExistsAlreadyException {
+	    
+		final ArrayList<Identity> identities = addRandomIdentities(50);
+		identities.addAll(addRandomOwnIdentities(1));
+		addRandomTrustValues(identities, (identities.size() * identities.size()) / 10);
+		
+		final SubscriptionManager manager = mWebOfTrust.getSubscriptionManager();
+		final UUID[] id = new UUID[1];
+		final boolean[] fail = { true };
+		final boolean[] heldLocks = { false };
+		final ArrayList<String> resubscribed = new ArrayList<String>();
+		final SubscriptionListener listener = new SubscriptionListener() {
+			@Override public void handleEvents(List<SubscriptionEvent> events) throws ListenerFailedException {
+				if(fail[0] && events.get(0).mEventSourceClass == Trust.class)
+					throw new ListenerFailedException(0, new Exception("Test failure"));
+				
+				for(SubscriptionEvent event : events) {
+					if(event.mType == SubscriptionEvent.Type.ObjectChanged)
+						putObjectChangedEvent(event);
+				}
+			}
+			
+			@Override public void handleUnsubscribed(String subscriptionID) {
+				heldLocks[0] |= Thread.holdsLock(mWebOfTrust) || Thread.holdsLock(manager)
+					|| Thread.holdsLock(Persistent.transactionLock(mWebOfTrust.getDatabase()));
+				fail[0] = false;
+				try {
+					resubscribed.add(
+						manager.subscribeToTrusts(id[0], false, true, Filter.NONE, 1, null).mSubscriptionID);
+				} catch(Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		
+		id[0] = manager.registerListener(listener);
+		manager.subscribeToIdentities(id[0], false, false, Filter.NONE, 1, null);
+		final String trustsID = manager.subscribeToTrusts(id[0], false, true, Filter.NONE, 1, null).mSubscriptionID;
+		
+		// Each run() retries the Trusts once.
+		for(int i = 0; i < SubscriptionManager.DISCONNECT_CLIENT_AFTER_FAILURE_COUNT; ++i) {
+			assertTrue(resubscribed.isEmpty());
+			manager.run();
+		}
+		
+		assertFalse(heldLocks[0]);
+		assertEquals(1, resubscribed.size());
+		assertFalse(trustsID.equals(resubscribed.get(0)));
+		
+		// Deploys the new Subscription.
+		manager.run();
+		assertEquals(0, manager.getPendingNotificationAmount());
+		assertEquals(getAllIdentities(), new HashSet<Identity>(mReceivedIdentities.values()));
+		assertEquals(getAllTrusts(), new HashSet<Trust>(mReceivedTrusts.values()));
+		
+		manager.unregisterListener(id[0]);
+		assertTrue(mWebOfTrust.verifyDatabaseIntegrity());
+	}
+	
+	private void putObjectChangedEvent(final SubscriptionEvent event) {
+		final HashMap<String, ? extends EventSource> map
+			= event.mEventSourceClass == Identity.class ? mReceivedIdentities
+			: event.mEventSourceClass == Trust.class ? mReceivedTrusts
+			: mReceivedScores;
+		
+		if(event.mNewObject == null)
+			assertNotNull(map.remove(event.mOldObject.getID()));
+		else
+			putReceived(map, event.mNewObject);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T extends EventSource> void putReceived(final HashMap<String, T> map, final EventSource object) {
+		map.put(object.getID(), (T)object);
+	}
+	
+	/**
+	 * Subscribes to the {@link Trust}s given by an {@link OwnIdentity} and to the {@link Score}s of at least 1, and
+	 * checks whether the client receives exactly the matching subset of the database. The random changes cause objects
+	 * to start and stop matching the filters.
+	 */
+	@Test public void testAllRandomizedFiltered()
+	        throws InvalidParameterException, FSParseException, DuplicateTrustException,
+	        NotTrustedException, UnknownIdentityException, IOException, InterruptedException {
+	    
+		final ArrayList<Identity> identities = addRandomIdentities(100);
+		final ArrayList<OwnIdentity> ownIdentities = addRandomOwnIdentities(1);
+		identities.addAll(ownIdentities);
+		addRandomTrustValues(identities, (identities.size() * identities.size()) / 10);
+		final String trusterID = ownIdentities.get(0).getID();
+		
+		final SimpleFieldSet trustsFilter = new SimpleFieldSet(true);
+		trustsFilter.putOverwrite("Filter.Truster", trusterID);
+		final SimpleFieldSet scoresFilter = new SimpleFieldSet(true);
+		scoresFilter.put("Filter.MinimumScore", 1);
+		// All fields which Score.equals() compares, so the client's versions stay equal to the database.
+		scoresFilter.putOverwrite("Filter.Fields", "Value,Rank,Capacity");
+		
+		final SimpleFieldSet noFilter = new SimpleFieldSet(true);
+		subscribeAndSynchronize("Identities", noFilter);
+		subscribeAndSynchronize("Trusts", trustsFilter);
+		subscribeAndSynchronize("Scores", scoresFilter);
+		testWhetherReceivedDataMatchesFilters(trusterID, 1);
+		
+		doRandomChangesToWOT(100);
+		mWebOfTrust.getSubscriptionManager().run();
+		importObjectChangedEvents();
+		assertFalse(mReplyReceiver.hasNextResult());
+		
+		testWhetherReceivedDataMatchesFilters(trusterID, 1);
+	}
+	
+	void testWhetherReceivedDataMatchesFilters(final String trusterID, final int minimumScore) {
+		final HashSet<Trust> expectedTrusts = new HashSet<Trust>();
+		for(Trust trust : getAllTrusts()) {
+			if(trust.getTruster().getID().equals(trusterID))
+				expectedTrusts.add(trust);
+		}
+		
+		final HashSet<Score> expectedScores = new HashSet<Score>();
+		for(Score score : getAllScores()) {
+			if(score.getValue() >= minimumScore)
+				expectedScores.add(score);
+		}
+		
+		assertEquals(getAllIdentities(), new HashSet<Identity>(mReceivedIdentities.values()));
+		assertEquals(expectedTrusts, new HashSet<Trust>(mReceivedTrusts.values()));
+		assertEquals(expectedScores, new HashSet<Score>(mReceivedScores.values()));
+	}
+
     void testWhetherReceivedDataMatchesMainDatabase() {
         // No need to use listToSetWithDuplicateCheck():
         // We create the HashSets from HashMaps where the keys are the objects' IDs. Using the IDs
@@ -308,12 +892,44 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
         assertEquals(getAllScores(), receivedScores);
     }
 	
-	void subscribeAndSynchronize(final String type)
+	void subscribeAndSynchronize(final String type, final boolean coalesce)
 	        throws FSParseException, InvalidParameterException, IOException, InterruptedException {
 	    
+		final SimpleFieldSet options = new SimpleFieldSet(true);
+		options.put("Coalesce", coalesce);
+		subscribeAndSynchronize(type, options);
+	}
+	
+	/**
+	 * @param options Optional fields of the "Subscribe" message such as "Coalesce", "Filter.*" and
+	 *     "BatchSize". */
+	void subscribeAndSynchronize(final String type, final SimpleFieldSet options)
+	        throws FSParseException, InvalidParameterException, IOException, InterruptedException {
+	    
+		subscribe(type, options);
+		
+        // Our parent class terminates all subsystem threads of WoT so we have to manually invoke
+        // the SubscriptionManager's thread to deploy notifications.
+        mWebOfTrust.getSubscriptionManager().run();
+        
+        importSynchronizationEvents(type);
+        
+        // No further messages should arrive by now.
+        assertFalse(mReplyReceiver.hasNextResult());
+	}
+	
+	/**
+	 * Only files the "Subscribe" message and checks the reply, does not deploy the synchronization.
+	 * 
+	 * @param options See {@link #subscribeAndSynchronize(String, SimpleFieldSet)}.
+	 * @return The params of the "Subscribed" reply. */
+	SimpleFieldSet subscribe(final String type, final SimpleFieldSet options)
+	        throws FSParseException, IOException, InterruptedException {
+	    
 		final SimpleFieldSet sfs = new SimpleFieldSet(true);
 		sfs.putOverwrite("Message", "Subscribe");
 		sfs.putOverwrite("To", type);
+		sfs.putAllOverwrite(options);
 		fcpCall(sfs);
 		
         // First message from WOT is the confirmation of the subscription
@@ -321,14 +937,20 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
         assertEquals(true, subscription.success);
         assertEquals("Subscribed", subscription.params.get("Message"));
         assertEquals(type, subscription.params.get("To"));
+        assertEquals(options.getInt("BatchSize", 1), subscription.params.getInt("BatchSize"));
         final String id = subscription.params.get("SubscriptionID");
         UUID.fromString(id); // Throws if invalid
-        
-        // Our parent class terminates all subsystem threads of WoT so we have to manually invoke
-        // the SubscriptionManager's thread to deploy notifications.
-        mWebOfTrust.getSubscriptionManager().run();
-        
-        // Second message is the "BeginSynchronizationEvent"
+        return subscription.params;
+	}
+	
+	/**
+	 * Imports the "BeginSynchronizationEvent", the synchronization and the "EndSynchronizationEvent"
+	 * of the given type, which must be the next received messages.
+	 */
+	void importSynchronizationEvents(final String type)
+	        throws FSParseException, InvalidParameterException, MalformedURLException {
+	    
+        // First message is the "BeginSynchronizationEvent"
         final FCPPluginMessage beginSync = mReplyReceiver.getNextResult();
         // Validate the expected case of it not being a reply message so we don't have to check the
         // beginSync.success / errorCode / errorMessage as they will be null for non-reply messages.
@@ -348,9 +970,6 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
         assertEquals("EndSynchronizationEvent", endSync.params.get("Message"));
         assertEquals(type, endSync.params.get("To"));
         assertEquals(versionID.toString(), endSync.params.get("VersionID"));
-        
-        // No further messages should arrive by now.
-        assertFalse(mReplyReceiver.hasNextResult());
 	}
 	
     @SuppressWarnings("unchecked")
@@ -431,6 +1050,13 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
 		    SubscriptionType type
 		        = SubscriptionType.valueOf(event.get("SubscriptionType"));
 		    
+		    final long retentionLogIndex = event.getLong("RetentionLogIndex", 0);
+		    if(retentionLogIndex != 0) {
+		        final Long previous = mRetentionLogIndexes.put(type.name(), retentionLogIndex);
+		        // The indexes of a type must be ascending, otherwise resuming would skip changes.
+		        assertTrue(previous == null || previous < retentionLogIndex);
+		    }
+		    
 		    switch(type) {
                 case Identities:
                     putObjectChangedEvent(
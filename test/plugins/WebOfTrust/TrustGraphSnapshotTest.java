@@ -0,0 +1,292 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.Identity.FetchState;
+
+/**
+ * Tests {@link TrustGraphSnapshot} and the import and export functions of {@link WebOfTrust} for
+ * it. */
+public final class TrustGraphSnapshotTest extends AbstractJUnit4BaseTest {
+
+	/** The WebOfTrust which is exported. */
+	private WebOfTrust mWebOfTrust;
+
+	/** The snapshot of {@link #mWebOfTrust}. */
+	private byte[] mSnapshot;
+
+
+	@Before public void setUp() throws Exception {
+		mWebOfTrust = constructEmptyWebOfTrust();
+		final ArrayList<Identity> identities = addRandomIdentities(3, 30);
+		addRandomTrustValues(identities, 150);
+
+		// Mark most non-own identities as fetched so their data and trust lists are exported.
+		for(Identity identity : identities) {
+			if(!(identity instanceof OwnIdentity) && mRandom.nextInt(5) != 0)
+				markAsFetched(identity);
+		}
+
+		mSnapshot = exportSnapshot();
+	}
+
+	private void markAsFetched(Identity identity) throws Exception {
+		// Re-query since we might only have a clone() but db4o needs the original
+		identity = mWebOfTrust.getIdentityByID(identity.getID());
+
+		identity.setEdition(1 + mRandom.nextInt(100));
+		identity.setNickname(getRandomLatinString(Identity.MAX_NICKNAME_LENGTH));
+		identity.addContext(getRandomLatinString(Identity.MAX_CONTEXT_NAME_LENGTH));
+		identity.setProperty("key", getRandomLatinString(10));
+		identity.onFetched();
+		identity.storeAndCommit();
+	}
+
+	private byte[] exportSnapshot() throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		mWebOfTrust.exportTrustGraphSnapshot(out);
+		return out.toByteArray();
+	}
+
+	private TrustGraphSnapshot.ImportStatistics importSnapshot(WebOfTrust target)
+			throws IOException {
+		return target.importTrustGraphSnapshot(new ByteArrayInputStream(mSnapshot));
+	}
+
+	@Test public void testExportImport() throws Exception {
+		final WebOfTrust target = constructEmptyWebOfTrust();
+		try {
+			final TrustGraphSnapshot.ImportStatistics stats = importSnapshot(target);
+			assertEquals(mWebOfTrust.getAllIdentities().size(), stats.mImportedIdentities);
+			assertEquals(0, stats.mSkippedIdentities);
+			assertEquals(mWebOfTrust.getAllIdentities().size(),
+				target.getAllIdentities().size());
+
+			int fetchedTrusts = 0;
+			for(Identity original : mWebOfTrust.getAllIdentities()) {
+				final Identity imported = target.getIdentityByID(original.getID());
+				assertFalse(imported instanceof OwnIdentity);
+
+				if(original.getCurrentEditionFetchState() != FetchState.Fetched) {
+					assertEquals(FetchState.NotFetched, imported.getCurrentEditionFetchState());
+					assertEquals(0, target.getGivenTrusts(imported).size());
+					continue;
+				}
+
+				assertEquals(FetchState.Fetched, imported.getCurrentEditionFetchState());
+				assertEquals(original.getEdition(), imported.getEdition());
+				assertEquals(original.getNickname(), imported.getNickname());
+				assertEquals(original.doesPublishTrustList(), imported.doesPublishTrustList());
+				assertEquals(original.getContexts(), imported.getContexts());
+				assertEquals(original.getProperties(), imported.getProperties());
+
+				assertEquals(mWebOfTrust.getGivenTrusts(original).size(),
+					target.getGivenTrusts(imported).size());
+				for(Trust trust : mWebOfTrust.getGivenTrusts(original)) {
+					final Trust importedTrust = target.getTrust(
+						trust.getTruster().getID(), trust.getTrustee().getID());
+					assertEquals(trust.getValue(), importedTrust.getValue());
+					assertEquals(trust.getComment(), importedTrust.getComment());
+					assertEquals(imported.getEdition(), importedTrust.getTrusterEdition());
+					++fetchedTrusts;
+				}
+			}
+
+			assertEquals(fetchedTrusts, stats.mImportedTrusts);
+			assertEquals(mWebOfTrust.getAllTrusts().size() - fetchedTrusts, stats.mSkippedTrusts);
+
+			// Importing again must not modify the identities which are fetched now.
+			final TrustGraphSnapshot.ImportStatistics again = importSnapshot(target);
+			assertEquals(0, again.mImportedTrusts);
+			assertEquals(mWebOfTrust.getAllTrusts().size(), again.mSkippedTrusts);
+			assertEquals(fetchedTrusts, target.getAllTrusts().size());
+
+			assertTrue(target.verifyDatabaseIntegrity());
+			assertTrue(target.verifyAndCorrectStoredScores());
+		} finally {
+			target.terminate();
+		}
+	}
+
+	/** Tests whether the Scores are computed for the imported trust lists. */
+	@Test public void testScoresAfterImport() throws Exception {
+		Identity trustee = null;
+		for(Identity identity : mWebOfTrust.getAllIdentities()) {
+			if(!(identity instanceof OwnIdentity)
+					&& identity.getCurrentEditionFetchState() == FetchState.Fetched
+					&& mWebOfTrust.getGivenTrusts(identity).size() > 0) {
+				trustee = identity;
+				break;
+			}
+		}
+		assertNotNull(trustee);
+
+		final WebOfTrust target = constructEmptyWebOfTrust();
+		try {
+			final OwnIdentity own = target.createOwnIdentity(getRandomInsertURI(),
+				getRandomLatinString(Identity.MAX_NICKNAME_LENGTH), true, "Test");
+			target.addIdentity(trustee.getRequestURI().toString());
+			target.setTrust(own.getID(), trustee.getID(), (byte)100, "");
+
+			importSnapshot(target);
+			assertTrue(target.verifyAndCorrectStoredScores());
+
+			final OwnIdentity ownImported = target.getOwnIdentityByID(own.getID());
+			final HashMap<String, Trust> givenTrusts = mWebOfTrust.getGivenTrustsByTrusteeID(
+				mWebOfTrust.getIdentityByID(trustee.getID()));
+			// The trustee has capacity, so all identities it trusts must have received a Score.
+			for(Trust trust : givenTrusts.values()) {
+				final Identity imported = target.getIdentityByID(trust.getTrustee().getID());
+				if(imported.getID().equals(own.getID()))
+					continue;
+
+				assertNotNull(target.getScore(ownImported, imported));
+			}
+		} finally {
+			target.terminate();
+		}
+	}
+
+	/**
+	 * Tests the import of an identity which exists already and was imported from an
+	 * {@link IdentityFile} earlier, but then marked for refetching: Its trust list is replaced, so
+	 * the {@link Identity#getIdentityFileFingerprint()} of the earlier import must not be kept.
+	 */
+	@Test public void testImportPreviouslyImportedIdentity() throws Exception {
+		Identity original = null;
+		for(Identity identity : mWebOfTrust.getAllIdentities()) {
+			if(!(identity instanceof OwnIdentity)
+					&& identity.getCurrentEditionFetchState() == FetchState.Fetched
+					&& mWebOfTrust.getGivenTrusts(identity).size() > 0) {
+				original = identity;
+				break;
+			}
+		}
+		assertNotNull(original);
+
+		final WebOfTrust target = constructEmptyWebOfTrust();
+		try {
+			final Identity existing = target.addIdentity(
+				original.getRequestURI().setSuggestedEdition(0).toString());
+			final Identity trustee = target.addIdentity(getRandomRequestURI().toString());
+			// Emulate a full import of edition 0 by XMLTransformer.
+			existing.onFetched();
+			existing.setIdentityFileFingerprint("fingerprint of edition 0");
+			existing.storeWithoutCommit();
+			new Trust(target, existing, trustee, (byte)50, "Old trust list").storeWithoutCommit();
+			Persistent.checkedCommit(target.getDatabase(), this);
+			assertEquals(0, existing.getTrustListEdition());
+
+			existing.markForRefetch();
+			existing.storeAndCommit();
+			assertEquals(FetchState.NotFetched, existing.getCurrentEditionFetchState());
+
+			importSnapshot(target);
+
+			final Identity imported = target.getIdentityByID(original.getID());
+			assertEquals(FetchState.Fetched, imported.getCurrentEditionFetchState());
+			assertEquals(original.getEdition(), imported.getEdition());
+			assertNull(imported.getIdentityFileFingerprint());
+			assertEquals(original.getEdition(), imported.getTrustListEdition());
+			assertEquals(mWebOfTrust.getGivenTrusts(original).size(),
+				target.getGivenTrusts(imported).size());
+			for(Trust trust : target.getGivenTrusts(imported))
+				assertEquals(imported.getEdition(), trust.getTrusterEdition());
+
+			assertTrue(target.verifyDatabaseIntegrity());
+			assertTrue(target.verifyAndCorrectStoredScores());
+		} finally {
+			target.terminate();
+		}
+	}
+
+	@Test public void testCorruptSnapshot() throws Exception {
+		final WebOfTrust target = constructEmptyWebOfTrust();
+		try {
+			final byte[] corrupt = new byte[] { 1, 2, 3, 4 };
+			try {
+				target.importTrustGraphSnapshot(new ByteArrayInputStream(corrupt));
+				fail("Corrupt snapshot was accepted");
+			} catch(IOException e) {}
+
+			// Truncated
+			final byte[] truncated = new byte[mSnapshot.length / 2];
+			System.arraycopy(mSnapshot, 0, truncated, 0, truncated.length);
+			try {
+				target.importTrustGraphSnapshot(new ByteArrayInputStream(truncated));
+				fail("Truncated snapshot was accepted");
+			} catch(IOException e) {}
+
+			// The committed batches are kept, but the Scores must be correct.
+			assertTrue(target.verifyDatabaseIntegrity());
+			assertTrue(target.verifyAndCorrectStoredScores());
+		} finally {
+			target.terminate();
+		}
+	}
+
+	/**
+	 * Tests a snapshot which is truncated after the import has committed a batch: The identities
+	 * which the committed batch marked as fetched must be marked for refetching since their trust
+	 * list may be incomplete, and importing the complete snapshot must then replace it. */
+	@Test public void testTruncatedSnapshotAfterCommit() throws Exception {
+		// Enough trusts so the import commits a batch before it reaches the truncation.
+		for(Identity identity : addRandomIdentities(100))
+			markAsFetched(identity);
+		final ArrayList<Identity> identities = new ArrayList<Identity>();
+		for(Identity identity : mWebOfTrust.getAllIdentities())
+			identities.add(identity);
+		addRandomTrustValues(identities, 6000);
+
+		final byte[] snapshot = exportSnapshot();
+		final byte[] truncated = new byte[snapshot.length * 95 / 100];
+		System.arraycopy(snapshot, 0, truncated, 0, truncated.length);
+
+		final WebOfTrust target = constructEmptyWebOfTrust();
+		try {
+			try {
+				target.importTrustGraphSnapshot(new ByteArrayInputStream(truncated));
+				fail("Truncated snapshot was accepted");
+			} catch(IOException e) {}
+
+			// Trusts were committed, but no identity may stay marked as fetched.
+			assertTrue(target.getAllTrusts().size() > 0);
+			for(Identity identity : target.getAllIdentities())
+				assertEquals(FetchState.NotFetched, identity.getCurrentEditionFetchState());
+
+			target.importTrustGraphSnapshot(new ByteArrayInputStream(snapshot));
+			for(Identity original : mWebOfTrust.getAllIdentities()) {
+				final Identity imported = target.getIdentityByID(original.getID());
+				if(original.getCurrentEditionFetchState() != FetchState.Fetched) {
+					assertEquals(FetchState.NotFetched, imported.getCurrentEditionFetchState());
+					continue;
+				}
+
+				assertEquals(FetchState.Fetched, imported.getCurrentEditionFetchState());
+				assertEquals(mWebOfTrust.getGivenTrusts(original).size(),
+					target.getGivenTrusts(imported).size());
+			}
+
+			assertTrue(target.verifyDatabaseIntegrity());
+			assertTrue(target.verifyAndCorrectStoredScores());
+		} finally {
+			target.terminate();
+		}
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+}
@@ -7,8 +7,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.HashSet;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -16,6 +19,7 @@ import org.junit.Test;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
 import plugins.WebOfTrust.util.IdentifierHashSet;
+import freenet.keys.FreenetURI;
 
 /**
  * Tests class {@link WebOfTrust}.
@@ -131,6 +135,85 @@ public class WebOfTrustTest extends AbstractJUnit4BaseTest {
 		
 	}
 
+	/**
+	 * Tests whether importing a changed trust list, which {@link XMLTransformer} applies as a
+	 * diff against the previous one using {@link WebOfTrust#getIdentitiesByID(java.util.Collection)}
+	 * and {@link WebOfTrust#getGivenTrustsByTrusteeID(Identity)}, yields the same {@link Trust}s
+	 * and {@link Score}s as importing it into a database which never saw the previous one. */
+	@Test public void testImportChangedTrustListEqualsFullImport() throws Exception {
+		final OwnIdentity truster = mWebOfTrust.createOwnIdentity(getRandomInsertURI(), "truster",
+			true, null);
+		final ArrayList<Identity> trustees = addRandomIdentities(30);
+		
+		for(Identity trustee : trustees.subList(0, 20)) {
+			mWebOfTrust.setTrust(truster.getID(), trustee.getID(), getRandomTrustValue(),
+				"First");
+		}
+		final byte[] firstXML = exportOwnIdentity(truster);
+		
+		// Remove, change and add Trusts.
+		for(Identity trustee : trustees.subList(0, 5))
+			mWebOfTrust.removeTrust(truster.getID(), trustee.getID());
+		for(Identity trustee : trustees.subList(5, 10)) {
+			final byte value = mWebOfTrust.getTrust(truster.getID(), trustee.getID()).getValue();
+			mWebOfTrust.setTrust(truster.getID(), trustee.getID(),
+				(byte)(value < 100 ? value + 1 : value - 1), "Changed");
+		}
+		for(Identity trustee : trustees.subList(20, 30)) {
+			mWebOfTrust.setTrust(truster.getID(), trustee.getID(), getRandomTrustValue(),
+				"Added");
+		}
+		final byte[] secondXML = exportOwnIdentity(truster);
+		
+		final FreenetURI rootURI = getRandomInsertURI();
+		final FreenetURI trusterURI = truster.getRequestURI();
+		final WebOfTrust diffImport = constructImportDatabase(rootURI, trusterURI);
+		final WebOfTrust fullImport = constructImportDatabase(rootURI, trusterURI);
+		try {
+			final XMLTransformer diffTransformer = diffImport.getXMLTransformer();
+			assertFalse(diffTransformer.importIdentity(trusterURI.setSuggestedEdition(1),
+				new ByteArrayInputStream(firstXML)));
+			assertFalse(diffTransformer.importIdentity(trusterURI.setSuggestedEdition(2),
+				new ByteArrayInputStream(secondXML)));
+			
+			assertFalse(fullImport.getXMLTransformer().importIdentity(
+				trusterURI.setSuggestedEdition(2), new ByteArrayInputStream(secondXML)));
+			
+			final HashSet<Trust> trusts = new HashSet<Trust>(fullImport.getAllTrusts());
+			// The root's Trust and the ones of the second trust list
+			assertEquals(1 + 25, trusts.size());
+			assertEquals(trusts, new HashSet<Trust>(diffImport.getAllTrusts()));
+			assertEquals(new HashSet<Score>(fullImport.getAllScores()),
+				new HashSet<Score>(diffImport.getAllScores()));
+			
+			assertTrue(diffImport.verifyDatabaseIntegrity());
+			assertTrue(diffImport.verifyAndCorrectStoredScores());
+		} finally {
+			diffImport.terminate();
+			fullImport.terminate();
+		}
+	}
+	
+	private byte[] exportOwnIdentity(OwnIdentity identity) throws Exception {
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		mWebOfTrust.getXMLTransformer().exportOwnIdentityStreaming(
+			mWebOfTrust.getOwnIdentityByID(identity.getID()), os);
+		return os.toByteArray();
+	}
+	
+	/**
+	 * @return A new database with an {@link OwnIdentity} of the given insert URI which trusts
+	 *     the given non-own identity so its trust list is imported and its trustees are created. */
+	private WebOfTrust constructImportDatabase(FreenetURI ownURI, FreenetURI trusterURI)
+			throws Exception {
+		
+		final WebOfTrust wot = constructEmptyWebOfTrust();
+		final OwnIdentity own = wot.createOwnIdentity(ownURI, "root", true, null);
+		final Identity truster = wot.addIdentity(trusterURI.toString());
+		wot.setTrust(own.getID(), truster.getID(), (byte)100, "");
+		return wot;
+	}
+
 	@Override protected WebOfTrust getWebOfTrust() {
 		return mWebOfTrust;
 	}
@@ -6,14 +6,18 @@ package plugins.WebOfTrust;
 import static java.lang.Integer.parseInt;
 import static plugins.WebOfTrust.introduction.IntroductionServer.PUZZLE_COUNT_PROPERTY;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 
 import plugins.WebOfTrust.Identity.FetchState;
 import plugins.WebOfTrust.Identity.IdentityID;
+import plugins.WebOfTrust.IdentityFetcher.PollingPriority;
 import plugins.WebOfTrust.exceptions.DuplicateTrustException;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
@@ -772,6 +776,138 @@ public class WoTTest extends AbstractJUnit3BaseTest {
 
 	}
 	
+	public void testGetIdentitiesByIDAndGetGivenTrustsByTrusteeID()
+			throws MalformedURLException, InvalidParameterException {
+		
+		OwnIdentity o = mWoT.createOwnIdentity(new FreenetURI(insertUriO), "O", true, "Test");
+		Identity a = new Identity(mWoT, requestUriA, "A", true); a.storeAndCommit();
+		Identity b = new Identity(mWoT, requestUriB, "B", true); b.storeAndCommit();
+		String unknownID = IdentityID.constructAndValidateFromURI(new FreenetURI(requestUriC)).toString();
+		
+		assertEquals(0, mWoT.getIdentitiesByID(new HashSet<String>()).size());
+		
+		HashSet<String> ids = new HashSet<String>();
+		ids.add(o.getID()); ids.add(a.getID()); ids.add(b.getID()); ids.add(unknownID);
+		HashMap<String, Identity> identities = mWoT.getIdentitiesByID(ids);
+		assertEquals(3, identities.size());
+		assertSame(o, identities.get(o.getID()));
+		assertSame(a, identities.get(a.getID()));
+		assertSame(b, identities.get(b.getID()));
+		assertFalse(identities.containsKey(unknownID));
+		
+		assertEquals(0, mWoT.getGivenTrustsByTrusteeID(o).size());
+		mWoT.setTrust(o, a, (byte)10, "");
+		mWoT.setTrust(o, b, (byte)-10, "");
+		mWoT.setTrust(a, b, (byte)20, "");
+		HashMap<String, Trust> trusts = mWoT.getGivenTrustsByTrusteeID(o);
+		assertEquals(2, trusts.size());
+		assertEquals(10, trusts.get(a.getID()).getValue());
+		assertEquals(-10, trusts.get(b.getID()).getValue());
+	}
+	
+	/**
+	 * Tests the coalescing of the commands of {@link IdentityFetcher} and that they only become
+	 * effective if their transaction is committed.
+	 */
+	public void testIdentityFetcherCommands() throws MalformedURLException, InvalidParameterException {
+		Identity a = new Identity(mWoT, requestUriA, "A", true); a.storeAndCommit();
+		Identity b = new Identity(mWoT, requestUriB, "B", true); b.storeAndCommit();
+		IdentityFetcher fetcher = mWoT.getIdentityFetcher();
+		ExtObjectContainer db = mWoT.getDatabase();
+		
+		synchronized(mWoT) {
+		synchronized(fetcher) {
+			assertFalse(fetcher.getShouldFetchState(a.getID()));
+			
+			synchronized(Persistent.transactionLock(db)) {
+				fetcher.storeStartFetchCommandWithoutCommit(a);
+				assertTrue(fetcher.getShouldFetchState(a.getID()));
+				Persistent.checkedRollback(db, this, new RuntimeException("Test"));
+			}
+			assertFalse(fetcher.getShouldFetchState(a.getID()));
+			
+			synchronized(Persistent.transactionLock(db)) {
+				fetcher.storeStartFetchCommandWithoutCommit(a);
+				fetcher.storeUpdateEditionHintCommandWithoutCommit(a);
+				// Not fetched: Start and abort cancel out, and the hint is dropped.
+				fetcher.storeStartFetchCommandWithoutCommit(b);
+				fetcher.storeAbortFetchCommandWithoutCommit(b);
+				fetcher.storeUpdateEditionHintCommandWithoutCommit(b);
+				Persistent.checkedCommit(db, this);
+			}
+			assertTrue(fetcher.getShouldFetchState(a.getID()));
+			assertFalse(fetcher.getShouldFetchState(b.getID()));
+		}
+		}
+		
+		fetcher.run();
+		
+		synchronized(mWoT) {
+		synchronized(fetcher) {
+			assertTrue(fetcher.getShouldFetchState(a.getID()));
+			assertFalse(fetcher.getShouldFetchState(b.getID()));
+			
+			// Is being fetched: Abort wins over the start.
+			synchronized(Persistent.transactionLock(db)) {
+				fetcher.storeAbortFetchCommandWithoutCommit(a);
+				fetcher.storeStartFetchCommandWithoutCommit(a);
+				assertTrue(fetcher.getShouldFetchState(a.getID()));
+				fetcher.storeAbortFetchCommandWithoutCommit(a);
+				Persistent.checkedCommit(db, this);
+			}
+			assertFalse(fetcher.getShouldFetchState(a.getID()));
+		}
+		}
+		
+		fetcher.run();
+		
+		synchronized(fetcher) {
+			assertFalse(fetcher.getShouldFetchState(a.getID()));
+		}
+	}
+	
+	/**
+	 * Tests whether the {@link PollingPriority} of a running fetch follows the capacity of the
+	 * Identity.
+	 */
+	public void testIdentityFetcherPollingPriority() throws MalformedURLException,
+			InvalidParameterException, UnknownIdentityException, NotInTrustTreeException {
+		
+		assertEquals(PollingPriority.High, PollingPriority.fromCapacity(100));
+		assertEquals(PollingPriority.High, PollingPriority.fromCapacity(40));
+		assertEquals(PollingPriority.Normal, PollingPriority.fromCapacity(16));
+		assertEquals(PollingPriority.Normal, PollingPriority.fromCapacity(6));
+		assertEquals(PollingPriority.Low, PollingPriority.fromCapacity(2));
+		assertEquals(PollingPriority.Low, PollingPriority.fromCapacity(1));
+		assertEquals(PollingPriority.Lowest, PollingPriority.fromCapacity(0));
+		
+		OwnIdentity a = mWoT.createOwnIdentity(new FreenetURI(insertUriA), "A", true, "Test");
+		Identity b = mWoT.addIdentity(requestUriB);
+		Identity c = mWoT.addIdentity(requestUriC);
+		IdentityFetcher fetcher = mWoT.getIdentityFetcher();
+		
+		mWoT.setTrust(a, b, (byte)100, "Foo");
+		// There is no committing setTrust() for non-OwnIdentity
+		mWoT.setTrustWithoutCommit(b, c, (byte)100, "Bar");
+		Persistent.checkedCommit(mWoT.getDatabase(), this);
+		fetcher.run();
+		
+		synchronized(fetcher) {
+			assertEquals(PollingPriority.High, fetcher.getPollingPriority(a.getID()));
+			assertEquals(PollingPriority.High, fetcher.getPollingPriority(b.getID()));
+			assertEquals(PollingPriority.Normal, fetcher.getPollingPriority(c.getID()));
+		}
+		
+		// Capacity of c changes from 16 to 40
+		mWoT.setTrust(a, c, (byte)100, "Foo");
+		assertEquals(40, mWoT.getBestCapacity(mWoT.getIdentityByID(c.getID())));
+		fetcher.run();
+		
+		synchronized(fetcher) {
+			assertEquals(PollingPriority.High, fetcher.getPollingPriority(c.getID()));
+		}
+	}
+	
 	/**
 	 * Test for {@link restoreOwnIdentity}: Using a request URI instead of an insert URI. Restoring should fail. 
 	 */
@@ -1271,4 +1407,49 @@ public class WoTTest extends AbstractJUnit3BaseTest {
 		assertEquals(0, trustee.getEdition());
 		assertEquals(FetchState.NotFetched, trustee.getCurrentEditionFetchState());
 	}
+
+	/**
+	 * Tests whether {@link WebOfTrust#removeTrustIncludingNonOwn(String, String)} keeps the
+	 * {@link Identity#getTrustListEdition()} of a truster whose unchanged edition was skipped by
+	 * {@link XMLTransformer#importIdentity(FreenetURI, java.io.InputStream)}: The remaining
+	 * {@link Trust}s still have the truster edition of the last full import.
+	 */
+	public void testRemoveTrustAfterSkippedUnchangedEdition() throws Exception {
+		final XMLTransformer transformer = new XMLTransformer(mWoT);
+		final OwnIdentity root = mWoT.createOwnIdentity(new FreenetURI(insertUriO), "root", true, null);
+		final OwnIdentity truster = mWoT.createOwnIdentity(new FreenetURI(insertUriA), "truster", true, null);
+		final Identity trustee1 = mWoT.addIdentity(requestUriB);
+		final Identity trustee2 = mWoT.addIdentity(requestUriC);
+		mWoT.setTrust(root, truster, (byte)100, "Trusted so its trust list is imported");
+		mWoT.setTrust(truster, trustee1, (byte)50, "Trustee 1");
+		mWoT.setTrust(truster, trustee2, (byte)50, "Trustee 2");
+		
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		transformer.exportOwnIdentityStreaming(truster, os);
+		final byte[] xml = os.toByteArray();
+		final FreenetURI uri = truster.getRequestURI();
+		
+		// The fingerprint is not used for OwnIdentitys, so convert it to a non-own one.
+		mWoT.deleteOwnIdentity(truster.getID());
+		
+		assertFalse(transformer.importIdentity(uri.setSuggestedEdition(1), new ByteArrayInputStream(xml)));
+		assertTrue(transformer.importIdentity(uri.setSuggestedEdition(2), new ByteArrayInputStream(xml)));
+		assertEquals(1, mWoT.getIdentityByID(truster.getID()).getTrustListEdition());
+		
+		mWoT.removeTrustIncludingNonOwn(truster.getID(), trustee1.getID());
+		final Identity imported = mWoT.getIdentityByID(truster.getID());
+		assertNull(imported.getIdentityFileFingerprint());
+		assertEquals(2, imported.getEdition());
+		assertEquals(1, imported.getTrustListEdition());
+		assertEquals(1, mWoT.getTrust(truster.getID(), trustee2.getID()).getTrusterEdition());
+		assertTrue(mWoT.verifyDatabaseIntegrity());
+		
+		// The next edition must be imported fully even though it is unchanged, which updates the
+		// truster edition of all Trusts.
+		assertFalse(transformer.importIdentity(uri.setSuggestedEdition(3), new ByteArrayInputStream(xml)));
+		assertEquals(3, mWoT.getIdentityByID(truster.getID()).getTrustListEdition());
+		assertEquals(3, mWoT.getTrust(truster.getID(), trustee1.getID()).getTrusterEdition());
+		assertEquals(3, mWoT.getTrust(truster.getID(), trustee2.getID()).getTrusterEdition());
+		assertTrue(mWoT.verifyDatabaseIntegrity());
+	}
 }
\ No newline at end of file
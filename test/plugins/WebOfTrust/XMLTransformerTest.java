@@ -12,6 +12,9 @@ import javax.xml.transform.TransformerException;
 
 import org.xml.sax.SAXException;
 
+import plugins.WebOfTrust.Identity.FetchState;
+import plugins.WebOfTrust.Identity.IdentityID;
+import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.introduction.IntroductionPuzzle;
@@ -46,11 +49,73 @@ public class XMLTransformerTest extends AbstractJUnit3BaseTest {
 		// TODO: Test that we do not export the trust list if trust list export is disabled.
 	}
 		 
+	/**
+	 * Tests whether {@link XMLTransformer#exportOwnIdentityStreaming(OwnIdentity,
+	 * java.io.OutputStream)} produces XML which can be imported, including characters which must
+	 * be escaped. */
+	public void testExportOwnIdentityStreaming() throws Exception {
+		final OwnIdentity truster = mWoT.createOwnIdentity(getRandomSSKPair()[0], "truster", true, null);
+		final Identity trustee = mWoT.addIdentity(getRandomRequestURI().toString());
+		mWoT.setTrust(mOwnIdentity, truster, (byte)100, "Trusted so its trust list is imported");
+		// Characters which must be escaped
+		mWoT.setTrust(truster.getID(), trustee.getID(), (byte)-42, "a&b<c>\"d'e");
+		mWoT.addContext(truster.getID(), getRandomLatinString(10));
+		mWoT.setProperty(truster.getID(), "key", "<value>&\"\t'");
+		final OwnIdentity identity = mWoT.getOwnIdentityByID(truster.getID());
+		final String context = identity.getContexts().get(0);
+		
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		mTransformer.exportOwnIdentityStreaming(identity, os);
+		
+		final FreenetURI uri = identity.getRequestURI().setSuggestedEdition(1);
+		mWoT.deleteOwnIdentity(identity.getID());
+		mTransformer.importIdentity(uri, new ByteArrayInputStream(os.toByteArray()));
+		final Identity imported = mWoT.getIdentityByID(identity.getID());
+		assertEquals(FetchState.Fetched, imported.getCurrentEditionFetchState());
+		assertEquals("truster", imported.getNickname());
+		assertTrue(imported.hasContext(context));
+		assertEquals("<value>&\"\t'", imported.getProperty("key"));
+		assertEquals("a&b<c>\"d'e", mWoT.getTrust(imported, trustee).getComment());
+	}
+	
+	/** Tests whether {@link OwnIdentityXMLCache} is invalidated upon changes of the identity. */
+	public void testOwnIdentityXMLCache() throws Exception {
+		final OwnIdentityXMLCache cache = mWoT.getOwnIdentityXMLCache();
+		final Identity trustee = mWoT.addIdentity(getRandomRequestURI().toString());
+		
+		synchronized(mWoT) {
+			final byte[] xml = cache.getXML(mWoT.getOwnIdentityByID(mOwnIdentity.getID()));
+			assertSame(xml, cache.getXML(mWoT.getOwnIdentityByID(mOwnIdentity.getID())));
+		}
+		
+		byte[] xml;
+		mWoT.setTrust(mOwnIdentity.getID(), trustee.getID(), (byte)100, "");
+		synchronized(mWoT) {
+			xml = cache.getXML(mWoT.getOwnIdentityByID(mOwnIdentity.getID()));
+			assertTrue(new String(xml, "UTF-8").contains(trustee.getRequestURI().toString()));
+		}
+		
+		mWoT.removeTrust(mOwnIdentity.getID(), trustee.getID());
+		synchronized(mWoT) {
+			final byte[] changed = cache.getXML(mWoT.getOwnIdentityByID(mOwnIdentity.getID()));
+			assertNotSame(xml, changed);
+			assertFalse(new String(changed, "UTF-8").contains(trustee.getRequestURI().toString()));
+			xml = changed;
+		}
+		
+		mWoT.setProperty(mOwnIdentity.getID(), "key", "value");
+		synchronized(mWoT) {
+			final byte[] changed = cache.getXML(mWoT.getOwnIdentityByID(mOwnIdentity.getID()));
+			assertNotSame(xml, changed);
+			assertTrue(new String(changed, "UTF-8").contains("\"value\""));
+		}
+	}
+	
 	/**
 	 * XMLTransformer has a constant called MAX_IDENTITY_XML_TRUSTEE_AMOUNT. 
 	 * This function tests whether this amount of identities actually fits into an XML file if all data-fields are maxed out to their limit.
 	 */
-	public void testMaximalOwnIdentityXMLSize() throws MalformedURLException, InvalidParameterException, TransformerException {
+	public void testMaximalOwnIdentityXMLSize() throws MalformedURLException, InvalidParameterException, IOException {
 		final OwnIdentity ownId = mWoT.createOwnIdentity(
 				new FreenetURI("USK@ZTeIa1g4T3OYCdUFfHrFSlRnt5coeFFDCIZxWSb7abs,ZP4aASnyZax8nYOvCOlUebegsmbGQIXfVzw7iyOsXEc,AQECAAE/WebOfTrust/0"), // insert URI
 				// "USK@sdFxM0Z4zx4-gXhGwzXAVYvOUi6NRfdGbyJa797bNAg,ZP4aASnyZax8nYOvCOlUebegsmbGQIXfVzw7iyOsXEc,AQACAAE/WebOfTrust/0" // request URI
@@ -82,7 +147,7 @@ public class XMLTransformerTest extends AbstractJUnit3BaseTest {
 		//	
 		//	++count;
 		//	os = new ByteArrayOutputStream();	
-		//	mTransformer.exportOwnIdentity(ownId, os);
+		//	mTransformer.exportOwnIdentityStreaming(ownId, os);
 		//} while(os.toByteArray().length < XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE);
 		//System.out.println("Number of identities which fit into trust list XML: " + (count-1));
 		
@@ -100,7 +165,7 @@ public class XMLTransformerTest extends AbstractJUnit3BaseTest {
 		Persistent.checkedCommit(mWoT.getDatabase(), this);
 		
 		os = new ByteArrayOutputStream(XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE);
-		mTransformer.exportOwnIdentity(ownId, os);
+		mTransformer.exportOwnIdentityStreaming(ownId, os);
 		byte[] result = os.toByteArray();
 		
 		assertTrue(result.length <= XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE);
@@ -123,6 +188,175 @@ public class XMLTransformerTest extends AbstractJUnit3BaseTest {
 		//fail("Not yet implemented"); // TODO
 	}
 
+	/**
+	 * Tests whether {@link XMLTransformer#importIdentity(FreenetURI, java.io.InputStream)} skips
+	 * the trust list of a new edition which is equal to the previous one, as indicated by
+	 * {@link Identity#getIdentityFileFingerprint()}. */
+	public void testImportIdentityUnchanged() throws Exception {
+		final OwnIdentity truster = mWoT.createOwnIdentity(getRandomSSKPair()[0], "truster", true, null);
+		final Identity trustee = new Identity(mWoT, getRandomRequestURI(), "trustee", true);
+		trustee.storeAndCommit();
+		mWoT.setTrust(mOwnIdentity, truster, (byte)100, "Trusted so its trust list is imported");
+		mWoT.setTrust(truster, trustee, (byte)50, "Comment");
+		
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		mTransformer.exportOwnIdentityStreaming(truster, os);
+		final byte[] xml = os.toByteArray();
+		final FreenetURI uri = truster.getRequestURI();
+		
+		// The fingerprint is not used for OwnIdentitys, so convert it to a non-own one.
+		mWoT.deleteOwnIdentity(truster.getID());
+		
+		assertFalse(mTransformer.importIdentity(uri.setSuggestedEdition(1), new ByteArrayInputStream(xml)));
+		Identity imported = mWoT.getIdentityByID(truster.getID());
+		assertNotNull(imported.getIdentityFileFingerprint());
+		assertEquals(1, imported.getTrustListEdition());
+		assertEquals(1, mWoT.getTrust(imported, trustee).getTrusterEdition());
+		
+		assertTrue(mTransformer.importIdentity(uri.setSuggestedEdition(2), new ByteArrayInputStream(xml)));
+		imported = mWoT.getIdentityByID(truster.getID());
+		assertEquals(2, imported.getEdition());
+		assertEquals(FetchState.Fetched, imported.getCurrentEditionFetchState());
+		assertEquals(1, imported.getTrustListEdition());
+		assertEquals(1, mWoT.getTrust(imported, trustee).getTrusterEdition());
+		assertEquals(50, mWoT.getTrust(imported, trustee).getValue());
+		
+		// Removing a Trust manually must cause the next unchanged edition to be imported fully
+		// so the Trust is restored.
+		mWoT.removeTrustIncludingNonOwn(truster.getID(), trustee.getID());
+		assertNull(mWoT.getIdentityByID(truster.getID()).getIdentityFileFingerprint());
+		assertFalse(mTransformer.importIdentity(uri.setSuggestedEdition(3), new ByteArrayInputStream(xml)));
+		assertEquals(3, mWoT.getTrust(truster.getID(), trustee.getID()).getTrusterEdition());
+	}
+
+	/**
+	 * Tests whether {@link XMLTransformer#importIdentity(FreenetURI, java.io.InputStream)} imports
+	 * an unchanged file fully if a trustee which did not exist at the previous import has been
+	 * created since then. */
+	public void testImportIdentityUnchangedWithNewTrustee() throws Exception {
+		final OwnIdentity truster = mWoT.createOwnIdentity(getRandomSSKPair()[0], "truster", true, null);
+		final Identity trustee = new Identity(mWoT, getRandomRequestURI(), "trustee", true);
+		trustee.storeAndCommit();
+		mWoT.setTrust(truster, trustee, (byte)50, "Comment");
+		
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		mTransformer.exportOwnIdentityStreaming(truster, os);
+		// Replace the trustee with one which does not exist.
+		final FreenetURI newTrusteeURI = getRandomRequestURI();
+		final byte[] xml = new String(os.toByteArray(), "UTF-8")
+			.replace(trustee.getRequestURI().toString(), newTrusteeURI.toString())
+			.getBytes("UTF-8");
+		final FreenetURI uri = truster.getRequestURI();
+		
+		mWoT.deleteOwnIdentity(truster.getID());
+		// Distrusted so it has no capacity and the import does not create the trustee.
+		mWoT.setTrust(mOwnIdentity, mWoT.getIdentityByID(truster.getID()), (byte)-1, "");
+		
+		assertFalse(mTransformer.importIdentity(uri.setSuggestedEdition(1), new ByteArrayInputStream(xml)));
+		final String newTrusteeID = IdentityID.constructAndValidateFromURI(newTrusteeURI).toString();
+		assertNull(mWoT.getIdentityByIDOrNull(newTrusteeID));
+		
+		// The trustee is created by someone else, so the Trust must be created now.
+		final Identity newTrustee = mWoT.addIdentity(newTrusteeURI.toString());
+		assertFalse(mTransformer.importIdentity(uri.setSuggestedEdition(2), new ByteArrayInputStream(xml)));
+		assertEquals(50, mWoT.getTrust(truster.getID(), newTrustee.getID()).getValue());
+		assertEquals(2, mWoT.getTrust(truster.getID(), newTrustee.getID()).getTrusterEdition());
+		
+		assertTrue(mTransformer.importIdentity(uri.setSuggestedEdition(3), new ByteArrayInputStream(xml)));
+	}
+
+	/**
+	 * Tests whether {@link XMLTransformer#importIdentity(FreenetURI, java.io.InputStream)} drops
+	 * only a trust list entry whose URI is not of an identity, not the whole file. */
+	public void testImportIdentityMalformedTrustee() throws Exception {
+		final OwnIdentity truster = mWoT.createOwnIdentity(getRandomSSKPair()[0], "truster", true, null);
+		final Identity valid = new Identity(mWoT, getRandomRequestURI(), "valid", true);
+		final Identity malformed = new Identity(mWoT, getRandomRequestURI(), "malformed", true);
+		valid.storeAndCommit();
+		malformed.storeAndCommit();
+		mWoT.setTrust(truster, valid, (byte)50, "Comment");
+		mWoT.setTrust(truster, malformed, (byte)50, "Comment");
+		
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		mTransformer.exportOwnIdentityStreaming(truster, os);
+		final byte[] xml = new String(os.toByteArray(), "UTF-8")
+			.replace(malformed.getRequestURI().toString(), "KSK@malformed")
+			.getBytes("UTF-8");
+		final FreenetURI uri = truster.getRequestURI();
+		
+		mWoT.deleteOwnIdentity(truster.getID());
+		mWoT.setTrust(mOwnIdentity, mWoT.getIdentityByID(truster.getID()), (byte)100, "");
+		
+		assertFalse(mTransformer.importIdentity(uri.setSuggestedEdition(1), new ByteArrayInputStream(xml)));
+		assertEquals(FetchState.Fetched,
+			mWoT.getIdentityByID(truster.getID()).getCurrentEditionFetchState());
+		assertEquals(0, mWoT.getIdentityFileNegativeCache().getFailureCount(truster.getID()));
+		assertEquals(1, mWoT.getTrust(truster.getID(), valid.getID()).getTrusterEdition());
+		assertNull(mWoT.getTrustOrNull(mWoT.getIdentityByID(truster.getID()), malformed));
+	}
+
+	/**
+	 * Tests whether {@link XMLTransformer#importIdentity(FreenetURI, java.io.InputStream)} adds
+	 * unparseable files to the {@link IdentityFileNegativeCache}, and whether the
+	 * {@link IdentityFileQueue} then rejects them. */
+	public void testImportIdentityParsingFailed() throws Exception {
+		final Identity identity = new Identity(mWoT, getRandomRequestURI(), "broken", true);
+		identity.storeAndCommit();
+		mWoT.setTrust(mOwnIdentity, identity, (byte)100, "Trusted so it is fetched");
+		final IdentityFileNegativeCache cache = mWoT.getIdentityFileNegativeCache();
+		final byte[] brokenXML = "<WebOfTrust>".getBytes("UTF-8");
+		
+		for(int edition = 1; edition <= IdentityFileNegativeCache.CHRONIC_FAILURE_COUNT; ++edition) {
+			assertFalse(cache.isChronicOffender(identity.getID()));
+			final FreenetURI uri = identity.getRequestURI().setSuggestedEdition(edition);
+			assertFalse(mTransformer.importIdentity(uri, new ByteArrayInputStream(brokenXML)));
+			assertEquals(FetchState.ParsingFailed,
+				mWoT.getIdentityByID(identity.getID()).getCurrentEditionFetchState());
+			assertEquals(edition, cache.getFailureCount(identity.getID()));
+		}
+		assertTrue(cache.isChronicOffender(identity.getID()));
+		
+		// The queue must reject the same file, but not a different file of the same edition
+		final IdentityFileQueue queue = mWoT.getIdentityFileQueue();
+		final FreenetURI uri = identity.getRequestURI().setSuggestedEdition(1);
+		queue.add(new IdentityFileStream(uri, new ByteArrayInputStream(brokenXML)));
+		assertEquals(1, queue.getStatistics().mRejectedFiles);
+		assertEquals(0, queue.getStatistics().mQueuedFiles);
+		queue.add(new IdentityFileStream(uri, new ByteArrayInputStream("<".getBytes("UTF-8"))));
+		assertEquals(1, queue.getStatistics().mRejectedFiles);
+		assertEquals(1, queue.getStatistics().mQueuedFiles);
+		
+		// A successful import resets the failure count
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		final OwnIdentity source = mWoT.createOwnIdentity(getRandomSSKPair()[0], "source", true, null);
+		mTransformer.exportOwnIdentityStreaming(source, os);
+		assertFalse(mTransformer.importIdentity(identity.getRequestURI().setSuggestedEdition(10),
+			new ByteArrayInputStream(os.toByteArray())));
+		assertEquals(FetchState.Fetched,
+			mWoT.getIdentityByID(identity.getID()).getCurrentEditionFetchState());
+		assertEquals(0, cache.getFailureCount(identity.getID()));
+		assertFalse(cache.isChronicOffender(identity.getID()));
+	}
+
+	/**
+	 * Tests whether {@link XMLTransformer#importIdentity(FreenetURI, java.io.InputStream,
+	 * XMLTransformer.ImportTimings)} reports files of identities which do not exist, and does not
+	 * add them to the {@link IdentityFileNegativeCache}. */
+	public void testImportIdentityOfUnknownIdentity() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		final OwnIdentity source = mWoT.createOwnIdentity(getRandomSSKPair()[0], "source", true, null);
+		mTransformer.exportOwnIdentityStreaming(source, os);
+		// The file is valid, but we don't know the identity.
+		final FreenetURI uri = getRandomRequestURI().setSuggestedEdition(1);
+		final String id = IdentityID.constructAndValidateFromURI(uri).toString();
+		
+		final XMLTransformer.ImportTimings timings = new XMLTransformer.ImportTimings();
+		assertFalse(mTransformer.importIdentity(uri, new ByteArrayInputStream(os.toByteArray()),
+			timings));
+		assertTrue(timings.wasIdentityUnknown());
+		assertEquals(0, mWoT.getIdentityFileNegativeCache().getFailureCount(id));
+	}
+
 	public void testExportIntroduction() throws MalformedURLException, InvalidParameterException, TransformerException {
 		ByteArrayOutputStream os = new ByteArrayOutputStream();
 		mTransformer.exportIntroduction(mOwnIdentity, os);
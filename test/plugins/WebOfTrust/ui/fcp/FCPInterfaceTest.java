@@ -0,0 +1,189 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust.ui.fcp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.AbstractSingleNodeTest;
+import plugins.WebOfTrust.Identity;
+import plugins.WebOfTrust.OwnIdentity;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import freenet.clients.fcp.FCPPluginMessage;
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.BucketTools;
+
+/** Tests the paging and the formats of the "GetIdentities" message of {@link FCPInterface}. */
+public final class FCPInterfaceTest extends AbstractSingleNodeTest {
+
+	private static final String CONTEXT = "FCPInterfaceTest";
+
+	/** IDs of all identities in the database, sorted ascending. */
+	private final ArrayList<String> mIdentityIDs = new ArrayList<String>();
+
+	/** IDs of the identities which have the {@link #CONTEXT}, sorted ascending. */
+	private final ArrayList<String> mContextIDs = new ArrayList<String>();
+
+	@Before public void setUpIdentities()
+			throws UnknownIdentityException, MalformedURLException, InvalidParameterException {
+
+		deleteSeedIdentities();
+
+		// Not publishing the trust list so there are no further contexts and properties.
+		for(int i = 0; i < 3; ++i) {
+			final OwnIdentity identity = mWebOfTrust.createOwnIdentity(getRandomInsertURI(),
+				getRandomLatinString(Identity.MAX_NICKNAME_LENGTH), false, CONTEXT);
+			mContextIDs.add(identity.getID());
+		}
+		for(Identity identity : addRandomIdentities(7))
+			mIdentityIDs.add(identity.getID());
+
+		mIdentityIDs.addAll(mContextIDs);
+		Collections.sort(mIdentityIDs);
+		Collections.sort(mContextIDs);
+	}
+
+	private FCPPluginMessage getIdentities(String limit, String after, String context,
+			String format) {
+
+		final SimpleFieldSet params = new SimpleFieldSet(true);
+		params.putOverwrite("Message", "GetIdentities");
+		if(limit != null) params.putOverwrite("Limit", limit);
+		if(after != null) params.putOverwrite("After", after);
+		if(context != null) params.putOverwrite("Context", context);
+		if(format != null) params.putOverwrite("Format", format);
+
+		final FCPPluginMessage reply = mWebOfTrust.getFCPInterface()
+			.handlePluginFCPMessage(null, FCPPluginMessage.construct(params, null));
+		assertNotNull(reply);
+		return reply;
+	}
+
+	/**
+	 * Lists the identities by "GetIdentities" with the given "Limit" and "Context", following the
+	 * "Continuation" until it is absent.
+	 *
+	 * @return The listed IDs in the order of the replies. */
+	private ArrayList<String> getAllIdentityIDs(int limit, String context) {
+		final ArrayList<String> result = new ArrayList<String>();
+		String after = null;
+
+		do {
+			final FCPPluginMessage reply
+				= getIdentities(Integer.toString(limit), after, context, null);
+			assertTrue(reply.success);
+			assertEquals("Identities", reply.params.get("Message"));
+			assertEquals("SimpleFieldSet", reply.params.get("Identities.Format"));
+
+			final int amount = Integer.parseInt(reply.params.get("Identities.Amount"));
+			assertTrue(amount <= limit);
+			for(int i = 0; i < amount; ++i)
+				result.add(reply.params.get("Identities." + i + ".ID"));
+
+			after = reply.params.get("Identities.Continuation");
+			// Only a full page may have a Continuation
+			assertTrue(after == null || amount == limit);
+		} while(after != null);
+
+		return result;
+	}
+
+	@Test public void testGetIdentitiesContinuation() {
+		for(int limit = 1; limit <= mIdentityIDs.size() + 1; ++limit)
+			assertEquals(mIdentityIDs, getAllIdentityIDs(limit, null));
+
+		assertEquals(mIdentityIDs, getAllIdentityIDs(Integer.MAX_VALUE, null));
+	}
+
+	@Test public void testGetIdentitiesLimitEndsAtLastObject() {
+		final int size = mIdentityIDs.size();
+
+		FCPPluginMessage reply = getIdentities(Integer.toString(size), null, null, null);
+		assertEquals(Integer.toString(size), reply.params.get("Identities.Amount"));
+		assertNull(reply.params.get("Identities.Continuation"));
+
+		reply = getIdentities("2", mIdentityIDs.get(size - 3), null, null);
+		assertEquals("2", reply.params.get("Identities.Amount"));
+		assertEquals(mIdentityIDs.get(size - 1), reply.params.get("Identities.1.ID"));
+		assertNull(reply.params.get("Identities.Continuation"));
+
+		reply = getIdentities("1", mIdentityIDs.get(size - 1), null, null);
+		assertEquals("0", reply.params.get("Identities.Amount"));
+		assertNull(reply.params.get("Identities.Continuation"));
+	}
+
+	@Test public void testGetIdentitiesContext() {
+		for(int limit = 1; limit <= mContextIDs.size() + 1; ++limit)
+			assertEquals(mContextIDs, getAllIdentityIDs(limit, CONTEXT));
+
+		// A page on which no object matches the Context must be empty and complete.
+		final String lastContextID = mContextIDs.get(mContextIDs.size() - 1);
+		FCPPluginMessage reply = getIdentities("1", lastContextID, CONTEXT, null);
+		assertEquals("0", reply.params.get("Identities.Amount"));
+		assertNull(reply.params.get("Identities.Continuation"));
+
+		reply = getIdentities("1", null, "NoSuchContext", null);
+		assertEquals("0", reply.params.get("Identities.Amount"));
+		assertNull(reply.params.get("Identities.Continuation"));
+	}
+
+	@Test public void testGetIdentitiesLines()
+			throws UnknownIdentityException, InvalidParameterException, IOException {
+
+		final String id = mContextIDs.get(0);
+		mWebOfTrust.setProperty(id, "Escaped", "a\tb\nc\\d\re");
+
+		final FCPPluginMessage reply = getIdentities(null, null, null, "Lines");
+		assertTrue(reply.success);
+		assertEquals("Lines", reply.params.get("Identities.Format"));
+		assertEquals(Integer.toString(mIdentityIDs.size()),
+			reply.params.get("Identities.Amount"));
+		assertNotNull(reply.data);
+
+		final String text = new String(BucketTools.toByteArray(reply.data), "UTF-8");
+		assertTrue(text.endsWith("\n"));
+		final String[] lines = text.substring(0, text.length() - 1).split("\n", -1);
+		assertEquals(mIdentityIDs.size(), lines.length);
+
+		final List<String> listedIDs = new ArrayList<String>();
+		String escapedLine = null;
+		for(String line : lines) {
+			final String lineID = line.substring(0, line.indexOf('\t'));
+			listedIDs.add(lineID);
+			if(lineID.equals(id))
+				escapedLine = line;
+		}
+		assertEquals(mIdentityIDs, listedIDs);
+
+		assertNotNull(escapedLine);
+		assertTrue(escapedLine.endsWith("\tEscaped\ta\\tb\\nc\\\\d\\re"));
+		assertTrue(escapedLine.contains("\tOwnIdentity\t"));
+		assertTrue(escapedLine.contains("\t1\t" + CONTEXT + "\t"));
+	}
+
+	@Test public void testGetIdentitiesInvalidParameters() {
+		assertInvalid(getIdentities(null, null, null, "Xml"));
+		assertInvalid(getIdentities("0", null, null, null));
+		assertInvalid(getIdentities("-1", null, null, null));
+		assertInvalid(getIdentities("ten", null, null, null));
+	}
+
+	private static void assertInvalid(final FCPPluginMessage reply) {
+		assertFalse(reply.success);
+		assertEquals("Error", reply.params.get("Message"));
+		assertEquals("GetIdentities", reply.params.get("OriginalMessage"));
+		assertTrue(reply.params.get("Description").contains(
+			InvalidParameterException.class.getSimpleName()));
+	}
+
+}
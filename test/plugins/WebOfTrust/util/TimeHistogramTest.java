@@ -0,0 +1,85 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust.util;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/** Tests {@link TimeHistogram}. */
+public final class TimeHistogramTest {
+
+	@Test public void testAdd() {
+		TimeHistogram h = new TimeHistogram();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getAverageNanos());
+		assertEquals(0, h.getPercentileNanos(50));
+
+		h.add(0);                            // Bucket 0
+		h.add(999);                          // Bucket 0
+		h.add(MICROSECONDS.toNanos(1));      // Bucket 1
+		h.add(MICROSECONDS.toNanos(3));      // Bucket 2
+		h.add(MICROSECONDS.toNanos(4));      // Bucket 3
+		h.add(MINUTES.toNanos(60));          // Last bucket
+
+		assertEquals(6, h.getCount());
+		assertEquals(2, h.getBucketCount(0));
+		assertEquals(1, h.getBucketCount(1));
+		assertEquals(1, h.getBucketCount(2));
+		assertEquals(1, h.getBucketCount(3));
+		assertEquals(1, h.getBucketCount(TimeHistogram.BUCKET_COUNT - 1));
+		assertEquals(MINUTES.toNanos(60), h.getMaxNanos());
+		assertEquals(999 + MICROSECONDS.toNanos(1 + 3 + 4) + MINUTES.toNanos(60),
+			h.getTotalNanos());
+		assertEquals(h.getTotalNanos() / 6, h.getAverageNanos());
+	}
+
+	@Test public void testBucketBounds() {
+		assertEquals(0, TimeHistogram.getBucketLowerBoundNanos(0));
+		assertEquals(MICROSECONDS.toNanos(1), TimeHistogram.getBucketUpperBoundNanos(0));
+
+		for(int i = 1; i < TimeHistogram.BUCKET_COUNT; ++i) {
+			assertEquals(TimeHistogram.getBucketUpperBoundNanos(i - 1),
+				TimeHistogram.getBucketLowerBoundNanos(i));
+
+			TimeHistogram h = new TimeHistogram();
+			h.add(TimeHistogram.getBucketLowerBoundNanos(i));
+			assertEquals(1, h.getBucketCount(i));
+		}
+
+		assertEquals(Long.MAX_VALUE,
+			TimeHistogram.getBucketUpperBoundNanos(TimeHistogram.BUCKET_COUNT - 1));
+	}
+
+	@Test public void testGetPercentileNanos() {
+		TimeHistogram h = new TimeHistogram();
+		for(int i = 0; i < 90; ++i)
+			h.add(MICROSECONDS.toNanos(3)); // Bucket 2 = [2, 4) microseconds
+		for(int i = 0; i < 10; ++i)
+			h.add(MICROSECONDS.toNanos(100)); // Bucket 7 = [64, 128) microseconds
+
+		assertEquals(MICROSECONDS.toNanos(4), h.getPercentileNanos(50));
+		assertEquals(MICROSECONDS.toNanos(4), h.getPercentileNanos(90));
+		// Capped to the maximum instead of returning the bucket's bound of 128
+		assertEquals(MICROSECONDS.toNanos(100), h.getPercentileNanos(99));
+		assertEquals(MICROSECONDS.toNanos(100), h.getPercentileNanos(100));
+
+		try {
+			h.getPercentileNanos(0);
+			fail();
+		} catch(IllegalArgumentException e) {}
+	}
+
+	@Test public void testClone() {
+		TimeHistogram h = new TimeHistogram();
+		h.add(10);
+		TimeHistogram clone = h.clone();
+		h.add(20);
+		assertEquals(1, clone.getCount());
+		assertEquals(1, clone.getBucketCount(0));
+		assertEquals(2, h.getBucketCount(0));
+	}
+}